@@ -77,6 +77,10 @@ public class AbstractFormatterTestBase {
                 CppStyleConstants.CLANG_FORMAT_STYLE_PATH, CLANG_FORMAT_STYLE_FILE.getAbsolutePath());
     }
 
+    protected static String getClangFormatExecutablePath() {
+        return CLANG_FORMAT_EXECUTABLE_FILE.getAbsolutePath();
+    }
+
     protected static File getTestResourceDir() {
         String testResources = SRC_TEST_RESOURCES_DIR;
         File testResourceDir = new File(testResources).getAbsoluteFile();
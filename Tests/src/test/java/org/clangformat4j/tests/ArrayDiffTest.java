@@ -0,0 +1,86 @@
+package org.clangformat4j.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.Random;
+
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.ArrayDiff;
+import org.wangzw.plugin.cppstyle.diff_match_patch;
+import org.wangzw.plugin.cppstyle.diff_match_patch.Diff;
+
+/**
+ * Checks that {@link ArrayDiff} finds the same diffs as
+ * {@link diff_match_patch}. The timeout is long enough for neither to run out
+ * of time.
+ */
+public class ArrayDiffTest extends AbstractFormatterTestBase {
+
+    private static final float TIMEOUT = 60f;
+
+    private static final String UNFORMATTED_DIR = "unformatted";
+
+    private static final String COMMANDLINE_FORMATTED_DIR = "commandline-formatted";
+
+    @Test
+    public void testCorpusGivesTheSameDiffs() {
+        File[] unformattedFiles = new File(getTestResourceDir(), UNFORMATTED_DIR).listFiles();
+        File formattedDir = new File(getTestResourceDir(), COMMANDLINE_FORMATTED_DIR);
+        int pairs = 0;
+        for (File unformattedFile : unformattedFiles) {
+            File formattedFile = new File(formattedDir, unformattedFile.getName());
+            if (formattedFile.exists()) {
+                String unformatted = getContent(unformattedFile);
+                String formatted = getContent(formattedFile);
+                assertSameDiffs(unformattedFile.getName(), unformatted, formatted);
+                assertSameDiffs(formattedFile.getName(), formatted, unformatted);
+                pairs++;
+            }
+        }
+        assertEquals(unformattedFiles.length, pairs);
+    }
+
+    @Test
+    public void testRandomTextsGiveTheSameDiffs() {
+        Random random = new Random(18);
+        for (int i = 0; i < 2000; i++) {
+            String text1 = randomText(random, "ab \n\r{};", random.nextInt(i % 10 == 0 ? 1000 : 50));
+            String text2 = random.nextBoolean() ? randomText(random, "ab \n\r{};", random.nextInt(50))
+                    : mutate(random, text1);
+            assertSameDiffs(text1 + " -> " + text2, text1, text2);
+        }
+    }
+
+    private static void assertSameDiffs(String message, String text1, String text2) {
+        diff_match_patch diff = new diff_match_patch();
+        diff.Diff_Timeout = TIMEOUT;
+        LinkedList<Diff> expected = diff.diff_main(text1, text2);
+        diff.diff_cleanupEfficiency(expected);
+
+        assertEquals(message, expected, ArrayDiff.diff(text1, text2, TIMEOUT));
+    }
+
+    private static String randomText(Random random, String alphabet, int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return text.toString();
+    }
+
+    private static String mutate(Random random, String text) {
+        StringBuilder mutated = new StringBuilder(text);
+        for (int i = random.nextInt(10); i > 0 && mutated.length() > 0; i--) {
+            int position = random.nextInt(mutated.length());
+            if (random.nextBoolean()) {
+                mutated.insert(position, randomText(random, "abc\n ", 1 + random.nextInt(5)));
+            }
+            else {
+                mutated.delete(position, Math.min(mutated.length(), position + 1 + random.nextInt(5)));
+            }
+        }
+        return mutated.toString();
+    }
+}
@@ -0,0 +1,171 @@
+package org.clangformat4j.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wangzw.plugin.cppstyle.ClangFormatStyle;
+import org.wangzw.plugin.cppstyle.ClangFormatStyleCache;
+
+public class ClangFormatStyleCacheTest {
+
+    // generous, some platforms poll for file changes
+    private static final long WATCH_TIMEOUT = 30000;
+
+    private static final long REMOTE_TTL_MILLIS = 50;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ClangFormatStyleCache cache = ClangFormatStyleCache.getDefault();
+
+    private File root;
+
+    private File child;
+
+    @Before
+    public void setUp() throws IOException {
+        root = temporaryFolder.newFolder();
+        child = new File(root, "src/main");
+        assertTrue(child.mkdirs());
+        cache.invalidate();
+    }
+
+    @Test
+    public void testFindsNearestStyleFile() throws IOException {
+        File rootStyle = write(root, ".clang-format", "BasedOnStyle: LLVM\n");
+        File childStyle = write(child, "_clang-format", "BasedOnStyle: Google\n");
+
+        assertEquals(childStyle.getAbsolutePath(), cache.find(source(child)).getPath());
+        assertEquals(rootStyle.getAbsolutePath(), cache.find(new File(root, "src/A.java").getPath()).getPath());
+    }
+
+    @Test
+    public void testRepeatedLookupIsCached() throws IOException {
+        write(root, ".clang-format", "BasedOnStyle: LLVM\n");
+
+        assertSame(cache.find(source(child)), cache.find(source(child)));
+    }
+
+    @Test
+    public void testChangedStyleFileIsNoticed() throws Exception {
+        write(root, ".clang-format", "BasedOnStyle: LLVM\n");
+        String fingerprint = cache.find(source(child)).getFingerprint();
+
+        write(root, ".clang-format", "BasedOnStyle: Google\n");
+
+        awaitTrue(() -> !fingerprint.equals(cache.find(source(child)).getFingerprint()));
+    }
+
+    @Test
+    public void testNewStyleFileInBetweenIsNoticed() throws Exception {
+        write(root, ".clang-format", "BasedOnStyle: LLVM\n");
+        cache.find(source(child));
+
+        File childStyle = write(child, ".clang-format", "BasedOnStyle: Google\n");
+
+        awaitTrue(() -> childStyle.getAbsolutePath().equals(cache.find(source(child)).getPath()));
+    }
+
+    @Test
+    public void testInheritedStyleChangesFingerprint() throws Exception {
+        write(root, ".clang-format", "BasedOnStyle: LLVM\n");
+        write(child, ".clang-format", "BasedOnStyle: InheritParentConfig\nColumnLimit: 120\n");
+        ClangFormatStyle style = cache.find(source(child));
+        assertEquals(new File(root, ".clang-format").getAbsolutePath(), style.getParent().getPath());
+
+        write(root, ".clang-format", "BasedOnStyle: Google\n");
+
+        awaitTrue(() -> !style.getFingerprint().equals(cache.find(source(child)).getFingerprint()));
+    }
+
+    @Test
+    public void testNotInheritingStyleIgnoresParent() throws Exception {
+        write(root, ".clang-format", "BasedOnStyle: LLVM\n");
+        write(child, ".clang-format", "BasedOnStyle: Google\n");
+        ClangFormatStyle style = cache.find(source(child));
+
+        assertNull(style.getParent());
+        assertNotEquals(style.getFingerprint(), cache.find(new File(root, "A.java").getPath()).getFingerprint());
+    }
+
+    @Test
+    public void testLeastRecentlyResolvedDirectoryMakesRoom() throws Exception {
+        File first = new File(root, "first");
+        File second = new File(root, "second");
+        assertTrue(first.mkdir() && second.mkdir());
+        write(first, ".clang-format", "BasedOnStyle: LLVM\n");
+        write(second, ".clang-format", "BasedOnStyle: Google\n");
+        // room for one of them and the parents they share
+        int directories = 0;
+        for (File dir = first; dir != null; dir = dir.getParentFile()) {
+            directories++;
+        }
+        ClangFormatStyleCache cache = new ClangFormatStyleCache(directories, WATCH_TIMEOUT);
+        try {
+            ClangFormatStyle firstStyle = cache.find(source(first));
+            assertSame(firstStyle, cache.find(source(first)));
+
+            ClangFormatStyle secondStyle = cache.find(source(second));
+
+            assertSame(secondStyle, cache.find(source(second)));
+            assertNotSame(firstStyle, cache.find(source(first)));
+        }
+        finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testStyleOnNetworkFileSystemExpires() throws Exception {
+        write(root, ".clang-format", "BasedOnStyle: LLVM\n");
+        ClangFormatStyleCache cache = new ClangFormatStyleCache(Integer.MAX_VALUE, REMOTE_TTL_MILLIS) {
+            @Override
+            protected boolean isRemote(File dir) {
+                return true;
+            }
+        };
+        try {
+            ClangFormatStyle style = cache.find(source(child));
+            assertSame(style, cache.find(source(child)));
+
+            Thread.sleep(2 * REMOTE_TTL_MILLIS);
+
+            assertNotSame(style, cache.find(source(child)));
+        }
+        finally {
+            cache.close();
+        }
+    }
+
+    private static String source(File dir) {
+        return new File(dir, "A.java").getPath();
+    }
+
+    private static File write(File dir, String name, String content) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WATCH_TIMEOUT;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
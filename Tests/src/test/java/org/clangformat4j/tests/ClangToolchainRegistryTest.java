@@ -0,0 +1,58 @@
+package org.clangformat4j.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.ClangToolchain;
+import org.wangzw.plugin.cppstyle.ClangToolchainRegistry;
+import org.wangzw.plugin.cppstyle.CppStyle;
+import org.wangzw.plugin.cppstyle.ui.CppStyleConstants;
+
+public class ClangToolchainRegistryTest extends AbstractFormatterTestBase {
+
+    private ClangToolchainRegistry registry = ClangToolchainRegistry.getDefault();
+
+    @After
+    public void tearDown() {
+        AbstractFormatterTestBase.beforeClass();
+    }
+
+    @Test
+    public void testResolvesExecutableAndVersion() {
+        ClangToolchain toolchain = registry.get();
+
+        assertTrue(toolchain.isValid());
+        assertEquals(new File(getClangFormatExecutablePath()).toPath().normalize().toString(),
+                toolchain.getClangFormatPath());
+        assertNotNull(toolchain.getVersion());
+        assertTrue(toolchain.getVersion(), toolchain.getMajorVersion() > 0);
+        assertTrue(toolchain.hasCapability(ClangToolchain.Capability.JAVA));
+    }
+
+    @Test
+    public void testToolchainIsKeptUntilPreferencesChange() {
+        ClangToolchain toolchain = registry.get();
+        assertSame(toolchain, registry.get());
+
+        CppStyle.getDefault().getPreferenceStore().setValue(CppStyleConstants.CLANG_FORMAT_PATH,
+                "/does/not/exist;" + getClangFormatExecutablePath());
+
+        assertNotSame(toolchain, registry.get());
+        assertEquals(toolchain.getClangFormatPath(), registry.get().getClangFormatPath());
+    }
+
+    @Test
+    public void testMissingExecutableIsInvalid() {
+        CppStyle.getDefault().getPreferenceStore().setValue(CppStyleConstants.CLANG_FORMAT_PATH, "/does/not/exist");
+
+        assertFalse(registry.get().isValid());
+    }
+}
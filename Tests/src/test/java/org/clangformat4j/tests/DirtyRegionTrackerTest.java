@@ -0,0 +1,103 @@
+package org.clangformat4j.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.IRegion;
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.DirtyRegionTracker;
+
+public class DirtyRegionTrackerTest {
+
+    private static final String LINE = "int x;\n";
+
+    @Test
+    public void testWholeDocumentUntilFirstFormat() throws Exception {
+        Document document = createDocument(10);
+        DirtyRegionTracker tracker = DirtyRegionTracker.connect(document);
+        document.replace(0, 0, "int y;\n");
+
+        assertNull(tracker.getDirtyRegions(document));
+
+        tracker.clear();
+        assertEquals(0, tracker.getDirtyRegions(document).length);
+    }
+
+    @Test
+    public void testModifiedLinesOnly() throws Exception {
+        Document document = createDocument(10);
+        DirtyRegionTracker tracker = DirtyRegionTracker.connect(document);
+        tracker.clear();
+
+        document.replace(2 * LINE.length() + 4, 1, "yy");
+        document.replace(7 * LINE.length() + 6, 0, " ");
+
+        IRegion[] regions = tracker.getDirtyRegions(document);
+        assertEquals(2, regions.length);
+        assertRegion(document, 2, 2, regions[0]);
+        assertRegion(document, 7, 7, regions[1]);
+    }
+
+    @Test
+    public void testRegionsMoveAndMerge() throws Exception {
+        Document document = createDocument(10);
+        DirtyRegionTracker tracker = DirtyRegionTracker.connect(document);
+        tracker.clear();
+
+        document.replace(5 * LINE.length(), 1, "I");
+        // two inserted lines move the first region down
+        document.replace(0, 0, LINE + LINE);
+        // a change on the next line is merged with the moved region
+        document.replace(8 * LINE.length(), 1, "I");
+
+        IRegion[] regions = tracker.getDirtyRegions(document);
+        assertEquals(2, regions.length);
+        assertRegion(document, 0, 2, regions[0]);
+        assertRegion(document, 7, 8, regions[1]);
+    }
+
+    @Test
+    public void testDeletedLinesLeaveTheJoinedLine() throws Exception {
+        Document document = createDocument(10);
+        DirtyRegionTracker tracker = DirtyRegionTracker.connect(document);
+        tracker.clear();
+
+        document.replace(3 * LINE.length(), 4 * LINE.length(), "");
+
+        IRegion[] regions = tracker.getDirtyRegions(document);
+        assertEquals(1, regions.length);
+        assertRegion(document, 3, 3, regions[0]);
+    }
+
+    @Test
+    public void testIgnoredChangesOnlyMoveRegions() throws Exception {
+        Document document = createDocument(10);
+        DirtyRegionTracker tracker = DirtyRegionTracker.connect(document);
+        tracker.clear();
+
+        document.replace(5 * LINE.length(), 1, "I");
+        tracker.setTracking(false);
+        document.replace(LINE.length(), 0, LINE);
+        tracker.setTracking(true);
+
+        IRegion[] regions = tracker.getDirtyRegions(document);
+        assertEquals(1, regions.length);
+        assertRegion(document, 6, 6, regions[0]);
+    }
+
+    private static Document createDocument(int lines) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            source.append(LINE);
+        }
+        return new Document(source.toString());
+    }
+
+    private static void assertRegion(Document document, int firstLine, int lastLine, IRegion region)
+            throws Exception {
+        assertEquals(document.getLineOffset(firstLine), region.getOffset());
+        IRegion last = document.getLineInformation(lastLine);
+        assertEquals(last.getOffset() + last.getLength(), region.getOffset() + region.getLength());
+    }
+}
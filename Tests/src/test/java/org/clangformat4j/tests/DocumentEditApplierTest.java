@@ -0,0 +1,54 @@
+package org.clangformat4j.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import org.eclipse.jface.text.Document;
+import org.eclipse.text.edits.DeleteEdit;
+import org.eclipse.text.edits.InsertEdit;
+import org.eclipse.text.edits.MultiTextEdit;
+import org.eclipse.text.edits.ReplaceEdit;
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.DocumentEditApplier;
+
+public class DocumentEditApplierTest {
+
+    private static final String LINE = "int  x ;\n";
+
+    @Test
+    public void testFewEditsGiveTheSameText() throws Exception {
+        assertAppliedLikeTextEdit(3);
+    }
+
+    @Test
+    public void testManyEditsGiveTheSameText() throws Exception {
+        assertAppliedLikeTextEdit(200);
+    }
+
+    private static void assertAppliedLikeTextEdit(int lines) throws Exception {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            source.append(LINE);
+        }
+        Document expected = new Document(source.toString());
+        createEdit(lines).apply(expected);
+
+        Document actual = new Document(source.toString());
+        DocumentEditApplier.apply(actual, createEdit(lines));
+
+        assertEquals(expected.get(), actual.get());
+    }
+
+    /**
+     * Turns every "int  x ;" into "int x; //".
+     */
+    private static MultiTextEdit createEdit(int lines) {
+        MultiTextEdit edit = new MultiTextEdit();
+        for (int i = 0; i < lines; i++) {
+            int offset = i * LINE.length();
+            edit.addChild(new ReplaceEdit(offset + 3, 2, " "));
+            edit.addChild(new DeleteEdit(offset + 6, 1));
+            edit.addChild(new InsertEdit(offset + 8, " //"));
+        }
+        return edit;
+    }
+}
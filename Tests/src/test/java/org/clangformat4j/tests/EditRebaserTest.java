@@ -0,0 +1,77 @@
+package org.clangformat4j.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.eclipse.jface.text.Document;
+import org.eclipse.text.edits.InsertEdit;
+import org.eclipse.text.edits.MultiTextEdit;
+import org.eclipse.text.edits.ReplaceEdit;
+import org.eclipse.text.edits.TextEdit;
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.EditRebaser;
+
+public class EditRebaserTest {
+
+    private static final String SOURCE = "int  a;\nint  b;\nint  c;\n";
+
+    @Test
+    public void testWithoutChangesEditsStay() {
+        Document document = new Document(SOURCE);
+        EditRebaser rebaser = EditRebaser.connect(document);
+
+        assertFalse(rebaser.hasChanges());
+        TextEdit[] rebased = rebaser.rebase(createEdit()).getChildren();
+        assertEquals(3, rebased.length);
+        assertEquals(11, rebased[1].getOffset());
+    }
+
+    @Test
+    public void testEditsMoveAndOverlappingOnesAreDropped() throws Exception {
+        Document document = new Document(SOURCE);
+        EditRebaser rebaser = EditRebaser.connect(document);
+
+        // "int  b;" becomes "int  bb;", which moves the edit of the last line
+        document.replace(13, 0, "b");
+        // the user fixes the first line, which the edit of the first line overlaps
+        document.replace(3, 2, " ");
+        rebaser.disconnect();
+        document.replace(0, 0, "ignored");
+
+        assertTrue(rebaser.hasChanges());
+        TextEdit[] rebased = rebaser.rebase(createEdit()).getChildren();
+        assertEquals(1, rebaser.getDropped());
+        assertEquals(2, rebased.length);
+        assertEquals(10, rebased[0].getOffset());
+        assertEquals(2, rebased[0].getLength());
+        assertEquals(19, rebased[1].getOffset());
+        assertEquals(" ", ((ReplaceEdit)rebased[1]).getText());
+    }
+
+    @Test
+    public void testInsertionsAtTheSameOffsetAreDropped() throws Exception {
+        Document document = new Document(SOURCE);
+        EditRebaser rebaser = EditRebaser.connect(document);
+        document.replace(7, 0, " ");
+
+        MultiTextEdit edit = new MultiTextEdit();
+        edit.addChild(new InsertEdit(7, "//"));
+        edit.addChild(new InsertEdit(8, "//"));
+
+        TextEdit[] rebased = rebaser.rebase(edit).getChildren();
+        assertEquals(1, rebased.length);
+        assertEquals(9, rebased[0].getOffset());
+    }
+
+    /**
+     * Replaces the double space of every line.
+     */
+    private static MultiTextEdit createEdit() {
+        MultiTextEdit edit = new MultiTextEdit();
+        for (int line = 0; line < 3; line++) {
+            edit.addChild(new ReplaceEdit(8 * line + 3, 2, " "));
+        }
+        return edit;
+    }
+}
@@ -0,0 +1,137 @@
+package org.clangformat4j.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IFolder;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.Document;
+import org.eclipse.text.edits.MultiTextEdit;
+import org.eclipse.text.edits.TextEdit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.BatchReplacementFormatter;
+import org.wangzw.plugin.cppstyle.FormatResourcesJob;
+import org.wangzw.plugin.cppstyle.ReplacementFormatter;
+
+/**
+ * Runs the read, format and write pipeline of {@link FormatResourcesJob} on a
+ * project in the workspace.
+ */
+public class FormatResourcesJobTest extends AbstractFormatterTestBase {
+
+    private static final String PROJECT_NAME = "FormatResourcesJobTest";
+
+    private static final String UNFORMATTED = "class A {\nint  a;\n}\n";
+
+    // a hanging pipeline fails the test instead of the build
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private IProject project;
+
+    private IFolder folder;
+
+    @Before
+    public void setUp() throws CoreException {
+        project = ResourcesPlugin.getWorkspace().getRoot().getProject(PROJECT_NAME);
+        if (project.exists()) {
+            project.delete(true, null);
+        }
+        project.create(null);
+        project.open(null);
+        // files in other charsets are not batched
+        project.setDefaultCharset(StandardCharsets.UTF_8.name(), null);
+        folder = project.getFolder("src");
+        folder.create(true, true, null);
+    }
+
+    @After
+    public void tearDown() throws CoreException {
+        project.delete(true, null);
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void testFormatsTheJavaFilesOfAFolderAndItsSubfolders() throws Exception {
+        IFolder subfolder = folder.getFolder("sub");
+        subfolder.create(true, true, null);
+        IFile file = createFile(folder, "A.java");
+        IFile subfolderFile = createFile(subfolder, "B.java");
+        IFile textFile = createFile(folder, "notes.txt");
+
+        IStatus status =
+                new FormatResourcesJob(Collections.singletonList(folder)).runInWorkspace(new NullProgressMonitor());
+
+        assertEquals(IStatus.OK, status.getSeverity());
+        String formatted = formatWithReferenceFormatter(UNFORMATTED);
+        assertNotEquals(UNFORMATTED, formatted);
+        assertEquals(formatted, getContents(file));
+        assertEquals(formatted, getContents(subfolderFile));
+        assertEquals(UNFORMATTED, getContents(textFile));
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void testFailedFormatsAreCountedAndTheJobEnds() throws Exception {
+        IFile file = createFile(folder, "A.java");
+        IFile otherFile = createFile(folder, "B.java");
+
+        FormatResourcesJob job = new FormatResourcesJob(Collections.singletonList(folder)) {
+            @Override
+            protected BatchReplacementFormatter createBatchFormatter() {
+                return new FailingBatchFormatter();
+            }
+        };
+        IStatus status = job.runInWorkspace(new NullProgressMonitor());
+
+        assertEquals(IStatus.WARNING, status.getSeverity());
+        assertEquals(UNFORMATTED, getContents(file));
+        assertEquals(UNFORMATTED, getContents(otherFile));
+    }
+
+    private static IFile createFile(IFolder parent, String name) throws CoreException {
+        IFile file = parent.getFile(name);
+        file.create(new ByteArrayInputStream(UNFORMATTED.getBytes(StandardCharsets.UTF_8)), true, null);
+        return file;
+    }
+
+    private static String getContents(IFile file) throws IOException {
+        return new String(Files.readAllBytes(file.getLocation().toFile().toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static String formatWithReferenceFormatter(String source) throws BadLocationException {
+        TextEdit edit = new ReplacementFormatter().format(0, source, 0, source.length(), 0, "\n");
+        Document document = new Document(source);
+        edit.apply(document);
+        return document.get();
+    }
+
+    /**
+     * Fails with an exception instead of leaving out the files clang-format
+     * failed on.
+     */
+    private static class FailingBatchFormatter extends BatchReplacementFormatter {
+
+        FailingBatchFormatter() {
+            super("clang-format");
+        }
+
+        @Override
+        public Map<File, MultiTextEdit> format(Map<File, byte[]> contents) {
+            throw new IllegalStateException("clang-format crashed");
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package org.clangformat4j.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.jface.preference.IPreferenceStore;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.text.edits.TextEdit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wangzw.plugin.cppstyle.CodeFormatterBase;
+import org.wangzw.plugin.cppstyle.CppStyle;
+import org.wangzw.plugin.cppstyle.DiskFormatCache;
+import org.wangzw.plugin.cppstyle.FormatResultCache;
+import org.wangzw.plugin.cppstyle.FormatResultCacheStatistics;
+import org.wangzw.plugin.cppstyle.ReplacementFormatter;
+import org.wangzw.plugin.cppstyle.ServerFormatterBackend;
+import org.wangzw.plugin.cppstyle.replacement.ReplacementList;
+import org.wangzw.plugin.cppstyle.replacement.Utf8OffsetIndex;
+import org.wangzw.plugin.cppstyle.ui.CppStyleConstants;
+
+/**
+ * Runs the formatter against the stub formatting server, which counts the
+ * requests that get past the cache.
+ */
+public class FormatResultCacheTest {
+
+    private static final String SOURCE = "class A {\n\tint  a;\n}\n";
+
+    private static final String PATH = "A.java";
+
+    private static final int CACHE_SIZE = 16;
+
+    private static final int DISK_CACHE_ATTEMPTS = 50;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private StubFormattingServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubFormattingServer();
+        IPreferenceStore store = CppStyle.getDefault().getPreferenceStore();
+        CodeFormatterBase.setBackend(ServerFormatterBackend.forPort(server.getPort()));
+        store.setValue(CppStyleConstants.CLANG_FORMAT_RESULT_CACHE_SIZE, CACHE_SIZE);
+        store.setValue(CppStyleConstants.CLANG_FORMAT_DISK_CACHE_SIZE, 0);
+        FormatResultCache.getDefault().clear();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        IPreferenceStore store = CppStyle.getDefault().getPreferenceStore();
+        CodeFormatterBase.setBackend(null);
+        store.setToDefault(CppStyleConstants.CLANG_FORMAT_RESULT_CACHE_SIZE);
+        store.setToDefault(CppStyleConstants.CLANG_FORMAT_DISK_CACHE_SIZE);
+        store.setToDefault(CppStyleConstants.CLANG_FORMAT_DISK_CACHE_DIRECTORY);
+        server.close();
+    }
+
+    @Test
+    public void testIdenticalRequestIsAnsweredFromCache() {
+        new TestableReplacementFormatter().format(SOURCE, PATH);
+        TextEdit edit = new TestableReplacementFormatter().format(SOURCE, PATH);
+
+        assertNotNull(edit);
+        assertEquals(0, edit.getChildrenSize());
+        assertEquals(1, server.getRequests());
+    }
+
+    @Test
+    public void testDifferentSourceIsFormatted() {
+        new TestableReplacementFormatter().format(SOURCE, PATH);
+        new TestableReplacementFormatter().format(SOURCE + "\n", PATH);
+
+        assertEquals(2, server.getRequests());
+    }
+
+    @Test
+    public void testConcurrentIdenticalRequestsShareOneCall() throws Exception {
+        server.delayResponses(200);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<TextEdit> first = executor.submit(() -> new TestableReplacementFormatter().format(SOURCE, PATH));
+            Future<TextEdit> second = executor.submit(() -> new TestableReplacementFormatter().format(SOURCE, PATH));
+
+            assertNotNull(first.get());
+            assertNotNull(second.get());
+            assertEquals(1, server.getRequests());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testResultIsAnsweredFromDiskAfterMemoryIsCleared() throws Exception {
+        File directory = temporaryFolder.newFolder();
+        IPreferenceStore store = CppStyle.getDefault().getPreferenceStore();
+        store.setValue(CppStyleConstants.CLANG_FORMAT_DISK_CACHE_SIZE, CACHE_SIZE);
+        store.setValue(CppStyleConstants.CLANG_FORMAT_DISK_CACHE_DIRECTORY, directory.getAbsolutePath());
+
+        formatUntilDiskHit();
+
+        assertTrue(server.getRequests() < DISK_CACHE_ATTEMPTS);
+        assertTrue(Files.size(new File(directory, "format-cache.bin").toPath()) > 0);
+        // releases the file before the folder is deleted
+        DiskFormatCache.getDefault().configure(null, 0);
+    }
+
+    @Test
+    public void testTornRecordIsCutOff() throws Exception {
+        File directory = temporaryFolder.newFolder();
+        IPreferenceStore store = CppStyle.getDefault().getPreferenceStore();
+        store.setValue(CppStyleConstants.CLANG_FORMAT_DISK_CACHE_SIZE, CACHE_SIZE);
+        store.setValue(CppStyleConstants.CLANG_FORMAT_DISK_CACHE_DIRECTORY, directory.getAbsolutePath());
+        formatUntilDiskHit();
+        DiskFormatCache.getDefault().configure(null, 0);
+
+        // the start of a record a crash interrupted
+        Path file = new File(directory, "format-cache.bin").toPath();
+        long size = Files.size(file);
+        Files.write(file, new byte[] { 0, 0, 1, 0, 42 }, StandardOpenOption.APPEND);
+        DiskFormatCache.getDefault().configure(directory, CACHE_SIZE);
+        formatUntilDiskHit();
+
+        assertEquals(size, Files.size(file));
+        DiskFormatCache.getDefault().configure(null, 0);
+    }
+
+    /**
+     * Spawns the configured clang-format, whose output cannot be parsed once.
+     */
+    @Test
+    public void testFailedParseIsNotCached() {
+        AbstractFormatterTestBase.beforeClass();
+        CodeFormatterBase.setBackend(null);
+        FormatResultCacheStatistics before = FormatResultCache.getDefault().getStatistics();
+
+        assertNull(new UnparsableOutputFormatter().format(SOURCE, AbstractFormatterTestBase.assumeFilePath));
+        assertNotNull(new TestableReplacementFormatter().format(SOURCE, AbstractFormatterTestBase.assumeFilePath));
+
+        FormatResultCacheStatistics after = FormatResultCache.getDefault().getStatistics();
+        assertEquals(before.getHits(), after.getHits());
+        assertEquals(before.getMisses() + 2, after.getMisses());
+    }
+
+    @Test
+    public void testFailedParseIsNotPersisted() throws Exception {
+        AbstractFormatterTestBase.beforeClass();
+        File directory = temporaryFolder.newFolder();
+        IPreferenceStore store = CppStyle.getDefault().getPreferenceStore();
+        CodeFormatterBase.setBackend(null);
+        store.setValue(CppStyleConstants.CLANG_FORMAT_DISK_CACHE_SIZE, CACHE_SIZE);
+        store.setValue(CppStyleConstants.CLANG_FORMAT_DISK_CACHE_DIRECTORY, directory.getAbsolutePath());
+        String path = AbstractFormatterTestBase.assumeFilePath;
+
+        // the file is opened in the background, so format another source until it answers
+        long diskHits = FormatResultCache.getDefault().getStatistics().getDiskHits();
+        for (int i = 0; i < DISK_CACHE_ATTEMPTS
+                && FormatResultCache.getDefault().getStatistics().getDiskHits() == diskHits; i++) {
+            FormatResultCache.getDefault().clear();
+            new TestableReplacementFormatter().format(SOURCE + "\n", path);
+            Thread.sleep(20);
+        }
+
+        assertNull(new UnparsableOutputFormatter().format(SOURCE, path));
+        // gives a wrong append the time to be written
+        Thread.sleep(200);
+        FormatResultCache.getDefault().clear();
+        diskHits = FormatResultCache.getDefault().getStatistics().getDiskHits();
+        assertNotNull(new TestableReplacementFormatter().format(SOURCE, path));
+
+        assertEquals(diskHits, FormatResultCache.getDefault().getStatistics().getDiskHits());
+        // releases the file before the folder is deleted
+        DiskFormatCache.getDefault().configure(null, 0);
+    }
+
+    /**
+     * The file is opened and written in the background, so formats until it
+     * answers.
+     */
+    private static void formatUntilDiskHit() throws InterruptedException {
+        long diskHits = FormatResultCache.getDefault().getStatistics().getDiskHits();
+        for (int i = 0; i < DISK_CACHE_ATTEMPTS
+                && FormatResultCache.getDefault().getStatistics().getDiskHits() == diskHits; i++) {
+            FormatResultCache.getDefault().clear();
+            new TestableReplacementFormatter().format(SOURCE, PATH);
+            Thread.sleep(20);
+        }
+        assertTrue(FormatResultCache.getDefault().getStatistics().getDiskHits() > diskHits);
+    }
+
+    private static class UnparsableOutputFormatter extends ReplacementFormatter {
+
+        TextEdit format(String source, String path) {
+            return super.format(source, path, new IRegion[0]);
+        }
+
+        @Override
+        protected ReplacementList createReplacements(Process subProc, Utf8OffsetIndex offsetIndex,
+                CharSequence source) throws IOException {
+            super.createReplacements(subProc, offsetIndex, source);
+            throw new IOException("Could not parse xml");
+        }
+    }
+}
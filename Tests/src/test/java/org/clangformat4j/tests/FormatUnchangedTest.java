@@ -7,13 +7,18 @@ import java.io.FilenameFilter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.Document;
 import org.eclipse.jface.text.IDocument;
+import org.eclipse.text.edits.MultiTextEdit;
 import org.eclipse.text.undo.DocumentUndoManagerRegistry;
 import org.junit.Before;
 import org.junit.Test;
+import org.wangzw.plugin.cppstyle.BatchReplacementFormatter;
 import org.wangzw.plugin.cppstyle.CodeFormatterBase;
 import org.wangzw.plugin.cppstyle.ReplacementFormatter;
 import org.wangzw.plugin.cppstyle.ThreadedReplacementFormatter;
@@ -42,6 +47,23 @@ public class FormatUnchangedTest extends AbstractFormatterTestBase {
         checkAllFilesAreEqual();
     }
 
+    @Test
+    public void testBatchFormatterProducesEqualOutput() throws BadLocationException {
+        List<File> javaFiles = getAllJavaFiles(getCommandLineFormattedDir()).collect(Collectors.toList());
+        BatchReplacementFormatter batchFormatter = new BatchReplacementFormatter(getClangFormatExecutablePath());
+        Map<File, MultiTextEdit> edits = batchFormatter.format(javaFiles);
+        assertEquals("Every file should have been formatted", javaFiles.size(), edits.size());
+
+        for (File javaFile : javaFiles) {
+            String fileContent = getContent(javaFile);
+            IDocument batchDocument = new Document(fileContent);
+            edits.get(javaFile).apply(batchDocument);
+            IDocument referenceDocument = formatWithReferenceFormatter(fileContent, javaFile);
+            checkDocumentsAreEqual(javaFile, referenceDocument.get(), batchDocument.get());
+        }
+        checkAllFilesAreEqual();
+    }
+
     private File getCommandLineFormattedDir() {
         File testResourceDir = getTestResourceDir();
         File cmdFormattedDir = new File(testResourceDir, COMMANDLINE_FORMATTED_DIR);
@@ -74,7 +96,7 @@ public class FormatUnchangedTest extends AbstractFormatterTestBase {
     private IDocument formatWithReferenceFormatter(String fileContent, File file) {
         IDocument formattedDocument = new Document(fileContent);
         DocumentUndoManagerRegistry.connect(formattedDocument);
-        referenceFormatter.formatAndApply(formattedDocument, file.getPath());
+        referenceFormatter.formatAndApply(formattedDocument, file.getPath(), CodeFormatterBase.NO_BUDGET);
         DocumentUndoManagerRegistry.disconnect(formattedDocument);
         return formattedDocument;
     }
@@ -82,7 +104,7 @@ public class FormatUnchangedTest extends AbstractFormatterTestBase {
     private IDocument formatWithTestedFormatter(String fileContent, File file) {
         IDocument formattedDocument = new Document(fileContent);
         DocumentUndoManagerRegistry.connect(formattedDocument);
-        testedFormatter.formatAndApply(formattedDocument, file.getPath());
+        testedFormatter.formatAndApply(formattedDocument, file.getPath(), CodeFormatterBase.NO_BUDGET);
         DocumentUndoManagerRegistry.disconnect(formattedDocument);
         return formattedDocument;
     }
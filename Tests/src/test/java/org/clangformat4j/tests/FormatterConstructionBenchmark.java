@@ -0,0 +1,51 @@
+package org.clangformat4j.tests;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.ThreadedReplacementFormatter;
+
+/**
+ * JDT creates a formatter for most format requests, so creating one has to be
+ * cheap. Creates the formatter registered in plugin.xml many times and reports
+ * the mean time and allocation per instance.
+ */
+public class FormatterConstructionBenchmark extends AbstractFormatterTestBase {
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    private static final String RESULT_FORMAT = "%10s|%24s|%24s%n%10s|%24.1f|%24.1f";
+
+    private static final int WARM_UP_INSTANCES = 10000;
+
+    private static final int INSTANCES = 100000;
+
+    private static volatile Object sink;
+
+    @BeforeClass
+    public static void beforeClass() {
+        AbstractFormatterTestBase.beforeClass();
+    }
+
+    @Test
+    public void doBenchmark() {
+        construct(WARM_UP_INSTANCES);
+
+        long allocatedBefore = THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long start = System.nanoTime();
+        construct(INSTANCES);
+        long time = System.nanoTime() - start;
+        long allocatedBytes = THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+
+        LOG.info(String.format(RESULT_FORMAT, "Instances", "Time in ns per instance", "Bytes per instance",
+                INSTANCES, time / (double)INSTANCES, allocatedBytes / (double)INSTANCES));
+    }
+
+    private static void construct(int instances) {
+        for (int i = 0; i < instances; i++) {
+            sink = new ThreadedReplacementFormatter();
+        }
+    }
+}
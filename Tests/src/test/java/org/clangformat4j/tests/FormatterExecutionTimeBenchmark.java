@@ -1,20 +1,33 @@
 package org.clangformat4j.tests;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.Document;
+import org.eclipse.text.edits.TextEdit;
+import org.eclipse.text.undo.DocumentUndoManagerRegistry;
+import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.wangzw.plugin.cppstyle.CodeFormatterBase;
+import org.wangzw.plugin.cppstyle.CppStyle;
+import org.wangzw.plugin.cppstyle.DocumentEditApplier;
+import org.wangzw.plugin.cppstyle.FormatResultCache;
+import org.wangzw.plugin.cppstyle.ProcessIoStatistics;
+import org.wangzw.plugin.cppstyle.ProcessPool;
+import org.wangzw.plugin.cppstyle.ServerFormatterBackend;
+import org.wangzw.plugin.cppstyle.ui.CppStyleConstants;
 
 public class FormatterExecutionTimeBenchmark extends AbstractFormatterTestBase {
 
-    private static final String MEASUREMENT_HEADER_FORMAT = "%10s|%24s|%24s|%24s";
+    private static final String MEASUREMENT_HEADER_FORMAT = "%10s|%24s|%24s|%24s|%24s|%24s|%24s";
 
-    private static final String MEASUREMENT_ENTRY_FORMAT = "%10s|%24.2f|%24.2f|%24.2f";
+    private static final String MEASUREMENT_ENTRY_FORMAT = "%10s|%24.2f|%24.2f|%24.2f|%24.2f|%24.2f|%24.2f";
 
     private static final String HEADER_LINES_OF_CODE = "LOC";
 
@@ -24,9 +37,29 @@ public class FormatterExecutionTimeBenchmark extends AbstractFormatterTestBase {
 
     private static final String HEADER_DIFF_FORMATTER = "HEADER_DIFF_FORMATTER";
 
-    private static final String THREADPOOL_SIZES_HEADER_FORMAT = "%24s|%24s|%24s";
+    private static final String HEADER_PROCESS_POOL = "Time in \u00B5s ProcessPool";
 
-    private static final String THREADPOOL_SIZES_ENTRY_FORMAT = "%24d|%24d|%24d";
+    private static final int PROCESS_POOL_SIZE = 2;
+
+    private static final String HEADER_STUB_SERVER = "Time in \u00B5s StubServer";
+
+    private static final String HEADER_CACHE_HIT = "Time in \u00B5s CacheHit";
+
+    private static final int RESULT_CACHE_SIZE = 16;
+
+    private static final String THREADPOOL_SIZES_HEADER_FORMAT = "%24s|%24s|%24s|%24s|%24s";
+
+    private static final String THREADPOOL_SIZES_ENTRY_FORMAT = "%24s|%24d|%24d|%24d|%24d";
+
+    private static final String ALLOCATIONS_HEADER_FORMAT = "%10s|%24s|%24s";
+
+    private static final String ALLOCATIONS_ENTRY_FORMAT = "%10s|%24.1f|%24.1f";
+
+    private static final String APPLY_HEADER_FORMAT = "%10s|%24s|%24s|%24s";
+
+    private static final String APPLY_ENTRY_FORMAT = "%10s|%24d|%24.2f|%24.2f";
+
+    private static final double KIB = 1024.d;
 
     private static final char LINEFEED = '\n';
 
@@ -34,12 +67,30 @@ public class FormatterExecutionTimeBenchmark extends AbstractFormatterTestBase {
 
     private static final Map<String, File> FILES = new LinkedHashMap<>();
 
+    private static StubFormattingServer stubServer;
+
     private Map<String, Long> durationsSequential = new LinkedHashMap<>();
 
     private Map<String, Long> durationsThreadPool = new LinkedHashMap<>();
 
     private Map<String, Long> durationsDiffFormatter = new LinkedHashMap<>();
 
+    private Map<String, Long> durationsProcessPool = new LinkedHashMap<>();
+
+    private Map<String, Long> durationsStubServer = new LinkedHashMap<>();
+
+    private Map<String, Long> durationsCacheHit = new LinkedHashMap<>();
+
+    private Map<String, Long> sourceSizes = new LinkedHashMap<>();
+
+    private Map<String, Long> allocationsSave = new LinkedHashMap<>();
+
+    private Map<String, Integer> editCounts = new LinkedHashMap<>();
+
+    private Map<String, Long> durationsApplyEdits = new LinkedHashMap<>();
+
+    private Map<String, Long> durationsApplyBulk = new LinkedHashMap<>();
+
     @BeforeClass
     public static void beforeClass() {
         AbstractFormatterTestBase.beforeClass();
@@ -56,6 +107,26 @@ public class FormatterExecutionTimeBenchmark extends AbstractFormatterTestBase {
         //        registerBenchmarkFile("2000");
         //        registerBenchmarkFile("3000");
         //        registerBenchmarkFile("4000");
+        stubServer = startStubServer();
+        // every run formats the same sources, only the cache hit measurement may use the cache
+        setResultCacheSize(0);
+        CppStyle.getDefault().getPreferenceStore().setValue(CppStyleConstants.CLANG_FORMAT_DISK_CACHE_SIZE, 0);
+    }
+
+    @AfterClass
+    public static void afterClass() throws IOException {
+        stubServer.close();
+        CppStyle.getDefault().getPreferenceStore().setToDefault(CppStyleConstants.CLANG_FORMAT_RESULT_CACHE_SIZE);
+        CppStyle.getDefault().getPreferenceStore().setToDefault(CppStyleConstants.CLANG_FORMAT_DISK_CACHE_SIZE);
+    }
+
+    private static StubFormattingServer startStubServer() {
+        try {
+            return new StubFormattingServer();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Could not start the stub formatting server", e);
+        }
     }
 
     private static void registerBenchmarkFile(String linesOfCode) {
@@ -72,6 +143,10 @@ public class FormatterExecutionTimeBenchmark extends AbstractFormatterTestBase {
         measure();
         printMeasurements();
         printThreadPoolSizes();
+        printProcessPoolStatistics();
+        printAllocations();
+        printApplyTimes();
+        printResultCacheStatistics();
     }
 
     private void measure() {
@@ -81,6 +156,11 @@ public class FormatterExecutionTimeBenchmark extends AbstractFormatterTestBase {
                 measureSequentialFormatter(fileEntry, SourceCode);
                 measureThreadPoolFormatter(fileEntry, SourceCode);
                 measureDiffFormatter(fileEntry, SourceCode);
+                measureProcessPoolFormatter(fileEntry, SourceCode);
+                measureStubServerFormatter(fileEntry, SourceCode);
+                measureCacheHit(fileEntry, SourceCode);
+                measureSaveAllocations(fileEntry, SourceCode);
+                measureApply(fileEntry, SourceCode);
             }
         }
     }
@@ -103,6 +183,101 @@ public class FormatterExecutionTimeBenchmark extends AbstractFormatterTestBase {
         durationsDiffFormatter.put(fileEntry.getKey(), clangFormatFormatter.time);
     }
 
+    private void measureProcessPoolFormatter(Entry<String, File> fileEntry, String sourceCode) {
+        setProcessPoolSize(PROCESS_POOL_SIZE);
+        TestableReplacementFormatter pooledFormatter = new TestableReplacementFormatter();
+        pooledFormatter.format(sourceCode, assumeFilePath);
+        durationsProcessPool.put(fileEntry.getKey(), pooledFormatter.time);
+        setProcessPoolSize(0);
+    }
+
+    /**
+     * Counts the bytes allocated by a format on save, by the saving thread,
+     * which takes the snapshot of the document and applies the edits, and by
+     * the job that formats the snapshot. Both grow with the source, the
+     * snapshot most, while its UTF-8 encoding for clang-format goes through a
+     * fixed buffer.
+     */
+    private void measureSaveAllocations(Entry<String, File> fileEntry, String sourceCode) {
+        Document document = new Document(sourceCode);
+        DocumentUndoManagerRegistry.connect(document);
+        try {
+            TestableReplacementFormatter documentFormatter = new TestableReplacementFormatter();
+            long allocatedBefore = TestableReplacementFormatter.getAllocatedBytesOfCurrentThread();
+            documentFormatter.formatAndApply(document, assumeFilePath, CodeFormatterBase.NO_BUDGET);
+            long savingThreadBytes = TestableReplacementFormatter.getAllocatedBytesOfCurrentThread() - allocatedBefore;
+            sourceSizes.put(fileEntry.getKey(), fileEntry.getValue().length());
+            allocationsSave.put(fileEntry.getKey(), savingThreadBytes + documentFormatter.allocatedBytes);
+        }
+        finally {
+            DocumentUndoManagerRegistry.disconnect(document);
+        }
+    }
+
+    /**
+     * Applies the edits of a format to an undoable document one by one, as
+     * TextEdit does, and with {@link DocumentEditApplier}.
+     */
+    private void measureApply(Entry<String, File> fileEntry, String sourceCode) {
+        TextEdit edit = new TestableReplacementFormatter().format(sourceCode, assumeFilePath);
+        editCounts.put(fileEntry.getKey(), edit.getChildrenSize());
+        durationsApplyEdits.merge(fileEntry.getKey(), timeApply(sourceCode, edit, false), Long::sum);
+
+        edit = new TestableReplacementFormatter().format(sourceCode, assumeFilePath);
+        durationsApplyBulk.merge(fileEntry.getKey(), timeApply(sourceCode, edit, true), Long::sum);
+    }
+
+    private static long timeApply(String sourceCode, TextEdit edit, boolean bulk) {
+        Document document = new Document(sourceCode);
+        DocumentUndoManagerRegistry.connect(document);
+        try {
+            long start = System.nanoTime();
+            if (bulk) {
+                DocumentEditApplier.apply(document, edit);
+            }
+            else {
+                edit.apply(document);
+            }
+            return System.nanoTime() - start;
+        }
+        catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+        finally {
+            DocumentUndoManagerRegistry.disconnect(document);
+        }
+    }
+
+    /**
+     * The stub server does not format, so this is the cost of the protocol and
+     * the connection alone.
+     */
+    private void measureStubServerFormatter(Entry<String, File> fileEntry, String sourceCode) {
+        CodeFormatterBase.setBackend(ServerFormatterBackend.forPort(stubServer.getPort()));
+        TestableReplacementFormatter serverFormatter = new TestableReplacementFormatter();
+        serverFormatter.format(sourceCode, assumeFilePath);
+        durationsStubServer.put(fileEntry.getKey(), serverFormatter.time);
+        CodeFormatterBase.setBackend(null);
+    }
+
+    private void measureCacheHit(Entry<String, File> fileEntry, String sourceCode) {
+        setResultCacheSize(RESULT_CACHE_SIZE);
+        new TestableReplacementFormatter().format(sourceCode, assumeFilePath);
+        TestableReplacementFormatter cachedFormatter = new TestableReplacementFormatter();
+        cachedFormatter.format(sourceCode, assumeFilePath);
+        durationsCacheHit.put(fileEntry.getKey(), cachedFormatter.time);
+        setResultCacheSize(0);
+    }
+
+    private static void setResultCacheSize(int megabytes) {
+        CppStyle.getDefault().getPreferenceStore().setValue(CppStyleConstants.CLANG_FORMAT_RESULT_CACHE_SIZE,
+                megabytes);
+    }
+
+    private void setProcessPoolSize(int size) {
+        CppStyle.getDefault().getPreferenceStore().setValue(CppStyleConstants.CLANG_FORMAT_PROCESS_POOL_SIZE, size);
+    }
+
     private String getFileContent(Entry<String, File> fileEntry) {
         File javaFile = fileEntry.getValue();
         return getContent(javaFile);
@@ -110,14 +285,18 @@ public class FormatterExecutionTimeBenchmark extends AbstractFormatterTestBase {
 
     private void printMeasurements() {
         String header = String.format(MEASUREMENT_HEADER_FORMAT, HEADER_LINES_OF_CODE, HEADER_SEQUENTIAL,
-                HEADER_THREADPOOL, HEADER_DIFF_FORMATTER);
+                HEADER_THREADPOOL, HEADER_DIFF_FORMATTER, HEADER_PROCESS_POOL, HEADER_STUB_SERVER,
+                HEADER_CACHE_HIT);
         StringBuilder strBuilder = new StringBuilder().append(LINEFEED).append(header).append(LINEFEED);
         for (String key : FILES.keySet()) {
             double durationSequential = convertToMeanValueInMicroSeconds(durationsSequential.get(key));
             double durationThreadPool = convertToMeanValueInMicroSeconds(durationsThreadPool.get(key));
             double durationDiffFormatter = convertToMeanValueInMicroSeconds(durationsDiffFormatter.get(key));
-            strBuilder.append(String.format(
-                    MEASUREMENT_ENTRY_FORMAT, key, durationSequential, durationThreadPool, durationDiffFormatter));
+            double durationProcessPool = convertToMeanValueInMicroSeconds(durationsProcessPool.get(key));
+            double durationStubServer = convertToMeanValueInMicroSeconds(durationsStubServer.get(key));
+            double durationCacheHit = convertToMeanValueInMicroSeconds(durationsCacheHit.get(key));
+            strBuilder.append(String.format(MEASUREMENT_ENTRY_FORMAT, key, durationSequential, durationThreadPool,
+                    durationDiffFormatter, durationProcessPool, durationStubServer, durationCacheHit));
             strBuilder.append(LINEFEED);
         }
         String table = LINEFEED + LINEFEED + strBuilder.toString();
@@ -125,16 +304,50 @@ public class FormatterExecutionTimeBenchmark extends AbstractFormatterTestBase {
     }
 
     private void printThreadPoolSizes() {
-        ThreadPoolExecutor poolExecutor = TestableThreadedReplacementFormatter.getThreadPoolExecuter();
-        String header =
-                String.format(THREADPOOL_SIZES_HEADER_FORMAT, "CorePoolSize", "LargestPoolSize", "MaximumPoolSize");
+        ProcessIoStatistics statistics = TestableThreadedReplacementFormatter.getProcessIoStatistics();
+        String header = String.format(THREADPOOL_SIZES_HEADER_FORMAT, "Mode", "LargestPoolSize", "MaximumPoolSize",
+                "PeakActiveTasks", "CompletedTasks");
         StringBuilder strBuilder = new StringBuilder().append(LINEFEED).append(header).append(LINEFEED);
-        String poolSizes = String.format(THREADPOOL_SIZES_ENTRY_FORMAT, poolExecutor.getCorePoolSize(),
-                poolExecutor.getLargestPoolSize(), poolExecutor.getMaximumPoolSize());
+        String poolSizes = String.format(THREADPOOL_SIZES_ENTRY_FORMAT, statistics.getMode(),
+                statistics.getLargestPoolSize(), statistics.getMaximumPoolSize(), statistics.getPeakActiveTasks(),
+                statistics.getCompletedTasks());
         strBuilder.append(poolSizes).append(LINEFEED);
         LOG.info(strBuilder.toString());
     }
 
+    private void printProcessPoolStatistics() {
+        LOG.info(LINEFEED + "ProcessPool: " + ProcessPool.getDefault().getStatistics() + LINEFEED);
+    }
+
+    private void printAllocations() {
+        String header = String.format(ALLOCATIONS_HEADER_FORMAT, HEADER_LINES_OF_CODE, "Source in KiB",
+                "Allocated KiB Save");
+        StringBuilder strBuilder = new StringBuilder().append(LINEFEED).append(header).append(LINEFEED);
+        for (String key : FILES.keySet()) {
+            strBuilder.append(String.format(ALLOCATIONS_ENTRY_FORMAT, key, sourceSizes.get(key) / KIB,
+                    allocationsSave.get(key) / KIB));
+            strBuilder.append(LINEFEED);
+        }
+        LOG.info(strBuilder.toString());
+    }
+
+    private void printApplyTimes() {
+        String header = String.format(APPLY_HEADER_FORMAT, HEADER_LINES_OF_CODE, "Edits",
+                "Time in \u00B5s TextEdit", "Time in \u00B5s Bulk");
+        StringBuilder strBuilder = new StringBuilder().append(LINEFEED).append(header).append(LINEFEED);
+        for (String key : FILES.keySet()) {
+            strBuilder.append(String.format(APPLY_ENTRY_FORMAT, key, editCounts.get(key),
+                    convertToMeanValueInMicroSeconds(durationsApplyEdits.get(key)),
+                    convertToMeanValueInMicroSeconds(durationsApplyBulk.get(key))));
+            strBuilder.append(LINEFEED);
+        }
+        LOG.info(strBuilder.toString());
+    }
+
+    private void printResultCacheStatistics() {
+        LOG.info(LINEFEED + "FormatResultCache: " + FormatResultCache.getDefault().getStatistics() + LINEFEED);
+    }
+
     private double convertToMeanValueInMicroSeconds(Long cumulatedValue) {
         return (TimeUnit.NANOSECONDS.toMicros(cumulatedValue) / 1.d) / RUNS_PER_FILE;
     }
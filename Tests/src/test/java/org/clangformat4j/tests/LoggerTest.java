@@ -0,0 +1,52 @@
+package org.clangformat4j.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.core.runtime.IStatus;
+import org.junit.After;
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.replacement.LogLevel;
+import org.wangzw.plugin.cppstyle.replacement.Logger;
+
+public class LoggerTest {
+
+    private final LogLevel initialLevel = Logger.getLevel();
+
+    @After
+    public void tearDown() {
+        Logger.setLevel(initialLevel);
+    }
+
+    @Test
+    public void testDisabledMessageIsNotBuilt() {
+        AtomicInteger built = new AtomicInteger();
+        Logger.setLevel(LogLevel.ERROR);
+
+        Logger.logInfo(() -> "built " + built.incrementAndGet());
+
+        assertFalse(Logger.isInfoEnabled());
+        assertEquals(0, built.get());
+    }
+
+    @Test
+    public void testEnabledMessageIsBuilt() {
+        AtomicInteger built = new AtomicInteger();
+        Logger.setLevel(LogLevel.INFO);
+
+        Logger.logInfo(() -> "built " + built.incrementAndGet());
+
+        assertEquals(1, built.get());
+    }
+
+    @Test
+    public void testLevelsIncludeMoreSevereMessages() {
+        assertTrue(LogLevel.WARNING.includes(IStatus.ERROR));
+        assertTrue(LogLevel.WARNING.includes(IStatus.WARNING));
+        assertFalse(LogLevel.WARNING.includes(IStatus.INFO));
+        assertFalse(LogLevel.OFF.includes(IStatus.ERROR));
+    }
+}
@@ -0,0 +1,86 @@
+package org.clangformat4j.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.ProcessAdmission;
+import org.wangzw.plugin.cppstyle.ProcessAdmission.Lane;
+import org.wangzw.plugin.cppstyle.ProcessAdmission.Permit;
+
+public class ProcessAdmissionTest {
+
+    private static final long WAIT_MILLIS = 200;
+
+    @Test
+    public void testInteractiveGoesFirst() throws Exception {
+        ProcessAdmission admission = new ProcessAdmission(2, 2);
+        Permit first = admission.acquire(Lane.INTERACTIVE);
+        Permit second = admission.acquire(Lane.INTERACTIVE);
+
+        List<Lane> admitted = new CopyOnWriteArrayList<>();
+        Thread background = startWaiter(admission, Lane.BACKGROUND, admitted);
+        Thread.sleep(WAIT_MILLIS);
+        Thread interactive = startWaiter(admission, Lane.INTERACTIVE, admitted);
+        Thread.sleep(WAIT_MILLIS);
+        assertTrue(admitted.isEmpty());
+
+        first.release(0);
+        interactive.join();
+        Thread.sleep(WAIT_MILLIS);
+        assertEquals(1, admitted.size());
+        assertEquals(Lane.INTERACTIVE, admitted.get(0));
+
+        second.release(0);
+        background.join();
+        assertEquals(Lane.BACKGROUND, admitted.get(1));
+    }
+
+    @Test
+    public void testBackgroundLeavesOneProcess() throws Exception {
+        ProcessAdmission admission = new ProcessAdmission(3, 3);
+        admission.acquire(Lane.BACKGROUND);
+        admission.acquire(Lane.BACKGROUND);
+
+        List<Lane> admitted = new CopyOnWriteArrayList<>();
+        startWaiter(admission, Lane.BACKGROUND, admitted);
+        Thread.sleep(WAIT_MILLIS);
+        assertTrue(admitted.isEmpty());
+
+        admission.acquire(Lane.INTERACTIVE);
+        assertEquals(3, admission.getRunning());
+    }
+
+    @Test
+    public void testInteractiveProcessIsKeptAtTheSmallestLimit() throws Exception {
+        ProcessAdmission admission = new ProcessAdmission(1, 1);
+        assertEquals(2, admission.getLimit());
+        admission.acquire(Lane.BACKGROUND);
+
+        List<Lane> admitted = new CopyOnWriteArrayList<>();
+        startWaiter(admission, Lane.BACKGROUND, admitted);
+        Thread.sleep(WAIT_MILLIS);
+        assertTrue(admitted.isEmpty());
+
+        admission.acquire(Lane.INTERACTIVE);
+        assertEquals(2, admission.getRunning());
+    }
+
+    private static Thread startWaiter(ProcessAdmission admission, Lane lane, List<Lane> admitted) {
+        Thread thread = new Thread(() -> {
+            try {
+                admission.acquire(lane);
+                admitted.add(lane);
+            }
+            catch (InterruptedException e) {
+                // the test is over
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,117 @@
+package org.clangformat4j.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.ProcessIoExecutor;
+import org.wangzw.plugin.cppstyle.ProcessIoMode;
+import org.wangzw.plugin.cppstyle.ProcessIoStatistics;
+import org.wangzw.plugin.cppstyle.ThreadedProcessHandler;
+
+/**
+ * Pumps the streams of a shell that writes to stdout and stderr in every mode.
+ */
+public class ProcessIoExecutorTest {
+
+    @After
+    public void tearDown() {
+        ProcessIoExecutor.configure(ProcessIoMode.BOUNDED);
+    }
+
+    @Test
+    public void testBoundedModePumpsBothStreamsOnThePool() throws Exception {
+        ProcessIoExecutor.configure(ProcessIoMode.BOUNDED);
+        ProcessIoExecutor executor = ProcessIoExecutor.getDefault();
+        assertEquals(ProcessIoMode.BOUNDED, executor.getMode());
+
+        long completed = executor.getStatistics().getCompletedTasks();
+        EchoProcessHandler handler = runEcho();
+
+        assertEquals("out\n", handler.output);
+        assertEquals("err\n", handler.getError());
+        ProcessIoStatistics statistics = executor.getStatistics();
+        assertEquals(completed + 2, statistics.getCompletedTasks());
+        assertEquals(0, statistics.getOverflowTasks());
+        assertTrue(statistics.getMaximumPoolSize() > 0);
+        assertTrue(statistics.getPeakActiveTasks() >= 1);
+    }
+
+    @Test
+    public void testSinglePumpModeReadsStderrFromAFile() throws Exception {
+        ProcessIoExecutor.configure(ProcessIoMode.SINGLE_PUMP);
+        ProcessIoExecutor executor = ProcessIoExecutor.getDefault();
+        assertEquals(ProcessIoMode.SINGLE_PUMP, executor.getMode());
+
+        long completed = executor.getStatistics().getCompletedTasks();
+        EchoProcessHandler handler = runEcho();
+
+        assertEquals("out\n", handler.output);
+        assertEquals("err\n", handler.getError());
+        assertEquals(completed + 1, executor.getStatistics().getCompletedTasks());
+    }
+
+    @Test
+    public void testVirtualThreadModeFallsBackBeforeJava21() throws Exception {
+        ProcessIoExecutor.configure(ProcessIoMode.VIRTUAL_THREADS);
+        ProcessIoExecutor executor = ProcessIoExecutor.getDefault();
+        ProcessIoStatistics statistics = executor.getStatistics();
+        if (executor.getMode() == ProcessIoMode.VIRTUAL_THREADS) {
+            assertEquals(-1, statistics.getMaximumPoolSize());
+        }
+        else {
+            assertEquals(ProcessIoMode.BOUNDED, executor.getMode());
+            assertTrue(statistics.getMaximumPoolSize() > 0);
+        }
+
+        EchoProcessHandler handler = runEcho();
+
+        assertEquals("out\n", handler.output);
+        assertEquals("err\n", handler.getError());
+    }
+
+    private static EchoProcessHandler runEcho() throws Exception {
+        EchoProcessHandler handler = new EchoProcessHandler();
+        handler.run();
+        boolean success = handler.success();
+        assertTrue(handler.getError(), success);
+        return handler;
+    }
+
+    /**
+     * Runs a shell instead of clang-format, which is all the pumps care about.
+     */
+    private static class EchoProcessHandler extends ThreadedProcessHandler {
+
+        private volatile String output;
+
+        EchoProcessHandler() {
+            super("");
+            addParameter("sh").addParameter("-c").addParameter("echo out; echo err >&2");
+        }
+
+        void run() throws IOException {
+            start();
+            handleInputStream();
+            handleErrorStream();
+        }
+
+        @Override
+        protected void handleInputStreamInternal() throws IOException {
+            try (InputStream input = process.getInputStream()) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                for (int read = input.read(buffer); read >= 0; read = input.read(buffer)) {
+                    bytes.write(buffer, 0, read);
+                }
+                output = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+            }
+        }
+    }
+}
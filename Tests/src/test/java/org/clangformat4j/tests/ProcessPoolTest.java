@@ -0,0 +1,121 @@
+package org.clangformat4j.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.ProcessPool;
+import org.wangzw.plugin.cppstyle.ProcessPoolStatistics;
+
+/**
+ * Fills a pool with shells that wait on stdin like clang-format does.
+ */
+public class ProcessPoolTest {
+
+    private static final String SHARED_PATH = "/style/A.java";
+
+    private static final String OTHER_SHARED_PATH = "/other-style/A.java";
+
+    private static final long WAIT_MILLIS = 10000;
+
+    private static final long SETTLE_MILLIS = 200;
+
+    private ProcessPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new ProcessPool();
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void testSharedCommandLineIsFilledUpAndReplacedOnHit() throws Exception {
+        pool.configure(2, SHARED_PATH);
+
+        assertNull(pool.acquire(commands(SHARED_PATH)));
+        awaitIdle(2);
+        Process process = pool.acquire(commands(SHARED_PATH));
+        assertNotNull(process);
+        process.destroy();
+        awaitIdle(2);
+
+        ProcessPoolStatistics statistics = pool.getStatistics();
+        assertEquals(1, statistics.getHits());
+        assertEquals(1, statistics.getMisses());
+        assertEquals(3, statistics.getRefills());
+    }
+
+    @Test
+    public void testMissOfPerFileCommandLineSpawnsNothing() throws Exception {
+        pool.configure(2, SHARED_PATH);
+
+        assertNull(pool.acquire(commands("/src/B.java")));
+        Thread.sleep(SETTLE_MILLIS);
+
+        assertEquals(0, pool.getStatistics().getIdleProcesses());
+        assertEquals(0, pool.getStatistics().getRefills());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedCommandLineMakesRoom() throws Exception {
+        pool.configure(1, SHARED_PATH);
+        pool.acquire(commands(SHARED_PATH));
+        awaitIdle(1);
+
+        pool.configure(1, OTHER_SHARED_PATH);
+        pool.acquire(commands(OTHER_SHARED_PATH));
+        awaitRefills(2);
+
+        assertEquals(1, pool.getStatistics().getIdleProcesses());
+        assertNull(pool.acquire(commands(SHARED_PATH)));
+        Process process = pool.acquire(commands(OTHER_SHARED_PATH));
+        assertNotNull(process);
+        process.destroy();
+    }
+
+    @Test
+    public void testSizeZeroDestroysIdleProcesses() throws Exception {
+        pool.configure(1, SHARED_PATH);
+        pool.acquire(commands(SHARED_PATH));
+        awaitIdle(1);
+
+        pool.configure(0, SHARED_PATH);
+
+        assertEquals(0, pool.getStatistics().getIdleProcesses());
+        assertNull(pool.acquire(commands(SHARED_PATH)));
+    }
+
+    // the shell ignores the arguments after the script, cat waits on stdin
+    private static List<String> commands(String assumeFilenamePath) {
+        return Arrays.asList("sh", "-c", "cat", "-assume-filename=" + assumeFilenamePath);
+    }
+
+    private void awaitIdle(int idle) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (pool.getStatistics().getIdleProcesses() != idle && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(idle, pool.getStatistics().getIdleProcesses());
+    }
+
+    private void awaitRefills(long refills) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (pool.getStatistics().getRefills() < refills && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(pool.getStatistics().getRefills() >= refills);
+        // the refill adds its process after counting it
+        Thread.sleep(SETTLE_MILLIS);
+    }
+}
@@ -0,0 +1,94 @@
+package org.clangformat4j.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.ProcessAdmission.Lane;
+import org.wangzw.plugin.cppstyle.ProcessScheduling;
+
+public class ProcessSchedulingTest {
+
+    private static final List<String> COMMANDS = Arrays.asList("clang-format", "-output-replacements-xml");
+
+    @Test
+    public void testBackgroundRunsWithLowerPriority() {
+        ProcessScheduling scheduling = new ProbedScheduling("/bin/nice", "/bin/ionice", "/bin/taskset");
+        scheduling.configure(10, " 0,2-3 ");
+
+        assertEquals(Arrays.asList("/bin/taskset", "-c", "0,2-3", "/bin/ionice", "-c", "2", "-n", "7", "/bin/nice",
+                "-n", "10", "clang-format", "-output-replacements-xml"), scheduling.apply(Lane.BACKGROUND, COMMANDS));
+        assertEquals(COMMANDS, scheduling.apply(Lane.INTERACTIVE, COMMANDS));
+    }
+
+    @Test
+    public void testMissingUtilitiesAreLeftOut() {
+        ProcessScheduling scheduling = new ProbedScheduling("/bin/nice", null, null);
+        scheduling.configure(10, "0-3");
+
+        assertEquals(Arrays.asList("/bin/nice", "-n", "10", "clang-format", "-output-replacements-xml"),
+                scheduling.apply(Lane.BACKGROUND, COMMANDS));
+    }
+
+    @Test
+    public void testFailingUtilitiesAreLeftOut() {
+        ProbedScheduling scheduling = new ProbedScheduling("/bin/nice", "/bin/ionice", "/bin/taskset");
+        scheduling.failing.add("/bin/taskset");
+        scheduling.failing.add("/bin/ionice");
+        scheduling.configure(10, "0,64");
+
+        assertEquals(Arrays.asList("/bin/nice", "-n", "10", "clang-format", "-output-replacements-xml"),
+                scheduling.apply(Lane.BACKGROUND, COMMANDS));
+    }
+
+    @Test
+    public void testUtilitiesAreTriedOncePerConfiguration() {
+        ProbedScheduling scheduling = new ProbedScheduling("/bin/nice", "/bin/ionice", "/bin/taskset");
+        scheduling.configure(10, "0");
+        scheduling.configure(10, "0");
+        assertEquals(3, scheduling.probes);
+
+        scheduling.configure(5, "0");
+        assertEquals(6, scheduling.probes);
+    }
+
+    @Test
+    public void testUtilityThatCannotBeStartedIsLeftOut() {
+        ProcessScheduling scheduling = new ProcessScheduling("/nonexistent/nice", null, null);
+        scheduling.configure(10, "");
+
+        assertEquals(COMMANDS, scheduling.apply(Lane.BACKGROUND, COMMANDS));
+    }
+
+    @Test
+    public void testInvalidCpusAndZeroNiceKeepTheCommand() {
+        ProcessScheduling scheduling = new ProbedScheduling("/bin/nice", "/bin/ionice", "/bin/taskset");
+        scheduling.configure(0, "all");
+
+        assertEquals(COMMANDS, scheduling.apply(Lane.BACKGROUND, COMMANDS));
+    }
+
+    /**
+     * Pretends the utilities run, except for the failing ones, without
+     * depending on the CPUs and permissions of the machine.
+     */
+    private static class ProbedScheduling extends ProcessScheduling {
+
+        final List<String> failing = new ArrayList<>();
+
+        int probes;
+
+        ProbedScheduling(String nicePath, String ionicePath, String tasksetPath) {
+            super(nicePath, ionicePath, tasksetPath);
+        }
+
+        @Override
+        protected boolean runs(List<String> utility) {
+            probes++;
+            return !failing.contains(utility.get(0));
+        }
+    }
+}
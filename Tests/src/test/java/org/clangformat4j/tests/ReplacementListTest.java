@@ -0,0 +1,87 @@
+package org.clangformat4j.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.eclipse.text.edits.MultiTextEdit;
+import org.eclipse.text.edits.ReplaceEdit;
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.replacement.ReplacementList;
+import org.wangzw.plugin.cppstyle.replacement.Utf8OffsetIndex;
+
+public class ReplacementListTest {
+
+    private static final String SOURCE = "class A {\n  int  a;\n}\n";
+
+    @Test
+    public void testNoOpReplacementsAreDropped() {
+        ReplacementList replacements = new ReplacementList.Builder(SOURCE)
+                .add(9, 3, "\n  ")
+                .add(15, 2, " ")
+                .add(20, 0, "")
+                .build();
+
+        assertEquals(1, replacements.size());
+        assertEquals(15, replacements.getOffset(0));
+        assertEquals(2, replacements.getLength(0));
+        assertEquals(" ", replacements.getText(0));
+    }
+
+    @Test
+    public void testReplacementsAreKeptWithoutSource() {
+        ReplacementList replacements = new ReplacementList.Builder().add(9, 3, "\n  ").add(20, 0, "").build();
+
+        assertEquals(1, replacements.size());
+        assertEquals("\n  ", replacements.getText(0));
+    }
+
+    @Test
+    public void testNothingToReplaceIsEmpty() {
+        assertSame(ReplacementList.EMPTY, new ReplacementList.Builder(SOURCE).add(9, 3, "\n  ").build());
+        assertEquals(0, ReplacementList.EMPTY.toEdit().getChildrenSize());
+    }
+
+    @Test
+    public void testWhitespaceTextsAreShared() {
+        ReplacementList replacements = new ReplacementList.Builder()
+                .add(0, 1, "\n\t\t")
+                .add(5, 1, "\n\t\t")
+                .add(9, 1, "x\n")
+                .build();
+
+        MultiTextEdit edit = replacements.toEdit();
+        String first = ((ReplaceEdit)edit.getChildren()[0]).getText();
+        String second = ((ReplaceEdit)edit.getChildren()[1]).getText();
+        assertEquals("\n\t\t", first);
+        assertSame(first, second);
+        assertEquals("x\n", ((ReplaceEdit)edit.getChildren()[2]).getText());
+    }
+
+    @Test
+    public void testEveryCallBuildsNewEdits() {
+        ReplacementList replacements = new ReplacementList.Builder().add(15, 2, " ").build();
+
+        MultiTextEdit first = replacements.toEdit();
+        MultiTextEdit second = replacements.toEdit();
+        assertNotSame(first, second);
+        assertNotSame(first.getChildren()[0], second.getChildren()[0]);
+        assertEquals(15, second.getChildren()[0].getOffset());
+    }
+
+    @Test
+    public void testByteOffsetsAreTranslatedToChars() throws IOException {
+        // the double space is at char 14 but byte 15, as the class name takes 2 bytes
+        String source = "class Ä {\n\tint  a;\n}\n";
+        Utf8OffsetIndex offsetIndex = Utf8OffsetIndex.write(source, new ByteArrayOutputStream());
+        ReplacementList replacements = new ReplacementList.Builder().add(15, 2, " ").build();
+
+        ReplacementList translated = replacements.toCharOffsets(offsetIndex);
+        assertEquals(14, translated.getOffset(0));
+        assertEquals(2, translated.getLength(0));
+        assertEquals(" ", translated.getText(0));
+    }
+}
@@ -0,0 +1,90 @@
+package org.clangformat4j.tests;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.eclipse.text.edits.MultiTextEdit;
+import org.eclipse.text.edits.TextEdit;
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.replacement.ReplacementList;
+import org.wangzw.plugin.cppstyle.replacement.ReplacementsParser;
+import org.wangzw.plugin.cppstyle.replacement.Utf8OffsetIndex;
+import org.wangzw.plugin.cppstyle.replacement.XMLReplacementHandler;
+
+/**
+ * Parses the replacements of a badly formatted file into text edits with SAX,
+ * the way every format did before, and with {@link ReplacementsParser} into a
+ * {@link ReplacementList}, with and without creating the edits, and reports
+ * the mean time and allocation per document.
+ */
+public class ReplacementsParserBenchmark extends AbstractFormatterTestBase {
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    private static final String RESULT_FORMAT = "%10s|%24s|%24s%n%10s|%24.1f|%24.1f";
+
+    private static final int REPLACEMENTS = 500;
+
+    private static final int WARM_UP_ITERATIONS = 2000;
+
+    private static final int ITERATIONS = 10000;
+
+    private static volatile Object sink;
+
+    @Test
+    public void doBenchmark() throws Exception {
+        byte[] xml = createDocument();
+
+        measure("SAX", xml, this::parseWithSax);
+        measure("Scanner", xml, this::parseWithScanner);
+        measure("Edits", xml, xmlBytes -> parseWithScanner(xmlBytes).toEdit());
+    }
+
+    private void measure(String name, byte[] xml, Parser parser) throws Exception {
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            sink = parser.parse(xml);
+        }
+
+        long allocatedBefore = THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink = parser.parse(xml);
+        }
+        long time = System.nanoTime() - start;
+        long allocatedBytes = THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+
+        LOG.info(String.format(RESULT_FORMAT, "Parser", "Time in ns per document", "Bytes per document",
+                name, time / (double)ITERATIONS, allocatedBytes / (double)ITERATIONS));
+    }
+
+    private MultiTextEdit parseWithSax(byte[] xml) throws Exception {
+        XMLReplacementHandler replacementHandler = new XMLReplacementHandler(Utf8OffsetIndex.IDENTITY);
+        SAXParserFactory.newInstance().newSAXParser().parse(new ByteArrayInputStream(xml), replacementHandler);
+        MultiTextEdit edit = new MultiTextEdit();
+        edit.addChildren(replacementHandler.getEdits().toArray(new TextEdit[0]));
+        return edit;
+    }
+
+    private ReplacementList parseWithScanner(byte[] xml) throws Exception {
+        return ReplacementsParser.parse(new ByteArrayInputStream(xml), Utf8OffsetIndex.IDENTITY, null);
+    }
+
+    private static byte[] createDocument() {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version='1.0'?>\n<replacements xml:space='preserve' incomplete_format='false'>\n");
+        for (int i = 0; i < REPLACEMENTS; i++) {
+            String text = i % 3 == 0 ? "&#10;&#10;        " : i % 3 == 1 ? " " : "";
+            xml.append(String.format("<replacement offset='%d' length='%d'>%s</replacement>\n", i * 40, i % 4, text));
+        }
+        xml.append("</replacements>\n");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private interface Parser {
+        Object parse(byte[] xml) throws Exception;
+    }
+}
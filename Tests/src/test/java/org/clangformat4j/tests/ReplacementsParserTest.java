@@ -0,0 +1,110 @@
+package org.clangformat4j.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.eclipse.text.edits.ReplaceEdit;
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.replacement.ReplacementList;
+import org.wangzw.plugin.cppstyle.replacement.ReplacementsParser;
+import org.wangzw.plugin.cppstyle.replacement.Utf8OffsetIndex;
+import org.wangzw.plugin.cppstyle.replacement.XMLReplacementHandler;
+import org.xml.sax.SAXException;
+
+public class ReplacementsParserTest {
+
+    private static final String HEADER =
+            "<?xml version='1.0'?>\n<replacements xml:space='preserve' incomplete_format='false'>\n";
+
+    private static final String FOOTER = "</replacements>\n";
+
+    @Test
+    public void testTypicalOutput() throws Exception {
+        assertParsedLikeSax(HEADER
+                + "<replacement offset='9' length='1'>&#10;&#10;  </replacement>\n"
+                + "<replacement offset='17' length='0'> </replacement>\n"
+                + "<replacement offset='30' length='3'></replacement>\n" + FOOTER);
+    }
+
+    @Test
+    public void testNoReplacements() throws Exception {
+        assertParsedLikeSax(HEADER + FOOTER);
+        assertParsedLikeSax("<?xml version='1.0'?>\n<replacements xml:space='preserve'/>\n");
+    }
+
+    @Test
+    public void testEntitiesAreDecoded() throws Exception {
+        assertParsedLikeSax(HEADER
+                + "<replacement offset='0' length='2'>&lt;&gt;&amp;&apos;&quot;</replacement>\n"
+                + "<replacement offset='4' length='0'>&#13;&#x9;&#8364;&#x1F600;</replacement>\n"
+                + FOOTER);
+    }
+
+    @Test
+    public void testLineBreaksAreNormalized() throws Exception {
+        assertParsedLikeSax(HEADER + "<replacement offset='0' length='2'>a\r\nb\rc</replacement>\n" + FOOTER);
+    }
+
+    @Test
+    public void testOffsetsAreTranslatedToChars() throws Exception {
+        String source = "class Ä {\n\tString s = \"€ 😀\";\n}\n";
+        Utf8OffsetIndex offsetIndex = Utf8OffsetIndex.write(source, new ByteArrayOutputStream());
+
+        assertParsedLikeSax(HEADER
+                + "<replacement offset='8' length='1'>ä €</replacement>\n"
+                + "<replacement offset=\"29\" length=\"4\">x</replacement>\n" + FOOTER, offsetIndex);
+    }
+
+    @Test
+    public void testUnexpectedInputFallsBackToSax() throws Exception {
+        assertParsedLikeSax(HEADER + "<!-- comment -->\n<replacement length='1' offset='2' extra='x'>a</replacement>\n"
+                + "<cursor>3</cursor>\n" + FOOTER);
+        assertParsedLikeSax(HEADER + "<replacement offset='1' length='1'><![CDATA[<a>]]></replacement>\n" + FOOTER);
+    }
+
+    @Test(expected = SAXException.class)
+    public void testMalformedInputFails() throws Exception {
+        parse(HEADER + "<replacement offset='1' length='1'>a</replacement>\n");
+    }
+
+    @Test(expected = SAXException.class)
+    public void testMissingAttributeFails() throws Exception {
+        parse(HEADER + "<replacement offset='1'>a</replacement>\n" + FOOTER);
+    }
+
+    private static void assertParsedLikeSax(String xml) throws Exception {
+        assertParsedLikeSax(xml, Utf8OffsetIndex.IDENTITY);
+    }
+
+    private static void assertParsedLikeSax(String xml, Utf8OffsetIndex offsetIndex) throws Exception {
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+        XMLReplacementHandler replacementHandler = new XMLReplacementHandler(offsetIndex);
+        SAXParserFactory.newInstance().newSAXParser().parse(new ByteArrayInputStream(bytes), replacementHandler);
+
+        assertEditsEqual(replacementHandler.getEdits(),
+                ReplacementsParser.parse(new ByteArrayInputStream(bytes), offsetIndex, null));
+        assertEditsEqual(replacementHandler.getEdits(),
+                ReplacementsParser.parse(bytes, 0, bytes.length, offsetIndex, null));
+    }
+
+    private static ReplacementList parse(String xml) throws IOException, SAXException {
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+        return ReplacementsParser.parse(bytes, 0, bytes.length, Utf8OffsetIndex.IDENTITY, null);
+    }
+
+    private static void assertEditsEqual(List<ReplaceEdit> expected, ReplacementList actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getOffset(), actual.getOffset(i));
+            assertEquals(expected.get(i).getLength(), actual.getLength(i));
+            assertEquals(expected.get(i).getText(), actual.getText(i));
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.clangformat4j.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.text.edits.MultiTextEdit;
+import org.eclipse.text.edits.ReplaceEdit;
+import org.eclipse.text.edits.TextEdit;
+import org.eclipse.text.undo.DocumentUndoManagerRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.CodeFormatterBase;
+import org.wangzw.plugin.cppstyle.ReplacementFormatter;
+
+/**
+ * Formats on save with a formatter that answers when the test lets it, without
+ * clang-format.
+ */
+public class SaveFormatJobTest {
+
+    private static final String SOURCE = "int  a;\n";
+
+    private static final String FORMATTED = "int a;\n";
+
+    private static final String PATH = "A.java";
+
+    private static final long BUDGET_MILLIS = 5000;
+
+    private static final long LATE_BUDGET_MILLIS = 10;
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private Document document;
+
+    private HeldFormatter formatter;
+
+    @Before
+    public void setUp() {
+        document = new Document(SOURCE);
+        DocumentUndoManagerRegistry.connect(document);
+        formatter = new HeldFormatter();
+    }
+
+    @After
+    public void tearDown() {
+        formatter.release.countDown();
+        DocumentUndoManagerRegistry.disconnect(document);
+    }
+
+    @Test
+    public void testEditsInTimeAreAppliedByTheSave() {
+        formatter.release.countDown();
+        formatter.formatAndApply(document, PATH, BUDGET_MILLIS);
+
+        assertEquals(FORMATTED, document.get());
+        assertTrue(formatter.lateEdits.isEmpty());
+    }
+
+    @Test
+    public void testLateEditsFollowChangesMadeMeanwhile() throws Exception {
+        formatter.formatAndApply(document, PATH, LATE_BUDGET_MILLIS);
+        assertEquals(SOURCE, document.get());
+
+        document.replace(0, 0, "// a\n");
+        formatter.release.countDown();
+        Runnable apply = formatter.lateEdits.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(apply);
+        apply.run();
+
+        assertEquals("// a\n" + FORMATTED, document.get());
+    }
+
+    @Test
+    public void testLateEditsAreDroppedOnceTheEditorIsClosed() throws Exception {
+        formatter.formatAndApply(document, PATH, LATE_BUDGET_MILLIS);
+
+        DocumentUndoManagerRegistry.disconnect(document);
+        formatter.release.countDown();
+        Runnable apply = formatter.lateEdits.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(apply);
+        apply.run();
+
+        assertEquals(SOURCE, document.get());
+    }
+
+    @Test
+    public void testWithoutBudgetTheSaveWaits() {
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(2 * LATE_BUDGET_MILLIS);
+            }
+            catch (InterruptedException e) {
+                // released right away
+            }
+            formatter.release.countDown();
+        });
+        releaser.start();
+        formatter.formatAndApply(document, PATH, CodeFormatterBase.NO_BUDGET);
+
+        assertEquals(FORMATTED, document.get());
+        assertTrue(formatter.lateEdits.isEmpty());
+    }
+
+    /**
+     * Replaces the double space of {@link SaveFormatJobTest#SOURCE} once
+     * released, and hands late edits to the test instead of the UI thread.
+     */
+    private static class HeldFormatter extends ReplacementFormatter {
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final BlockingQueue<Runnable> lateEdits = new LinkedBlockingQueue<>();
+
+        @Override
+        protected TextEdit format(String source, String path, IRegion[] regions) {
+            try {
+                release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                return null;
+            }
+            MultiTextEdit edit = new MultiTextEdit();
+            edit.addChild(new ReplaceEdit(3, 2, " "));
+            return edit;
+        }
+
+        @Override
+        protected void applyLate(Runnable apply) {
+            lateEdits.add(apply);
+        }
+    }
+}
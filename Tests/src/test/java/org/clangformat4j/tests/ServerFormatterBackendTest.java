@@ -0,0 +1,127 @@
+package org.clangformat4j.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.eclipse.text.edits.ReplaceEdit;
+import org.eclipse.text.edits.TextEdit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.FormatResult;
+import org.wangzw.plugin.cppstyle.ProcessAdmission;
+import org.wangzw.plugin.cppstyle.ProcessAdmission.Lane;
+import org.wangzw.plugin.cppstyle.ServerFormatterBackend;
+
+public class ServerFormatterBackendTest {
+
+    private static final String SOURCE = "class Ä {\n\tint  a;\n}\n";
+
+    private static final List<String> COMMANDS =
+            Arrays.asList("clang-format", "-style=file", "-output-replacements-xml");
+
+    // long enough for the other requests to queue up behind the first
+    private static final long DELAY_MILLIS = 300;
+
+    private StubFormattingServer server;
+
+    private ServerFormatterBackend backend;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubFormattingServer();
+        backend = ServerFormatterBackend.forPort(server.getPort());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        backend.close();
+        server.close();
+    }
+
+    @Test
+    public void testRequestCarriesParametersAndSource() throws Exception {
+        FormatResult result = backend.format(COMMANDS, SOURCE, true);
+
+        assertTrue(result.isSuccess());
+        assertEquals(0, result.getEdit().getChildrenSize());
+        assertEquals(COMMANDS.subList(1, COMMANDS.size()), server.getLastParameters());
+        assertArrayEquals(SOURCE.getBytes(StandardCharsets.UTF_8), server.getLastSource());
+    }
+
+    @Test
+    public void testReplacementOffsetsAreTranslatedToChars() throws Exception {
+        // the double space is at char 14 but byte 15, as the class name takes 2 bytes
+        server.respondWith("<?xml version='1.0'?>\n<replacements xml:space='preserve' incomplete_format='false'>\n"
+                + "<replacement offset='15' length='2'> </replacement>\n</replacements>\n");
+
+        FormatResult result = backend.format(COMMANDS, SOURCE, true);
+
+        TextEdit[] edits = result.getEdit().getChildren();
+        assertEquals(1, edits.length);
+        assertEquals(14, edits[0].getOffset());
+        assertEquals(2, edits[0].getLength());
+        assertEquals(" ", ((ReplaceEdit)edits[0]).getText());
+    }
+
+    @Test
+    public void testConnectionIsReused() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            backend.format(COMMANDS, SOURCE, true);
+        }
+        assertEquals(3, server.getRequests());
+        assertEquals(1, server.getConnections());
+    }
+
+    @Test
+    public void testFailureReportsCodeAndError() throws Exception {
+        server.failWith(1, "error: invalid style");
+
+        FormatResult result = backend.format(COMMANDS, SOURCE, true);
+
+        assertFalse(result.isSuccess());
+        assertEquals(1, result.getCode());
+        assertEquals("error: invalid style", result.getError());
+    }
+
+    @Test
+    public void testInteractiveRequestOvertakesWaitingBackgroundOne() throws Exception {
+        server.delayResponses(DELAY_MILLIS);
+        List<Lane> done = new CopyOnWriteArrayList<>();
+        Thread first = startFormat(Lane.INTERACTIVE, done);
+        Thread.sleep(DELAY_MILLIS / 3);
+        Thread background = startFormat(Lane.BACKGROUND, done);
+        Thread.sleep(DELAY_MILLIS / 3);
+        Thread interactive = startFormat(Lane.INTERACTIVE, done);
+
+        first.join();
+        interactive.join();
+        background.join();
+
+        assertEquals(Arrays.asList(Lane.INTERACTIVE, Lane.INTERACTIVE, Lane.BACKGROUND), done);
+        assertEquals(1, server.getConnections());
+    }
+
+    private Thread startFormat(Lane lane, List<Lane> done) {
+        Thread thread = new Thread(() -> {
+            ProcessAdmission.setLane(lane);
+            try {
+                backend.format(COMMANDS, SOURCE, true);
+                done.add(lane);
+            }
+            catch (IOException | InterruptedException e) {
+                // the lane is missing from the result
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
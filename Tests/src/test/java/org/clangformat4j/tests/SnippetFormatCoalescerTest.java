@@ -0,0 +1,215 @@
+package org.clangformat4j.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jdt.core.formatter.CodeFormatter;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.Region;
+import org.eclipse.text.edits.DeleteEdit;
+import org.eclipse.text.edits.InsertEdit;
+import org.eclipse.text.edits.MultiTextEdit;
+import org.eclipse.text.edits.ReplaceEdit;
+import org.eclipse.text.edits.TextEdit;
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.SnippetFormatCoalescer;
+
+/**
+ * Formats snippets with a stand-in for clang-format that removes indentation
+ * and collapses spaces, replacing the line break before an indented line the
+ * way clang-format does.
+ */
+public class SnippetFormatCoalescerTest {
+
+    private static final int SNIPPETS = 16;
+
+    private static final long FORMAT_MILLIS = 20;
+
+    private static final long SETTLE_MILLIS = 200;
+
+    @Test
+    public void testOnlyBalancedStatementsAreCoalescable() {
+        IRegion[] regions = new IRegion[] { new Region(0, 5) };
+        assertTrue(SnippetFormatCoalescer.isCoalescable(CodeFormatter.K_STATEMENTS, "a();", regions));
+        assertTrue(SnippetFormatCoalescer.isCoalescable(CodeFormatter.K_CLASS_BODY_DECLARATIONS, "int a() {}",
+                regions));
+        assertFalse(SnippetFormatCoalescer.isCoalescable(CodeFormatter.K_EXPRESSION, "a + b", regions));
+        assertFalse(SnippetFormatCoalescer.isCoalescable(CodeFormatter.K_COMPILATION_UNIT, "class A {}", regions));
+        assertFalse(SnippetFormatCoalescer.isCoalescable(CodeFormatter.K_STATEMENTS, "if (a) {", regions));
+        assertFalse(SnippetFormatCoalescer.isCoalescable(CodeFormatter.K_STATEMENTS, "a()", regions));
+    }
+
+    @Test
+    public void testBurstGivesTheEditsOfSingleFormats() throws Exception {
+        AtomicInteger invocations = new AtomicInteger();
+        SnippetFormatCoalescer.SnippetFormatter formatter = (source, regions) -> {
+            invocations.incrementAndGet();
+            try {
+                Thread.sleep(FORMAT_MILLIS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return format(source, regions);
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(SNIPPETS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<TextEdit>> results = new ArrayList<>();
+            for (int i = 0; i < SNIPPETS; i++) {
+                String snippet = createSnippet(i);
+                IRegion[] regions = new IRegion[] { new Region(0, snippet.length()) };
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return SnippetFormatCoalescer.getDefault().format("A.java", snippet, regions, formatter);
+                }));
+            }
+            start.countDown();
+
+            for (int i = 0; i < SNIPPETS; i++) {
+                String snippet = createSnippet(i);
+                TextEdit expected = format(snippet, new IRegion[] { new Region(0, snippet.length()) });
+                assertEquals(describe(expected), describe(results.get(i).get()));
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        assertTrue("one process per snippet", invocations.get() < SNIPPETS);
+    }
+
+    @Test
+    public void testSequentialBurstFormatsEverySnippetOnItsOwn() {
+        AtomicInteger invocations = new AtomicInteger();
+        SnippetFormatCoalescer.SnippetFormatter formatter = (source, regions) -> {
+            invocations.incrementAndGet();
+            return format(source, regions);
+        };
+
+        for (int i = 0; i < SNIPPETS; i++) {
+            String snippet = createSnippet(i);
+            IRegion[] regions = new IRegion[] { new Region(0, snippet.length()) };
+            TextEdit edit = SnippetFormatCoalescer.getDefault().format("B.java", snippet, regions, formatter);
+
+            assertEquals(describe(format(snippet, regions)), describe(edit));
+            assertEquals(i + 1, invocations.get());
+        }
+    }
+
+    @Test
+    public void testRequestsDuringAFormatAreFormattedTogether() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger invocations = new AtomicInteger();
+        SnippetFormatCoalescer.SnippetFormatter formatter = (source, regions) -> {
+            if (invocations.incrementAndGet() == 1) {
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return format(source, regions);
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(SNIPPETS);
+        try {
+            List<Future<TextEdit>> results = new ArrayList<>();
+            for (int i = 0; i < SNIPPETS; i++) {
+                String snippet = createSnippet(i);
+                IRegion[] regions = new IRegion[] { new Region(0, snippet.length()) };
+                results.add(executor.submit(
+                        () -> SnippetFormatCoalescer.getDefault().format("C.java", snippet, regions, formatter)));
+                if (i == 0) {
+                    awaitInvocation(invocations);
+                }
+            }
+            // lets the others join the batch behind the running format
+            Thread.sleep(SETTLE_MILLIS);
+            release.countDown();
+
+            for (int i = 0; i < SNIPPETS; i++) {
+                String snippet = createSnippet(i);
+                TextEdit expected = format(snippet, new IRegion[] { new Region(0, snippet.length()) });
+                assertEquals(describe(expected), describe(results.get(i).get()));
+            }
+        }
+        finally {
+            release.countDown();
+            executor.shutdown();
+        }
+        assertEquals(2, invocations.get());
+    }
+
+    private static void awaitInvocation(AtomicInteger invocations) throws InterruptedException {
+        while (invocations.get() == 0) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static String createSnippet(int i) {
+        return "    int  a" + i + " =  " + i + ";\n  \tcall( a" + i + " );\n";
+    }
+
+    private static TextEdit format(String source, IRegion[] regions) {
+        MultiTextEdit edit = new MultiTextEdit();
+        int i = 0;
+        while (i < source.length()) {
+            int start = i;
+            int runStart = source.charAt(i) == '\n' ? i + 1 : i;
+            int end = runStart;
+            while (end < source.length() && (source.charAt(end) == ' ' || source.charAt(end) == '\t')) {
+                end++;
+            }
+            boolean lineStart = runStart == 0 || source.charAt(runStart - 1) == '\n';
+            if (end > runStart && isInRegions(runStart, regions)) {
+                if (lineStart) {
+                    edit.addChild(new ReplaceEdit(start, end - start, source.substring(start, runStart)));
+                }
+                else if (end - runStart > 1) {
+                    edit.addChild(new ReplaceEdit(runStart, end - runStart, " "));
+                }
+            }
+            i = Math.max(end, start + 1);
+        }
+        return edit;
+    }
+
+    private static boolean isInRegions(int offset, IRegion[] regions) {
+        for (IRegion region : regions) {
+            if (offset >= region.getOffset() && offset < region.getOffset() + region.getLength()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String describe(TextEdit edit) {
+        StringBuilder description = new StringBuilder();
+        for (TextEdit child : edit.getChildren()) {
+            String text = "";
+            if (child instanceof ReplaceEdit) {
+                text = ((ReplaceEdit)child).getText();
+            }
+            else if (child instanceof InsertEdit) {
+                text = ((InsertEdit)child).getText();
+            }
+            else if (!(child instanceof DeleteEdit)) {
+                text = child.toString();
+            }
+            description.append(child.getOffset()).append(',').append(child.getLength()).append(",'")
+                    .append(text).append("'\n");
+        }
+        return description.toString();
+    }
+}
@@ -0,0 +1,171 @@
+package org.clangformat4j.tests;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Speaks the protocol of the formatting server, see
+ * {@link org.wangzw.plugin.cppstyle.ServerFormatterBackend}, without running
+ * clang-format. It answers every request with the configured replacements, so
+ * the backend can be tested and benchmarked without a clang-format binary.
+ */
+public class StubFormattingServer implements Closeable {
+
+    static final String NO_REPLACEMENTS = "<?xml version='1.0'?>\n"
+            + "<replacements xml:space='preserve' incomplete_format='false'>\n</replacements>\n";
+
+    private final ServerSocket serverSocket;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private volatile String replacements = NO_REPLACEMENTS;
+
+    private volatile int exitCode;
+
+    private volatile String error = "";
+
+    private volatile long delayMillis;
+
+    private volatile List<String> lastParameters = Collections.emptyList();
+
+    private volatile byte[] lastSource = new byte[0];
+
+    public StubFormattingServer() throws IOException {
+        serverSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+        Thread acceptThread = new Thread(this::acceptConnections, "stub formatting server");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void respondWith(String replacements) {
+        this.replacements = replacements;
+        this.exitCode = 0;
+        this.error = "";
+    }
+
+    public void failWith(int exitCode, String error) {
+        this.exitCode = exitCode;
+        this.error = error;
+    }
+
+    /**
+     * Lets every response wait, e.g. to make requests overlap.
+     */
+    public void delayResponses(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    public List<String> getLastParameters() {
+        return lastParameters;
+    }
+
+    public byte[] getLastSource() {
+        return lastSource;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.incrementAndGet();
+                Thread connectionThread = new Thread(() -> serve(socket), "stub formatting connection");
+                connectionThread.setDaemon(true);
+                connectionThread.start();
+            }
+            catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket connection = socket) {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+            for (;;) {
+                int parameterCount;
+                try {
+                    parameterCount = input.readInt();
+                }
+                catch (EOFException e) {
+                    return;
+                }
+                List<String> parameters = new ArrayList<>(parameterCount);
+                for (int i = 0; i < parameterCount; i++) {
+                    parameters.add(new String(readFrame(input), StandardCharsets.UTF_8));
+                }
+                ByteArrayOutputStream source = new ByteArrayOutputStream();
+                for (byte[] chunk = readFrame(input); chunk.length > 0; chunk = readFrame(input)) {
+                    source.write(chunk);
+                }
+                lastParameters = parameters;
+                lastSource = source.toByteArray();
+                requests.incrementAndGet();
+                delay();
+
+                output.writeInt(exitCode);
+                writeFrame(output, exitCode == 0 ? replacements.getBytes(StandardCharsets.UTF_8) : new byte[0]);
+                writeFrame(output, error.getBytes(StandardCharsets.UTF_8));
+                output.flush();
+            }
+        }
+        catch (IOException e) {
+            // the client went away
+        }
+    }
+
+    private void delay() {
+        if (delayMillis > 0) {
+            try {
+                Thread.sleep(delayMillis);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static byte[] readFrame(DataInputStream input) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeFrame(DataOutputStream output, byte[] bytes) throws IOException {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+}
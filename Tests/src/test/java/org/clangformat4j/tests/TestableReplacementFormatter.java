@@ -1,22 +1,39 @@
 package org.clangformat4j.tests;
 
+import java.lang.management.ManagementFactory;
+
 import org.eclipse.jface.text.IRegion;
 import org.eclipse.text.edits.TextEdit;
 import org.wangzw.plugin.cppstyle.ReplacementFormatter;
 
 public class TestableReplacementFormatter extends ReplacementFormatter {
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
     long time;
 
+    /**
+     * Bytes allocated by the formatting thread, which does all the work of the
+     * sequential formatter.
+     */
+    long allocatedBytes;
+
+    static long getAllocatedBytesOfCurrentThread() {
+        return THREAD_MX_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
     public TextEdit format(String source, String path) {
         return super.format(source, path, new IRegion[0]);
     }
 
     @Override
     protected TextEdit handleProcess(
-            String source, String assumeFilenamePath, IRegion[] regions, String clangFormatPath) {
+            String source, String clangFormatPath, String assumeFilenamePath, IRegion[] regions) {
+        long allocatedBefore = getAllocatedBytesOfCurrentThread();
         long start = System.nanoTime();
-        TextEdit textEdit = super.handleProcess(source, assumeFilenamePath, regions, clangFormatPath);
+        TextEdit textEdit = super.handleProcess(source, clangFormatPath, assumeFilenamePath, regions);
         time = System.nanoTime() - start;
+        allocatedBytes = getAllocatedBytesOfCurrentThread() - allocatedBefore;
         return textEdit;
     }
 }
\ No newline at end of file
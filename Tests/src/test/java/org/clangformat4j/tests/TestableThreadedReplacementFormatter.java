@@ -1,9 +1,8 @@
 package org.clangformat4j.tests;
 
-import java.util.concurrent.ThreadPoolExecutor;
-
 import org.eclipse.jface.text.IRegion;
 import org.eclipse.text.edits.TextEdit;
+import org.wangzw.plugin.cppstyle.ProcessIoStatistics;
 import org.wangzw.plugin.cppstyle.ThreadedReplacementFormatter;
 
 public class TestableThreadedReplacementFormatter extends ThreadedReplacementFormatter {
@@ -15,14 +14,14 @@ public class TestableThreadedReplacementFormatter extends ThreadedReplacementFor
 
     @Override
     protected TextEdit handleProcess(
-            String source, String assumeFilenamePath, IRegion[] regions, String clangFormatPath) {
+            String source, String clangFormatPath, String assumeFilenamePath, IRegion[] regions) {
         long start = System.nanoTime();
-        TextEdit textEdit = super.handleProcess(source, assumeFilenamePath, regions, clangFormatPath);
+        TextEdit textEdit = super.handleProcess(source, clangFormatPath, assumeFilenamePath, regions);
         time = System.nanoTime() - start;
         return textEdit;
     }
 
-    public static ThreadPoolExecutor getThreadPoolExecuter() {
-        return ThreadedReplacementFormatter.getThreadPoolExecuter();
+    public static ProcessIoStatistics getProcessIoStatistics() {
+        return ThreadedReplacementFormatter.getProcessIoStatistics();
     }
 }
\ No newline at end of file
@@ -0,0 +1,64 @@
+package org.clangformat4j.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.replacement.Utf8OffsetIndex;
+
+public class Utf8OffsetIndexTest {
+
+    private static final String ASCII_SOURCE = "class A {\n\tint a;\n}\n";
+
+    // 2, 3 and 4 byte characters, the last one being a surrogate pair
+    private static final String MIXED_SOURCE = "class Ä {\n\tString s = \"€ 😀\";\n}\n";
+
+    @Test
+    public void testAsciiSourceUsesIdentity() throws IOException {
+        Utf8OffsetIndex offsetIndex = Utf8OffsetIndex.write(ASCII_SOURCE, new ByteArrayOutputStream());
+        assertSame(Utf8OffsetIndex.IDENTITY, offsetIndex);
+    }
+
+    @Test
+    public void testWriteEncodesUtf8() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Utf8OffsetIndex.write(MIXED_SOURCE, output);
+        assertArrayEquals(MIXED_SOURCE.getBytes(StandardCharsets.UTF_8), output.toByteArray());
+    }
+
+    @Test
+    public void testOffsetsTranslateBothWays() throws IOException {
+        Utf8OffsetIndex offsetIndex = Utf8OffsetIndex.write(MIXED_SOURCE, new ByteArrayOutputStream());
+        Utf8OffsetIndex fileIndex = Utf8OffsetIndex.of(MIXED_SOURCE.getBytes(StandardCharsets.UTF_8));
+
+        for (int charOffset = 0; charOffset <= MIXED_SOURCE.length(); charOffset++) {
+            if (charOffset > 0 && Character.isHighSurrogate(MIXED_SOURCE.charAt(charOffset - 1))) {
+                continue;
+            }
+            int byteOffset = MIXED_SOURCE.substring(0, charOffset).getBytes(StandardCharsets.UTF_8).length;
+            assertEquals(byteOffset, Utf8OffsetIndex.utf8Length(MIXED_SOURCE, 0, charOffset));
+            assertEquals(byteOffset, offsetIndex.toByteOffset(charOffset));
+            assertEquals(charOffset, offsetIndex.toCharOffset(byteOffset));
+            assertEquals(charOffset, fileIndex.toCharOffset(byteOffset));
+        }
+    }
+
+    @Test
+    public void testEncoderJoinsSurrogatePairSplitAcrossChunks() throws IOException {
+        int split = MIXED_SOURCE.indexOf("\uD83D") + 1;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Utf8OffsetIndex.Encoder encoder = new Utf8OffsetIndex.Encoder(output);
+        encoder.append(MIXED_SOURCE, 0, split);
+        encoder.append(MIXED_SOURCE, split, MIXED_SOURCE.length());
+        Utf8OffsetIndex offsetIndex = encoder.finish();
+
+        byte[] expected = MIXED_SOURCE.getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(expected, output.toByteArray());
+        assertEquals(expected.length, offsetIndex.toByteOffset(MIXED_SOURCE.length()));
+    }
+}
@@ -0,0 +1,70 @@
+package org.clangformat4j.tests;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.WhitespaceAwareDiff;
+
+/**
+ * Diffs generated sources of 10k and 100k lines against a formatted version
+ * with a few added and removed lines, in the calling thread and on pools of
+ * increasing parallelism, and reports the best time of some runs.
+ */
+public class WhitespaceAwareDiffBenchmark extends AbstractFormatterTestBase {
+
+    private static final String RESULT_FORMAT = "%10s|%12s|%20s%n%10d|%12d|%20.1f";
+
+    private static final int[] LINES = { 10000, 100000 };
+
+    private static final int RUNS = 10;
+
+    private static volatile Object sink;
+
+    @Test
+    public void doBenchmark() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int lines : LINES) {
+            StringBuilder source = new StringBuilder();
+            StringBuilder target = new StringBuilder();
+            createSources(lines, source, target);
+
+            measure(lines, 0, source.toString(), target.toString());
+            for (int parallelism = 2; parallelism < processors; parallelism *= 2) {
+                measure(lines, parallelism, source.toString(), target.toString());
+            }
+            measure(lines, processors, source.toString(), target.toString());
+        }
+    }
+
+    private void measure(int lines, int parallelism, String source, String target) {
+        ForkJoinPool pool = parallelism > 0 ? new ForkJoinPool(parallelism) : null;
+        try {
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < RUNS; i++) {
+                long start = System.nanoTime();
+                sink = WhitespaceAwareDiff.diff(source, target, pool);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            LOG.info(String.format(RESULT_FORMAT, "Lines", "Threads", "Best time in ms", lines,
+                    Math.max(parallelism, 1), best / 1e6));
+        }
+        finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static void createSources(int lines, StringBuilder source, StringBuilder target) {
+        for (int i = 0; i < lines; i++) {
+            String line = i % 5 == 0 ? "}" : "int value" + i + " = compute(a" + i % 13 + ", b);";
+            source.append(i % 3 == 0 ? "  " : "\t").append(line.replace(" = ", "=")).append('\n');
+            if (i % 997 == 0) {
+                target.append("#include <header").append(i).append(".h>\n");
+            }
+            if (i % 1999 != 0) {
+                target.append("    ").append(line).append('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.clangformat4j.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.eclipse.jface.text.Document;
+import org.eclipse.text.edits.MultiTextEdit;
+import org.eclipse.text.edits.TextEdit;
+import org.junit.Test;
+import org.wangzw.plugin.cppstyle.WhitespaceAwareDiff;
+
+public class WhitespaceAwareDiffTest {
+
+    @Test
+    public void testEqualTextsGiveNoEdits() throws Exception {
+        String source = "int main() {\n    return 0;\n}\n";
+
+        assertEquals(0, WhitespaceAwareDiff.diff(source, source).getChildren().length);
+    }
+
+    @Test
+    public void testWhitespaceChangesOnlyTouchWhitespace() throws Exception {
+        String source = "int  main( ) {\n  return 0 ;\n}";
+        String target = "int main() {\n    return 0;\n}\n";
+
+        MultiTextEdit edit = assertDiff(source, target);
+        for (TextEdit child : edit.getChildren()) {
+            assertTrue(source.substring(child.getOffset(), child.getExclusiveEnd()).trim().isEmpty());
+        }
+    }
+
+    @Test
+    public void testOtherChangesAreDiffed() throws Exception {
+        assertDiff("#include <b.h>\n#include <a.h>\nint x;", "#include <a.h>\n#include <b.h>\n\nint x;\n");
+        assertDiff("if (x)\n  y();\n", "if (x) {\n    y();\n}\n");
+        assertDiff("namespace n {\n}", "namespace n {\n} // namespace n\n");
+        assertDiff("   ", "");
+        assertDiff("", "int x;\n");
+    }
+
+    @Test
+    public void testLargeTextsAreDiffedInSegments() throws Exception {
+        StringBuilder source = new StringBuilder();
+        StringBuilder target = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            String line = i % 4 == 0 ? "}" : "int value" + i + " = " + i % 7 + ";";
+            source.append(i % 3 == 0 ? "\t" : "  ").append(line.replace(" = ", "=")).append('\n');
+            if (i % 1001 == 0) {
+                target.append("#include <header").append(i).append(".h>\n");
+            }
+            if (i % 2003 != 0) {
+                target.append("    ").append(line).append('\n');
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertDiff(source.toString(), target.toString(), pool);
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    private static MultiTextEdit assertDiff(String source, String target) throws Exception {
+        return assertDiff(source, target, null);
+    }
+
+    private static MultiTextEdit assertDiff(String source, String target, ForkJoinPool pool) throws Exception {
+        MultiTextEdit edit = WhitespaceAwareDiff.diff(source, target, pool);
+        Document document = new Document(source);
+        edit.apply(document);
+        assertEquals(target, document.get());
+        return edit;
+    }
+}
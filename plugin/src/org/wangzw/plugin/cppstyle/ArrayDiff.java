@@ -0,0 +1,1433 @@
+package org.wangzw.plugin.cppstyle;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import org.wangzw.plugin.cppstyle.diff_match_patch.Diff;
+import org.wangzw.plugin.cppstyle.diff_match_patch.Operation;
+
+/**
+ * The diff of {@link diff_match_patch} without its garbage.
+ * <p>
+ * {@code diff_main} followed by {@code diff_cleanupEfficiency} builds a linked
+ * list of diffs and creates a new string for nearly every step. This is the
+ * same algorithm, step by step, so it finds the same diffs, but a diff is a
+ * node in a few int arrays that stands for a range of one of the texts, the
+ * texts are copied once into char arrays, and all arrays belong to a
+ * workspace the thread reuses.
+ * <p>
+ * As in the original, the diff is only the same if it does not run out of
+ * time.
+ */
+public final class ArrayDiff {
+
+    /**
+     * Receives the diffs in order.
+     */
+    public interface Receiver {
+
+        /**
+         * @param start1
+         *            where the diff starts in the first text, or for an
+         *            insertion, where it is inserted.
+         * @param start2
+         *            where the diff starts in the second text, or for a
+         *            deletion, where it was deleted.
+         */
+        void diff(Operation operation, int start1, int start2, int length);
+    }
+
+    private static final byte DELETE = 0;
+    private static final byte INSERT = 1;
+    private static final byte EQUAL = 2;
+
+    private static final Operation[] OPERATIONS = { Operation.DELETE, Operation.INSERT, Operation.EQUAL };
+
+    // the defaults of diff_match_patch
+    private static final int EDIT_COST = 4;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    // larger arrays are dropped after use rather than kept by the thread
+    private static final int MAX_RETAINED_CAPACITY = 1 << 18;
+
+    private static final ThreadLocal<ArrayDiff> WORKSPACES = ThreadLocal.withInitial(ArrayDiff::new);
+
+    // the texts
+    private char[] text1 = new char[INITIAL_CAPACITY];
+    private char[] text2 = new char[INITIAL_CAPACITY];
+
+    // the nodes of the lists: a diff, or the sentinel of a circular list
+    private byte[] operations = new byte[INITIAL_CAPACITY];
+    private int[] starts1 = new int[INITIAL_CAPACITY];
+    private int[] starts2 = new int[INITIAL_CAPACITY];
+    private int[] lengths = new int[INITIAL_CAPACITY];
+    private int[] nexts = new int[INITIAL_CAPACITY];
+    private int[] previouses = new int[INITIAL_CAPACITY];
+    private int nodeCount;
+
+    // the paths of the bisection
+    private int[] v1 = new int[INITIAL_CAPACITY];
+    private int[] v2 = new int[INITIAL_CAPACITY];
+
+    // the stack of equalities of the cleanups
+    private int[] equalities = new int[INITIAL_CAPACITY];
+
+    // the lines of the line mode and the texts of line numbers
+    private char[] lines1 = new char[INITIAL_CAPACITY];
+    private char[] lines2 = new char[INITIAL_CAPACITY];
+    private int[] lineStarts1 = new int[INITIAL_CAPACITY];
+    private int[] lineStarts2 = new int[INITIAL_CAPACITY];
+    private char[][] lineTexts = new char[INITIAL_CAPACITY][];
+    private int[] lineFrom = new int[INITIAL_CAPACITY];
+    private int[] lineTo = new int[INITIAL_CAPACITY];
+    private int[] lineHash = new int[2 * INITIAL_CAPACITY];
+    private int lineMask;
+    private int lineCount;
+
+    // the result of the half match
+    private int halfMatch1;
+    private int halfMatch2;
+    private int halfMatchLength;
+
+    private float timeout;
+
+    private ArrayDiff() {
+    }
+
+    /**
+     * @return the same diffs as {@link diff_match_patch#diff_main(String, String)}
+     *         followed by {@link diff_match_patch#diff_cleanupEfficiency}, with
+     *         the given {@code Diff_Timeout} and the default edit cost.
+     */
+    public static LinkedList<Diff> diff(String text1, String text2, float timeout) {
+        LinkedList<Diff> diffs = new LinkedList<Diff>();
+        diff(text1, 0, text1.length(), text2, 0, text2.length(), timeout, (operation, start1, start2, length) -> {
+            String text = operation == Operation.INSERT ? text2 : text1;
+            int start = operation == Operation.INSERT ? start2 : start1;
+            diffs.add(new Diff(operation, text.substring(start, start + length)));
+        });
+        return diffs;
+    }
+
+    /**
+     * Diffs a range of the first text with a range of the second like
+     * {@link #diff(String, String, float)}.
+     */
+    public static void diff(String text1, int start1, int end1, String text2, int start2, int end2, float timeout,
+            Receiver receiver) {
+        ArrayDiff workspace = WORKSPACES.get();
+        try {
+            workspace.run(text1, start1, end1, text2, start2, end2, timeout, receiver);
+        }
+        finally {
+            workspace.release();
+        }
+    }
+
+    private void run(String source1, int start1, int end1, String source2, int start2, int end2, float diffTimeout,
+            Receiver receiver) {
+        int length1 = end1 - start1;
+        int length2 = end2 - start2;
+        if (text1.length < length1) {
+            text1 = new char[Math.max(length1, 2 * text1.length)];
+        }
+        if (text2.length < length2) {
+            text2 = new char[Math.max(length2, 2 * text2.length)];
+        }
+        source1.getChars(start1, end1, text1, 0);
+        source2.getChars(start2, end2, text2, 0);
+        timeout = diffTimeout;
+        nodeCount = 0;
+
+        long deadline = diffTimeout <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + (long)(diffTimeout * 1000);
+        int diffs = diffMain(text1, 0, length1, text2, 0, length2, true, deadline);
+        cleanupEfficiency(diffs);
+
+        for (int node = nexts[diffs]; node != diffs; node = nexts[node]) {
+            receiver.diff(OPERATIONS[operations[node]], start1 + starts1[node], start2 + starts2[node], lengths[node]);
+        }
+    }
+
+    private void release() {
+        if (text1.length > MAX_RETAINED_CAPACITY || text2.length > MAX_RETAINED_CAPACITY) {
+            text1 = new char[INITIAL_CAPACITY];
+            text2 = new char[INITIAL_CAPACITY];
+        }
+        if (operations.length > MAX_RETAINED_CAPACITY) {
+            operations = new byte[INITIAL_CAPACITY];
+            starts1 = new int[INITIAL_CAPACITY];
+            starts2 = new int[INITIAL_CAPACITY];
+            lengths = new int[INITIAL_CAPACITY];
+            nexts = new int[INITIAL_CAPACITY];
+            previouses = new int[INITIAL_CAPACITY];
+        }
+        if (v1.length > MAX_RETAINED_CAPACITY) {
+            v1 = new int[INITIAL_CAPACITY];
+            v2 = new int[INITIAL_CAPACITY];
+        }
+        if (equalities.length > MAX_RETAINED_CAPACITY) {
+            equalities = new int[INITIAL_CAPACITY];
+        }
+        if (lineStarts1.length > MAX_RETAINED_CAPACITY || lineStarts2.length > MAX_RETAINED_CAPACITY
+                || lineHash.length > MAX_RETAINED_CAPACITY) {
+            lines1 = new char[INITIAL_CAPACITY];
+            lines2 = new char[INITIAL_CAPACITY];
+            lineStarts1 = new int[INITIAL_CAPACITY];
+            lineStarts2 = new int[INITIAL_CAPACITY];
+            lineTexts = new char[INITIAL_CAPACITY][];
+            lineFrom = new int[INITIAL_CAPACITY];
+            lineTo = new int[INITIAL_CAPACITY];
+            lineHash = new int[2 * INITIAL_CAPACITY];
+        }
+    }
+
+    // LISTS
+
+    private int newNode(byte operation, int start1, int start2, int length) {
+        if (nodeCount == operations.length) {
+            int capacity = 2 * nodeCount;
+            operations = Arrays.copyOf(operations, capacity);
+            starts1 = Arrays.copyOf(starts1, capacity);
+            starts2 = Arrays.copyOf(starts2, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            nexts = Arrays.copyOf(nexts, capacity);
+            previouses = Arrays.copyOf(previouses, capacity);
+        }
+        int node = nodeCount++;
+        operations[node] = operation;
+        starts1[node] = start1;
+        starts2[node] = start2;
+        lengths[node] = length;
+        nexts[node] = node;
+        previouses[node] = node;
+        return node;
+    }
+
+    /**
+     * @return the sentinel of a new empty list that starts at the given
+     *         positions of the texts.
+     */
+    private int newList(int start1, int start2) {
+        return newNode(EQUAL, start1, start2, 0);
+    }
+
+    private void linkBefore(int node, int successor) {
+        int predecessor = previouses[successor];
+        nexts[predecessor] = node;
+        previouses[node] = predecessor;
+        nexts[node] = successor;
+        previouses[successor] = node;
+    }
+
+    private void unlink(int node) {
+        nexts[previouses[node]] = nexts[node];
+        previouses[nexts[node]] = previouses[node];
+    }
+
+    private void addLast(int list, byte operation, int start1, int start2, int length) {
+        linkBefore(newNode(operation, start1, start2, length), list);
+    }
+
+    /**
+     * Moves the diffs of the second list to the end of the first.
+     */
+    private void addAll(int list, int other) {
+        if (nexts[other] == other) {
+            return;
+        }
+        int first = nexts[other];
+        int last = previouses[other];
+        int predecessor = previouses[list];
+        nexts[predecessor] = first;
+        previouses[first] = predecessor;
+        nexts[last] = list;
+        previouses[list] = last;
+        nexts[other] = other;
+        previouses[other] = other;
+    }
+
+    private int end1(int list) {
+        int last = previouses[list];
+        return last == list ? starts1[list] : starts1[last] + (operations[last] != INSERT ? lengths[last] : 0);
+    }
+
+    private int end2(int list) {
+        int last = previouses[list];
+        return last == list ? starts2[list] : starts2[last] + (operations[last] != DELETE ? lengths[last] : 0);
+    }
+
+    /**
+     * @return the text a diff is a range of.
+     */
+    private static char[] textOf(byte operation, char[] a, char[] b) {
+        return operation == INSERT ? b : a;
+    }
+
+    private int startOf(int node) {
+        return operations[node] == INSERT ? starts2[node] : starts1[node];
+    }
+
+    /**
+     * Moves a diff to another range of its text, which has the same content.
+     */
+    private void moveTo(int node, int start1, int start2, int length) {
+        starts1[node] = start1;
+        starts2[node] = start2;
+        lengths[node] = length;
+    }
+
+    /**
+     * A {@link java.util.ListIterator} over a list of nodes. Like the
+     * original, {@link #set(int)} puts a new node in the place of the last
+     * returned one, and removed nodes keep their content.
+     */
+    private final class Cursor {
+
+        private final int list;
+
+        private int next;
+
+        private int lastReturned = -1;
+
+        Cursor(int list) {
+            this.list = list;
+            this.next = nexts[list];
+        }
+
+        boolean hasNext() {
+            return next != list;
+        }
+
+        boolean hasPrevious() {
+            return previouses[next] != list;
+        }
+
+        int next() {
+            lastReturned = next;
+            next = nexts[next];
+            return lastReturned;
+        }
+
+        int previous() {
+            next = previouses[next];
+            lastReturned = next;
+            return lastReturned;
+        }
+
+        void remove() {
+            if (next == lastReturned) {
+                next = nexts[lastReturned];
+            }
+            unlink(lastReturned);
+            lastReturned = -1;
+        }
+
+        void set(int node) {
+            linkBefore(node, lastReturned);
+            unlink(lastReturned);
+            if (next == lastReturned) {
+                next = node;
+            }
+            lastReturned = node;
+        }
+
+        void add(int node) {
+            linkBefore(node, next);
+            lastReturned = -1;
+        }
+    }
+
+    // DIFF
+
+    /**
+     * @see diff_match_patch#diff_main(String, String, boolean)
+     * @return the list of diffs.
+     */
+    private int diffMain(char[] a, int start1, int end1, char[] b, int start2, int end2, boolean checklines,
+            long deadline) {
+        int commonPrefix = commonPrefix(a, start1, end1, b, start2, end2);
+        if (commonPrefix == end1 - start1 && commonPrefix == end2 - start2) {
+            int diffs = newList(start1, start2);
+            if (commonPrefix != 0) {
+                addLast(diffs, EQUAL, start1, start2, commonPrefix);
+            }
+            return diffs;
+        }
+
+        int commonSuffix = commonSuffix(a, start1 + commonPrefix, end1, b, start2 + commonPrefix, end2);
+
+        int diffs = diffCompute(a, start1 + commonPrefix, end1 - commonSuffix, b, start2 + commonPrefix,
+                end2 - commonSuffix, checklines, deadline);
+
+        if (commonPrefix != 0) {
+            linkBefore(newNode(EQUAL, start1, start2, commonPrefix), nexts[diffs]);
+            starts1[diffs] = start1;
+            starts2[diffs] = start2;
+        }
+        if (commonSuffix != 0) {
+            addLast(diffs, EQUAL, end1 - commonSuffix, end2 - commonSuffix, commonSuffix);
+        }
+
+        cleanupMerge(diffs, a, b);
+        return diffs;
+    }
+
+    /**
+     * @see diff_match_patch#diff_compute
+     */
+    private int diffCompute(char[] a, int start1, int end1, char[] b, int start2, int end2, boolean checklines,
+            long deadline) {
+        int length1 = end1 - start1;
+        int length2 = end2 - start2;
+        int diffs = newList(start1, start2);
+
+        if (length1 == 0) {
+            addLast(diffs, INSERT, start1, start2, length2);
+            return diffs;
+        }
+
+        if (length2 == 0) {
+            addLast(diffs, DELETE, start1, start2, length1);
+            return diffs;
+        }
+
+        if (length1 > length2) {
+            int i = indexOf(a, start1, end1, b, start2, end2, 0);
+            if (i != -1) {
+                addLast(diffs, DELETE, start1, start2, i);
+                addLast(diffs, EQUAL, start1 + i, start2, length2);
+                addLast(diffs, DELETE, start1 + i + length2, end2, length1 - i - length2);
+                return diffs;
+            }
+        }
+        else {
+            int i = indexOf(b, start2, end2, a, start1, end1, 0);
+            if (i != -1) {
+                addLast(diffs, INSERT, start1, start2, i);
+                addLast(diffs, EQUAL, start1, start2 + i, length1);
+                addLast(diffs, INSERT, end1, start2 + i + length1, length2 - i - length1);
+                return diffs;
+            }
+        }
+
+        if (Math.min(length1, length2) == 1) {
+            addLast(diffs, DELETE, start1, start2, length1);
+            addLast(diffs, INSERT, end1, start2, length2);
+            return diffs;
+        }
+
+        if (halfMatch(a, start1, end1, b, start2, end2)) {
+            int split1 = halfMatch1;
+            int split2 = halfMatch2;
+            int common = halfMatchLength;
+            int diffsA = diffMain(a, start1, split1, b, start2, split2, checklines, deadline);
+            int diffsB = diffMain(a, split1 + common, end1, b, split2 + common, end2, checklines, deadline);
+            addLast(diffsA, EQUAL, split1, split2, common);
+            addAll(diffsA, diffsB);
+            return diffsA;
+        }
+
+        if (checklines && length1 > 100 && length2 > 100) {
+            return diffLineMode(a, start1, end1, b, start2, end2, deadline);
+        }
+
+        return diffBisect(a, start1, end1, b, start2, end2, deadline);
+    }
+
+    /**
+     * @see diff_match_patch#diff_lineMode
+     */
+    private int diffLineMode(char[] a, int start1, int end1, char[] b, int start2, int end2, long deadline) {
+        int capacity1 = end1 - start1 + 2;
+        int capacity2 = end2 - start2 + 2;
+        if (lines1.length < capacity1) {
+            lines1 = new char[capacity1];
+            lineStarts1 = new int[capacity1];
+        }
+        if (lines2.length < capacity2) {
+            lines2 = new char[capacity2];
+            lineStarts2 = new int[capacity2];
+        }
+        clearLines(capacity1 + capacity2);
+        int count1 = linesToChars(a, start1, end1, lines1, lineStarts1);
+        int count2 = linesToChars(b, start2, end2, lines2, lineStarts2);
+
+        int diffs = diffMain(lines1, 0, count1, lines2, 0, count2, false, deadline);
+
+        // convert the diff back to the original text
+        for (int node = nexts[diffs]; node != diffs; node = nexts[node]) {
+            int line1 = starts1[node];
+            int line2 = starts2[node];
+            int length = operations[node] == INSERT ? lineStarts2[line2 + lengths[node]] - lineStarts2[line2]
+                    : lineStarts1[line1 + lengths[node]] - lineStarts1[line1];
+            moveTo(node, lineStarts1[line1], lineStarts2[line2], length);
+        }
+        starts1[diffs] = start1;
+        starts2[diffs] = start2;
+
+        cleanupSemantic(diffs, a, b);
+
+        // rediff any replacement blocks, this time character by character
+        addLast(diffs, EQUAL, end1, end2, 0);
+        int countDelete = 0;
+        int countInsert = 0;
+        int groupStart1 = 0;
+        int groupStart2 = 0;
+        int lengthDelete = 0;
+        int lengthInsert = 0;
+        Cursor pointer = new Cursor(diffs);
+        int thisDiff = pointer.next();
+        while (thisDiff != -1) {
+            if (operations[thisDiff] != EQUAL && countDelete + countInsert == 0) {
+                groupStart1 = starts1[thisDiff];
+                groupStart2 = starts2[thisDiff];
+            }
+            switch (operations[thisDiff]) {
+            case INSERT:
+                countInsert++;
+                lengthInsert += lengths[thisDiff];
+                break;
+            case DELETE:
+                countDelete++;
+                lengthDelete += lengths[thisDiff];
+                break;
+            default:
+                if (countDelete >= 1 && countInsert >= 1) {
+                    pointer.previous();
+                    for (int j = 0; j < countDelete + countInsert; j++) {
+                        pointer.previous();
+                        pointer.remove();
+                    }
+                    int newDiffs = diffMain(a, groupStart1, groupStart1 + lengthDelete, b, groupStart2,
+                            groupStart2 + lengthInsert, false, deadline);
+                    for (int node = nexts[newDiffs]; node != newDiffs;) {
+                        int next = nexts[node];
+                        pointer.add(node);
+                        node = next;
+                    }
+                }
+                countInsert = 0;
+                countDelete = 0;
+                lengthDelete = 0;
+                lengthInsert = 0;
+                break;
+            }
+            thisDiff = pointer.hasNext() ? pointer.next() : -1;
+        }
+        unlink(previouses[diffs]);
+
+        return diffs;
+    }
+
+
+    /**
+     * Replaces every line of a text with a char that stands for its content,
+     * like {@code diff_linesToChars}, and remembers where the lines start.
+     *
+     * @return the number of lines.
+     */
+    private int linesToChars(char[] text, int start, int end, char[] chars, int[] lineStarts) {
+        int count = 0;
+        int lineStart = start;
+        int lineEnd = start - 1;
+        while (lineEnd < end - 1) {
+            lineEnd = lineStart;
+            while (lineEnd < end && text[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == end) {
+                lineEnd = end - 1;
+            }
+            lineStarts[count] = lineStart;
+            chars[count++] = (char)lineIndex(text, lineStart, lineEnd + 1);
+            lineStart = lineEnd + 1;
+        }
+        lineStarts[count] = end;
+        return count;
+    }
+
+    /**
+     * Prepares the table of lines for texts with at most the given number of
+     * lines in total.
+     */
+    private void clearLines(int lines) {
+        if (lineTexts.length <= lines) {
+            lineTexts = new char[2 * lines][];
+            lineFrom = new int[2 * lines];
+            lineTo = new int[2 * lines];
+        }
+        int capacity = Integer.highestOneBit(2 * lines) << 1;
+        if (lineHash.length < capacity) {
+            lineHash = new int[capacity];
+        }
+        lineMask = capacity - 1;
+        Arrays.fill(lineHash, 0, capacity, 0);
+        // like the original, 0 stands for no line
+        lineCount = 1;
+    }
+
+    /**
+     * @return the index of the line in the table of all lines, which is added
+     *         if it is new.
+     */
+    private int lineIndex(char[] text, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + text[i];
+        }
+        for (int slot = (hash ^ hash >>> 16) & lineMask;; slot = (slot + 1) & lineMask) {
+            int index = lineHash[slot];
+            if (index == 0) {
+                index = lineCount++;
+                lineTexts[index] = text;
+                lineFrom[index] = start;
+                lineTo[index] = end;
+                lineHash[slot] = index;
+                return index;
+            }
+            if (lineTo[index] - lineFrom[index] == end - start
+                    && regionEquals(lineTexts[index], lineFrom[index], text, start, end - start)) {
+                return index;
+            }
+        }
+    }
+
+    /**
+     * @see diff_match_patch#diff_bisect
+     */
+    private int diffBisect(char[] a, int start1, int end1, char[] b, int start2, int end2, long deadline) {
+        int text1_length = end1 - start1;
+        int text2_length = end2 - start2;
+        int max_d = (text1_length + text2_length + 1) / 2;
+        int v_offset = max_d;
+        int v_length = 2 * max_d;
+        if (v1.length < v_length) {
+            v1 = new int[v_length];
+            v2 = new int[v_length];
+        }
+        Arrays.fill(v1, 0, v_length, -1);
+        Arrays.fill(v2, 0, v_length, -1);
+        v1[v_offset + 1] = 0;
+        v2[v_offset + 1] = 0;
+        int delta = text1_length - text2_length;
+        // if the total number of characters is odd, the front path collides with the reverse path
+        boolean front = (delta % 2 != 0);
+        // offsets for start and end of k loop, which prevent mapping of space beyond the grid
+        int k1start = 0;
+        int k1end = 0;
+        int k2start = 0;
+        int k2end = 0;
+        for (int d = 0; d < max_d; d++) {
+            if (System.currentTimeMillis() > deadline) {
+                break;
+            }
+
+            // walk the front path one step
+            for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+                int k1_offset = v_offset + k1;
+                int x1;
+                if (k1 == -d || (k1 != d && v1[k1_offset - 1] < v1[k1_offset + 1])) {
+                    x1 = v1[k1_offset + 1];
+                }
+                else {
+                    x1 = v1[k1_offset - 1] + 1;
+                }
+                int y1 = x1 - k1;
+                while (x1 < text1_length && y1 < text2_length && a[start1 + x1] == b[start2 + y1]) {
+                    x1++;
+                    y1++;
+                }
+                v1[k1_offset] = x1;
+                if (x1 > text1_length) {
+                    k1end += 2;
+                }
+                else if (y1 > text2_length) {
+                    k1start += 2;
+                }
+                else if (front) {
+                    int k2_offset = v_offset + delta - k1;
+                    if (k2_offset >= 0 && k2_offset < v_length && v2[k2_offset] != -1) {
+                        int x2 = text1_length - v2[k2_offset];
+                        if (x1 >= x2) {
+                            return diffBisectSplit(a, start1, end1, b, start2, end2, x1, y1, deadline);
+                        }
+                    }
+                }
+            }
+
+            // walk the reverse path one step
+            for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+                int k2_offset = v_offset + k2;
+                int x2;
+                if (k2 == -d || (k2 != d && v2[k2_offset - 1] < v2[k2_offset + 1])) {
+                    x2 = v2[k2_offset + 1];
+                }
+                else {
+                    x2 = v2[k2_offset - 1] + 1;
+                }
+                int y2 = x2 - k2;
+                while (x2 < text1_length && y2 < text2_length && a[end1 - x2 - 1] == b[end2 - y2 - 1]) {
+                    x2++;
+                    y2++;
+                }
+                v2[k2_offset] = x2;
+                if (x2 > text1_length) {
+                    k2end += 2;
+                }
+                else if (y2 > text2_length) {
+                    k2start += 2;
+                }
+                else if (!front) {
+                    int k1_offset = v_offset + delta - k2;
+                    if (k1_offset >= 0 && k1_offset < v_length && v1[k1_offset] != -1) {
+                        int x1 = v1[k1_offset];
+                        int y1 = v_offset + x1 - k1_offset;
+                        x2 = text1_length - x2;
+                        if (x1 >= x2) {
+                            return diffBisectSplit(a, start1, end1, b, start2, end2, x1, y1, deadline);
+                        }
+                    }
+                }
+            }
+        }
+        // out of time, or nothing in common
+        int diffs = newList(start1, start2);
+        addLast(diffs, DELETE, start1, start2, text1_length);
+        addLast(diffs, INSERT, end1, start2, text2_length);
+        return diffs;
+    }
+
+    /**
+     * @see diff_match_patch#diff_bisectSplit
+     */
+    private int diffBisectSplit(char[] a, int start1, int end1, char[] b, int start2, int end2, int x, int y,
+            long deadline) {
+        int diffs = diffMain(a, start1, start1 + x, b, start2, start2 + y, false, deadline);
+        int diffsB = diffMain(a, start1 + x, end1, b, start2 + y, end2, false, deadline);
+        addAll(diffs, diffsB);
+        return diffs;
+    }
+
+    private static int commonPrefix(char[] a, int start1, int end1, char[] b, int start2, int end2) {
+        int n = Math.min(end1 - start1, end2 - start2);
+        for (int i = 0; i < n; i++) {
+            if (a[start1 + i] != b[start2 + i]) {
+                return i;
+            }
+        }
+        return n;
+    }
+
+    private static int commonSuffix(char[] a, int start1, int end1, char[] b, int start2, int end2) {
+        int n = Math.min(end1 - start1, end2 - start2);
+        for (int i = 1; i <= n; i++) {
+            if (a[end1 - i] != b[end2 - i]) {
+                return i - 1;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @see diff_match_patch#diff_commonOverlap
+     */
+    private static int commonOverlap(char[] a, int start1, int end1, char[] b, int start2, int end2) {
+        int text1_length = end1 - start1;
+        int text2_length = end2 - start2;
+        if (text1_length == 0 || text2_length == 0) {
+            return 0;
+        }
+        // truncate the longer string
+        if (text1_length > text2_length) {
+            start1 = end1 - text2_length;
+        }
+        else if (text1_length < text2_length) {
+            end2 = start2 + text1_length;
+        }
+        int text_length = Math.min(text1_length, text2_length);
+        if (regionEquals(a, start1, b, start2, text_length)) {
+            return text_length;
+        }
+
+        // look for a single character match and increase its length until no match is found
+        int best = 0;
+        int length = 1;
+        while (true) {
+            int found = indexOf(b, start2, end2, a, start1 + text_length - length, end1, 0);
+            if (found == -1) {
+                return best;
+            }
+            length += found;
+            if (found == 0 || regionEquals(a, start1 + text_length - length, b, start2, length)) {
+                best = length;
+                length++;
+            }
+        }
+    }
+
+    /**
+     * @return the first index from the given one at which the pattern occurs
+     *         in the text, relative to the start of the text, or -1.
+     */
+    private static int indexOf(char[] text, int start, int end, char[] pattern, int patternStart, int patternEnd,
+            int from) {
+        int patternLength = patternEnd - patternStart;
+        if (patternLength == 0) {
+            return from <= end - start ? from : -1;
+        }
+        char first = pattern[patternStart];
+        int last = end - patternLength;
+        for (int i = start + from; i <= last; i++) {
+            if (text[i] == first && regionEquals(text, i + 1, pattern, patternStart + 1, patternLength - 1)) {
+                return i - start;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionEquals(char[] a, int start1, char[] b, int start2, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[start1 + i] != b[start2 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Looks for a range both texts share that is at least half as long as the
+     * longer text, like {@code diff_halfMatch}.
+     *
+     * @return whether there is one. It starts at {@link #halfMatch1} and
+     *         {@link #halfMatch2} and is {@link #halfMatchLength} long.
+     */
+    private boolean halfMatch(char[] a, int start1, int end1, char[] b, int start2, int end2) {
+        if (timeout <= 0) {
+            // don't risk returning a non-optimal diff with unlimited time
+            return false;
+        }
+        boolean firstLonger = end1 - start1 > end2 - start2;
+        char[] longText = firstLonger ? a : b;
+        int longStart = firstLonger ? start1 : start2;
+        int longEnd = firstLonger ? end1 : end2;
+        char[] shortText = firstLonger ? b : a;
+        int shortStart = firstLonger ? start2 : start1;
+        int shortEnd = firstLonger ? end2 : end1;
+        int longLength = longEnd - longStart;
+        if (longLength < 4 || (shortEnd - shortStart) * 2 < longLength) {
+            return false;
+        }
+
+        // check whether the second or the third quarter is the seed of a half match
+        long hm1 = halfMatchI(longText, longStart, longEnd, shortText, shortStart, shortEnd, (longLength + 3) / 4);
+        int hm1Length = halfMatchLength;
+        long hm2 = halfMatchI(longText, longStart, longEnd, shortText, shortStart, shortEnd, (longLength + 1) / 2);
+        int hm2Length = halfMatchLength;
+        long hm;
+        if (hm1 == -1 && hm2 == -1) {
+            return false;
+        }
+        else if (hm2 == -1) {
+            hm = hm1;
+            halfMatchLength = hm1Length;
+        }
+        else if (hm1 == -1) {
+            hm = hm2;
+            halfMatchLength = hm2Length;
+        }
+        else {
+            // both matched, select the longest
+            hm = hm1Length > hm2Length ? hm1 : hm2;
+            halfMatchLength = hm1Length > hm2Length ? hm1Length : hm2Length;
+        }
+
+        int longSplit = longStart + (int)(hm >>> 32);
+        int shortSplit = shortStart + (int)hm;
+        halfMatch1 = firstLonger ? longSplit : shortSplit;
+        halfMatch2 = firstLonger ? shortSplit : longSplit;
+        return true;
+    }
+
+    /**
+     * @see diff_match_patch#diff_halfMatchI
+     * @return where the common range starts in the long and in the short text,
+     *         packed into a long, or -1. Its length is left in
+     *         {@link #halfMatchLength}.
+     */
+    private long halfMatchI(char[] longText, int longStart, int longEnd, char[] shortText, int shortStart,
+            int shortEnd, int i) {
+        int longLength = longEnd - longStart;
+        int seedStart = longStart + i;
+        int seedEnd = seedStart + longLength / 4;
+        int j = -1;
+        int bestCommon = 0;
+        int bestLong = 0;
+        int bestShort = 0;
+        while ((j = indexOf(shortText, shortStart, shortEnd, longText, seedStart, seedEnd, j + 1)) != -1) {
+            int prefixLength = commonPrefix(longText, longStart + i, longEnd, shortText, shortStart + j, shortEnd);
+            int suffixLength = commonSuffix(longText, longStart, longStart + i, shortText, shortStart,
+                    shortStart + j);
+            if (bestCommon < suffixLength + prefixLength) {
+                bestCommon = suffixLength + prefixLength;
+                bestLong = i - suffixLength;
+                bestShort = j - suffixLength;
+            }
+        }
+        halfMatchLength = bestCommon;
+        if (bestCommon * 2 >= longLength) {
+            return (long)bestLong << 32 | bestShort;
+        }
+        return -1;
+    }
+
+    // CLEANUP
+
+    /**
+     * @see diff_match_patch#diff_cleanupSemantic
+     */
+    private void cleanupSemantic(int diffs, char[] a, char[] b) {
+        if (nexts[diffs] == diffs) {
+            return;
+        }
+        boolean changes = false;
+        int equalityCount = 0;
+        // the length of the last equality, or -1 for none
+        int lastequality = -1;
+        Cursor pointer = new Cursor(diffs);
+        // number of characters that changed prior to the equality
+        int length_insertions1 = 0;
+        int length_deletions1 = 0;
+        // number of characters that changed after the equality
+        int length_insertions2 = 0;
+        int length_deletions2 = 0;
+        int thisDiff = pointer.next();
+        while (thisDiff != -1) {
+            if (operations[thisDiff] == EQUAL) {
+                equalityCount = push(equalityCount, thisDiff);
+                length_insertions1 = length_insertions2;
+                length_deletions1 = length_deletions2;
+                length_insertions2 = 0;
+                length_deletions2 = 0;
+                lastequality = lengths[thisDiff];
+            }
+            else {
+                if (operations[thisDiff] == INSERT) {
+                    length_insertions2 += lengths[thisDiff];
+                }
+                else {
+                    length_deletions2 += lengths[thisDiff];
+                }
+                // eliminate an equality that is smaller or equal to the edits on both sides of it
+                if (lastequality != -1 && (lastequality <= Math.max(length_insertions1, length_deletions1))
+                        && (lastequality <= Math.max(length_insertions2, length_deletions2))) {
+                    int equality = equalities[equalityCount - 1];
+                    while (thisDiff != equality) {
+                        thisDiff = pointer.previous();
+                    }
+                    pointer.next();
+
+                    // replace the equality with a deletion and an insertion
+                    int start1 = starts1[equality];
+                    int start2 = starts2[equality];
+                    pointer.set(newNode(DELETE, start1, start2, lastequality));
+                    pointer.add(newNode(INSERT, start1 + lastequality, start2, lastequality));
+
+                    equalityCount--;
+                    if (equalityCount != 0) {
+                        // the previous equality needs to be reevaluated
+                        equalityCount--;
+                    }
+                    if (equalityCount == 0) {
+                        while (pointer.hasPrevious()) {
+                            pointer.previous();
+                        }
+                    }
+                    else {
+                        thisDiff = equalities[equalityCount - 1];
+                        while (thisDiff != pointer.previous()) {
+                            // intentionally empty
+                        }
+                    }
+
+                    length_insertions1 = 0;
+                    length_insertions2 = 0;
+                    length_deletions1 = 0;
+                    length_deletions2 = 0;
+                    lastequality = -1;
+                    changes = true;
+                }
+            }
+            thisDiff = pointer.hasNext() ? pointer.next() : -1;
+        }
+
+        if (changes) {
+            cleanupMerge(diffs, a, b);
+        }
+        cleanupSemanticLossless(diffs, a, b);
+
+        // find overlaps between deletions and insertions
+        pointer = new Cursor(diffs);
+        int prevDiff = -1;
+        thisDiff = -1;
+        if (pointer.hasNext()) {
+            prevDiff = pointer.next();
+            if (pointer.hasNext()) {
+                thisDiff = pointer.next();
+            }
+        }
+        while (thisDiff != -1) {
+            if (operations[prevDiff] == DELETE && operations[thisDiff] == INSERT) {
+                int deletionStart = starts1[prevDiff];
+                int deletionLength = lengths[prevDiff];
+                int insertionStart = starts2[thisDiff];
+                int insertionLength = lengths[thisDiff];
+                int overlap_length1 = commonOverlap(a, deletionStart, deletionStart + deletionLength, b,
+                        insertionStart, insertionStart + insertionLength);
+                int overlap_length2 = commonOverlap(b, insertionStart, insertionStart + insertionLength, a,
+                        deletionStart, deletionStart + deletionLength);
+                int position1 = starts1[prevDiff];
+                int position2 = starts2[prevDiff];
+                if (overlap_length1 >= overlap_length2) {
+                    if (overlap_length1 >= deletionLength / 2.0 || overlap_length1 >= insertionLength / 2.0) {
+                        // insert an equality and trim the surrounding edits
+                        pointer.previous();
+                        pointer.add(newNode(EQUAL, position1 + deletionLength - overlap_length1, position2,
+                                overlap_length1));
+                        moveTo(prevDiff, position1, position2, deletionLength - overlap_length1);
+                        moveTo(thisDiff, position1 + deletionLength, position2 + overlap_length1,
+                                insertionLength - overlap_length1);
+                    }
+                }
+                else {
+                    if (overlap_length2 >= deletionLength / 2.0 || overlap_length2 >= insertionLength / 2.0) {
+                        // insert an equality and swap and trim the surrounding edits
+                        pointer.previous();
+                        pointer.add(newNode(EQUAL, position1, position2 + insertionLength - overlap_length2,
+                                overlap_length2));
+                        operations[prevDiff] = INSERT;
+                        moveTo(prevDiff, position1, position2, insertionLength - overlap_length2);
+                        operations[thisDiff] = DELETE;
+                        moveTo(thisDiff, position1 + overlap_length2, position2 + insertionLength,
+                                deletionLength - overlap_length2);
+                    }
+                }
+                thisDiff = pointer.hasNext() ? pointer.next() : -1;
+            }
+            prevDiff = thisDiff;
+            thisDiff = pointer.hasNext() ? pointer.next() : -1;
+        }
+    }
+
+    /**
+     * @see diff_match_patch#diff_cleanupSemanticLossless
+     */
+    private void cleanupSemanticLossless(int diffs, char[] a, char[] b) {
+        Cursor pointer = new Cursor(diffs);
+        int prevDiff = pointer.hasNext() ? pointer.next() : -1;
+        int thisDiff = pointer.hasNext() ? pointer.next() : -1;
+        int nextDiff = pointer.hasNext() ? pointer.next() : -1;
+        // intentionally ignore the first and last element
+        while (nextDiff != -1) {
+            if (operations[prevDiff] == EQUAL && operations[nextDiff] == EQUAL) {
+                // a single edit surrounded by equalities: all three are a range of the text of the edit
+                char[] text = textOf(operations[thisDiff], a, b);
+                int start = startOf(thisDiff) - lengths[prevDiff];
+                int editLength = lengths[thisDiff];
+                int end = startOf(thisDiff) + editLength + lengths[nextDiff];
+
+                // first, shift the edit as far left as possible
+                int edit = startOf(thisDiff);
+                edit -= commonSuffix(text, start, edit, text, edit, edit + editLength);
+
+                // second, step character by character right, looking for the best fit
+                int bestEdit = edit;
+                int bestScore = semanticScore(text, start, edit, edit + editLength)
+                        + semanticScore(text, edit, edit + editLength, end);
+                while (editLength != 0 && edit + editLength < end && text[edit] == text[edit + editLength]) {
+                    edit++;
+                    int score = semanticScore(text, start, edit, edit + editLength)
+                            + semanticScore(text, edit, edit + editLength, end);
+                    // the >= encourages trailing rather than leading whitespace on edits
+                    if (score >= bestScore) {
+                        bestScore = score;
+                        bestEdit = edit;
+                    }
+                }
+
+                if (bestEdit - start != lengths[prevDiff]) {
+                    // an improvement, save it back to the diffs
+                    int shift = bestEdit - startOf(thisDiff);
+                    int position1 = starts1[thisDiff] + shift;
+                    int position2 = starts2[thisDiff] + shift;
+                    if (bestEdit != start) {
+                        lengths[prevDiff] = bestEdit - start;
+                    }
+                    else {
+                        pointer.previous();
+                        pointer.previous();
+                        pointer.previous();
+                        pointer.remove();
+                        pointer.next();
+                        pointer.next();
+                    }
+                    moveTo(thisDiff, position1, position2, editLength);
+                    if (bestEdit + editLength != end) {
+                        boolean insertion = operations[thisDiff] == INSERT;
+                        moveTo(nextDiff, insertion ? position1 : position1 + editLength,
+                                insertion ? position2 + editLength : position2, end - bestEdit - editLength);
+                    }
+                    else {
+                        pointer.remove();
+                        nextDiff = thisDiff;
+                        thisDiff = prevDiff;
+                    }
+                }
+            }
+            prevDiff = thisDiff;
+            thisDiff = nextDiff;
+            nextDiff = pointer.hasNext() ? pointer.next() : -1;
+        }
+    }
+
+    /**
+     * Scores whether the boundary between two neighboring ranges of a text
+     * falls on a logical boundary, like {@code diff_cleanupSemanticScore}.
+     *
+     * @return the score from 6 (best) to 0 (worst).
+     */
+    private static int semanticScore(char[] text, int oneStart, int boundary, int twoEnd) {
+        if (oneStart == boundary || boundary == twoEnd) {
+            // edges are the best
+            return 6;
+        }
+
+        char char1 = text[boundary - 1];
+        char char2 = text[boundary];
+        boolean nonAlphaNumeric1 = !Character.isLetterOrDigit(char1);
+        boolean nonAlphaNumeric2 = !Character.isLetterOrDigit(char2);
+        boolean whitespace1 = nonAlphaNumeric1 && Character.isWhitespace(char1);
+        boolean whitespace2 = nonAlphaNumeric2 && Character.isWhitespace(char2);
+        boolean lineBreak1 = whitespace1 && Character.getType(char1) == Character.CONTROL;
+        boolean lineBreak2 = whitespace2 && Character.getType(char2) == Character.CONTROL;
+        boolean blankLine1 = lineBreak1 && isBlankLineEnd(text, oneStart, boundary);
+        boolean blankLine2 = lineBreak2 && isBlankLineStart(text, boundary, twoEnd);
+
+        if (blankLine1 || blankLine2) {
+            return 5;
+        }
+        else if (lineBreak1 || lineBreak2) {
+            return 4;
+        }
+        else if (nonAlphaNumeric1 && !whitespace1 && whitespace2) {
+            return 3;
+        }
+        else if (whitespace1 || whitespace2) {
+            return 2;
+        }
+        else if (nonAlphaNumeric1 || nonAlphaNumeric2) {
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * @return whether the range matches {@code \n\r?\n\Z}, which may be
+     *         followed by a last line terminator.
+     */
+    private static boolean isBlankLineEnd(char[] text, int start, int end) {
+        if (endsWithBlankLine(text, start, end)) {
+            return true;
+        }
+        char last = text[end - 1];
+        if (end - start >= 2 && last == '\n' && text[end - 2] == '\r') {
+            return endsWithBlankLine(text, start, end - 2);
+        }
+        if (last == '\n' || last == '\r' || last == '\u0085' || last == '\u2028' || last == '\u2029') {
+            return endsWithBlankLine(text, start, end - 1);
+        }
+        return false;
+    }
+
+    private static boolean endsWithBlankLine(char[] text, int start, int end) {
+        if (end - start < 2 || text[end - 1] != '\n') {
+            return false;
+        }
+        return text[end - 2] == '\n' || end - start >= 3 && text[end - 2] == '\r' && text[end - 3] == '\n';
+    }
+
+    /**
+     * @return whether the range matches {@code \A\r?\n\r?\n}.
+     */
+    private static boolean isBlankLineStart(char[] text, int start, int end) {
+        int i = start;
+        for (int lineBreaks = 0; lineBreaks < 2; lineBreaks++) {
+            if (i < end && text[i] == '\r') {
+                i++;
+            }
+            if (i == end || text[i] != '\n') {
+                return false;
+            }
+            i++;
+        }
+        return true;
+    }
+
+    /**
+     * @see diff_match_patch#diff_cleanupEfficiency
+     */
+    private void cleanupEfficiency(int diffs) {
+        if (nexts[diffs] == diffs) {
+            return;
+        }
+        boolean changes = false;
+        int equalityCount = 0;
+        // the length of the last equality, or -1 for none
+        int lastequality = -1;
+        Cursor pointer = new Cursor(diffs);
+        // whether there is an insertion or deletion before or after the last equality
+        boolean pre_ins = false;
+        boolean pre_del = false;
+        boolean post_ins = false;
+        boolean post_del = false;
+        int thisDiff = pointer.next();
+        // the last diff that is known to be unsplittable
+        int safeDiff = thisDiff;
+        while (thisDiff != -1) {
+            if (operations[thisDiff] == EQUAL) {
+                if (lengths[thisDiff] < EDIT_COST && (post_ins || post_del)) {
+                    // candidate found
+                    equalityCount = push(equalityCount, thisDiff);
+                    pre_ins = post_ins;
+                    pre_del = post_del;
+                    lastequality = lengths[thisDiff];
+                }
+                else {
+                    // not a candidate, and can never become one
+                    equalityCount = 0;
+                    lastequality = -1;
+                    safeDiff = thisDiff;
+                }
+                post_ins = post_del = false;
+            }
+            else {
+                if (operations[thisDiff] == DELETE) {
+                    post_del = true;
+                }
+                else {
+                    post_ins = true;
+                }
+                if (lastequality != -1 && ((pre_ins && pre_del && post_ins && post_del)
+                        || ((lastequality < EDIT_COST / 2) && ((pre_ins ? 1 : 0) + (pre_del ? 1 : 0)
+                                + (post_ins ? 1 : 0) + (post_del ? 1 : 0)) == 3))) {
+                    int equality = equalities[equalityCount - 1];
+                    while (thisDiff != equality) {
+                        thisDiff = pointer.previous();
+                    }
+                    pointer.next();
+
+                    // replace the equality with a deletion and an insertion
+                    int start1 = starts1[equality];
+                    int start2 = starts2[equality];
+                    pointer.set(newNode(DELETE, start1, start2, lastequality));
+                    pointer.add(thisDiff = newNode(INSERT, start1 + lastequality, start2, lastequality));
+
+                    equalityCount--;
+                    lastequality = -1;
+                    if (pre_ins && pre_del) {
+                        // no changes made which could affect the previous entry, keep going
+                        post_ins = post_del = true;
+                        equalityCount = 0;
+                        safeDiff = thisDiff;
+                    }
+                    else {
+                        if (equalityCount != 0) {
+                            // the previous equality needs to be reevaluated
+                            equalityCount--;
+                        }
+                        if (equalityCount == 0) {
+                            // walk back to the last known safe diff
+                            thisDiff = safeDiff;
+                        }
+                        else {
+                            thisDiff = equalities[equalityCount - 1];
+                        }
+                        while (thisDiff != pointer.previous()) {
+                            // intentionally empty
+                        }
+                        post_ins = post_del = false;
+                    }
+
+                    changes = true;
+                }
+            }
+            thisDiff = pointer.hasNext() ? pointer.next() : -1;
+        }
+
+        if (changes) {
+            cleanupMerge(diffs, text1, text2);
+        }
+    }
+
+    private int push(int equalityCount, int equality) {
+        if (equalityCount == equalities.length) {
+            equalities = Arrays.copyOf(equalities, 2 * equalityCount);
+        }
+        equalities[equalityCount] = equality;
+        return equalityCount + 1;
+    }
+
+    /**
+     * @see diff_match_patch#diff_cleanupMerge
+     */
+    private void cleanupMerge(int diffs, char[] a, char[] b) {
+        // add a dummy entry at the end
+        addLast(diffs, EQUAL, end1(diffs), end2(diffs), 0);
+        Cursor pointer = new Cursor(diffs);
+        int count_delete = 0;
+        int count_insert = 0;
+        int length_delete = 0;
+        int length_insert = 0;
+        // where the edits since the last equality start
+        int start1 = 0;
+        int start2 = 0;
+        int thisDiff = pointer.next();
+        int prevEqual = -1;
+        int commonlength;
+        while (thisDiff != -1) {
+            if (operations[thisDiff] != EQUAL && count_delete + count_insert == 0) {
+                start1 = starts1[thisDiff];
+                start2 = starts2[thisDiff];
+            }
+            switch (operations[thisDiff]) {
+            case INSERT:
+                count_insert++;
+                length_insert += lengths[thisDiff];
+                prevEqual = -1;
+                break;
+            case DELETE:
+                count_delete++;
+                length_delete += lengths[thisDiff];
+                prevEqual = -1;
+                break;
+            default:
+                if (count_delete + count_insert > 1) {
+                    boolean both_types = count_delete != 0 && count_insert != 0;
+                    // delete the offending records
+                    pointer.previous();
+                    while (count_delete-- > 0) {
+                        pointer.previous();
+                        pointer.remove();
+                    }
+                    while (count_insert-- > 0) {
+                        pointer.previous();
+                        pointer.remove();
+                    }
+                    if (both_types) {
+                        // factor out any common prefixes
+                        commonlength = commonPrefix(b, start2, start2 + length_insert, a, start1,
+                                start1 + length_delete);
+                        if (commonlength != 0) {
+                            if (pointer.hasPrevious()) {
+                                thisDiff = pointer.previous();
+                                lengths[thisDiff] += commonlength;
+                                pointer.next();
+                            }
+                            else {
+                                pointer.add(newNode(EQUAL, start1, start2, commonlength));
+                            }
+                            start1 += commonlength;
+                            start2 += commonlength;
+                            length_insert -= commonlength;
+                            length_delete -= commonlength;
+                        }
+                        // factor out any common suffixes
+                        commonlength = commonSuffix(b, start2, start2 + length_insert, a, start1,
+                                start1 + length_delete);
+                        if (commonlength != 0) {
+                            thisDiff = pointer.next();
+                            moveTo(thisDiff, starts1[thisDiff] - commonlength, starts2[thisDiff] - commonlength,
+                                    lengths[thisDiff] + commonlength);
+                            length_insert -= commonlength;
+                            length_delete -= commonlength;
+                            pointer.previous();
+                        }
+                    }
+                    // insert the merged records
+                    if (length_delete != 0) {
+                        pointer.add(newNode(DELETE, start1, start2, length_delete));
+                    }
+                    if (length_insert != 0) {
+                        pointer.add(newNode(INSERT, start1 + length_delete, start2, length_insert));
+                    }
+                    // step forward to the equality
+                    thisDiff = pointer.hasNext() ? pointer.next() : -1;
+                }
+                else if (prevEqual != -1) {
+                    // merge this equality with the previous one
+                    lengths[prevEqual] += lengths[thisDiff];
+                    pointer.remove();
+                    thisDiff = pointer.previous();
+                    pointer.next();
+                }
+                count_insert = 0;
+                count_delete = 0;
+                length_delete = 0;
+                length_insert = 0;
+                prevEqual = thisDiff;
+                break;
+            }
+            thisDiff = pointer.hasNext() ? pointer.next() : -1;
+        }
+        if (lengths[previouses[diffs]] == 0) {
+            // remove the dummy entry at the end
+            unlink(previouses[diffs]);
+        }
+
+        // second pass: shift single edits surrounded by equalities sideways to eliminate an equality
+        boolean changes = false;
+        pointer = new Cursor(diffs);
+        int prevDiff = pointer.hasNext() ? pointer.next() : -1;
+        thisDiff = pointer.hasNext() ? pointer.next() : -1;
+        int nextDiff = pointer.hasNext() ? pointer.next() : -1;
+        while (nextDiff != -1) {
+            if (operations[prevDiff] == EQUAL && operations[nextDiff] == EQUAL) {
+                char[] text = textOf(operations[thisDiff], a, b);
+                int edit = startOf(thisDiff);
+                int editLength = lengths[thisDiff];
+                int prevLength = lengths[prevDiff];
+                int nextLength = lengths[nextDiff];
+                if (editLength >= prevLength
+                        && regionEquals(text, edit + editLength - prevLength, a, starts1[prevDiff], prevLength)) {
+                    // shift the edit over the previous equality
+                    moveTo(thisDiff, starts1[prevDiff], starts2[prevDiff], editLength);
+                    moveTo(nextDiff, starts1[nextDiff] - prevLength, starts2[nextDiff] - prevLength,
+                            nextLength + prevLength);
+                    pointer.previous();
+                    pointer.previous();
+                    pointer.previous();
+                    pointer.remove();
+                    pointer.next();
+                    thisDiff = pointer.next();
+                    nextDiff = pointer.hasNext() ? pointer.next() : -1;
+                    changes = true;
+                }
+                else if (editLength >= nextLength && regionEquals(text, edit, a, starts1[nextDiff], nextLength)) {
+                    // shift the edit over the next equality
+                    lengths[prevDiff] += nextLength;
+                    moveTo(thisDiff, starts1[thisDiff] + nextLength, starts2[thisDiff] + nextLength, editLength);
+                    pointer.remove();
+                    nextDiff = pointer.hasNext() ? pointer.next() : -1;
+                    changes = true;
+                }
+            }
+            prevDiff = thisDiff;
+            thisDiff = nextDiff;
+            nextDiff = pointer.hasNext() ? pointer.next() : -1;
+        }
+        // if shifts were made, the diff needs reordering and another shift sweep
+        if (changes) {
+            cleanupMerge(diffs, a, b);
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package org.wangzw.plugin.cppstyle;
+
+import static org.wangzw.plugin.cppstyle.replacement.Logger.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.text.edits.MultiTextEdit;
+import org.wangzw.plugin.cppstyle.replacement.ReplacementList;
+import org.wangzw.plugin.cppstyle.replacement.ReplacementsParser;
+import org.wangzw.plugin.cppstyle.replacement.Utf8OffsetIndex;
+import org.xml.sax.SAXException;
+
+/**
+ * Formats many files per clang-format invocation instead of one process per
+ * compilation unit.
+ * <p>
+ * Files are grouped by the .clang-format file they resolve to and every group
+ * is split into chunks that stay within the OS command line limits. For each
+ * chunk clang-format prints one replacements document per file, in argument
+ * order, which is turned into one {@link MultiTextEdit} per file. A chunk that
+ * fails is bisected, so one broken file does not cost the edits of the others.
+ * A chunk that times out is given up instead, bisecting it would only run into
+ * the timeout again.
+ * <p>
+ * clang-format reads the files itself, so the edits of a file are only handed
+ * out if the file still has the content of the caller after the run.
+ * <p>
+ * With a style file, which needs clang-format 14, all files take their style
+ * from it, as if formatted one by one next to it.
+ */
+public class BatchReplacementFormatter {
+
+    /**
+     * Windows limits the whole command line to 32767 characters, which is the
+     * tightest of the supported platforms.
+     */
+    static final int MAX_COMMAND_LINE_LENGTH = 30000;
+
+    static final int MAX_FILES_PER_INVOCATION = 500;
+
+    private static final String NO_STYLE_FILE = "";
+
+    private static final byte[] XML_DECLARATION = "<?xml".getBytes(StandardCharsets.US_ASCII);
+
+    private static final String STYLE_FILE_PATH = "-style=file:";
+
+    // seconds a chunk may take per file on top of the timeout of one process
+    private static final int TIMEOUT_PER_FILE = 1;
+
+    private static final List<MultiTextEdit> TIMED_OUT = new ArrayList<>(0);
+
+    private final String clangFormatPath;
+
+    private final String stylePath;
+
+    private int invocations;
+
+    public BatchReplacementFormatter(String clangFormatPath) {
+        this(clangFormatPath, null);
+    }
+
+    /**
+     * @param stylePath
+     *            the style file of all files, or null to let clang-format look
+     *            for the .clang-format of each file.
+     */
+    public BatchReplacementFormatter(String clangFormatPath, String stylePath) {
+        this.clangFormatPath = clangFormatPath;
+        this.stylePath = stylePath;
+    }
+
+    /**
+     * Reads the files and formats them, see {@link #format(Map)}. Files that
+     * cannot be read are missing.
+     */
+    public Map<File, MultiTextEdit> format(Collection<File> files) {
+        Map<File, byte[]> contents = new LinkedHashMap<>();
+        for (File file : files) {
+            try {
+                contents.put(file, Files.readAllBytes(file.toPath()));
+            }
+            catch (IOException e) {
+                logError("Could not read " + file, e);
+            }
+        }
+        return format(contents);
+    }
+
+    /**
+     * @param contents
+     *            the UTF-8 content of every file, which the edits are meant to
+     *            be applied to.
+     * @return the edits for every file that could be formatted, in the order of
+     *         the given files. Files clang-format failed on and files that
+     *         changed on disk are missing.
+     */
+    public Map<File, MultiTextEdit> format(Map<File, byte[]> contents) {
+        Map<File, MultiTextEdit> edits = new LinkedHashMap<>();
+        for (List<File> group : groupByStyle(contents.keySet()).values()) {
+            for (List<File> chunk : chunk(group)) {
+                formatChunk(chunk, contents, edits);
+            }
+        }
+        return edits;
+    }
+
+    /**
+     * @return the number of clang-format processes started so far.
+     */
+    public int getInvocations() {
+        return invocations;
+    }
+
+    Map<String, List<File>> groupByStyle(Collection<File> files) {
+        Map<String, List<File>> groups = new LinkedHashMap<>();
+        if (stylePath != null) {
+            groups.put(stylePath, new ArrayList<>(files));
+            return groups;
+        }
+        for (File file : files) {
+            String styleFile = FilePathUtil.findClangFormatConfigureFile(file.getAbsolutePath());
+            String style = styleFile != null ? styleFile : NO_STYLE_FILE;
+            groups.computeIfAbsent(style, key -> new ArrayList<>()).add(file);
+        }
+        return groups;
+    }
+
+    List<List<File>> chunk(List<File> files) {
+        int fixedLength = 0;
+        for (String parameter : fixedParameters()) {
+            fixedLength += parameter.length() + 1;
+        }
+
+        List<List<File>> chunks = new ArrayList<>();
+        List<File> current = new ArrayList<>();
+        int length = fixedLength;
+        for (File file : files) {
+            int parameterLength = file.getAbsolutePath().length() + 1;
+            boolean full = length + parameterLength > MAX_COMMAND_LINE_LENGTH
+                    || current.size() == MAX_FILES_PER_INVOCATION;
+            if (full && !current.isEmpty()) {
+                chunks.add(current);
+                current = new ArrayList<>();
+                length = fixedLength;
+            }
+            current.add(file);
+            length += parameterLength;
+        }
+        if (!current.isEmpty()) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
+
+    private List<String> fixedParameters() {
+        List<String> parameters = new ArrayList<>();
+        parameters.add(clangFormatPath);
+        // use the style file or make clang-format do its own search for the
+        // configuration, but fall back to Chromium.
+        parameters.add(stylePath != null ? STYLE_FILE_PATH + stylePath : CodeFormatterBase.STYLE_VIA_FILE);
+        parameters.add(CodeFormatterBase.FALLBACK_STYLE_CHROMIUM);
+        parameters.add(CodeFormatterBase.OUTPUT_REPLACEMENTS_XML);
+        return parameters;
+    }
+
+    private void formatChunk(List<File> chunk, Map<File, byte[]> contents, Map<File, MultiTextEdit> edits) {
+        List<MultiTextEdit> results = runClangFormat(chunk, contents);
+        if (results == TIMED_OUT) {
+            return;
+        }
+        if (results != null) {
+            for (int i = 0; i < chunk.size(); i++) {
+                File file = chunk.get(i);
+                MultiTextEdit edit = results.get(i);
+                // an edit without changes fits any content
+                if (!edit.hasChildren() || hasContent(file, contents.get(file))) {
+                    edits.put(file, edit);
+                }
+            }
+        }
+        else if (chunk.size() > 1) {
+            int half = chunk.size() / 2;
+            formatChunk(chunk.subList(0, half), contents, edits);
+            formatChunk(chunk.subList(half, chunk.size()), contents, edits);
+        }
+    }
+
+    /**
+     * @return the edits of the files of the chunk, null if clang-format failed,
+     *         or {@link #TIMED_OUT}.
+     */
+    private List<MultiTextEdit> runClangFormat(List<File> chunk, Map<File, byte[]> contents) {
+        BatchProcessHandler processHandler = new BatchProcessHandler(chunk.size());
+        processHandler.inLane(ProcessAdmission.Lane.BACKGROUND);
+        for (String parameter : fixedParameters()) {
+            processHandler.addParameter(parameter);
+        }
+        for (File file : chunk) {
+            processHandler.addParameter(file.getAbsolutePath());
+        }
+
+        try {
+            invocations++;
+            ProcessAdmission.Permit permit = ProcessAdmission.getDefault().acquire(processHandler.getLane());
+            boolean success = false;
+            try {
+                processHandler.start();
+                processHandler.handleInputStream();
+                processHandler.handleErrorStream();
+                success = processHandler.success() && !processHandler.hasErrors();
+            }
+            finally {
+                permit.release(success ? chunkLength(chunk, contents) : 0);
+            }
+
+            if (processHandler.isTimedOut()) {
+                logError(String.format("clang-format timed out on %d files:\n%s", chunk.size(),
+                        processHandler.getError()));
+                return TIMED_OUT;
+            }
+            if (!success) {
+                logError(String.format("clang-format return error (%d) for %d files:\n%s", processHandler.getCode(),
+                        chunk.size(), processHandler.getError()));
+                return null;
+            }
+        }
+        catch (IOException | InterruptedException e) {
+            logError("Failed to format files", e);
+            return null;
+        }
+
+        List<ReplacementList> documents = processHandler.documents;
+        if (documents == null || documents.size() != chunk.size()) {
+            logError(String.format("clang-format returned %d replacement documents for %d files",
+                    documents == null ? 0 : documents.size(), chunk.size()));
+            return null;
+        }
+
+        List<MultiTextEdit> results = new ArrayList<>(documents.size());
+        for (int i = 0; i < chunk.size(); i++) {
+            results.add(createEdit(contents.get(chunk.get(i)), documents.get(i)));
+        }
+        return results;
+    }
+
+    /**
+     * @return whether the file on disk has the given content, i.e. whether the
+     *         offsets clang-format read from it fit the content.
+     */
+    private static boolean hasContent(File file, byte[] content) {
+        try {
+            if (Arrays.equals(Files.readAllBytes(file.toPath()), content)) {
+                return true;
+            }
+            logError("Could not format " + file + ", it changed while it was formatted");
+        }
+        catch (IOException e) {
+            logError("Could not read " + file, e);
+        }
+        return false;
+    }
+
+    /**
+     * @return the bytes of the files, close enough to their chars to adapt the
+     *         limit of the {@link ProcessAdmission}.
+     */
+    private static int chunkLength(List<File> chunk, Map<File, byte[]> contents) {
+        long length = 0;
+        for (File file : chunk) {
+            length += contents.get(file).length;
+        }
+        return (int)Math.min(Integer.MAX_VALUE, Math.max(1, length));
+    }
+
+    /**
+     * The offsets of the replacements are UTF-8 byte offsets into the file
+     * clang-format read, which are translated into char offsets of the same
+     * content as the caller has it.
+     */
+    private static MultiTextEdit createEdit(byte[] content, ReplacementList byteOffsetReplacements) {
+        if (byteOffsetReplacements.isEmpty()) {
+            return new MultiTextEdit();
+        }
+        return byteOffsetReplacements.toCharOffsets(Utf8OffsetIndex.of(content)).toEdit();
+    }
+
+    private static class BatchProcessHandler extends ThreadedProcessHandler {
+
+        private final int files;
+
+        private List<ReplacementList> documents;
+
+        BatchProcessHandler(int files) {
+            // the files are passed as arguments, stdin stays empty
+            super("");
+            this.files = files;
+        }
+
+        @Override
+        protected long getTimeout() {
+            // clang-format reads and formats the files one after the other
+            return TIMEOUT + (long)TIMEOUT_PER_FILE * files;
+        }
+
+        @Override
+        protected void handleInputStreamInternal() throws IOException {
+            byte[] output = readFully(process.getInputStream());
+            try {
+                documents = parseDocuments(output);
+            }
+            catch (SAXException e) {
+                throw new IOException("Could not parse xml", e);
+            }
+        }
+
+        private static byte[] readFully(InputStream inputStream) throws IOException {
+            try (InputStream input = inputStream) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                for (;;) {
+                    int rsz = input.read(buffer, 0, buffer.length);
+
+                    if (rsz < 0) {
+                        break;
+                    }
+
+                    output.write(buffer, 0, rsz);
+                }
+                return output.toByteArray();
+            }
+        }
+
+        private static List<ReplacementList> parseDocuments(byte[] output) throws SAXException, IOException {
+            List<Integer> starts = findDocumentStarts(output);
+            if (starts.isEmpty()) {
+                return Collections.emptyList();
+            }
+
+            List<ReplacementList> documents = new ArrayList<>(starts.size());
+            for (int i = 0; i < starts.size(); i++) {
+                int start = starts.get(i);
+                int end = i + 1 < starts.size() ? starts.get(i + 1) : output.length;
+                documents.add(ReplacementsParser.parse(output, start, end, Utf8OffsetIndex.IDENTITY, null));
+            }
+            return documents;
+        }
+
+        private static List<Integer> findDocumentStarts(byte[] output) {
+            List<Integer> starts = new ArrayList<>();
+            outer:
+            for (int i = 0; i <= output.length - XML_DECLARATION.length; i++) {
+                for (int j = 0; j < XML_DECLARATION.length; j++) {
+                    if (output[i + j] != XML_DECLARATION[j]) {
+                        continue outer;
+                    }
+                }
+                starts.add(i);
+            }
+            return starts;
+        }
+    }
+}
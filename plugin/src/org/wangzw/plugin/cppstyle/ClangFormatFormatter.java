@@ -5,9 +5,9 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.Map;
 
 import org.eclipse.core.filesystem.URIUtil;
@@ -21,8 +21,6 @@ import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IRegion;
 import org.eclipse.jface.text.Region;
-import org.eclipse.text.edits.DeleteEdit;
-import org.eclipse.text.edits.InsertEdit;
 import org.eclipse.text.edits.MalformedTreeException;
 import org.eclipse.text.edits.MultiTextEdit;
 import org.eclipse.text.edits.TextEdit;
@@ -39,9 +37,7 @@ import org.eclipse.ui.PlatformUI;
 import org.eclipse.ui.console.MessageConsoleStream;
 import org.eclipse.ui.editors.text.ILocationProvider;
 import org.eclipse.ui.texteditor.ITextEditor;
-import org.wangzw.plugin.cppstyle.diff_match_patch.Diff;
-import org.wangzw.plugin.cppstyle.ui.CppStyleConstants;
-import org.wangzw.plugin.cppstyle.ui.CppStyleMessageConsole;
+import org.wangzw.plugin.cppstyle.replacement.Utf8OffsetIndex;
 
 public class ClangFormatFormatter extends CodeFormatter {
     private MessageConsoleStream err = null;
@@ -50,8 +46,6 @@ public class ClangFormatFormatter extends CodeFormatter {
 
     public ClangFormatFormatter() {
         super();
-        CppStyleMessageConsole console = CppStyle.buildConsole();
-        err = console.getErrorStream();
     }
 
     public void formatAndApply(ITextEditor editor) {
@@ -72,7 +66,7 @@ public class ClangFormatFormatter extends CodeFormatter {
         manager.beginCompoundChange();
 
         try {
-            res.apply(doc);
+            DocumentEditApplier.apply(doc, res);
         }
         catch (MalformedTreeException e) {
             CppStyle.log("Failed to apply change", e);
@@ -90,11 +84,11 @@ public class ClangFormatFormatter extends CodeFormatter {
             return null;
         }
 
-        String confPath = getClangFormatConfigureFile(path);
+        String confPath = FilePathUtil.findClangFormatConfigureFile(path);
         if (confPath == null) {
-            err.println("Cannot find .clang-format or _clang-format configuration file under any level "
+            getErrorStream().println("Cannot find .clang-format or _clang-format configuration file under any level "
                     + "parent directories of path (" + path + ").");
-            err.println("Not applying any formatting.");
+            getErrorStream().println("Not applying any formatting.");
             return null;
         }
 
@@ -110,13 +104,17 @@ public class ClangFormatFormatter extends CodeFormatter {
         sb.append(stdArg + " " + fallbackArg + " ");
 
         if (region != null) {
-            commands.add("-offset=" + region.getOffset());
-            commands.add("-length=" + region.getLength());
+            // clang-format expects UTF-8 byte offsets
+            int end = region.getOffset() + region.getLength();
+            int offset = Utf8OffsetIndex.utf8Length(source, 0, region.getOffset());
+            int length = Utf8OffsetIndex.utf8Length(source, region.getOffset(), end);
+            commands.add("-offset=" + offset);
+            commands.add("-length=" + length);
 
             sb.append("-offset=");
-            sb.append(region.getOffset());
+            sb.append(offset);
             sb.append(" -length=");
-            sb.append(region.getLength());
+            sb.append(length);
             sb.append(' ');
         }
 
@@ -131,13 +129,13 @@ public class ClangFormatFormatter extends CodeFormatter {
     protected TextEdit handleProcess(String source, ProcessBuilder builder) {
         try {
             Process process = builder.start();
-            OutputStreamWriter output = new OutputStreamWriter(process.getOutputStream());
+            OutputStreamWriter output = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
 
             output.write(source);
             output.flush();
             output.close();
 
-            InputStreamReader reader = new InputStreamReader(process.getInputStream());
+            InputStreamReader reader = new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8);
             InputStreamReader error = new InputStreamReader(process.getErrorStream());
 
             final char[] buffer = new char[1024];
@@ -166,46 +164,23 @@ public class ClangFormatFormatter extends CodeFormatter {
 
             int code = process.waitFor();
             if (code != 0) {
-                err.println("clang-format return error (" + code + ").");
-                err.println(errout.toString());
+                getErrorStream().println("clang-format return error (" + code + ").");
+                getErrorStream().println(errout.toString());
                 return null;
             }
 
             if (errout.length() > 0) {
-                err.println(errout.toString());
+                getErrorStream().println(errout.toString());
                 return null;
             }
 
             String newSource = stdout.toString();
             if (0 == source.compareTo(newSource)) {
-                err.println("0 == source.compareTo(newSource)");
+                getErrorStream().println("0 == source.compareTo(newSource)");
                 return null;
             }
 
-            MultiTextEdit edit = new MultiTextEdit();
-            diff_match_patch diff = new diff_match_patch();
-
-            LinkedList<Diff> diffs = diff.diff_main(source, newSource);
-            diff.diff_cleanupEfficiency(diffs);
-
-            int offset = 0;
-            for (Diff d : diffs) {
-                switch (d.operation) {
-                case INSERT:
-                    InsertEdit e = new InsertEdit(offset, d.text);
-                    edit.addChild(e);
-                    break;
-                case DELETE:
-                    DeleteEdit e1 = new DeleteEdit(offset, d.text.length());
-                    offset += d.text.length();
-                    edit.addChild(e1);
-                    break;
-                case EQUAL:
-                    offset += d.text.length();
-                    break;
-                }
-            }
-            return edit;
+            return WhitespaceAwareDiff.diff(source, newSource);
         }
         catch (IOException e) {
             CppStyle.log("Failed to format code", e);
@@ -217,52 +192,36 @@ public class ClangFormatFormatter extends CodeFormatter {
         return null;
     }
 
-    private String getClangFormatConfigureFile(String path) {
-        File file = new File(path);
-
-        while (file != null) {
-            File dir = file.getParentFile();
-            if (dir != null) {
-                File conf = new File(dir, ".clang-format");
-                if (conf.exists()) {
-                    return conf.getAbsolutePath();
-                }
-
-                conf = new File(dir, "_clang-format");
-                if (conf.exists()) {
-                    return conf.getAbsolutePath();
-                }
-            }
-
-            file = dir;
-        }
-
-        return null;
-    }
-
     public boolean checkClangFormat(String clangformat) {
         if (clangformat == null) {
-            err.println("clang-format is not specified.");
+            getErrorStream().println("clang-format is not specified.");
             return false;
         }
 
         File file = new File(clangformat);
 
         if (!file.exists()) {
-            err.println("clang-format (" + clangformat + ") does not exist.");
+            getErrorStream().println("clang-format (" + clangformat + ") does not exist.");
             return false;
         }
 
         if (!file.canExecute()) {
-            err.println("clang-format (" + clangformat + ") is not executable.");
+            getErrorStream().println("clang-format (" + clangformat + ") is not executable.");
             return false;
         }
 
         return true;
     }
 
+    private MessageConsoleStream getErrorStream() {
+        if (err == null) {
+            err = CppStyle.buildConsole().getErrorStream();
+        }
+        return err;
+    }
+
     public static String getClangFormatPath() {
-        return CppStyle.getDefault().getPreferenceStore().getString(CppStyleConstants.CLANG_FORMAT_PATH);
+        return ClangToolchainRegistry.getDefault().get().getClangFormatPath();
     }
 
     @Override
@@ -313,7 +272,7 @@ public class ClangFormatFormatter extends CodeFormatter {
         // }
 
         // added
-        err.println("Not yet implemented: getSourceFilePath from CompilationUnit");
+        getErrorStream().println("Not yet implemented: getSourceFilePath from CompilationUnit");
         ICompilationUnit tu = null;
         if (tu != null) {
             return tu.getResource().getRawLocation().toOSString();
@@ -358,7 +317,7 @@ public class ClangFormatFormatter extends CodeFormatter {
     @Override
     public TextEdit format(int kind, String source, IRegion[] regions, int indentationLevel, String lineSeparator) {
         String message = "not yet implementeed: format with Regions[]";
-        err.println(message);
+        getErrorStream().println(message);
         throw new RuntimeException(message);
     }
 }
@@ -0,0 +1,114 @@
+package org.wangzw.plugin.cppstyle;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+/**
+ * A .clang-format or _clang-format file as clang-format would use it with
+ * -style=file, together with the style it inherits from a parent directory.
+ * <p>
+ * The fingerprint is a SHA-256 digest over the content of the file and the
+ * fingerprint of the inherited style, so it changes whenever any file of the
+ * chain changes. Predefined styles named by BasedOnStyle are part of the
+ * clang-format binary and not followed.
+ */
+public final class ClangFormatStyle {
+
+    // "BasedOnStyle: InheritParentConfig" or "InheritParentConfig: true"
+    private static final Pattern INHERIT_PARENT_CONFIG = Pattern.compile(
+            "^\\s*(BasedOnStyle\\s*:\\s*['\"]?InheritParentConfig|InheritParentConfig\\s*:\\s*true)",
+            Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final String path;
+
+    private final ClangFormatStyle parent;
+
+    private final String fingerprint;
+
+    private ClangFormatStyle(String path, ClangFormatStyle parent, String fingerprint) {
+        this.path = path;
+        this.parent = parent;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * @return the absolute path of the style file.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the style this one inherits, or null if it does not inherit.
+     */
+    public ClangFormatStyle getParent() {
+        return parent;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public String toString() {
+        return path + '@' + fingerprint;
+    }
+
+    /**
+     * @return whether the file inherits the style of its parent directories.
+     */
+    static boolean inheritsParentConfig(byte[] content) {
+        return INHERIT_PARENT_CONFIG.matcher(new String(content, StandardCharsets.UTF_8)).find();
+    }
+
+    static byte[] read(File file) {
+        try {
+            return Files.readAllBytes(file.toPath());
+        }
+        catch (IOException e) {
+            // clang-format will report it, this only has to differ from any content
+            return (file.getAbsolutePath() + ':' + file.lastModified()).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @param content
+     *            the content of the file as returned by {@link #read(File)}.
+     * @param parent
+     *            the inherited style, or null.
+     */
+    static ClangFormatStyle of(File file, byte[] content, ClangFormatStyle parent) {
+        MessageDigest messageDigest = newDigest();
+        messageDigest.update(content);
+        if (parent != null) {
+            messageDigest.update(parent.getFingerprint().getBytes(StandardCharsets.US_ASCII));
+        }
+        return new ClangFormatStyle(file.getAbsolutePath(), parent, toHex(messageDigest.digest()));
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // every Java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package org.wangzw.plugin.cppstyle;
+
+import static org.wangzw.plugin.cppstyle.replacement.Logger.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the effective {@link ClangFormatStyle} of every directory a file
+ * was formatted in, so formatting does not look for style files in all parent
+ * directories each time, which is slow on network file systems.
+ * <p>
+ * A directory is only remembered while a {@link WatchService} watches it and
+ * all of its parents. Creating, changing or deleting a .clang-format or
+ * _clang-format file in any of them forgets all directories. If a directory
+ * cannot be watched, e.g. because the watch limit of the operating system is
+ * reached, its style is looked up every time. Beyond a maximum number of
+ * watched directories, the least recently resolved one is no longer watched
+ * and forgotten; its parents are resolved along with it, so they stay.
+ * <p>
+ * Network file systems do not report changes made by other machines, so
+ * directories on them are remembered for a few seconds only.
+ */
+public class ClangFormatStyleCache {
+
+    static final String[] STYLE_FILE_NAMES = { ".clang-format", "_clang-format" };
+
+    private static final ClangFormatStyleCache INSTANCE = new ClangFormatStyleCache();
+
+    private static final int MAX_WATCHED_DIRECTORIES = 4096;
+
+    private static final long REMOTE_TTL_MILLIS = 5000;
+
+    // the file store types of Linux, macOS and BSD whose changes may come from other machines
+    private static final Set<String> REMOTE_FILE_SYSTEMS = new HashSet<>(Arrays.asList("nfs", "nfs4", "cifs", "smb3",
+            "smbfs", "afpfs", "webdav", "davfs", "fuse.sshfs", "9p", "afs", "ncpfs"));
+
+    private static final long FOREVER = Long.MAX_VALUE;
+
+    private static final Resolution NO_STYLE = new Resolution(null, true, FOREVER);
+
+    private volatile Map<File, Resolution> styles = new ConcurrentHashMap<>();
+
+    // in access order, the parents of a directory are accessed after it
+    private final LinkedHashMap<File, WatchKey> watchedDirectories = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final int maxWatchedDirectories;
+
+    private final long remoteTtlNanos;
+
+    private WatchService watchService;
+
+    private boolean closed;
+
+    public ClangFormatStyleCache() {
+        this(MAX_WATCHED_DIRECTORIES, REMOTE_TTL_MILLIS);
+    }
+
+    /**
+     * @param remoteTtlMillis
+     *            how long the style of a directory on a network file system is
+     *            remembered.
+     */
+    public ClangFormatStyleCache(int maxWatchedDirectories, long remoteTtlMillis) {
+        this.maxWatchedDirectories = maxWatchedDirectories;
+        this.remoteTtlNanos = TimeUnit.MILLISECONDS.toNanos(remoteTtlMillis);
+    }
+
+    public static ClangFormatStyleCache getDefault() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the style clang-format would use for the file at the given path,
+     *         or null if no parent directory has a style file.
+     */
+    public ClangFormatStyle find(String path) {
+        File dir = new File(path).getParentFile();
+        return dir != null ? resolve(styles, dir).style : null;
+    }
+
+    /**
+     * Forgets the styles of all directories.
+     */
+    public void invalidate() {
+        styles = new ConcurrentHashMap<>();
+    }
+
+    public synchronized void close() {
+        closed = true;
+        invalidate();
+        watchedDirectories.clear();
+        if (watchService != null) {
+            try {
+                watchService.close();
+            }
+            catch (IOException e) {
+                logError("Could not stop watching style files", e);
+            }
+            watchService = null;
+        }
+    }
+
+    /**
+     * Resolves into the given map, so a resolution running while the styles
+     * are invalidated does not store into the new map.
+     */
+    private Resolution resolve(Map<File, Resolution> map, File dir) {
+        Resolution cached = map.get(dir);
+        if (cached != null) {
+            if (!cached.isExpired()) {
+                return cached;
+            }
+            map.remove(dir, cached);
+        }
+
+        // watch before looking, so no change goes unnoticed
+        boolean watched = watch(dir);
+        long validUntil = watched && isRemote(dir) ? System.nanoTime() + remoteTtlNanos : FOREVER;
+        Resolution resolution = null;
+        for (String name : STYLE_FILE_NAMES) {
+            File file = new File(dir, name);
+            if (file.exists()) {
+                byte[] content = ClangFormatStyle.read(file);
+                Resolution parent = NO_STYLE;
+                if (ClangFormatStyle.inheritsParentConfig(content) && dir.getParentFile() != null) {
+                    parent = resolve(map, dir.getParentFile());
+                }
+                resolution = new Resolution(ClangFormatStyle.of(file, content, parent.style), watched && parent.cached,
+                        Math.min(validUntil, parent.validUntil));
+                break;
+            }
+        }
+        if (resolution == null) {
+            Resolution parent = dir.getParentFile() != null ? resolve(map, dir.getParentFile()) : NO_STYLE;
+            resolution =
+                    new Resolution(parent.style, watched && parent.cached, Math.min(validUntil, parent.validUntil));
+        }
+
+        // watching the parents may have made room by no longer watching this directory
+        if (resolution.cached && isWatched(dir)) {
+            Resolution previous = map.putIfAbsent(dir, resolution);
+            return previous != null ? previous : resolution;
+        }
+        return resolution;
+    }
+
+    /**
+     * Also marks the watched parents as used, so they are no longer watched
+     * only after all of their watched subdirectories.
+     */
+    private synchronized boolean watch(File dir) {
+        if (closed) {
+            return false;
+        }
+        try {
+            if (watchedDirectories.get(dir) == null) {
+                if (watchService == null) {
+                    watchService = FileSystems.getDefault().newWatchService();
+                    startWatching(watchService);
+                }
+                WatchKey key = dir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                while (watchedDirectories.size() >= maxWatchedDirectories && !watchedDirectories.isEmpty()) {
+                    unwatchEldest();
+                }
+                watchedDirectories.put(dir, key);
+            }
+            for (File parent = dir.getParentFile(); parent != null; parent = parent.getParentFile()) {
+                watchedDirectories.get(parent);
+            }
+            return true;
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            // e.g. the directory does not exist
+            return false;
+        }
+    }
+
+    private synchronized boolean isWatched(File dir) {
+        return watchedDirectories.containsKey(dir);
+    }
+
+    private void unwatchEldest() {
+        Iterator<Map.Entry<File, WatchKey>> eldest = watchedDirectories.entrySet().iterator();
+        Map.Entry<File, WatchKey> entry = eldest.next();
+        eldest.remove();
+        entry.getValue().cancel();
+        // the directory has no watched subdirectories, unless they are being resolved right now
+        Path path = entry.getKey().toPath();
+        styles.keySet().removeIf(dir -> dir.toPath().startsWith(path));
+    }
+
+    /**
+     * @return whether the directory is on a network file system, whose
+     *         changes may not be reported.
+     */
+    protected boolean isRemote(File dir) {
+        try {
+            return REMOTE_FILE_SYSTEMS.contains(Files.getFileStore(dir.toPath()).type().toLowerCase(Locale.ROOT));
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void startWatching(WatchService service) {
+        Thread thread = new Thread(() -> processEvents(service), "clang-format style watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void processEvents(WatchService service) {
+        try {
+            for (;;) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || isStyleFile(event.context());
+                }
+                if (!key.reset()) {
+                    // the directory is gone, unless it was no longer watched to make room
+                    synchronized (this) {
+                        changed |= watchedDirectories.values().remove(key);
+                    }
+                }
+                if (changed) {
+                    invalidate();
+                }
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped with the plug-in
+        }
+    }
+
+    private static boolean isStyleFile(Object context) {
+        if (context instanceof Path) {
+            String name = ((Path)context).getFileName().toString();
+            for (String styleFileName : STYLE_FILE_NAMES) {
+                if (styleFileName.equals(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static class Resolution {
+        final ClangFormatStyle style;
+
+        // whether the directory and all of its parents are watched
+        final boolean cached;
+
+        // the System.nanoTime() until which the style is valid, or FOREVER
+        final long validUntil;
+
+        Resolution(ClangFormatStyle style, boolean cached, long validUntil) {
+            this.style = style;
+            this.cached = cached;
+            this.validUntil = validUntil;
+        }
+
+        boolean isExpired() {
+            return validUntil != FOREVER && System.nanoTime() - validUntil >= 0;
+        }
+    }
+}
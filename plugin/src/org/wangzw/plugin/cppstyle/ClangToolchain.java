@@ -0,0 +1,204 @@
+package org.wangzw.plugin.cppstyle;
+
+import static org.wangzw.plugin.cppstyle.replacement.Logger.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The clang-format executable and default style file resolved from the
+ * preferences, with the version the executable reports. Instances are
+ * immutable, {@link ClangToolchainRegistry} replaces them as a whole.
+ */
+public final class ClangToolchain {
+
+    /**
+     * Features that depend on the version of clang-format.
+     */
+    public enum Capability {
+        /** Java support, since 3.6. */
+        JAVA(3, 6),
+        /** BasedOnStyle: InheritParentConfig, since 12. */
+        INHERIT_PARENT_CONFIG(12, 0),
+        /** -style=file:&lt;path&gt;, since 14. */
+        STYLE_FILE_PATH(14, 0);
+
+        private final int major;
+
+        private final int minor;
+
+        Capability(int major, int minor) {
+            this.major = major;
+            this.minor = minor;
+        }
+
+        boolean isSupportedBy(int majorVersion, int minorVersion) {
+            return majorVersion > major || (majorVersion == major && minorVersion >= minor);
+        }
+    }
+
+    private static final Pattern VERSION = Pattern.compile("version (\\d+)\\.(\\d+)");
+
+    private static final int VERSION_TIMEOUT = 5;
+
+    private final String clangFormatPath;
+
+    private final String stylePath;
+
+    private final String version;
+
+    private final int majorVersion;
+
+    private final int minorVersion;
+
+    private final Set<Capability> capabilities;
+
+    private ClangToolchain(String clangFormatPath, String stylePath, String version, int majorVersion,
+            int minorVersion) {
+        this.clangFormatPath = clangFormatPath;
+        this.stylePath = stylePath;
+        this.version = version;
+        this.majorVersion = majorVersion;
+        this.minorVersion = minorVersion;
+        EnumSet<Capability> supported = EnumSet.noneOf(Capability.class);
+        for (Capability capability : Capability.values()) {
+            if (capability.isSupportedBy(majorVersion, minorVersion)) {
+                supported.add(capability);
+            }
+        }
+        this.capabilities = Collections.unmodifiableSet(supported);
+    }
+
+    /**
+     * Takes the first runnable executable and the first existing style file of
+     * the candidates and asks the executable for its version.
+     */
+    static ClangToolchain resolve(List<String> clangFormatCandidates, List<String> styleCandidates) {
+        String clangFormatPath = findFirst(clangFormatCandidates, true);
+        String stylePath = findFirst(styleCandidates, false);
+        if (clangFormatPath == null) {
+            logError("No valid clang-format executable path found");
+            return new ClangToolchain(null, stylePath, null, -1, -1);
+        }
+        if (stylePath == null) {
+            logInfo("No valid .clang-format style path found");
+        }
+
+        String version = probeVersion(clangFormatPath);
+        int majorVersion = -1;
+        int minorVersion = -1;
+        Matcher matcher = VERSION.matcher(String.valueOf(version));
+        if (matcher.find()) {
+            majorVersion = Integer.parseInt(matcher.group(1));
+            minorVersion = Integer.parseInt(matcher.group(2));
+        }
+        logInfo("Using clang-format " + clangFormatPath + " (" + version + ") with style-file " + stylePath);
+        return new ClangToolchain(clangFormatPath, stylePath, version, majorVersion, minorVersion);
+    }
+
+    /**
+     * @return the normalized absolute path of the executable, or null if none
+     *         of the candidates is runnable.
+     */
+    public String getClangFormatPath() {
+        return clangFormatPath;
+    }
+
+    /**
+     * @return the normalized absolute path of the default style file, or null.
+     */
+    public String getStylePath() {
+        return stylePath;
+    }
+
+    /**
+     * @return the first line clang-format --version printed, or null if it
+     *         could not be run.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the major version, or -1 if unknown.
+     */
+    public int getMajorVersion() {
+        return majorVersion;
+    }
+
+    public int getMinorVersion() {
+        return minorVersion;
+    }
+
+    public boolean isValid() {
+        return clangFormatPath != null;
+    }
+
+    public boolean hasCapability(Capability capability) {
+        return capabilities.contains(capability);
+    }
+
+    public Set<Capability> getCapabilities() {
+        return capabilities;
+    }
+
+    @Override
+    public String toString() {
+        return "clang-format=" + clangFormatPath + ", version=" + version + ", style=" + stylePath
+                + ", capabilities=" + capabilities;
+    }
+
+    private static String findFirst(List<String> candidates, boolean runnable) {
+        ClangPathHelper helper = new ClangPathHelper();
+        Optional<String> path = runnable ? helper.getFirstValidClangFormatPath(candidates)
+                : helper.getFirstValidClangFormatStylePath(candidates);
+        return path.isPresent() ? FilePathUtil.toNormalizedAbsolutePath(path.get()) : null;
+    }
+
+    private static String probeVersion(String clangFormatPath) {
+        try {
+            Process process = new ProcessBuilder(Arrays.asList(clangFormatPath, "--version"))
+                    .redirectErrorStream(true).start();
+            process.getOutputStream().close();
+            // the output is a single short line, it cannot fill the pipe
+            if (!process.waitFor(VERSION_TIMEOUT, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                logError(clangFormatPath + " --version did not finish");
+                return null;
+            }
+            String output = readAll(process.getInputStream()).trim();
+            int lineEnd = output.indexOf('\n');
+            return lineEnd < 0 ? output : output.substring(0, lineEnd).trim();
+        }
+        catch (IOException e) {
+            logError("Could not run " + clangFormatPath + " --version", e);
+            return null;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private static String readAll(InputStream input) throws IOException {
+        try (InputStream in = input) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                output.write(buffer, 0, read);
+            }
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
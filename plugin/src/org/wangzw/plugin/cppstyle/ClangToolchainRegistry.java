@@ -0,0 +1,125 @@
+package org.wangzw.plugin.cppstyle;
+
+import static org.wangzw.plugin.cppstyle.replacement.Logger.*;
+import static org.wangzw.plugin.cppstyle.ui.CppStyleConstants.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jdt.core.formatter.CodeFormatter;
+import org.eclipse.jface.preference.IPreferenceStore;
+import org.eclipse.jface.util.IPropertyChangeListener;
+import org.eclipse.jface.util.PropertyChangeEvent;
+
+/**
+ * Holds the current {@link ClangToolchain}. It is resolved in the background
+ * when the plug-in starts and again whenever the paths in the preferences
+ * change; a format that needs it before that resolves it itself.
+ */
+public class ClangToolchainRegistry implements IPropertyChangeListener {
+
+    private static final ClangToolchainRegistry INSTANCE = new ClangToolchainRegistry();
+
+    private static final String WARM_UP_SOURCE = "class A {\n    int a;\n}\n";
+
+    private final AtomicReference<ClangToolchain> current = new AtomicReference<>();
+
+    // counts preference changes, so a resolution that read older values is not kept
+    private final AtomicLong generation = new AtomicLong();
+
+    private IPreferenceStore store;
+
+    public static ClangToolchainRegistry getDefault() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts following the preferences and resolves the toolchain in the
+     * background, followed by one format that loads clang-format and the
+     * classes of the format path before the first real format.
+     */
+    public void start(IPreferenceStore preferenceStore) {
+        synchronized (this) {
+            store = preferenceStore;
+        }
+        preferenceStore.addPropertyChangeListener(this);
+
+        Job job = new Job("Preparing clang-format") {
+            @Override
+            protected IStatus run(IProgressMonitor monitor) {
+                if (get().isValid() && !monitor.isCanceled()) {
+                    warmUp();
+                }
+                return Status.OK_STATUS;
+            }
+        };
+        job.setSystem(true);
+        job.setPriority(Job.SHORT);
+        job.schedule();
+    }
+
+    public void stop() {
+        IPreferenceStore preferenceStore;
+        synchronized (this) {
+            preferenceStore = store;
+            store = null;
+        }
+        if (preferenceStore != null) {
+            preferenceStore.removePropertyChangeListener(this);
+        }
+        current.set(null);
+    }
+
+    /**
+     * @return the current toolchain, resolving it first if the preferences
+     *         changed since.
+     */
+    public ClangToolchain get() {
+        ClangToolchain toolchain = current.get();
+        return toolchain != null ? toolchain : refresh();
+    }
+
+    /**
+     * Resolves the toolchain from the preferences, unless a concurrent call
+     * already did.
+     */
+    private synchronized ClangToolchain refresh() {
+        ClangToolchain toolchain = current.get();
+        if (toolchain != null) {
+            return toolchain;
+        }
+        long resolvedGeneration = generation.get();
+        IPreferenceStore preferenceStore = store != null ? store : CppStyle.getDefault().getPreferenceStore();
+        toolchain = ClangToolchain.resolve(
+                FilePathUtil.resolvePaths(preferenceStore.getString(CLANG_FORMAT_PATH)),
+                FilePathUtil.resolvePaths(preferenceStore.getString(CLANG_FORMAT_STYLE_PATH)));
+        current.set(toolchain);
+        if (generation.get() != resolvedGeneration) {
+            current.compareAndSet(toolchain, null);
+        }
+        return toolchain;
+    }
+
+    @Override
+    public void propertyChange(PropertyChangeEvent event) {
+        if (CLANG_FORMAT_PATH.equals(event.getProperty()) || CLANG_FORMAT_STYLE_PATH.equals(event.getProperty())) {
+            // the next format resolves it again
+            generation.incrementAndGet();
+            current.set(null);
+        }
+    }
+
+    private static void warmUp() {
+        try {
+            new ReplacementFormatter().format(
+                    CodeFormatter.K_COMPILATION_UNIT, WARM_UP_SOURCE, 0, WARM_UP_SOURCE.length(), 0, "\n");
+        }
+        catch (RuntimeException e) {
+            logError("clang-format warm-up failed", e);
+        }
+    }
+}
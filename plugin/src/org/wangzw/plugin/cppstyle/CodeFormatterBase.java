@@ -1,11 +1,11 @@
 package org.wangzw.plugin.cppstyle;
 
 import static org.wangzw.plugin.cppstyle.replacement.Logger.*;
-import static org.wangzw.plugin.cppstyle.ui.CppStyleConstants.*;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -17,15 +17,12 @@ import org.eclipse.jdt.core.JavaCore;
 import org.eclipse.jdt.core.formatter.CodeFormatter;
 import org.eclipse.jdt.internal.formatter.DefaultCodeFormatterOptions;
 import org.eclipse.jdt.internal.formatter.TextEditsBuilder;
-import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IRegion;
 import org.eclipse.jface.text.Region;
-import org.eclipse.text.edits.MalformedTreeException;
+import org.eclipse.swt.widgets.Display;
 import org.eclipse.text.edits.MultiTextEdit;
 import org.eclipse.text.edits.TextEdit;
-import org.eclipse.text.undo.DocumentUndoManagerRegistry;
-import org.eclipse.text.undo.IDocumentUndoManager;
 import org.eclipse.ui.IEditorInput;
 import org.eclipse.ui.IEditorPart;
 import org.eclipse.ui.IFileEditorInput;
@@ -36,20 +33,26 @@ import org.eclipse.ui.IWorkbenchWindow;
 import org.eclipse.ui.PlatformUI;
 import org.eclipse.ui.console.MessageConsoleStream;
 import org.eclipse.ui.editors.text.ILocationProvider;
-import org.wangzw.plugin.cppstyle.ui.CppStyleMessageConsole;
+import org.wangzw.plugin.cppstyle.replacement.Utf8OffsetIndex;
 
 @SuppressWarnings("restriction")
 public abstract class CodeFormatterBase extends CodeFormatter {
 
-    private static final String ASSUME_FILENAME = "-assume-filename=";
+    static final String ASSUME_FILENAME = "-assume-filename=";
 
     private static final String ASSUME_FILENAME_JAVA = "A.java";
 
-    private static final String STYLE_VIA_FILE = "-style=file";
+    static final String STYLE_VIA_FILE = "-style=file";
 
-    private static final String FALLBACK_STYLE_CHROMIUM = "-fallback-style=Chromium";
+    static final String FALLBACK_STYLE_CHROMIUM = "-fallback-style=Chromium";
 
-    private static final String OUTPUT_REPLACEMENTS_XML = "-output-replacements-xml";
+    static final String OUTPUT_REPLACEMENTS_XML = "-output-replacements-xml";
+
+    /**
+     * Lets {@link #formatAndApply(IDocument, String, long)} wait for the edits
+     * as long as formatting takes.
+     */
+    public static final long NO_BUDGET = -1;
 
     private static final int INDENTATION_WIDTH = 4;
 
@@ -57,59 +60,29 @@ public abstract class CodeFormatterBase extends CodeFormatter {
 
     Map<String, String> options;
 
-    protected MessageConsoleStream err = null;
-
-    private String clangFormatPath;
-
-    private String clangFormatStylePath;
-
-    private String assumeFilenamePath;
-
-    private boolean isClangFormatStylePathValid;
-
-    private boolean isAssumeFilenamePathValid;
+    private MessageConsoleStream err = null;
 
-    private ClangPathHelper clangPathHelper;
+    private final SpawnFormatterBackend spawnBackend;
 
+    /**
+     * Cheap, as JDT creates formatters often: the configuration is shared, see
+     * {@link FormatterEngine}, and the console is only opened to report an
+     * error.
+     */
     public CodeFormatterBase() {
         super();
-        CppStyleMessageConsole console = CppStyle.buildConsole();
-        err = console.getErrorStream();
-
-        clangPathHelper = new ClangPathHelper();
-        initClangFormatPath();
-        initClangFormatStylePath();
-        initAssumeFilenamePath();
-    }
-
-    private void initClangFormatPath() {
-        if (clangPathHelper.getCachedClangFormatPath() == null) {
-            List<String> candidates = getClangFormatPathsFromPreferences();
-            boolean validPathPresent = clangPathHelper.getFirstValidClangFormatPath(candidates).isPresent();
-            if (!validPathPresent) {
-                logError("No valid clang-format executable path found");
-            }
-        }
-        clangFormatPath = clangPathHelper.getCachedClangFormatPath();
+        spawnBackend = new SpawnFormatterBackend(this::createProcessHandler);
     }
 
-    private void initClangFormatStylePath() {
-        if (clangPathHelper.getCachedClangFormatStylePath() == null) {
-            List<String> candidates = getClangFormatStylePathsFromPreferences();
-            boolean validPathPresent = clangPathHelper.getFirstValidClangFormatStylePath(candidates).isPresent();
-            if (!validPathPresent) {
-                logInfo("No valid .clang-format style path found");
-            }
-        }
-        clangFormatStylePath = clangPathHelper.getCachedClangFormatStylePath();
-        isClangFormatStylePathValid = clangFormatStylePath != null;
-    }
-
-    private void initAssumeFilenamePath() {
-        if (isClangFormatStylePathValid) {
-            assumeFilenamePath = stylePathToAssumeFilenamePath(clangFormatStylePath);
-            isAssumeFilenamePathValid = true;
-        }
+    /**
+     * Lets all formatters format through the given backend, e.g. a
+     * {@link ServerFormatterBackend} for a formatting server the caller runs.
+     *
+     * @param backend
+     *            the backend, or null to spawn clang-format again.
+     */
+    public static void setBackend(FormatterBackend backend) {
+        FormatterEngine.getDefault().setBackend(backend);
     }
 
     @Override
@@ -122,31 +95,42 @@ public abstract class CodeFormatterBase extends CodeFormatter {
 
     @Override
     public TextEdit format(int kind, String source, IRegion[] regions, int indentationLevel, String lineSeparator) {
-        TextEdit retval = format(source, getAssumeFilenamePath(), regions);
+        String path = getAssumeFilenamePath();
+        TextEdit retval;
+        if (SnippetFormatCoalescer.isCoalescable(kind, source, regions)) {
+            retval = SnippetFormatCoalescer.getDefault().format(path, source, regions,
+                    (snippets, snippetRegions) -> format(snippets, path, snippetRegions));
+        }
+        else {
+            retval = format(source, path, regions);
+        }
         return retval != null ? retval : new MultiTextEdit();
     }
 
     protected TextEdit format(String source, String path, IRegion[] regions) {
-        logInfo(String.format("Using clang-format: %s with style-file: %s", clangFormatPath, clangFormatStylePath));
-        return handleProcess(source, clangFormatPath, assumeFilenamePath, regions);
+        FormatterEngine.Settings settings = FormatterEngine.getDefault().getSettings();
+        String assumeFilenamePath =
+                settings.getAssumeFilenamePath() != null ? settings.getAssumeFilenamePath() : path;
+        logInfo("Using clang-format: %s with style-file: %s", settings.getClangFormatPath(),
+                settings.getClangFormatStylePath());
+        return handleProcess(source, settings.getClangFormatPath(), assumeFilenamePath, regions);
     }
 
     protected TextEdit handleProcess(
             String source, String clangFormatPath, String assumeFilenamePath, IRegion[] regions) {
         MultiTextEdit edit = null;
         try {
-            ProcessHandler processHandler = createProcessHandler(source);
-            addpParameters(processHandler, clangFormatPath, assumeFilenamePath, regions);
-            processHandler.start();
-            processHandler.handleInputStream();
-            processHandler.handleErrorStream();
-
-            if (!processHandler.success() || processHandler.hasErrors()) {
-                err.println("clang-format return error (" + processHandler.getCode() + ").");
-                err.println(processHandler.getError());
+            boolean perCallFlags = requiresRegionParameters(source, regions);
+            List<String> commands =
+                    createCommands(source, clangFormatPath, assumeFilenamePath, perCallFlags ? regions : null);
+            FormatResult result = formatCached(commands, source, !perCallFlags, assumeFilenamePath);
+
+            if (!result.isSuccess()) {
+                getErrorStream().println("clang-format return error (" + result.getCode() + ").");
+                getErrorStream().println(result.getError());
             }
             else {
-                edit = processHandler.getTextEdit();
+                edit = result.getEdit();
             }
         }
         catch (IOException e) {
@@ -159,57 +143,107 @@ public abstract class CodeFormatterBase extends CodeFormatter {
         return edit;
     }
 
-    public void formatAndApply(IDocument doc, String path) {
-        TextEdit res = format(doc.get(), path, new IRegion[0]);
+    private FormatResult formatCached(List<String> commands, String source, boolean standardParameters,
+            String assumeFilenamePath) throws IOException, InterruptedException {
+        FormatResultCache cache = FormatResultCache.getDefault();
+        if (!cache.isEnabled() && !DiskFormatCache.getDefault().isEnabled()) {
+            return runBackend(commands, source, standardParameters);
+        }
+        ClangFormatStyle style =
+                assumeFilenamePath != null ? FilePathUtil.findClangFormatStyle(assumeFilenamePath) : null;
+        FormatCacheKey key = FormatCacheKey.of(commands, style, source);
+        return cache.format(key, () -> runBackend(commands, source, standardParameters));
+    }
 
-        if (res == null) {
-            return;
+    /**
+     * A formatting server that cannot be reached does not stop formatting, the
+     * call falls back to spawning clang-format.
+     */
+    private FormatResult runBackend(List<String> commands, String source, boolean standardParameters)
+            throws IOException, InterruptedException {
+        FormatterBackend backend = FormatterEngine.getDefault().getBackend();
+        if (backend != null) {
+            try {
+                return backend.format(commands, source, standardParameters);
+            }
+            catch (IOException e) {
+                CppStyle.log("Formatting server failed, starting clang-format instead", e);
+            }
         }
+        return spawnBackend.format(commands, source, standardParameters);
+    }
 
-        IDocumentUndoManager manager = DocumentUndoManagerRegistry.getDocumentUndoManager(doc);
-        manager.beginCompoundChange();
+    /**
+     * Formats the lines of the document that were modified since it was last
+     * formatted this way, or the whole document the first time, see
+     * {@link DirtyRegionTracker}. Formatting runs in the background, edits that
+     * take longer than the configured latency budget are applied later, see
+     * {@link SaveFormatJob}.
+     */
+    public void formatAndApply(IDocument doc, String path) {
+        formatAndApply(doc, path, FormatterEngine.getDefault().getSettings().getSaveLatencyBudget());
+    }
 
-        try {
-            res.apply(doc);
+    /**
+     * Like {@link #formatAndApply(IDocument, String)} with the given budget.
+     *
+     * @param budgetMillis
+     *            how long to wait before the edits are left to
+     *            {@link #applyLate(Runnable)}, or {@link #NO_BUDGET} to return
+     *            only once they are applied.
+     */
+    public void formatAndApply(IDocument doc, String path, long budgetMillis) {
+        SaveFormatJob job = SaveFormatJob.start(this, doc, path);
+        if (job != null && job.await(budgetMillis)) {
+            job.apply();
         }
-        catch (MalformedTreeException e) {
-            CppStyle.log("Failed to apply change", e);
+    }
+
+    /**
+     * Runs the application of edits that missed the latency budget on the
+     * thread that modifies documents, the UI thread.
+     */
+    protected void applyLate(Runnable apply) {
+        Display.getDefault().asyncExec(apply);
+    }
+
+    /**
+     * Regions covering the whole source are equivalent to no regions at all, so
+     * only real sub-ranges need -offset/-length and bypass the process pool.
+     */
+    private boolean requiresRegionParameters(String source, IRegion[] regions) {
+        if (regions == null) {
+            return false;
         }
-        catch (BadLocationException e) {
-            CppStyle.log("Failed to apply change", e);
+        for (IRegion region : regions) {
+            int length = source.length();
+            if (region.getOffset() != 0 || length < 0 || region.getLength() < length) {
+                return true;
+            }
         }
-
-        manager.endCompoundChange();
+        return false;
     }
 
-    private void addpParameters(
-            ProcessHandler processHandler, String clangFormatPath, String assumeFilenamePath, IRegion[] regions) {
-        processHandler.addParameter(clangFormatPath);
-        processHandler.addParameter(ASSUME_FILENAME + assumeFilenamePath);
+    private List<String> createCommands(String source, String clangFormatPath, String assumeFilenamePath,
+            IRegion[] regions) {
+        List<String> commands = new ArrayList<>();
+        commands.add(clangFormatPath);
+        commands.add(ASSUME_FILENAME + assumeFilenamePath);
         // make clang-format do its own search for the configuration, but fall back to
         // Chromium.
-        processHandler.addParameter(STYLE_VIA_FILE);
-        processHandler.addParameter(FALLBACK_STYLE_CHROMIUM);
-        processHandler.addParameter(OUTPUT_REPLACEMENTS_XML);
+        commands.add(STYLE_VIA_FILE);
+        commands.add(FALLBACK_STYLE_CHROMIUM);
+        commands.add(OUTPUT_REPLACEMENTS_XML);
         if (regions != null) {
+            // clang-format expects UTF-8 byte offsets
             for (IRegion region : regions) {
-                processHandler.addParameter("-offset=" + region.getOffset());
-                processHandler.addParameter("-length=" + region.getLength());
+                int offset = region.getOffset();
+                int end = offset + region.getLength();
+                commands.add("-offset=" + Utf8OffsetIndex.utf8Length(source, 0, offset));
+                commands.add("-length=" + Utf8OffsetIndex.utf8Length(source, offset, end));
             }
         }
-    }
-
-    protected List<String> getClangFormatPathsFromPreferences() {
-        return getResolvedPreferenceValues(CLANG_FORMAT_PATH);
-    }
-
-    protected List<String> getClangFormatStylePathsFromPreferences() {
-        return getResolvedPreferenceValues(CLANG_FORMAT_STYLE_PATH);
-    }
-
-    private List<String> getResolvedPreferenceValues(String preferenceName) {
-        String semicolonSeperatedPaths = CppStyle.getDefault().getPreferenceStore().getString(preferenceName);
-        return FilePathUtil.resolvePaths(semicolonSeperatedPaths);
+        return commands;
     }
 
     private static IPath getSourceFilePathFromEditorInput(IEditorInput editorInput) {
@@ -264,7 +298,8 @@ public abstract class CodeFormatterBase extends CodeFormatter {
     }
 
     protected String getAssumeFilenamePath() {
-        if (isAssumeFilenamePathValid) {
+        String assumeFilenamePath = FormatterEngine.getDefault().getSettings().getAssumeFilenamePath();
+        if (assumeFilenamePath != null) {
             return assumeFilenamePath;
         }
         logInfo("Trying to find .clang-format style");
@@ -274,13 +309,14 @@ public abstract class CodeFormatterBase extends CodeFormatter {
             return assumeFilenamePath;
         }
 
-        assumeFilenamePath = useWorkspaceFallback();
-        return assumeFilenamePath;
+        return useWorkspaceFallback();
     }
 
-    private String stylePathToAssumeFilenamePath(String clangFormatStylePath) {
-        File assumeFile = new File(new File(clangFormatStylePath).getParentFile(), ASSUME_FILENAME_JAVA);
-        return assumeFile.getAbsolutePath();
+    protected MessageConsoleStream getErrorStream() {
+        if (err == null) {
+            err = CppStyle.buildConsole().getErrorStream();
+        }
+        return err;
     }
 
     private String getJavaFilePathFromActiveEditor() {
@@ -8,6 +8,8 @@ import org.eclipse.ui.console.IConsole;
 import org.eclipse.ui.console.IConsoleManager;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
+import org.wangzw.plugin.cppstyle.replacement.LogLevel;
+import org.wangzw.plugin.cppstyle.replacement.Logger;
 import org.wangzw.plugin.cppstyle.ui.CppStyleConsolePatternMatchListener;
 import org.wangzw.plugin.cppstyle.ui.CppStyleConstants;
 import org.wangzw.plugin.cppstyle.ui.CppStyleMessageConsole;
@@ -32,10 +34,22 @@ public class CppStyle extends AbstractUIPlugin {
     public void start(BundleContext context) throws Exception {
         super.start(context);
         plugin = this;
+        String logLevel = getPreferenceStore().getString(CppStyleConstants.CLANG_FORMAT_LOG_LEVEL);
+        Logger.setLevel(LogLevel.fromPreference(logLevel));
+        ClangToolchainRegistry.getDefault().start(getPreferenceStore());
+        FormatterEngine.getDefault().start(getPreferenceStore());
     }
 
     @Override
     public void stop(BundleContext context) throws Exception {
+        ProcessPool.getDefault().shutdown();
+        ProcessIoExecutor.shutdown();
+        ServerFormatterBackend.closeAll();
+        DiskFormatCache.getDefault().close();
+        ClangFormatStyleCache.getDefault().close();
+        FormatterEngine.getDefault().stop();
+        ClangToolchainRegistry.getDefault().stop();
+        Logger.flush();
         plugin = null;
         super.stop(context);
     }
@@ -66,7 +80,7 @@ public class CppStyle extends AbstractUIPlugin {
      * @param status status to log
      */
     public static void log(IStatus status) {
-        getDefault().getLog().log(status);
+        Logger.log(status);
     }
 
     /**
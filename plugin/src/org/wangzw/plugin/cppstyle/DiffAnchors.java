@@ -0,0 +1,178 @@
+package org.wangzw.plugin.cppstyle;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds the points at which a source and its formatted version can be diffed
+ * separately.
+ * <p>
+ * An anchor is a line that occurs exactly once in each text, ignoring
+ * whitespace. The anchors that keep their order in both texts are found like
+ * in patience diff, and the texts are split at the first non-whitespace
+ * character of some of them.
+ */
+final class DiffAnchors {
+
+    // shorter lines such as braces are too common to be good anchors
+    private static final int MIN_ANCHOR_LENGTH = 8;
+
+    private static final int DUPLICATE = -1;
+
+    private DiffAnchors() {
+    }
+
+    static int countLines(String text) {
+        int lines = 1;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @return the split offsets, source and target offset one after the
+     *         other, starting with 0 and 0 and ending with the text lengths.
+     *         Neighboring splits are at least the given number of source lines
+     *         apart.
+     */
+    static int[] find(String source, String target, int segmentLines) {
+        Lines sourceLines = new Lines(source);
+        Lines targetLines = new Lines(target);
+
+        Map<String, Integer> sourceIndex = sourceLines.uniqueKeys();
+        Map<String, Integer> targetIndex = targetLines.uniqueKeys();
+
+        // the source line of every anchor, in target order
+        int[] sourceLineOf = new int[targetLines.size];
+        int[] targetLineOf = new int[targetLines.size];
+        int count = 0;
+        for (int line = 0; line < targetLines.size; line++) {
+            String key = targetLines.keys[line];
+            if (key == null || targetIndex.get(key) != line) {
+                continue;
+            }
+            Integer sourceLine = sourceIndex.get(key);
+            if (sourceLine != null && sourceLine != DUPLICATE) {
+                sourceLineOf[count] = sourceLine;
+                targetLineOf[count] = line;
+                count++;
+            }
+        }
+
+        int[] anchors = longestIncreasing(sourceLineOf, count);
+
+        int[] splits = new int[2 * (anchors.length + 2)];
+        int size = 2;
+        int lastLine = 0;
+        for (int anchor : anchors) {
+            int sourceLine = sourceLineOf[anchor];
+            if (sourceLine - lastLine >= segmentLines && sourceLines.size - sourceLine >= segmentLines) {
+                splits[size++] = sourceLines.starts[sourceLine];
+                splits[size++] = targetLines.starts[targetLineOf[anchor]];
+                lastLine = sourceLine;
+            }
+        }
+        splits[size++] = source.length();
+        splits[size++] = target.length();
+        return Arrays.copyOf(splits, size);
+    }
+
+    /**
+     * @return the indexes of a longest strictly increasing subsequence of the
+     *         values.
+     */
+    private static int[] longestIncreasing(int[] values, int count) {
+        // tails[k] is the index of the smallest value ending an increasing run of length k + 1
+        int[] tails = new int[count];
+        int[] previous = new int[count];
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (values[tails[middle]] < values[i]) {
+                    low = middle + 1;
+                }
+                else {
+                    high = middle;
+                }
+            }
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length) {
+                length++;
+            }
+        }
+
+        int[] indexes = new int[length];
+        for (int i = length - 1, index = length > 0 ? tails[length - 1] : -1; i >= 0; i--) {
+            indexes[i] = index;
+            index = previous[index];
+        }
+        return indexes;
+    }
+
+    /**
+     * The lines of a text with their content without whitespace and the
+     * offset of their first non-whitespace character.
+     */
+    private static final class Lines {
+
+        private final String[] keys;
+
+        private final int[] starts;
+
+        private final int size;
+
+        Lines(String text) {
+            int lines = countLines(text);
+            keys = new String[lines];
+            starts = new int[lines];
+
+            StringBuilder key = new StringBuilder();
+            int line = 0;
+            int start = -1;
+            for (int i = 0; i <= text.length(); i++) {
+                char c = i < text.length() ? text.charAt(i) : '\n';
+                if (c == '\n') {
+                    if (key.length() >= MIN_ANCHOR_LENGTH) {
+                        keys[line] = key.toString();
+                        starts[line] = start;
+                    }
+                    key.setLength(0);
+                    start = -1;
+                    line++;
+                }
+                else if (!WhitespaceAwareDiff.isWhitespace(c)) {
+                    if (start < 0) {
+                        start = i;
+                    }
+                    key.append(c);
+                }
+            }
+            size = line;
+        }
+
+        /**
+         * @return the line of every key, or {@link #DUPLICATE} if it occurs
+         *         more than once.
+         */
+        Map<String, Integer> uniqueKeys() {
+            Map<String, Integer> index = new HashMap<>(2 * size);
+            for (int line = 0; line < size; line++) {
+                if (keys[line] != null) {
+                    Integer previous = index.put(keys[line], line);
+                    if (previous != null) {
+                        index.put(keys[line], DUPLICATE);
+                    }
+                }
+            }
+            return index;
+        }
+    }
+}
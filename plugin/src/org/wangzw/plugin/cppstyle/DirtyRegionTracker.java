@@ -0,0 +1,200 @@
+package org.wangzw.plugin.cppstyle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentListener;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.Region;
+
+/**
+ * Records the regions of a document that were modified since it was last
+ * formatted, so a format on save only sends those to clang-format instead of
+ * the whole document.
+ * <p>
+ * The regions are kept sorted and disjoint and are moved along with later
+ * changes. A tracker only knows the changes since it was connected, so until
+ * the first format it reports the whole document as dirty, and so it does once
+ * too many regions were modified.
+ */
+public final class DirtyRegionTracker implements IDocumentListener {
+
+    // documents are keyed weakly, the listener of a tracker keeps it alive as long as its document
+    private static final Map<IDocument, DirtyRegionTracker> TRACKERS = new WeakHashMap<>();
+
+    // beyond this many regions, formatting the whole document is cheaper
+    private static final int MAX_REGIONS = 64;
+
+    private static final IRegion[] NO_REGIONS = new IRegion[0];
+
+    private int[] starts = new int[8];
+
+    private int[] ends = new int[8];
+
+    private int count;
+
+    private boolean wholeDocument = true;
+
+    private boolean tracking = true;
+
+    private DirtyRegionTracker() {
+    }
+
+    /**
+     * @return the tracker of the document, listening to it from now on.
+     */
+    public static DirtyRegionTracker connect(IDocument document) {
+        synchronized (TRACKERS) {
+            DirtyRegionTracker tracker = TRACKERS.get(document);
+            if (tracker == null) {
+                tracker = new DirtyRegionTracker();
+                document.addDocumentListener(tracker);
+                TRACKERS.put(document, tracker);
+            }
+            return tracker;
+        }
+    }
+
+    /**
+     * Stops tracking the document.
+     */
+    public static void disconnect(IDocument document) {
+        synchronized (TRACKERS) {
+            DirtyRegionTracker tracker = TRACKERS.remove(document);
+            if (tracker != null) {
+                document.removeDocumentListener(tracker);
+            }
+        }
+    }
+
+    /**
+     * @return the modified regions, expanded to whole lines and merged, an
+     *         empty array if nothing was modified, or null if the whole
+     *         document has to be formatted.
+     */
+    public synchronized IRegion[] getDirtyRegions(IDocument document) {
+        if (wholeDocument) {
+            return null;
+        }
+        if (count == 0) {
+            return NO_REGIONS;
+        }
+
+        try {
+            List<IRegion> regions = new ArrayList<>(count);
+            int firstLine = document.getLineOfOffset(starts[0]);
+            int lastLine = document.getLineOfOffset(ends[0]);
+            for (int i = 1; i < count; i++) {
+                int nextFirstLine = document.getLineOfOffset(starts[i]);
+                if (nextFirstLine > lastLine + 1) {
+                    regions.add(getLinesRegion(document, firstLine, lastLine));
+                    firstLine = nextFirstLine;
+                }
+                lastLine = Math.max(lastLine, document.getLineOfOffset(ends[i]));
+            }
+            regions.add(getLinesRegion(document, firstLine, lastLine));
+            return regions.toArray(new IRegion[regions.size()]);
+        }
+        catch (BadLocationException e) {
+            // the regions do not fit the document, which is only the case if an event was missed
+            return null;
+        }
+    }
+
+    /**
+     * Forgets the modified regions, called once they are being formatted.
+     */
+    public synchronized void clear() {
+        count = 0;
+        wholeDocument = false;
+    }
+
+    /**
+     * Reports the whole document as dirty, called if a format failed after
+     * {@link #clear()}.
+     */
+    public synchronized void invalidate() {
+        count = 0;
+        wholeDocument = true;
+    }
+
+    /**
+     * Ignores the changes made while tracking is off, e.g. by formatting,
+     * unless they touch a modified region.
+     */
+    public synchronized void setTracking(boolean tracking) {
+        this.tracking = tracking;
+    }
+
+    @Override
+    public void documentAboutToBeChanged(DocumentEvent event) {
+    }
+
+    @Override
+    public synchronized void documentChanged(DocumentEvent event) {
+        if (wholeDocument) {
+            return;
+        }
+
+        int offset = event.getOffset();
+        int end = offset + event.getLength();
+        int delta = (event.getText() != null ? event.getText().length() : 0) - event.getLength();
+
+        // regions ending before the change stay, those touching it are merged into it and the rest is moved
+        int first = 0;
+        while (first < count && ends[first] < offset) {
+            first++;
+        }
+        int last = first;
+        int dirtyStart = offset;
+        int dirtyEnd = end;
+        while (last < count && starts[last] <= end) {
+            dirtyStart = Math.min(dirtyStart, starts[last]);
+            dirtyEnd = Math.max(dirtyEnd, ends[last]);
+            last++;
+        }
+
+        if (!tracking && first == last) {
+            // an ignored change only moves the regions after it
+            for (int i = first; i < count; i++) {
+                starts[i] += delta;
+                ends[i] += delta;
+            }
+            return;
+        }
+
+        int newCount = count - (last - first) + 1;
+        if (newCount > MAX_REGIONS) {
+            wholeDocument = true;
+            count = 0;
+            return;
+        }
+        if (newCount > starts.length) {
+            starts = Arrays.copyOf(starts, 2 * starts.length);
+            ends = Arrays.copyOf(ends, 2 * ends.length);
+        }
+
+        System.arraycopy(starts, last, starts, first + 1, count - last);
+        System.arraycopy(ends, last, ends, first + 1, count - last);
+        starts[first] = dirtyStart;
+        ends[first] = dirtyEnd + delta;
+        for (int i = first + 1; i < newCount; i++) {
+            starts[i] += delta;
+            ends[i] += delta;
+        }
+        count = newCount;
+    }
+
+    private static IRegion getLinesRegion(IDocument document, int firstLine, int lastLine)
+            throws BadLocationException {
+        int offset = document.getLineOffset(firstLine);
+        IRegion last = document.getLineInformation(lastLine);
+        return new Region(offset, last.getOffset() + last.getLength() - offset);
+    }
+}
@@ -0,0 +1,635 @@
+package org.wangzw.plugin.cppstyle;
+
+import static org.wangzw.plugin.cppstyle.replacement.Logger.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+import org.wangzw.plugin.cppstyle.replacement.ReplacementList;
+
+/**
+ * Keeps the replacements of formats across restarts in an append-only file,
+ * by default in the state location of the plug-in. CI jobs can point several
+ * workspaces to one directory; appends and compaction take a file lock, and an
+ * append that finds the file replaced by another workspace opens it again.
+ * <p>
+ * The file is a header followed by records of length, payload and CRC-32 of
+ * the payload. The payload is the digest of the {@link FormatCacheKey} and the
+ * replacements, an empty list meaning "already formatted". A later record for
+ * the same digest replaces an earlier one. Lookups go through an in-memory
+ * index into the memory-mapped file.
+ * <p>
+ * Opening, appending and compacting run on a background thread, so formatting
+ * never waits for the disk: until the file is open every lookup is a miss. A
+ * record torn by a crash or a full disk is cut off with everything after it,
+ * only a file that is not a cache at all is deleted and started over. A file
+ * that cannot be written is left alone and the cache stays closed until it is
+ * configured again. Once the file
+ * outgrows its size limit, or half of it is replaced records, it is rewritten
+ * with the live records, dropping the oldest ones if it is still too large.
+ * If the file cannot be replaced, e.g. because another process maps it on
+ * Windows, compaction waits until the file has doubled.
+ */
+public class DiskFormatCache {
+
+    static final String FILE_NAME = "format-cache.bin";
+
+    private static final DiskFormatCache INSTANCE = new DiskFormatCache();
+
+    // "CFC" and the format version
+    private static final int MAGIC = 0x43464301;
+
+    private static final int HEADER_LENGTH = 4;
+
+    private static final int DIGEST_LENGTH = 32;
+
+    // length before and CRC-32 after the payload
+    private static final int RECORD_OVERHEAD = 8;
+
+    private static final int MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    private enum State {
+        CLOSED, OPENING, OPEN, FAILED
+    }
+
+    private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "clang-format disk cache");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private File directory;
+
+    private long maxBytes;
+
+    private State state = State.CLOSED;
+
+    private FileChannel channel;
+
+    // identifies the file the channel is open on, null if the platform has no file keys
+    private Object fileKey;
+
+    private MappedByteBuffer mapping;
+
+    private Map<FormatCacheKey, Long> index = new HashMap<>();
+
+    private long fileSize;
+
+    private long liveBytes;
+
+    // no compaction below this size, after one failed
+    private long compactionBackoffBytes;
+
+    // reused by read, which runs with the lock held
+    private final ReplacementList.Builder replacements = new ReplacementList.Builder();
+
+    private byte[] text = new byte[256];
+
+    public static DiskFormatCache getDefault() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the directory of the cache file and its size limit in megabytes, 0
+     * disables the cache. The file is opened on first use.
+     */
+    public synchronized void configure(File directory, int megabytes) {
+        long bytes = Math.max(0, megabytes) * BYTES_PER_MEGABYTE;
+        if (Objects.equals(this.directory, directory) && maxBytes == bytes) {
+            return;
+        }
+        closeChannel();
+        this.directory = directory;
+        this.maxBytes = bytes;
+        state = State.CLOSED;
+    }
+
+    public synchronized boolean isEnabled() {
+        return maxBytes > 0 && directory != null;
+    }
+
+    public synchronized void close() {
+        closeChannel();
+        state = State.CLOSED;
+        ioExecutor.shutdown();
+    }
+
+    /**
+     * @return the stored replacements, or null on a miss and while the file is
+     *         still being opened.
+     */
+    synchronized ReplacementList get(FormatCacheKey key) {
+        if (!isOpen()) {
+            return null;
+        }
+        Long position = index.get(key);
+        if (position == null) {
+            return null;
+        }
+        try {
+            return read(position);
+        }
+        catch (UncheckedIOException e) {
+            disable(e);
+            return null;
+        }
+        catch (RuntimeException e) {
+            discard(e);
+            return null;
+        }
+    }
+
+    /**
+     * Appends the replacements in the background.
+     */
+    void put(FormatCacheKey key, ReplacementList replacements) {
+        synchronized (this) {
+            if (!isOpen()) {
+                return;
+            }
+        }
+        byte[] record = encode(key, replacements);
+        execute(() -> append(key, record));
+    }
+
+    /**
+     * Starts opening the file on first use.
+     */
+    private boolean isOpen() {
+        if (!isEnabled()) {
+            return false;
+        }
+        if (state == State.CLOSED) {
+            state = State.OPENING;
+            File file = new File(directory, FILE_NAME);
+            execute(() -> open(file));
+        }
+        return state == State.OPEN;
+    }
+
+    private void execute(Runnable task) {
+        try {
+            ioExecutor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            // shut down with the plug-in
+        }
+    }
+
+    private void open(File file) {
+        FileChannel newChannel = null;
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            newChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            MappedByteBuffer newMapping;
+            Map<FormatCacheKey, Long> newIndex;
+            Object newFileKey;
+            // another workspace sharing the directory may be appending
+            try (FileLock lock = newChannel.lock()) {
+                if (newChannel.size() == 0) {
+                    writeHeader(newChannel);
+                }
+                newMapping = newChannel.map(MapMode.READ_ONLY, 0, newChannel.size());
+                newIndex = new HashMap<>();
+                int end = scan(newMapping, newIndex);
+                if (end < newMapping.limit()) {
+                    logError(String.format("Format cache %s has a torn record at %d, cutting it off", file, end));
+                    newChannel.truncate(end);
+                    newMapping = newChannel.map(MapMode.READ_ONLY, 0, end);
+                }
+                newFileKey = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+            }
+            synchronized (this) {
+                if (state != State.OPENING || !file.equals(new File(directory, FILE_NAME))) {
+                    // reconfigured in the meantime
+                    newChannel.close();
+                    return;
+                }
+                publish(newChannel, newFileKey, newMapping, newIndex);
+                state = State.OPEN;
+            }
+        }
+        catch (CorruptCacheException e) {
+            closeQuietly(newChannel);
+            boolean deleted = delete(file);
+            synchronized (this) {
+                if (state == State.OPENING) {
+                    state = deleted ? State.CLOSED : State.FAILED;
+                }
+            }
+            logError("Format cache " + file + " is corrupt, starting over", e);
+        }
+        catch (IOException | RuntimeException e) {
+            closeQuietly(newChannel);
+            synchronized (this) {
+                if (state == State.OPENING) {
+                    state = State.FAILED;
+                }
+            }
+            logError("Could not open format cache " + file, e);
+        }
+    }
+
+    private void append(FormatCacheKey key, byte[] record) {
+        append(key, record, true);
+    }
+
+    private void append(FormatCacheKey key, byte[] record, boolean reopen) {
+        FileChannel target;
+        Object targetKey;
+        File file;
+        synchronized (this) {
+            if (state != State.OPEN) {
+                return;
+            }
+            target = channel;
+            targetKey = fileKey;
+            file = new File(directory, FILE_NAME);
+        }
+
+        // the file lock may wait for another workspace, lookups must not
+        long position = -1;
+        try (FileLock lock = target.lock()) {
+            if (!isReplaced(file, target, targetKey)) {
+                position = target.size();
+                try {
+                    target.write(ByteBuffer.wrap(record), position);
+                }
+                catch (IOException e) {
+                    // e.g. a full disk, cut off what was written of the record
+                    target.truncate(position);
+                    throw e;
+                }
+            }
+        }
+        catch (ClosedChannelException e) {
+            // reconfigured or closed meanwhile
+            return;
+        }
+        catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                if (channel == target) {
+                    disable(e);
+                }
+            }
+            return;
+        }
+
+        if (position < 0) {
+            // another workspace compacted the file, this channel still points to the old one
+            synchronized (this) {
+                if (channel != target || !reopen) {
+                    return;
+                }
+                closeChannel();
+                state = State.OPENING;
+            }
+            open(file);
+            append(key, record, false);
+            return;
+        }
+
+        synchronized (this) {
+            if (channel != target) {
+                return;
+            }
+            Long previous = index.put(key, position);
+            if (previous != null) {
+                liveBytes -= recordLength(previous);
+            }
+            liveBytes += record.length;
+            fileSize = position + record.length;
+            if (fileSize < compactionBackoffBytes || fileSize <= maxBytes
+                    && (fileSize < MIN_COMPACTION_BYTES || fileSize - liveBytes < fileSize / 2)) {
+                return;
+            }
+        }
+        compact();
+    }
+
+    /**
+     * Runs on the background thread like all appends, so only lookups can
+     * happen meanwhile and they keep using the old mapping until the swap. The
+     * file lock is held from reading the records to replacing the file, so
+     * other workspaces neither append records that get lost nor keep appending
+     * to the replaced file.
+     */
+    private void compact() {
+        FileChannel target;
+        File file;
+        synchronized (this) {
+            if (state != State.OPEN) {
+                return;
+            }
+            target = channel;
+            file = new File(directory, FILE_NAME);
+        }
+
+        File compacted = null;
+        boolean replaced = false;
+        try (FileLock lock = target.lock()) {
+            // includes the records other workspaces appended
+            MappedByteBuffer source = target.map(MapMode.READ_ONLY, 0, target.size());
+            Map<FormatCacheKey, Long> live = new HashMap<>();
+            scan(source, live);
+            List<Long> positions = new ArrayList<>(live.values());
+            positions.sort(null);
+            long liveRecordBytes = 0;
+            for (long position : positions) {
+                liveRecordBytes += recordLength(source, position);
+            }
+            long limit = liveRecordBytes > maxBytes ? maxBytes / 2 : maxBytes;
+
+            // drop the oldest records until the rest fits
+            long keptBytes = 0;
+            int first = positions.size();
+            while (first > 0
+                    && keptBytes + recordLength(source, positions.get(first - 1)) <= limit - HEADER_LENGTH) {
+                first--;
+                keptBytes += recordLength(source, positions.get(first));
+            }
+
+            compacted = Files.createTempFile(file.getParentFile().toPath(), FILE_NAME, ".tmp").toFile();
+            try (FileChannel output = FileChannel.open(compacted.toPath(), StandardOpenOption.WRITE)) {
+                writeHeader(output);
+                output.position(HEADER_LENGTH);
+                for (int i = first; i < positions.size(); i++) {
+                    ByteBuffer record = source.duplicate();
+                    long position = positions.get(i);
+                    record.position((int)position).limit((int)(position + recordLength(source, position)));
+                    while (record.hasRemaining()) {
+                        output.write(record);
+                    }
+                }
+                output.force(true);
+            }
+            move(compacted.toPath(), file.toPath());
+            replaced = true;
+        }
+        catch (ClosedChannelException e) {
+            // reconfigured or closed meanwhile
+        }
+        catch (IOException | RuntimeException e) {
+            logError("Could not compact format cache " + file, e);
+        }
+        if (!replaced && compacted != null) {
+            delete(compacted);
+        }
+
+        synchronized (this) {
+            if (channel != target) {
+                return;
+            }
+            if (!replaced) {
+                // keeps appending to the current file instead of retrying with every append
+                compactionBackoffBytes = 2 * fileSize;
+                return;
+            }
+            closeChannel();
+            state = State.OPENING;
+        }
+        open(file);
+    }
+
+    /**
+     * @return whether the file is no longer the one the channel is open on,
+     *         because another workspace replaced it.
+     */
+    private static boolean isReplaced(File file, FileChannel channel, Object fileKey) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        }
+        catch (NoSuchFileException e) {
+            return true;
+        }
+        if (fileKey != null) {
+            return !fileKey.equals(attributes.fileKey());
+        }
+        // without file keys, e.g. on Windows, a rewritten file differs in size while appends are locked
+        return attributes.size() != channel.size();
+    }
+
+    private void publish(FileChannel newChannel, Object newFileKey, MappedByteBuffer newMapping,
+            Map<FormatCacheKey, Long> newIndex) {
+        channel = newChannel;
+        fileKey = newFileKey;
+        mapping = newMapping;
+        index = newIndex;
+        fileSize = newMapping.limit();
+        compactionBackoffBytes = 0;
+        liveBytes = 0;
+        for (long position : newIndex.values()) {
+            liveBytes += recordLength(newMapping, position);
+        }
+    }
+
+    /**
+     * Adds the position of the last record of every digest to the index.
+     *
+     * @return the end of the last valid record, where a torn record starts if
+     *         it is less than the size of the file.
+     */
+    private static int scan(MappedByteBuffer mapping, Map<FormatCacheKey, Long> index)
+            throws CorruptCacheException {
+        int size = mapping.limit();
+        if (size < HEADER_LENGTH || mapping.getInt(0) != MAGIC) {
+            throw new CorruptCacheException("Unknown header");
+        }
+        int position = HEADER_LENGTH;
+        while (position < size) {
+            if (size - position < RECORD_OVERHEAD) {
+                break;
+            }
+            int payloadLength = mapping.getInt(position);
+            if (payloadLength < DIGEST_LENGTH + 4 || payloadLength > size - position - RECORD_OVERHEAD) {
+                break;
+            }
+            ByteBuffer payload = mapping.duplicate();
+            payload.position(position + 4).limit(position + 4 + payloadLength);
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int)crc.getValue() != mapping.getInt(position + 4 + payloadLength)) {
+                break;
+            }
+            byte[] digest = new byte[DIGEST_LENGTH];
+            payload.get(digest);
+            index.put(FormatCacheKey.ofDigest(digest), (long)position);
+            position += payloadLength + RECORD_OVERHEAD;
+        }
+        return position;
+    }
+
+    private ReplacementList read(long position) {
+        if (position + RECORD_OVERHEAD > mapping.limit()
+                || position + recordLength(mapping, position) > mapping.limit()) {
+            // appended after the file was mapped
+            remap();
+        }
+        ByteBuffer record = mapping.duplicate();
+        record.position((int)position + 4 + DIGEST_LENGTH);
+        int count = record.getInt();
+        if (count == 0) {
+            return ReplacementList.EMPTY;
+        }
+        replacements.reset(null);
+        for (int i = 0; i < count; i++) {
+            int offset = record.getInt();
+            int length = record.getInt();
+            int textLength = record.getInt();
+            if (text.length < textLength) {
+                text = new byte[Math.max(textLength, 2 * text.length)];
+            }
+            record.get(text, 0, textLength);
+            replacements.add(offset, length, text, 0, textLength);
+        }
+        return replacements.build();
+    }
+
+    private MappedByteBuffer remap() {
+        try {
+            if (mapping.limit() < fileSize) {
+                mapping = channel.map(MapMode.READ_ONLY, 0, fileSize);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return mapping;
+    }
+
+    private static byte[] encode(FormatCacheKey key, ReplacementList replacements) {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        try (DataOutputStream payload = new DataOutputStream(payloadBytes)) {
+            payload.write(key.getDigest());
+            payload.writeInt(replacements.size());
+            for (int i = 0; i < replacements.size(); i++) {
+                byte[] text = replacements.getText(i).getBytes(StandardCharsets.UTF_8);
+                payload.writeInt(replacements.getOffset(i));
+                payload.writeInt(replacements.getLength(i));
+                payload.writeInt(text.length);
+                payload.write(text);
+            }
+        }
+        catch (IOException e) {
+            // cannot happen with a byte array
+            throw new IllegalStateException(e);
+        }
+        byte[] bytes = payloadBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer record = ByteBuffer.allocate(bytes.length + RECORD_OVERHEAD);
+        record.putInt(bytes.length).put(bytes).putInt((int)crc.getValue());
+        return record.array();
+    }
+
+    private long recordLength(long position) {
+        return recordLength(remap(), position);
+    }
+
+    private static int recordLength(ByteBuffer mapping, long position) {
+        return mapping.getInt((int)position) + RECORD_OVERHEAD;
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).flip();
+        channel.write(header, 0);
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Closes the cache until it is configured again, keeping the file, which
+     * is fine but cannot be accessed, e.g. on a full disk.
+     */
+    private void disable(Exception e) {
+        logError("Could not access format cache " + new File(directory, FILE_NAME) + ", closing it", e);
+        closeChannel();
+        state = State.FAILED;
+    }
+
+    /**
+     * Drops a cache that turned out to be broken, the next use starts a new
+     * one.
+     */
+    private void discard(Exception e) {
+        File file = new File(directory, FILE_NAME);
+        logError("Format cache " + file + " is corrupt, starting over", e);
+        closeChannel();
+        state = delete(file) ? State.CLOSED : State.FAILED;
+    }
+
+    private void closeChannel() {
+        closeQuietly(channel);
+        channel = null;
+        fileKey = null;
+        mapping = null;
+        index = new HashMap<>();
+        fileSize = 0;
+        liveBytes = 0;
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                logError("Could not close format cache", e);
+            }
+        }
+    }
+
+    private static boolean delete(File file) {
+        if (file.exists() && !file.delete()) {
+            logError("Could not delete " + file);
+            return false;
+        }
+        return true;
+    }
+
+    private static class CorruptCacheException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CorruptCacheException(String message) {
+            super(message);
+        }
+    }
+}
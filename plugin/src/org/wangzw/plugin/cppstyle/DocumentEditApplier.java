@@ -0,0 +1,126 @@
+package org.wangzw.plugin.cppstyle;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.DocumentRewriteSession;
+import org.eclipse.jface.text.DocumentRewriteSessionType;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension4;
+import org.eclipse.text.edits.DeleteEdit;
+import org.eclipse.text.edits.InsertEdit;
+import org.eclipse.text.edits.MalformedTreeException;
+import org.eclipse.text.edits.ReplaceEdit;
+import org.eclipse.text.edits.TextEdit;
+
+/**
+ * Applies the edits of a format to a document.
+ * <p>
+ * A few edits are applied one by one. Every applied edit notifies the document
+ * listeners, the reconciler and the undo manager, so many of them run inside a
+ * {@link DocumentRewriteSession}, which lets listeners wait for the end of the
+ * session. If the changed span of the document is not much larger than the
+ * edits themselves, they are merged into a single replace of that span, which
+ * is one document change and one undo record.
+ */
+public final class DocumentEditApplier {
+
+    // below this many edits, applying them one by one is cheap enough
+    private static final int REWRITE_SESSION_THRESHOLD = 32;
+
+    // merging copies the whole changed span, so it must not be much larger than the edits
+    private static final int MAX_SPAN_PER_EDIT = 2048;
+
+    private DocumentEditApplier() {
+    }
+
+    public static void apply(IDocument document, TextEdit edit) throws MalformedTreeException, BadLocationException {
+        TextEdit[] children = edit.getChildren();
+        if (children.length < REWRITE_SESSION_THRESHOLD || !(document instanceof IDocumentExtension4)) {
+            edit.apply(document);
+            return;
+        }
+
+        IDocumentExtension4 extension = (IDocumentExtension4)document;
+        DocumentRewriteSession session = extension.startRewriteSession(DocumentRewriteSessionType.UNRESTRICTED);
+        try {
+            String merged = isMergeable(children) ? merge(document, children) : null;
+            if (merged != null) {
+                int start = children[0].getOffset();
+                document.replace(start, children[children.length - 1].getExclusiveEnd() - start, merged);
+            }
+            else {
+                edit.apply(document);
+            }
+        }
+        finally {
+            extension.stopRewriteSession(session);
+        }
+    }
+
+    /**
+     * @return whether the edits are plain, ordered and disjoint, and span not
+     *         much more than they change.
+     */
+    private static boolean isMergeable(TextEdit[] children) {
+        int end = 0;
+        for (TextEdit child : children) {
+            if (getText(child) == null || child.hasChildren() || child.getOffset() < end) {
+                return false;
+            }
+            end = child.getExclusiveEnd();
+        }
+        long span = end - children[0].getOffset();
+        return span <= (long)MAX_SPAN_PER_EDIT * children.length;
+    }
+
+    /**
+     * @return the text of the changed span with all edits applied, or null if
+     *         the edits do not fit the document.
+     */
+    private static String merge(IDocument document, TextEdit[] children) throws BadLocationException {
+        int start = children[0].getOffset();
+        int end = children[children.length - 1].getExclusiveEnd();
+        if (end > document.getLength()) {
+            return null;
+        }
+        String span = document.get(start, end - start);
+
+        StringBuilder merged = new StringBuilder(span.length() + span.length() / 8);
+        int position = start;
+        for (TextEdit child : children) {
+            merged.append(span, position - start, child.getOffset() - start);
+            merged.append(getText(child));
+            position = child.getExclusiveEnd();
+        }
+        return merged.toString();
+    }
+
+    /**
+     * @return the text a plain edit replaces its range with, or null for other
+     *         edits.
+     */
+    static String getText(TextEdit edit) {
+        if (edit instanceof ReplaceEdit) {
+            return ((ReplaceEdit)edit).getText();
+        }
+        if (edit instanceof InsertEdit) {
+            return ((InsertEdit)edit).getText();
+        }
+        if (edit instanceof DeleteEdit) {
+            return "";
+        }
+        return null;
+    }
+
+    /**
+     * @return the plain edit that replaces the range with the text.
+     */
+    static TextEdit createEdit(int offset, int length, String text) {
+        if (length == 0) {
+            return new InsertEdit(offset, text);
+        }
+        if (text.isEmpty()) {
+            return new DeleteEdit(offset, length);
+        }
+        return new ReplaceEdit(offset, length, text);
+    }
+}
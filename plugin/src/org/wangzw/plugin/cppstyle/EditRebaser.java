@@ -0,0 +1,134 @@
+package org.wangzw.plugin.cppstyle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentListener;
+import org.eclipse.text.edits.MultiTextEdit;
+import org.eclipse.text.edits.TextEdit;
+
+/**
+ * Records the changes of a document after a snapshot was taken, so edits
+ * computed for the snapshot can still be applied to the document.
+ * <p>
+ * Every edit is moved through the recorded changes in order. Edits that
+ * overlap a change are dropped, as what they replace is not there anymore; the
+ * lines of the change are formatted the next time anyway.
+ */
+public final class EditRebaser implements IDocumentListener {
+
+    private final IDocument document;
+
+    // offset, replaced length and text length of every change
+    private int[] changes = new int[3 * 8];
+
+    private int count;
+
+    private int dropped;
+
+    private EditRebaser(IDocument document) {
+        this.document = document;
+    }
+
+    /**
+     * @return a rebaser recording the changes of the document from now on.
+     */
+    public static EditRebaser connect(IDocument document) {
+        EditRebaser rebaser = new EditRebaser(document);
+        document.addDocumentListener(rebaser);
+        return rebaser;
+    }
+
+    /**
+     * Stops recording changes.
+     */
+    public void disconnect() {
+        document.removeDocumentListener(this);
+    }
+
+    /**
+     * @return whether the document changed since the snapshot.
+     */
+    public synchronized boolean hasChanges() {
+        return count > 0;
+    }
+
+    /**
+     * @return the number of edits the last {@link #rebase(TextEdit)} dropped.
+     */
+    public synchronized int getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @param edit
+     *            plain edits for the snapshot, ordered and disjoint.
+     * @return the edits for the current document, without those that overlap
+     *         a change.
+     */
+    public synchronized MultiTextEdit rebase(TextEdit edit) {
+        TextEdit[] children = edit.getChildren();
+        int[] offsets = new int[children.length];
+        int[] ends = new int[children.length];
+        for (int i = 0; i < children.length; i++) {
+            offsets[i] = children[i].getOffset();
+            ends[i] = children[i].getExclusiveEnd();
+        }
+
+        for (int k = 0; k < count; k++) {
+            int start = changes[3 * k];
+            int end = start + changes[3 * k + 1];
+            int delta = changes[3 * k + 2] - changes[3 * k + 1];
+            for (int i = 0; i < children.length; i++) {
+                if (offsets[i] < 0) {
+                    continue;
+                }
+                // two insertions at the same offset have no order
+                boolean ambiguous = offsets[i] == ends[i] && start == end && offsets[i] == start;
+                if (!ambiguous && ends[i] <= start) {
+                    continue;
+                }
+                if (!ambiguous && offsets[i] >= end) {
+                    offsets[i] += delta;
+                    ends[i] += delta;
+                }
+                else {
+                    offsets[i] = -1;
+                }
+            }
+        }
+
+        List<TextEdit> rebased = new ArrayList<>(children.length);
+        for (int i = 0; i < children.length; i++) {
+            String text = DocumentEditApplier.getText(children[i]);
+            if (offsets[i] >= 0 && text != null) {
+                rebased.add(DocumentEditApplier.createEdit(offsets[i], ends[i] - offsets[i], text));
+            }
+        }
+        dropped = children.length - rebased.size();
+
+        MultiTextEdit result = new MultiTextEdit();
+        if (!rebased.isEmpty()) {
+            result.addChildren(rebased.toArray(new TextEdit[rebased.size()]));
+        }
+        return result;
+    }
+
+    @Override
+    public void documentAboutToBeChanged(DocumentEvent event) {
+    }
+
+    @Override
+    public synchronized void documentChanged(DocumentEvent event) {
+        if (3 * count == changes.length) {
+            changes = Arrays.copyOf(changes, 2 * changes.length);
+        }
+        changes[3 * count] = event.getOffset();
+        changes[3 * count + 1] = event.getLength();
+        changes[3 * count + 2] = event.getText() != null ? event.getText().length() : 0;
+        count++;
+    }
+}
@@ -13,7 +13,7 @@ public class FilePathUtil {
 
     public static boolean isFileRunnable(String path) {
         File file = new File(path);
-        return file.exists() && !file.isDirectory();
+        return file.isFile() && file.canExecute();
     }
 
     public static List<String> resolvePaths(String semicolonSeperatedPaths) {
@@ -30,4 +30,26 @@ public class FilePathUtil {
 
     public static String toNormalizedAbsolutePath(String path) {
         return FileSystems.getDefault().getPath(path).normalize().toAbsolutePath().toString();
-    }}
+    }
+
+    /**
+     * Searches the parent directories of the given path for the .clang-format or
+     * _clang-format file clang-format itself would use with -style=file.
+     *
+     * @return the absolute path of the configuration file or <code>null</code>
+     */
+    public static String findClangFormatConfigureFile(String path) {
+        ClangFormatStyle style = findClangFormatStyle(path);
+        return style != null ? style.getPath() : null;
+    }
+
+    /**
+     * Like {@link #findClangFormatConfigureFile(String)}, but answers from the
+     * {@link ClangFormatStyleCache}.
+     *
+     * @return the style or <code>null</code>
+     */
+    public static ClangFormatStyle findClangFormatStyle(String path) {
+        return ClangFormatStyleCache.getDefault().find(path);
+    }
+}
@@ -0,0 +1,116 @@
+package org.wangzw.plugin.cppstyle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.wangzw.plugin.cppstyle.replacement.Utf8OffsetIndex;
+
+/**
+ * Identifies a format by content: a SHA-256 digest over the command line
+ * (which holds the regions), the style fingerprint, the clang-format binary and
+ * the UTF-8 encoded source. Two requests with the same key get the same
+ * replacements.
+ */
+final class FormatCacheKey {
+
+    private static final byte SEPARATOR = 0;
+
+    private final byte[] digest;
+
+    private final int hashCode;
+
+    private FormatCacheKey(byte[] digest) {
+        this.digest = digest;
+        this.hashCode = Arrays.hashCode(digest);
+    }
+
+    /**
+     * @return the key with the given digest, as read back from the disk cache.
+     */
+    static FormatCacheKey ofDigest(byte[] digest) {
+        return new FormatCacheKey(digest.clone());
+    }
+
+    /**
+     * @param commands
+     *            the clang-format executable followed by its parameters.
+     * @param style
+     *            the style clang-format will use, or null if none.
+     */
+    static FormatCacheKey of(List<String> commands, ClangFormatStyle style, String source)
+            throws IOException {
+        MessageDigest messageDigest = newDigest();
+        for (String command : commands) {
+            update(messageDigest, command);
+        }
+        update(messageDigest, fingerprint(commands.get(0)));
+        update(messageDigest, style != null ? style.getFingerprint() : "");
+        Utf8OffsetIndex.write(source, new DigestOutputStream(messageDigest));
+        return new FormatCacheKey(messageDigest.digest());
+    }
+
+    byte[] getDigest() {
+        return digest.clone();
+    }
+
+    /**
+     * A file is assumed unchanged as long as its size and modification time
+     * are.
+     */
+    private static String fingerprint(String path) {
+        if (path == null) {
+            return "";
+        }
+        File file = new File(path);
+        return path + ':' + file.lastModified() + ':' + file.length();
+    }
+
+    private static void update(MessageDigest messageDigest, String value) {
+        messageDigest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+        messageDigest.update(SEPARATOR);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // every Java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof FormatCacheKey && Arrays.equals(digest, ((FormatCacheKey)obj).digest);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    private static class DigestOutputStream extends OutputStream {
+        private final MessageDigest messageDigest;
+
+        DigestOutputStream(MessageDigest messageDigest) {
+            this.messageDigest = messageDigest;
+        }
+
+        @Override
+        public void write(int b) {
+            messageDigest.update((byte)b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            messageDigest.update(b, off, len);
+        }
+    }
+}
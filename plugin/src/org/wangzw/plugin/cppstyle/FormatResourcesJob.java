@@ -0,0 +1,414 @@
+package org.wangzw.plugin.cppstyle;
+
+import static org.wangzw.plugin.cppstyle.replacement.Logger.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.core.filebuffers.FileBuffers;
+import org.eclipse.core.filebuffers.ITextFileBuffer;
+import org.eclipse.core.filebuffers.LocationKind;
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.WorkspaceJob;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.SubMonitor;
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
+import org.eclipse.core.runtime.jobs.MultiRule;
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.text.edits.MalformedTreeException;
+import org.eclipse.text.edits.MultiTextEdit;
+import org.eclipse.text.edits.TextEdit;
+import org.wangzw.plugin.cppstyle.ClangToolchain.Capability;
+
+/**
+ * Formats all Java files of the given resources and their members.
+ * <p>
+ * The files go through a pipeline of three stages with bounded queues between
+ * them: one thread reads them in batches, one worker per core formats a batch
+ * at a time with a {@link BatchReplacementFormatter}, i.e. with one
+ * clang-format process, and the job thread writes the changed files back.
+ * Reading and writing are cheap compared to clang-format, so the workers stay
+ * busy, and the queues keep the number of files in memory independent of the
+ * size of the project. As a {@link WorkspaceJob}, the job reports all resource
+ * changes at once when it is done. Its clang-format processes run in the
+ * background lane of the {@link ProcessAdmission}, behind saves and other
+ * interactive formats.
+ * <p>
+ * Files with unsaved changes in an editor are left alone and reported, as
+ * writing the file would either be overwritten by the next save or discard the
+ * changes.
+ */
+public class FormatResourcesJob extends WorkspaceJob {
+
+    private static final String JAVA_EXTENSION = "java";
+
+    // files one clang-format process formats, more save process starts, fewer keep the workers balanced
+    private static final int MAX_BATCH_FILES = 64;
+
+    // batches the read queue holds per worker, enough to bridge a slow read
+    private static final int BATCHES_PER_WORKER = 2;
+
+    // files the formatted queue holds per worker, enough to bridge a slow write
+    private static final int QUEUE_CAPACITY_PER_WORKER = 4;
+
+    // how often the writer looks at the progress monitor while it waits
+    private static final long CANCEL_POLL_MILLIS = 100;
+
+    private static final List<FormatItem> END_OF_BATCHES = new ArrayList<>();
+
+    private static final FormatItem END = new FormatItem(null);
+
+    private final List<IResource> resources;
+
+    public FormatResourcesJob(Collection<? extends IResource> resources) {
+        super("Format with clang-format");
+        this.resources = new ArrayList<>(resources);
+        setUser(true);
+        setRule(MultiRule.combine(this.resources.toArray(new ISchedulingRule[this.resources.size()])));
+    }
+
+    @Override
+    public IStatus runInWorkspace(IProgressMonitor monitor) throws CoreException {
+        List<IFile> files = collectFiles();
+        SubMonitor progress = SubMonitor.convert(monitor, getName(), files.size());
+        if (files.isEmpty()) {
+            return Status.OK_STATUS;
+        }
+
+        int workers = Math.min(Runtime.getRuntime().availableProcessors(), files.size());
+        int batchSize = Math.max(1, Math.min(MAX_BATCH_FILES, files.size() / workers));
+        BlockingQueue<List<FormatItem>> read = new ArrayBlockingQueue<>(BATCHES_PER_WORKER * workers);
+        BlockingQueue<FormatItem> formatted = new ArrayBlockingQueue<>(QUEUE_CAPACITY_PER_WORKER * workers);
+        ExecutorService executor = Executors.newFixedThreadPool(workers + 1, new PipelineThreadFactory());
+        try {
+            executor.execute(() -> readFiles(files, batchSize, read, workers));
+            for (int i = 0; i < workers; i++) {
+                executor.execute(() -> formatFiles(read, formatted));
+            }
+            return writeFiles(formatted, workers, progress);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Status.CANCEL_STATUS;
+        }
+        finally {
+            // stops the other stages if the writer was canceled
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the engine of one worker, or null to format one file per process
+     *         because clang-format cannot take the configured style file.
+     */
+    protected BatchReplacementFormatter createBatchFormatter() {
+        ClangToolchain toolchain = ClangToolchainRegistry.getDefault().get();
+        String stylePath = toolchain.getStylePath();
+        if (!toolchain.isValid() || (stylePath != null && !toolchain.hasCapability(Capability.STYLE_FILE_PATH))) {
+            return null;
+        }
+        return new BatchReplacementFormatter(toolchain.getClangFormatPath(), stylePath);
+    }
+
+    private List<IFile> collectFiles() throws CoreException {
+        Set<IFile> files = new LinkedHashSet<>();
+        for (IResource resource : resources) {
+            resource.accept(member -> {
+                if (member.getType() == IResource.FILE && JAVA_EXTENSION.equals(member.getFileExtension())) {
+                    files.add((IFile)member);
+                }
+                return true;
+            });
+        }
+        return new ArrayList<>(files);
+    }
+
+    private static void readFiles(List<IFile> files, int batchSize, BlockingQueue<List<FormatItem>> read,
+            int workers) {
+        try {
+            List<FormatItem> batch = new ArrayList<>(batchSize);
+            for (IFile file : files) {
+                batch.add(readFile(file));
+                if (batch.size() == batchSize) {
+                    read.put(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                read.put(batch);
+            }
+            for (int i = 0; i < workers; i++) {
+                read.put(END_OF_BATCHES);
+            }
+        }
+        catch (InterruptedException e) {
+            // canceled
+        }
+    }
+
+    private static FormatItem readFile(IFile file) {
+        FormatItem item = new FormatItem(file);
+        // linked files of other file systems and virtual ones have no location
+        IPath location = file.getLocation();
+        if (location == null) {
+            logError("Could not format " + file.getFullPath() + ", it is not in the local file system");
+            return item;
+        }
+        try {
+            item.location = location.toFile();
+            item.charset = file.getCharset();
+            item.utf8 = StandardCharsets.UTF_8.equals(Charset.forName(item.charset));
+            byte[] bytes = readFully(file);
+            item.content = new String(bytes, item.charset);
+            if (item.utf8) {
+                item.bytes = bytes;
+            }
+        }
+        catch (CoreException | IOException | RuntimeException e) {
+            logError("Could not read " + file.getFullPath(), e);
+        }
+        return item;
+    }
+
+    private void formatFiles(BlockingQueue<List<FormatItem>> read, BlockingQueue<FormatItem> formatted) {
+        ProcessAdmission.setLane(ProcessAdmission.Lane.BACKGROUND);
+        BatchReplacementFormatter batchFormatter = createBatchFormatter();
+        CodeFormatterBase formatter = new ThreadedReplacementFormatter();
+        boolean canceled = false;
+        try {
+            for (List<FormatItem> batch = read.take(); batch != END_OF_BATCHES; batch = read.take()) {
+                try {
+                    formatBatch(batchFormatter, formatter, batch);
+                }
+                catch (RuntimeException e) {
+                    // the files not formatted yet count as failed
+                    logError("Could not format " + batch.size() + " files", e);
+                }
+                for (FormatItem item : batch) {
+                    formatted.put(item);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // canceled, the writer is gone
+            canceled = true;
+        }
+        finally {
+            // the writer waits for the end of every worker, also of one that failed
+            if (!canceled) {
+                putEnd(formatted);
+            }
+        }
+    }
+
+    private static void putEnd(BlockingQueue<FormatItem> formatted) {
+        try {
+            formatted.put(END);
+        }
+        catch (InterruptedException e) {
+            // canceled
+        }
+    }
+
+    /**
+     * Formats the readable files of the batch with one clang-format process,
+     * which reads them itself. Its offsets are translated with the bytes read
+     * here, which only works for UTF-8, so files in other charsets are
+     * formatted one by one from their content.
+     */
+    private static void formatBatch(BatchReplacementFormatter batchFormatter, CodeFormatterBase formatter,
+            List<FormatItem> batch) {
+        Map<File, FormatItem> batched = new LinkedHashMap<>();
+        Map<File, byte[]> contents = new LinkedHashMap<>();
+        for (FormatItem item : batch) {
+            if (item.content == null) {
+                continue;
+            }
+            if (batchFormatter != null && item.utf8) {
+                batched.put(item.location, item);
+                contents.put(item.location, item.bytes);
+            }
+            else {
+                String path = item.location.getAbsolutePath();
+                item.formatted = apply(formatter.format(item.content, path, new IRegion[0]), item);
+            }
+        }
+        if (batched.isEmpty()) {
+            return;
+        }
+
+        Map<File, MultiTextEdit> edits = batchFormatter.format(contents);
+        for (FormatItem item : batched.values()) {
+            // no edit if clang-format failed on the file
+            item.formatted = apply(edits.get(item.location), item);
+        }
+    }
+
+    /**
+     * @return the formatted content, or null if it could not be formatted.
+     */
+    private static String apply(TextEdit edit, FormatItem item) {
+        if (edit == null) {
+            return null;
+        }
+        if (!edit.hasChildren()) {
+            return item.content;
+        }
+
+        Document document = new Document(item.content);
+        try {
+            edit.apply(document);
+        }
+        catch (MalformedTreeException | BadLocationException e) {
+            logError("Could not format " + item.file.getFullPath(), e);
+            return null;
+        }
+        return document.get();
+    }
+
+    private static IStatus writeFiles(BlockingQueue<FormatItem> formatted, int workers, SubMonitor progress)
+            throws InterruptedException {
+        int failures = 0;
+        int unsaved = 0;
+        for (int ended = 0; ended < workers;) {
+            if (progress.isCanceled()) {
+                return Status.CANCEL_STATUS;
+            }
+            FormatItem item = formatted.poll(CANCEL_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (item == null) {
+                continue;
+            }
+            if (item == END) {
+                ended++;
+                continue;
+            }
+
+            if (item.formatted == null) {
+                failures++;
+            }
+            else if (item.formatted.equals(item.content)) {
+                // already formatted
+            }
+            else if (hasUnsavedChanges(item.file)) {
+                logInfo("Did not format " + item.file.getFullPath() + ", it has unsaved changes");
+                unsaved++;
+            }
+            else {
+                try {
+                    byte[] bytes = item.formatted.getBytes(item.charset);
+                    item.file.setContents(new ByteArrayInputStream(bytes), IResource.KEEP_HISTORY, null);
+                }
+                catch (CoreException | IOException e) {
+                    logError("Could not write " + item.file.getFullPath(), e);
+                    failures++;
+                }
+            }
+            progress.worked(1);
+        }
+
+        List<String> problems = new ArrayList<>();
+        if (failures > 0) {
+            problems.add(failures + " files could not be formatted");
+        }
+        if (unsaved > 0) {
+            problems.add(unsaved + " files with unsaved changes were not formatted");
+        }
+        if (!problems.isEmpty()) {
+            return new Status(IStatus.WARNING, CppStyle.PLUGIN_ID,
+                    String.join(", ", problems) + ", see the log for details.");
+        }
+        return Status.OK_STATUS;
+    }
+
+    /**
+     * @return whether an editor holds changes of the file that are not on disk.
+     *         A buffer without changes follows the new content of the file.
+     */
+    private static boolean hasUnsavedChanges(IFile file) {
+        ITextFileBuffer buffer =
+                FileBuffers.getTextFileBufferManager().getTextFileBuffer(file.getFullPath(), LocationKind.IFILE);
+        return buffer != null && buffer.isDirty();
+    }
+
+    private static byte[] readFully(IFile file) throws CoreException, IOException {
+        try (InputStream input = file.getContents()) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (;;) {
+                int rsz = input.read(buffer, 0, buffer.length);
+
+                if (rsz < 0) {
+                    break;
+                }
+
+                output.write(buffer, 0, rsz);
+            }
+            return output.toByteArray();
+        }
+    }
+
+    /**
+     * One file on its way through the pipeline.
+     */
+    private static final class FormatItem {
+
+        private final IFile file;
+
+        private File location;
+
+        private String charset;
+
+        // clang-format may read the file itself only if its offsets are the ones of UTF-8
+        private boolean utf8;
+
+        // null if the file could not be read
+        private String content;
+
+        // the content as read, kept only for UTF-8 files
+        private byte[] bytes;
+
+        // null if the file could not be formatted
+        private String formatted;
+
+        FormatItem(IFile file) {
+            this.file = file;
+        }
+    }
+
+    private static class PipelineThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "clang-format pipeline " + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.wangzw.plugin.cppstyle;
+
+import org.eclipse.text.edits.MultiTextEdit;
+import org.wangzw.plugin.cppstyle.replacement.ReplacementList;
+
+/**
+ * The outcome of one {@link FormatterBackend#format} call: either the
+ * replacements or the exit code and error output of clang-format.
+ */
+public final class FormatResult {
+
+    private final boolean success;
+
+    private final ReplacementList replacements;
+
+    private final int code;
+
+    private final String error;
+
+    private FormatResult(boolean success, ReplacementList replacements, int code, String error) {
+        this.success = success;
+        this.replacements = replacements;
+        this.code = code;
+        this.error = error;
+    }
+
+    public static FormatResult success(ReplacementList replacements) {
+        return new FormatResult(true, replacements, 0, "");
+    }
+
+    public static FormatResult failure(int code, String error) {
+        return new FormatResult(false, null, code, error);
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * @return the replacements, null if clang-format failed.
+     */
+    public ReplacementList getReplacements() {
+        return replacements;
+    }
+
+    /**
+     * @return new edits for the replacements, null if clang-format failed.
+     */
+    public MultiTextEdit getEdit() {
+        return replacements != null ? replacements.toEdit() : null;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
@@ -0,0 +1,188 @@
+package org.wangzw.plugin.cppstyle;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.wangzw.plugin.cppstyle.replacement.ReplacementList;
+
+/**
+ * Remembers the replacements of successful formats by {@link FormatCacheKey},
+ * so save actions, JDT re-formats and undo/redo that send the same source again
+ * do not start clang-format again.
+ * <p>
+ * The cache is a least recently used map bounded by the approximate heap bytes
+ * of its entries (0 disables it). Identical requests running at the same time
+ * share one clang-format call. A softly referenced canary detects memory
+ * pressure: once the garbage collector has cleared it, the cache drops half of
+ * its entries.
+ */
+public class FormatResultCache {
+
+    private static final FormatResultCache INSTANCE = new FormatResultCache();
+
+    private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    private static final int IN_FLIGHT_TIMEOUT = 15;
+
+    private final Map<FormatCacheKey, ReplacementList> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<FormatCacheKey, CompletableFuture<ReplacementList>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong sharedCalls = new AtomicLong();
+
+    private final AtomicLong diskHits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private long maxBytes;
+
+    private long bytes;
+
+    private SoftReference<Object> pressureCanary = new SoftReference<>(new Object());
+
+    public static FormatResultCache getDefault() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the bound in megabytes. 0 disables the cache and drops all entries.
+     */
+    public void configure(int megabytes) {
+        configureBytes(Math.max(0, megabytes) * BYTES_PER_MEGABYTE);
+    }
+
+    synchronized void configureBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evictTo(maxBytes);
+    }
+
+    public synchronized boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Answers from memory, waits for an identical call already running, answers
+     * from the {@link DiskFormatCache}, or runs the call and remembers its
+     * replacements in both if it succeeded.
+     */
+    FormatResult format(FormatCacheKey key, FormatCall call) throws IOException, InterruptedException {
+        DiskFormatCache diskCache = DiskFormatCache.getDefault();
+        if (!isEnabled() && !diskCache.isEnabled()) {
+            return call.run();
+        }
+        ReplacementList cached = get(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return FormatResult.success(cached);
+        }
+
+        CompletableFuture<ReplacementList> flight = new CompletableFuture<>();
+        CompletableFuture<ReplacementList> running = inFlight.putIfAbsent(key, flight);
+        if (running != null) {
+            sharedCalls.incrementAndGet();
+            ReplacementList shared = await(running);
+            // the shared call failed, so this one reports its own error
+            return shared != null ? FormatResult.success(shared) : call.run();
+        }
+
+        ReplacementList computed = null;
+        try {
+            computed = diskCache.get(key);
+            if (computed != null) {
+                diskHits.incrementAndGet();
+                put(key, computed);
+                return FormatResult.success(computed);
+            }
+
+            misses.incrementAndGet();
+            FormatResult result = call.run();
+            // output that could not be read or parsed fails the call, so only clean parses are persisted
+            if (result.isSuccess() && result.getReplacements() != null) {
+                computed = result.getReplacements();
+                put(key, computed);
+                diskCache.put(key, computed);
+            }
+            return result;
+        }
+        finally {
+            inFlight.remove(key, flight);
+            flight.complete(computed);
+        }
+    }
+
+    public FormatResultCacheStatistics getStatistics() {
+        int size;
+        long currentBytes;
+        synchronized (this) {
+            size = entries.size();
+            currentBytes = bytes;
+        }
+        return new FormatResultCacheStatistics(
+                hits.get(), sharedCalls.get(), diskHits.get(), misses.get(), evictions.get(), size, currentBytes);
+    }
+
+    synchronized ReplacementList get(FormatCacheKey key) {
+        checkMemoryPressure();
+        return entries.get(key);
+    }
+
+    synchronized void put(FormatCacheKey key, ReplacementList replacements) {
+        long weight = replacements.weight();
+        if (weight > maxBytes) {
+            return;
+        }
+        ReplacementList previous = entries.put(key, replacements);
+        if (previous != null) {
+            bytes -= previous.weight();
+        }
+        bytes += weight;
+        evictTo(maxBytes);
+    }
+
+    private ReplacementList await(CompletableFuture<ReplacementList> running) throws InterruptedException {
+        try {
+            return running.get(IN_FLIGHT_TIMEOUT, TimeUnit.SECONDS);
+        }
+        catch (ExecutionException | TimeoutException e) {
+            return null;
+        }
+    }
+
+    private void checkMemoryPressure() {
+        if (pressureCanary.get() == null) {
+            evictTo(bytes / 2);
+            pressureCanary = new SoftReference<>(new Object());
+        }
+    }
+
+    private void evictTo(long limit) {
+        Iterator<ReplacementList> iterator = entries.values().iterator();
+        while (bytes > limit && iterator.hasNext()) {
+            bytes -= iterator.next().weight();
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    interface FormatCall {
+        FormatResult run() throws IOException, InterruptedException;
+    }
+}
@@ -0,0 +1,66 @@
+package org.wangzw.plugin.cppstyle;
+
+/**
+ * Snapshot of the counters of a {@link FormatResultCache}.
+ */
+public final class FormatResultCacheStatistics {
+    private final long hits;
+    private final long sharedCalls;
+    private final long diskHits;
+    private final long misses;
+    private final long evictions;
+    private final int entries;
+    private final long bytes;
+
+    FormatResultCacheStatistics(
+            long hits, long sharedCalls, long diskHits, long misses, long evictions, int entries, long bytes) {
+        this.hits = hits;
+        this.sharedCalls = sharedCalls;
+        this.diskHits = diskHits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.entries = entries;
+        this.bytes = bytes;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of requests that waited for an identical one already
+     *         running instead of starting clang-format.
+     */
+    public long getSharedCalls() {
+        return sharedCalls;
+    }
+
+    /**
+     * @return the number of requests answered by the {@link DiskFormatCache}.
+     */
+    public long getDiskHits() {
+        return diskHits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d, shared=%d, diskHits=%d, misses=%d, evictions=%d, entries=%d, bytes=%d", hits,
+                sharedCalls, diskHits, misses, evictions, entries, bytes);
+    }
+}
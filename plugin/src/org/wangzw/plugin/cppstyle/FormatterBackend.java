@@ -0,0 +1,25 @@
+package org.wangzw.plugin.cppstyle;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Runs clang-format for {@link CodeFormatterBase} and turns its replacements
+ * into edits.
+ */
+public interface FormatterBackend {
+
+    /**
+     * @param commands
+     *            the clang-format executable followed by its parameters.
+     * @param source
+     *            the code to format.
+     * @param standardParameters
+     *            whether the parameters are the standard ones, i.e. there are
+     *            no per-call flags like -offset or -length.
+     * @throws IOException
+     *             if the backend could not talk to clang-format at all.
+     */
+    FormatResult format(List<String> commands, String source, boolean standardParameters)
+            throws IOException, InterruptedException;
+}
@@ -0,0 +1,170 @@
+package org.wangzw.plugin.cppstyle;
+
+import static org.wangzw.plugin.cppstyle.ui.CppStyleConstants.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.jface.preference.IPreferenceStore;
+import org.eclipse.jface.util.IPropertyChangeListener;
+import org.eclipse.jface.util.PropertyChangeEvent;
+import org.wangzw.plugin.cppstyle.replacement.LogLevel;
+import org.wangzw.plugin.cppstyle.replacement.Logger;
+
+/**
+ * The configuration all formatters share. JDT creates formatters often, so
+ * they keep none of their own: the engine reads the preferences once after
+ * each change, configures the process pool, the I/O executor and the caches,
+ * and hands out the result as immutable {@link Settings}. The backend is not a
+ * preference, it is set by whoever provides one.
+ */
+final class FormatterEngine implements IPropertyChangeListener {
+
+    private static final FormatterEngine INSTANCE = new FormatterEngine();
+
+    private static final String ASSUME_FILENAME_JAVA = "A.java";
+
+    private final AtomicReference<Settings> current = new AtomicReference<>();
+
+    // counts preference changes, so settings built from older values are not kept
+    private final AtomicLong generation = new AtomicLong();
+
+    private IPreferenceStore store;
+
+    // null to spawn clang-format
+    private volatile FormatterBackend backend;
+
+    static FormatterEngine getDefault() {
+        return INSTANCE;
+    }
+
+    void start(IPreferenceStore preferenceStore) {
+        synchronized (this) {
+            store = preferenceStore;
+        }
+        preferenceStore.addPropertyChangeListener(this);
+    }
+
+    void stop() {
+        IPreferenceStore preferenceStore;
+        synchronized (this) {
+            preferenceStore = store;
+            store = null;
+        }
+        if (preferenceStore != null) {
+            preferenceStore.removePropertyChangeListener(this);
+        }
+        current.set(null);
+    }
+
+    /**
+     * @return the settings for the current preferences and toolchain.
+     */
+    Settings getSettings() {
+        ClangToolchain toolchain = ClangToolchainRegistry.getDefault().get();
+        Settings settings = current.get();
+        return settings != null && settings.toolchain == toolchain ? settings : configure(toolchain);
+    }
+
+    void setBackend(FormatterBackend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * @return the backend that was set, or null to spawn clang-format.
+     */
+    FormatterBackend getBackend() {
+        return backend;
+    }
+
+    @Override
+    public void propertyChange(PropertyChangeEvent event) {
+        // the store only holds the preferences of this plug-in
+        generation.incrementAndGet();
+        current.set(null);
+    }
+
+    private synchronized Settings configure(ClangToolchain toolchain) {
+        Settings settings = current.get();
+        if (settings != null && settings.toolchain == toolchain) {
+            return settings;
+        }
+        long configuredGeneration = generation.get();
+        IPreferenceStore preferenceStore = store != null ? store : CppStyle.getDefault().getPreferenceStore();
+
+        Logger.setLevel(LogLevel.fromPreference(preferenceStore.getString(CLANG_FORMAT_LOG_LEVEL)));
+        String ioMode = preferenceStore.getString(CLANG_FORMAT_PROCESS_IO_MODE);
+        ProcessIoExecutor.configure(ProcessIoMode.fromPreference(ioMode));
+        FormatResultCache.getDefault().configure(preferenceStore.getInt(CLANG_FORMAT_RESULT_CACHE_SIZE));
+        DiskFormatCache.getDefault().configure(
+                getDiskCacheDirectory(preferenceStore), preferenceStore.getInt(CLANG_FORMAT_DISK_CACHE_SIZE));
+        ProcessScheduling.getDefault().configure(preferenceStore.getInt(CLANG_FORMAT_BACKGROUND_NICE),
+                preferenceStore.getString(CLANG_FORMAT_BACKGROUND_CPUS));
+
+        String stylePath = toolchain.getStylePath();
+        String assumeFilenamePath = stylePath != null ? stylePathToAssumeFilenamePath(stylePath) : null;
+        ProcessPool.getDefault().configure(preferenceStore.getInt(CLANG_FORMAT_PROCESS_POOL_SIZE), assumeFilenamePath);
+        int saveLatencyBudget = preferenceStore.getInt(CLANG_FORMAT_SAVE_LATENCY_BUDGET);
+        settings = new Settings(toolchain, assumeFilenamePath, saveLatencyBudget);
+        current.set(settings);
+        if (generation.get() != configuredGeneration) {
+            current.compareAndSet(settings, null);
+        }
+        return settings;
+    }
+
+    private static File getDiskCacheDirectory(IPreferenceStore preferenceStore) {
+        String directory = preferenceStore.getString(CLANG_FORMAT_DISK_CACHE_DIRECTORY);
+        List<String> directories = FilePathUtil.resolvePaths(directory);
+        return directories.isEmpty() ? CppStyle.getDefault().getStateLocation().toFile()
+                : new File(directories.get(0));
+    }
+
+    private static String stylePathToAssumeFilenamePath(String clangFormatStylePath) {
+        File assumeFile = new File(new File(clangFormatStylePath).getParentFile(), ASSUME_FILENAME_JAVA);
+        return assumeFile.getAbsolutePath();
+    }
+
+    /**
+     * What a format needs to know, resolved once per change of the preferences.
+     */
+    static final class Settings {
+        private final ClangToolchain toolchain;
+
+        private final String assumeFilenamePath;
+
+        private final int saveLatencyBudget;
+
+        Settings(ClangToolchain toolchain, String assumeFilenamePath, int saveLatencyBudget) {
+            this.toolchain = toolchain;
+            this.assumeFilenamePath = assumeFilenamePath;
+            this.saveLatencyBudget = saveLatencyBudget;
+        }
+
+        String getClangFormatPath() {
+            return toolchain.getClangFormatPath();
+        }
+
+        String getClangFormatStylePath() {
+            return toolchain.getStylePath();
+        }
+
+        /**
+         * @return a file next to the configured style file, or null if there
+         *         is none.
+         */
+        String getAssumeFilenamePath() {
+            return assumeFilenamePath;
+        }
+
+        /**
+         * @return how long a save waits for its format in milliseconds, see
+         *         {@link SaveFormatJob}.
+         */
+        int getSaveLatencyBudget() {
+            return saveLatencyBudget;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package org.wangzw.plugin.cppstyle;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many clang-format processes run at once, across all formatters.
+ * <p>
+ * Interactive formats, i.e. saves and JDT formats, take precedence over
+ * background formats such as formatting a whole project: while an
+ * interactive format waits, no background format is admitted, and background
+ * formats always leave one process to interactive ones, so the limit never
+ * drops below two. The limit adapts like TCP
+ * congestion control (AIMD): it grows by one per limit's worth of formats that
+ * take about as long per char as the fastest ones seen, and shrinks by a
+ * quarter when a format takes much longer or the system load exceeds the
+ * number of cores.
+ */
+public final class ProcessAdmission {
+
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+    private static final OperatingSystemMXBean OS_MX_BEAN = ManagementFactory.getOperatingSystemMXBean();
+
+    private static final ProcessAdmission INSTANCE = new ProcessAdmission(CORES, 2 * CORES);
+
+    private static final ThreadLocal<Lane> LANE = ThreadLocal.withInitial(() -> Lane.INTERACTIVE);
+
+    // a format this much slower per char than the fastest ones means the processes compete
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    private static final double DECREASE_FACTOR = 0.75;
+
+    // how fast the fastest latency forgets, so it follows a machine that got slower
+    private static final double BASELINE_DRIFT = 1.0 / 256;
+
+    // small sources take about as long as this many chars, the process start dominates
+    private static final int MIN_CHARS = 4096;
+
+    // one process for background formats and one kept for interactive ones
+    private static final int MIN_LIMIT = 2;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition interactiveTurn = lock.newCondition();
+
+    private final Condition backgroundTurn = lock.newCondition();
+
+    private final int maxLimit;
+
+    private double limit;
+
+    private int running;
+
+    private int runningBackground;
+
+    private int waitingInteractive;
+
+    // nanos per char of the fastest formats, 0 until the first one
+    private double baseline;
+
+    private long lastDecrease = System.nanoTime();
+
+    /**
+     * Which formats take precedence.
+     */
+    public enum Lane {
+        INTERACTIVE, BACKGROUND
+    }
+
+    /**
+     * @param initialLimit
+     *            the number of processes to admit at first, at least two.
+     * @param maxLimit
+     *            the number of processes the limit never grows beyond, at
+     *            least two.
+     */
+    public ProcessAdmission(int initialLimit, int maxLimit) {
+        this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+        this.limit = Math.max(MIN_LIMIT, Math.min(initialLimit, this.maxLimit));
+    }
+
+    public static ProcessAdmission getDefault() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the lane of the formats of the current thread, interactive unless
+     * set otherwise.
+     */
+    public static void setLane(Lane lane) {
+        LANE.set(lane);
+    }
+
+    public static Lane getLane() {
+        return LANE.get();
+    }
+
+    /**
+     * Waits until a process of the lane of the current thread may run.
+     */
+    public Permit acquire() throws InterruptedException {
+        return acquire(getLane());
+    }
+
+    /**
+     * Waits until a process of the given lane may run.
+     */
+    public Permit acquire(Lane lane) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (lane == Lane.INTERACTIVE) {
+                waitingInteractive++;
+                try {
+                    while (running >= getLimit()) {
+                        interactiveTurn.await();
+                    }
+                }
+                finally {
+                    waitingInteractive--;
+                }
+            }
+            else {
+                while (waitingInteractive > 0 || running >= getLimit() || runningBackground >= getLimit() - 1) {
+                    backgroundTurn.await();
+                }
+                runningBackground++;
+            }
+            running++;
+            return new Permit(lane);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of processes admitted at once.
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int)limit;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of processes running now.
+     */
+    public int getRunning() {
+        lock.lock();
+        try {
+            return running;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Permit permit, int chars) {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            running--;
+            if (permit.lane == Lane.BACKGROUND) {
+                runningBackground--;
+            }
+            // without a length the latency per char is unknown
+            if (chars > 0) {
+                adapt(permit.start, now, chars);
+            }
+
+            if (waitingInteractive > 0) {
+                interactiveTurn.signalAll();
+            }
+            else {
+                backgroundTurn.signalAll();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void adapt(long start, long end, int chars) {
+        double latency = (end - start) / (double)Math.max(MIN_CHARS, chars);
+        if (baseline == 0 || latency < baseline) {
+            baseline = latency;
+        }
+        else {
+            baseline += (latency - baseline) * BASELINE_DRIFT;
+        }
+
+        double load = OS_MX_BEAN.getSystemLoadAverage();
+        boolean congested = latency > LATENCY_TOLERANCE * baseline || load > CORES;
+        if (congested) {
+            // formats that started before the last decrease saw the old limit
+            if (start > lastDecrease) {
+                limit = Math.max(MIN_LIMIT, limit * DECREASE_FACTOR);
+                lastDecrease = end;
+            }
+        }
+        else {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    /**
+     * Admits one process until it is released.
+     */
+    public final class Permit {
+
+        private final Lane lane;
+
+        private final long start = System.nanoTime();
+
+        private boolean released;
+
+        private Permit(Lane lane) {
+            this.lane = lane;
+        }
+
+        /**
+         * @param chars
+         *            the length of the formatted source, to adapt the limit to
+         *            its latency, or -1 if unknown or 0 if the process failed,
+         *            which both leave the limit as it is.
+         */
+        public void release(int chars) {
+            if (!released) {
+                released = true;
+                ProcessAdmission.this.release(this, chars);
+            }
+        }
+    }
+}
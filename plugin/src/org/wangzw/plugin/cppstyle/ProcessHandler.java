@@ -3,13 +3,15 @@ package org.wangzw.plugin.cppstyle;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import org.eclipse.core.resources.ResourcesPlugin;
-import org.eclipse.text.edits.MultiTextEdit;
+import org.wangzw.plugin.cppstyle.ProcessAdmission.Lane;
+import org.wangzw.plugin.cppstyle.replacement.ReplacementList;
+import org.wangzw.plugin.cppstyle.replacement.Utf8OffsetIndex;
 
 public abstract class ProcessHandler {
 
@@ -25,30 +27,50 @@ public abstract class ProcessHandler {
 
     private int code = -1;
 
-    protected MultiTextEdit textEdit;
+    private boolean timedOut;
+
+    protected ReplacementList replacements;
 
     protected StringBuilder errout;
 
+    protected Utf8OffsetIndex offsetIndex = Utf8OffsetIndex.IDENTITY;
+
+    private ProcessPool processPool;
+
+    private Lane lane = ProcessAdmission.getLane();
+
     public ProcessHandler(String source) {
         this.source = source;
     }
 
     public void start() throws IOException {
-        ProcessBuilder builder = createProcessBuilder();
-        process = builder.start();
+        process = processPool != null ? processPool.acquire(commands) : null;
+        if (process == null) {
+            process = startProcess(commands);
+        }
         pipeSourceCodeToProcess(process, source);
     }
 
-    private ProcessBuilder createProcessBuilder() {
-        ProcessBuilder builder = new ProcessBuilder(commands);
+    protected Process startProcess(List<String> commands) throws IOException {
+        ProcessBuilder builder = createProcessBuilder(commands, lane);
+        return builder.start();
+    }
+
+    /**
+     * @param lane
+     *            the lane whose CPU and I/O priority the process runs with.
+     */
+    static ProcessBuilder createProcessBuilder(List<String> commands, Lane lane) {
+        ProcessBuilder builder = new ProcessBuilder(ProcessScheduling.getDefault().apply(lane, commands));
         String root = ResourcesPlugin.getWorkspace().getRoot().getLocation().toOSString();
         builder.directory(new File(root));
         return builder;
     }
 
     private void pipeSourceCodeToProcess(Process process, String sourceCode) throws IOException {
-        try (OutputStreamWriter output = new OutputStreamWriter(process.getOutputStream())) {
-            output.write(sourceCode);
+        // clang-format expects UTF-8 and answers in UTF-8 byte offsets
+        try (OutputStream output = process.getOutputStream()) {
+            offsetIndex = Utf8OffsetIndex.write(sourceCode, output);
             output.flush();
         }
     }
@@ -58,6 +80,29 @@ public abstract class ProcessHandler {
         return this;
     }
 
+    /**
+     * Lets {@link #start()} take an already running process from the given pool
+     * instead of spawning one. Only valid if the parameters are the standard
+     * ones the pool was filled with, i.e. no per-call flags.
+     */
+    public ProcessHandler usePool(ProcessPool processPool) {
+        this.processPool = processPool;
+        return this;
+    }
+
+    /**
+     * Sets the lane the process runs in, by default the one of the thread that
+     * created the handler.
+     */
+    public ProcessHandler inLane(Lane lane) {
+        this.lane = lane;
+        return this;
+    }
+
+    Lane getLane() {
+        return lane;
+    }
+
     protected abstract void handleInputStream() throws IOException;
 
     protected void handleErrorStream() throws IOException {
@@ -86,21 +131,48 @@ public abstract class ProcessHandler {
     }
 
     public boolean success() throws InterruptedException {
-        boolean success = process.waitFor(TIMEOUT, SECONDS);
+        boolean success = process.waitFor(getTimeout(), SECONDS);
         if (success) {
             code = process.exitValue();
         }
         else {
-            errout.append(String.format("Waiting time elapsed: timeout after %ds", TIMEOUT));
+            destroyOnTimeout();
         }
         return success;
     }
 
+    /**
+     * @return how many seconds the process may take.
+     */
+    protected long getTimeout() {
+        return TIMEOUT;
+    }
+
+    /**
+     * Kills a process that did not finish in time, so it does not keep
+     * running after the format gave up on it.
+     */
+    protected void destroyOnTimeout() {
+        if (!timedOut) {
+            timedOut = true;
+            process.destroyForcibly();
+            errout.append(String.format("Waiting time elapsed: timeout after %ds", getTimeout()));
+        }
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
     public boolean hasErrors() {
         return errout.length() > 0;
     }
 
-    MultiTextEdit getTextEdit() {
-        return this.textEdit;
+    ReplacementList getReplacements() {
+        return this.replacements;
+    }
+
+    protected String getSource() {
+        return source;
     }
 }
\ No newline at end of file
@@ -0,0 +1,194 @@
+package org.wangzw.plugin.cppstyle;
+
+import static org.wangzw.plugin.cppstyle.replacement.Logger.*;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the stream pumps of {@link ThreadedProcessHandler} according to a
+ * {@link ProcessIoMode} and keeps statistics about them.
+ * <p>
+ * The bounded pool runs tasks in submission order. Since the stdout pump of a
+ * format is always submitted before its stderr pump, a thread blocked on the
+ * stderr of a process can only exist once that process' stdout is being
+ * drained, so the bound cannot dead-lock the pumps. While the queue has no room
+ * for both pumps of another format, new processes write stderr to a temporary
+ * file as in {@link ProcessIoMode#SINGLE_PUMP}. A pump that is rejected anyway,
+ * because the queue filled up in the meantime or the executor was replaced,
+ * runs on a thread of its own: on the submitting thread it would leave the
+ * other stream of its process undrained until it is done, and both would wait
+ * on each other.
+ */
+public final class ProcessIoExecutor {
+
+    static final int BOUNDED_POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+    static final int BOUNDED_QUEUE_CAPACITY = 256;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    // stdout and stderr
+    private static final int PUMPS_PER_FORMAT = 2;
+
+    private static final ThreadFactory OVERFLOW_THREAD_FACTORY = new PumpThreadFactory("clang-format I/O overflow ");
+
+    private static ProcessIoExecutor current = new ProcessIoExecutor(ProcessIoMode.BOUNDED);
+
+    private final ProcessIoMode requestedMode;
+
+    private final ProcessIoMode mode;
+
+    private final ExecutorService executorService;
+
+    private final AtomicInteger activeTasks = new AtomicInteger();
+
+    private final AtomicInteger peakActiveTasks = new AtomicInteger();
+
+    private final AtomicLong completedTasks = new AtomicLong();
+
+    private final AtomicLong overflowTasks = new AtomicLong();
+
+    private ProcessIoExecutor(ProcessIoMode mode) {
+        this.requestedMode = mode;
+        ExecutorService virtualThreadExecutor = null;
+        if (mode == ProcessIoMode.VIRTUAL_THREADS) {
+            virtualThreadExecutor = createVirtualThreadExecutor();
+            if (virtualThreadExecutor == null) {
+                logInfo("Virtual threads need Java 21, using a bounded thread pool for clang-format I/O");
+                mode = ProcessIoMode.BOUNDED;
+            }
+        }
+        this.mode = mode;
+        this.executorService = virtualThreadExecutor != null ? virtualThreadExecutor : createBoundedExecutor();
+    }
+
+    public static synchronized ProcessIoExecutor getDefault() {
+        return current;
+    }
+
+    /**
+     * Switches to the given mode. Tasks already submitted to the previous
+     * executor still run to completion.
+     */
+    public static synchronized void configure(ProcessIoMode mode) {
+        if (current.requestedMode != mode) {
+            ProcessIoExecutor previous = current;
+            current = new ProcessIoExecutor(mode);
+            previous.executorService.shutdown();
+        }
+    }
+
+    public static synchronized void shutdown() {
+        current.executorService.shutdown();
+    }
+
+    public ProcessIoMode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return whether a new process should write stderr to a file instead of
+     *         having it pumped, i.e. in the single pump mode and while there is
+     *         no room for two more pumps.
+     */
+    boolean redirectsErrorStream() {
+        return mode == ProcessIoMode.SINGLE_PUMP || !hasRoomForPumps();
+    }
+
+    private boolean hasRoomForPumps() {
+        if (executorService.isShutdown()) {
+            return false;
+        }
+        if (executorService instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor)executorService).getQueue().remainingCapacity() >= PUMPS_PER_FORMAT;
+        }
+        return true;
+    }
+
+    Future<Boolean> submit(Runnable task) {
+        FutureTask<Boolean> future = new FutureTask<>(() -> {
+            peakActiveTasks.accumulateAndGet(activeTasks.incrementAndGet(), Math::max);
+            try {
+                task.run();
+            }
+            finally {
+                activeTasks.decrementAndGet();
+                completedTasks.incrementAndGet();
+            }
+        }, Boolean.TRUE);
+        try {
+            executorService.execute(future);
+        }
+        catch (RejectedExecutionException e) {
+            overflowTasks.incrementAndGet();
+            OVERFLOW_THREAD_FACTORY.newThread(future).start();
+        }
+        return future;
+    }
+
+    public ProcessIoStatistics getStatistics() {
+        int poolSize = -1;
+        int largestPoolSize = -1;
+        int maximumPoolSize = -1;
+        int queuedTasks = 0;
+        if (executorService instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor poolExecutor = (ThreadPoolExecutor)executorService;
+            poolSize = poolExecutor.getPoolSize();
+            largestPoolSize = poolExecutor.getLargestPoolSize();
+            maximumPoolSize = poolExecutor.getMaximumPoolSize();
+            queuedTasks = poolExecutor.getQueue().size();
+        }
+        return new ProcessIoStatistics(mode, poolSize, largestPoolSize, maximumPoolSize, activeTasks.get(),
+                peakActiveTasks.get(), queuedTasks, completedTasks.get(), overflowTasks.get());
+    }
+
+    private static ExecutorService createBoundedExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(BOUNDED_POOL_SIZE, BOUNDED_POOL_SIZE, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<>(BOUNDED_QUEUE_CAPACITY),
+                new PumpThreadFactory("clang-format I/O "));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * The bundle is compiled for Java 8, so the Java 21 factory method is looked
+     * up at runtime.
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)factory.invoke(null);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static class PumpThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        private final String namePrefix;
+
+        PumpThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, namePrefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
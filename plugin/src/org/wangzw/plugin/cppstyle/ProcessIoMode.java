@@ -0,0 +1,30 @@
+package org.wangzw.plugin.cppstyle;
+
+/**
+ * How {@link ThreadedProcessHandler} pumps the streams of clang-format.
+ */
+public enum ProcessIoMode {
+    /**
+     * Two pump tasks per format on a bounded platform thread pool with a queue.
+     */
+    BOUNDED,
+    /**
+     * Two pump tasks per format, each on its own virtual thread. Needs a Java 21
+     * runtime, falls back to {@link #BOUNDED} otherwise.
+     */
+    VIRTUAL_THREADS,
+    /**
+     * Only stdout is pumped on the bounded pool, stderr is redirected to a
+     * temporary file and read after the process has finished.
+     */
+    SINGLE_PUMP;
+
+    public static ProcessIoMode fromPreference(String value) {
+        for (ProcessIoMode mode : values()) {
+            if (mode.name().equals(value)) {
+                return mode;
+            }
+        }
+        return BOUNDED;
+    }
+}
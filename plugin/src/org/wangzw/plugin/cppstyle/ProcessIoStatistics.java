@@ -0,0 +1,78 @@
+package org.wangzw.plugin.cppstyle;
+
+/**
+ * Snapshot of the counters of a {@link ProcessIoExecutor}. Pool sizes are -1
+ * for executors without a thread pool, i.e. virtual threads.
+ */
+public final class ProcessIoStatistics {
+    private final ProcessIoMode mode;
+    private final int poolSize;
+    private final int largestPoolSize;
+    private final int maximumPoolSize;
+    private final int activeTasks;
+    private final int peakActiveTasks;
+    private final int queuedTasks;
+    private final long completedTasks;
+    private final long overflowTasks;
+
+    ProcessIoStatistics(ProcessIoMode mode, int poolSize, int largestPoolSize, int maximumPoolSize, int activeTasks,
+            int peakActiveTasks, int queuedTasks, long completedTasks, long overflowTasks) {
+        this.mode = mode;
+        this.poolSize = poolSize;
+        this.largestPoolSize = largestPoolSize;
+        this.maximumPoolSize = maximumPoolSize;
+        this.activeTasks = activeTasks;
+        this.peakActiveTasks = peakActiveTasks;
+        this.queuedTasks = queuedTasks;
+        this.completedTasks = completedTasks;
+        this.overflowTasks = overflowTasks;
+    }
+
+    public ProcessIoMode getMode() {
+        return mode;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getLargestPoolSize() {
+        return largestPoolSize;
+    }
+
+    public int getMaximumPoolSize() {
+        return maximumPoolSize;
+    }
+
+    public int getActiveTasks() {
+        return activeTasks;
+    }
+
+    public int getPeakActiveTasks() {
+        return peakActiveTasks;
+    }
+
+    public int getQueuedTasks() {
+        return queuedTasks;
+    }
+
+    public long getCompletedTasks() {
+        return completedTasks;
+    }
+
+    /**
+     * @return the number of pumps that did not fit into the pool and ran on a
+     *         thread of their own.
+     */
+    public long getOverflowTasks() {
+        return overflowTasks;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("mode=%s, poolSize=%d, largestPoolSize=%d, maximumPoolSize=%d, "
+                        + "active=%d, peakActive=%d, queued=%d, completed=%d, overflow=%d",
+                mode, poolSize, largestPoolSize, maximumPoolSize, activeTasks, peakActiveTasks, queuedTasks,
+                completedTasks, overflowTasks);
+    }
+}
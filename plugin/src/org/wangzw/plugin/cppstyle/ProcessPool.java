@@ -0,0 +1,232 @@
+package org.wangzw.plugin.cppstyle;
+
+import static org.wangzw.plugin.cppstyle.replacement.Logger.*;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.wangzw.plugin.cppstyle.ProcessAdmission.Lane;
+
+/**
+ * Keeps a small number of clang-format processes started with the standard
+ * arguments and blocked on stdin, so a format request only has to pipe its
+ * source instead of paying fork/exec and dynamic-linking cost.
+ * <p>
+ * The pool is opt-in (size 0 disables it) and only serves requests whose
+ * command line matches the one an idle process was started with. Idle
+ * processes are kept per command line, at most the pool size in total, and
+ * the processes of the least recently used command lines make room for new
+ * ones. A hit replaces the process it took. Only the command line all formats
+ * share, the one that assumes a file next to the configured style file, is
+ * filled up after a miss: without a style file the command line names the
+ * file being formatted, and a process started for it would hardly ever be
+ * used. Requests with per-call flags such as regions never reach the pool.
+ * Spawning takes a permit of the background lane of the
+ * {@link ProcessAdmission}.
+ */
+public class ProcessPool {
+
+    private static final ProcessPool INSTANCE = new ProcessPool();
+
+    private final ExecutorService refillExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "clang-format process pool refill");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // in access order, so the least recently used command line comes first, never holds an empty deque
+    private final Map<List<String>, Deque<Process>> idleProcesses = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong refills = new AtomicLong();
+
+    private final AtomicLong refillNanos = new AtomicLong();
+
+    private final AtomicLong maxRefillNanos = new AtomicLong();
+
+    private int size;
+
+    // the parameter of the command line all formats share, null if there is none
+    private String sharedParameter;
+
+    private int idleCount;
+
+    private int pendingRefills;
+
+    public static ProcessPool getDefault() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the number of idle processes to keep. A size of 0 disables the pool
+     * and destroys all idle processes.
+     *
+     * @param sharedAssumeFilenamePath
+     *            the file all formats assume, next to the configured style
+     *            file, or null if each format assumes its own file.
+     */
+    public synchronized void configure(int size, String sharedAssumeFilenamePath) {
+        this.size = Math.max(0, size);
+        this.sharedParameter =
+                sharedAssumeFilenamePath != null ? CodeFormatterBase.ASSUME_FILENAME + sharedAssumeFilenamePath : null;
+        while (idleCount > this.size) {
+            destroyLeastRecentlyUsed();
+        }
+    }
+
+    public synchronized boolean isEnabled() {
+        return size > 0;
+    }
+
+    /**
+     * Hands out an idle process started with exactly the given commands and
+     * schedules a background refill.
+     *
+     * @return a started process waiting for input, or <code>null</code> on a
+     *         miss, in which case the caller has to spawn its own process.
+     */
+    public Process acquire(List<String> commands) {
+        Process process = null;
+        synchronized (this) {
+            if (size == 0) {
+                return null;
+            }
+            Deque<Process> processes = idleProcesses.get(commands);
+            while (process == null && processes != null && !processes.isEmpty()) {
+                Process candidate = processes.poll();
+                idleCount--;
+                if (candidate.isAlive()) {
+                    process = candidate;
+                }
+            }
+            if (processes != null && processes.isEmpty()) {
+                idleProcesses.remove(commands);
+            }
+            scheduleRefills(commands, process != null);
+        }
+
+        if (process != null) {
+            hits.incrementAndGet();
+        }
+        else {
+            misses.incrementAndGet();
+        }
+        return process;
+    }
+
+    /**
+     * Fills the pool up with processes for the shared command line, and
+     * replaces the process a hit took on any other.
+     */
+    private void scheduleRefills(List<String> commands, boolean hit) {
+        int count;
+        if (sharedParameter != null && commands.contains(sharedParameter)) {
+            // processes of other command lines make room for the shared one
+            Deque<Process> processes = idleProcesses.get(commands);
+            count = size - (processes != null ? processes.size() : 0) - pendingRefills;
+        }
+        else {
+            // the replacement may push out a process of another command line
+            count = hit ? 1 : 0;
+        }
+        List<String> refillCommands = new ArrayList<>(commands);
+        for (int i = 0; i < count; i++) {
+            pendingRefills++;
+            refillExecutor.execute(() -> refill(refillCommands));
+        }
+    }
+
+    private void refill(List<String> refillCommands) {
+        Process process = null;
+        try {
+            ProcessAdmission.Permit permit = ProcessAdmission.getDefault().acquire(Lane.BACKGROUND);
+            try {
+                long start = System.nanoTime();
+                // pooled processes serve interactive formats
+                process = ProcessHandler.createProcessBuilder(refillCommands, Lane.INTERACTIVE).start();
+                recordRefill(System.nanoTime() - start);
+            }
+            finally {
+                // the process has not formatted anything yet
+                permit.release(0);
+            }
+        }
+        catch (IOException e) {
+            logError("Could not pre-spawn clang-format process", e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            pendingRefills--;
+            if (process != null) {
+                if (size > 0) {
+                    idleProcesses.computeIfAbsent(refillCommands, k -> new ArrayDeque<>()).add(process);
+                    idleCount++;
+                    while (idleCount > size) {
+                        destroyLeastRecentlyUsed();
+                    }
+                }
+                else {
+                    process.destroy();
+                }
+            }
+        }
+    }
+
+    private void destroyLeastRecentlyUsed() {
+        Iterator<Deque<Process>> iterator = idleProcesses.values().iterator();
+        Deque<Process> processes = iterator.next();
+        processes.poll().destroy();
+        idleCount--;
+        if (processes.isEmpty()) {
+            iterator.remove();
+        }
+    }
+
+    private void recordRefill(long nanos) {
+        refills.incrementAndGet();
+        refillNanos.addAndGet(nanos);
+        maxRefillNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    private void destroyIdleProcesses() {
+        for (Deque<Process> processes : idleProcesses.values()) {
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }
+        idleProcesses.clear();
+        idleCount = 0;
+    }
+
+    /**
+     * Disables the pool and destroys all idle processes. Called when the bundle
+     * stops.
+     */
+    public synchronized void shutdown() {
+        size = 0;
+        destroyIdleProcesses();
+        if (hits.get() + misses.get() > 0) {
+            logInfo("clang-format process pool: %s", getStatistics());
+        }
+    }
+
+    public synchronized ProcessPoolStatistics getStatistics() {
+        return new ProcessPoolStatistics(
+                hits.get(), misses.get(), refills.get(), refillNanos.get(), maxRefillNanos.get(), idleCount);
+    }
+}
@@ -0,0 +1,55 @@
+package org.wangzw.plugin.cppstyle;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of the counters of a {@link ProcessPool}.
+ */
+public final class ProcessPoolStatistics {
+    private final long hits;
+    private final long misses;
+    private final long refills;
+    private final long refillNanos;
+    private final long maxRefillNanos;
+    private final int idleProcesses;
+
+    ProcessPoolStatistics(
+            long hits, long misses, long refills, long refillNanos, long maxRefillNanos, int idleProcesses) {
+        this.hits = hits;
+        this.misses = misses;
+        this.refills = refills;
+        this.refillNanos = refillNanos;
+        this.maxRefillNanos = maxRefillNanos;
+        this.idleProcesses = idleProcesses;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getRefills() {
+        return refills;
+    }
+
+    public double getAverageRefillMicros() {
+        return refills == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(refillNanos) / (double)refills;
+    }
+
+    public long getMaxRefillMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxRefillNanos);
+    }
+
+    public int getIdleProcesses() {
+        return idleProcesses;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d, misses=%d, refills=%d, avgRefill=%.2f\u00B5s, maxRefill=%d\u00B5s, idle=%d",
+                hits, misses, refills, getAverageRefillMicros(), getMaxRefillMicros(), idleProcesses);
+    }
+}
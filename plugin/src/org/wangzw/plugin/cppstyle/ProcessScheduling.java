@@ -0,0 +1,211 @@
+package org.wangzw.plugin.cppstyle;
+
+import static org.wangzw.plugin.cppstyle.replacement.Logger.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.wangzw.plugin.cppstyle.ProcessAdmission.Lane;
+
+/**
+ * Runs the clang-format processes of the background lane of the
+ * {@link ProcessAdmission} with a lower CPU and I/O priority, so they do not
+ * slow down the format the user waits for.
+ * <p>
+ * On Linux the command is prefixed with <code>nice</code>, <code>ionice</code>
+ * in the lowest best-effort level and optionally <code>taskset</code>, which
+ * all exec the rest of the command, so the streams and exit code are those of
+ * clang-format. A utility that is not on the PATH is left out, as is one that
+ * fails when it is tried with the configured arguments, e.g. taskset with
+ * offline CPUs or ionice without the permission to set the I/O class.
+ * Processes of the interactive lane keep the priority of Eclipse.
+ */
+public class ProcessScheduling {
+
+    private static final String NICE = "nice";
+
+    private static final String IONICE = "ionice";
+
+    private static final String TASKSET = "taskset";
+
+    // the command every utility is tried with
+    private static final String TRUE = "true";
+
+    private static final long PROBE_TIMEOUT_SECONDS = 5;
+
+    // the best-effort class, unlike the idle class a busy disk cannot starve it
+    private static final String IONICE_CLASS = "2";
+
+    // the lowest priority within the class
+    private static final String IONICE_LEVEL = "7";
+
+    private static final int MAX_NICE = 19;
+
+    // a cpu list as taskset -c takes it, e.g. 0,2-3
+    private static final Pattern CPU_LIST = Pattern.compile("\\d+(-\\d+)?(,\\d+(-\\d+)?)*");
+
+    private static final ProcessScheduling INSTANCE = createDefault();
+
+    private final String nicePath;
+
+    private final String ionicePath;
+
+    private final String tasksetPath;
+
+    private volatile List<String> backgroundPrefix = Collections.emptyList();
+
+    private int configuredNice = -1;
+
+    private String configuredCpus;
+
+    /**
+     * @param nicePath
+     *            the path of nice, or null if there is none.
+     * @param ionicePath
+     *            the path of ionice, or null if there is none.
+     * @param tasksetPath
+     *            the path of taskset, or null if there is none.
+     */
+    public ProcessScheduling(String nicePath, String ionicePath, String tasksetPath) {
+        this.nicePath = nicePath;
+        this.ionicePath = ionicePath;
+        this.tasksetPath = tasksetPath;
+    }
+
+    public static ProcessScheduling getDefault() {
+        return INSTANCE;
+    }
+
+    private static ProcessScheduling createDefault() {
+        if (!System.getProperty("os.name", "").startsWith("Linux")) {
+            return new ProcessScheduling(null, null, null);
+        }
+        return new ProcessScheduling(findUtility(NICE), findUtility(IONICE), findUtility(TASKSET));
+    }
+
+    private static String findUtility(String name) {
+        String path = System.getenv("PATH");
+        if (path != null) {
+            for (String directory : path.split(File.pathSeparator)) {
+                File file = new File(directory, name);
+                if (!directory.isEmpty() && FilePathUtil.isFileRunnable(file.getPath())) {
+                    return file.getPath();
+                }
+            }
+        }
+        logInfo("%s not found, background clang-format processes run without it", name);
+        return null;
+    }
+
+    /**
+     * @param backgroundNice
+     *            the nice level of background processes, 0 to keep their
+     *            CPU and I/O priority.
+     * @param backgroundCpus
+     *            the CPUs background processes may run on, as a list like
+     *            <code>0,2-3</code>, or empty for all.
+     */
+    public synchronized void configure(int backgroundNice, String backgroundCpus) {
+        String cpus = backgroundCpus.trim();
+        if (backgroundNice == configuredNice && cpus.equals(configuredCpus)) {
+            return;
+        }
+        configuredNice = backgroundNice;
+        configuredCpus = cpus;
+
+        List<String> prefix = new ArrayList<>();
+        if (!cpus.isEmpty() && tasksetPath != null) {
+            if (CPU_LIST.matcher(cpus).matches()) {
+                addIfRunning(prefix, tasksetPath, "-c", cpus);
+            }
+            else {
+                logError("Ignoring invalid CPU list of background clang-format processes: " + cpus);
+            }
+        }
+        if (backgroundNice > 0) {
+            if (ionicePath != null) {
+                addIfRunning(prefix, ionicePath, "-c", IONICE_CLASS, "-n", IONICE_LEVEL);
+            }
+            if (nicePath != null) {
+                addIfRunning(prefix, nicePath, "-n", Integer.toString(Math.min(backgroundNice, MAX_NICE)));
+            }
+        }
+        backgroundPrefix = Collections.unmodifiableList(prefix);
+    }
+
+    private void addIfRunning(List<String> prefix, String... utility) {
+        List<String> command = Arrays.asList(utility);
+        if (runs(command)) {
+            prefix.addAll(command);
+        }
+    }
+
+    /**
+     * Tries the utility with its arguments on <code>true</code>.
+     *
+     * @return whether it ran and exec'ed the command.
+     */
+    protected boolean runs(List<String> utility) {
+        List<String> command = new ArrayList<>(utility);
+        command.add(TRUE);
+        String output;
+        try {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            if (!process.waitFor(PROBE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                output = "timed out";
+            }
+            else {
+                output = readFully(process.getInputStream());
+                if (process.exitValue() == 0) {
+                    return true;
+                }
+            }
+        }
+        catch (IOException e) {
+            output = e.getMessage();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            output = "interrupted";
+        }
+        logInfo("%s failed, background clang-format processes run without it: %s", String.join(" ", utility),
+                output);
+        return false;
+    }
+
+    private static String readFully(InputStream inputStream) throws IOException {
+        try (InputStream input = inputStream) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            for (int read = input.read(buffer); read >= 0; read = input.read(buffer)) {
+                output.write(buffer, 0, read);
+            }
+            return new String(output.toByteArray(), StandardCharsets.UTF_8).trim();
+        }
+    }
+
+    /**
+     * @return the command that runs the given one with the priority of the
+     *         lane.
+     */
+    public List<String> apply(Lane lane, List<String> commands) {
+        List<String> prefix = backgroundPrefix;
+        if (lane != Lane.BACKGROUND || prefix.isEmpty()) {
+            return commands;
+        }
+        List<String> scheduled = new ArrayList<>(prefix.size() + commands.size());
+        scheduled.addAll(prefix);
+        scheduled.addAll(commands);
+        return scheduled;
+    }
+}
@@ -5,14 +5,13 @@ import static org.wangzw.plugin.cppstyle.replacement.Logger.*;
 import java.io.IOException;
 import java.io.InputStream;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParserFactory;
-
 import org.eclipse.core.runtime.Status;
 import org.eclipse.jface.dialogs.ErrorDialog;
-import org.eclipse.text.edits.MultiTextEdit;
-import org.eclipse.text.edits.TextEdit;
-import org.wangzw.plugin.cppstyle.replacement.XMLReplacementHandler;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.ui.PlatformUI;
+import org.wangzw.plugin.cppstyle.replacement.ReplacementList;
+import org.wangzw.plugin.cppstyle.replacement.ReplacementsParser;
+import org.wangzw.plugin.cppstyle.replacement.Utf8OffsetIndex;
 import org.xml.sax.SAXException;
 
 public class ReplacementFormatter extends CodeFormatterBase {
@@ -27,39 +26,37 @@ public class ReplacementFormatter extends CodeFormatterBase {
         return new ProcessHandler(source) {
 
             @Override
-            protected void handleInputStream() {
-                textEdit = createEdit(process);
+            protected void handleInputStream() throws IOException {
+                replacements = createReplacements(process, offsetIndex, getSource());
             }
         };
     }
 
-    protected MultiTextEdit createEdit(Process subProc) {
-        XMLReplacementHandler replacementHandler = parseProcessOutput(subProc.getInputStream());
-        MultiTextEdit textEdit = new MultiTextEdit();
-        TextEdit edits[] = new TextEdit[0];
-        edits = replacementHandler.getEdits().toArray(edits);
-
-        if (edits.length != 0) {
-            textEdit.addChildren(edits);
-        }
-        return textEdit;
+    /**
+     * @param source
+     *            the formatted source, or null if it is not at hand.
+     * @throws IOException
+     *             if the output could not be read or parsed, which fails the
+     *             format instead of reporting no replacements.
+     */
+    protected ReplacementList createReplacements(Process subProc, Utf8OffsetIndex offsetIndex, CharSequence source)
+            throws IOException {
+        return parseProcessOutput(subProc.getInputStream(), offsetIndex, source);
     }
 
-    private XMLReplacementHandler parseProcessOutput(InputStream inputStream) {
-        XMLReplacementHandler replacementHandler = new XMLReplacementHandler();
+    private ReplacementList parseProcessOutput(InputStream inputStream, Utf8OffsetIndex offsetIndex,
+            CharSequence source) throws IOException {
         try {
             // read the edits
-            SAXParserFactory parserFactory = SAXParserFactory.newInstance();
-            parserFactory.newSAXParser().parse(inputStream, replacementHandler);
+            return ReplacementsParser.parse(inputStream, offsetIndex, source);
         }
         catch (IOException exception) {
             logAndDialogError("Could not read from stdout", exception);
+            throw exception;
         }
         catch (SAXException exception) {
             logAndDialogError("Could not parse xml", exception);
-        }
-        catch (ParserConfigurationException exception) {
-            logAndDialogError("Parser problem", exception);
+            throw new IOException("Could not parse xml", exception);
         }
         finally {
             try {
@@ -69,12 +66,22 @@ public class ReplacementFormatter extends CodeFormatterBase {
                 logError(e.getMessage(), e);
             }
         }
-        return replacementHandler;
     }
 
+    /**
+     * Parsing runs on save jobs, pipeline workers and pump threads, so the
+     * dialog is opened on the UI thread, and not at all without a workbench.
+     */
     private void logAndDialogError(String title, Exception e) {
         logError(title, e);
-        ErrorDialog.openError(null, title, null, new Status(Status.ERROR, CppStyle.PLUGIN_ID, e.getMessage(), e));
+        Runnable dialog = () -> ErrorDialog.openError(
+                null, title, null, new Status(Status.ERROR, CppStyle.PLUGIN_ID, e.getMessage(), e));
+        if (Display.getCurrent() != null) {
+            dialog.run();
+        }
+        else if (PlatformUI.isWorkbenchRunning()) {
+            Display.getDefault().asyncExec(dialog);
+        }
     }
 
 }
@@ -0,0 +1,183 @@
+package org.wangzw.plugin.cppstyle;
+
+import static org.wangzw.plugin.cppstyle.replacement.Logger.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.text.edits.MalformedTreeException;
+import org.eclipse.text.edits.TextEdit;
+import org.eclipse.text.undo.DocumentUndoManagerRegistry;
+import org.eclipse.text.undo.IDocumentUndoManager;
+
+/**
+ * Formats a snapshot of a document in the background, so a save does not wait
+ * for clang-format longer than the latency budget.
+ * <p>
+ * The saving thread waits for the edits up to the budget and applies them as
+ * part of the save. A slower format lets the save complete, and its edits
+ * follow on the UI thread as an undoable change of their own. If the document
+ * was modified in the meantime, the edits are moved through the modifications
+ * by an {@link EditRebaser}, and only those that overlap one are dropped.
+ */
+final class SaveFormatJob extends Job {
+
+    private final CodeFormatterBase formatter;
+
+    private final IDocument document;
+
+    private final String path;
+
+    private final String snapshot;
+
+    // null to format the whole snapshot
+    private final IRegion[] regions;
+
+    private final EditRebaser changes;
+
+    private TextEdit edit;
+
+    private boolean done;
+
+    private boolean late;
+
+    private SaveFormatJob(CodeFormatterBase formatter, IDocument document, String path, IRegion[] regions) {
+        super("Format on save");
+        this.formatter = formatter;
+        this.document = document;
+        this.path = path;
+        this.snapshot = document.get();
+        this.regions = regions;
+        this.changes = EditRebaser.connect(document);
+        setSystem(true);
+        setPriority(INTERACTIVE);
+    }
+
+    /**
+     * Takes a snapshot of the document and starts formatting it. Must be called
+     * by the thread that modifies the document.
+     *
+     * @return the job, or null if nothing was modified since the last format.
+     */
+    static SaveFormatJob start(CodeFormatterBase formatter, IDocument document, String path) {
+        DirtyRegionTracker tracker = DirtyRegionTracker.connect(document);
+        IRegion[] regions = tracker.getDirtyRegions(document);
+        if (regions != null && regions.length == 0) {
+            return null;
+        }
+        // modifications from now on are left to the next format
+        tracker.clear();
+        SaveFormatJob job = new SaveFormatJob(formatter, document, path, regions);
+        job.schedule();
+        return job;
+    }
+
+    @Override
+    protected IStatus run(IProgressMonitor monitor) {
+        TextEdit result = null;
+        try {
+            result = formatter.format(snapshot, path, regions != null ? regions : new IRegion[0]);
+        }
+        finally {
+            complete(result);
+        }
+        return Status.OK_STATUS;
+    }
+
+    /**
+     * Waits for the edits. If they are not there in time, they are applied on
+     * the UI thread once they are.
+     *
+     * @param budgetMillis
+     *            how long to wait, negative to wait until they are there.
+     * @return whether the edits are there and may be applied by the caller.
+     */
+    synchronized boolean await(long budgetMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        try {
+            while (budgetMillis < 0 && !done) {
+                wait();
+            }
+            for (long remaining = deadline - System.nanoTime(); !done && remaining > 0;
+                    remaining = deadline - System.nanoTime()) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        late = !done;
+        return done;
+    }
+
+    /**
+     * Applies the edits, moved through the modifications of the document since
+     * the snapshot. Must be called by the thread that modifies the document.
+     * Late edits are dropped if the editor of the document was closed
+     * meanwhile.
+     */
+    void apply() {
+        changes.disconnect();
+        IDocumentUndoManager manager = DocumentUndoManagerRegistry.getDocumentUndoManager(document);
+        if (manager == null && isLate()) {
+            logInfo("Dropped the edits of %s, its editor was closed while formatting", path);
+            return;
+        }
+
+        DirtyRegionTracker tracker = DirtyRegionTracker.connect(document);
+        if (edit == null) {
+            tracker.invalidate();
+            return;
+        }
+
+        TextEdit rebased = edit;
+        if (changes.hasChanges()) {
+            rebased = changes.rebase(edit);
+            logInfo("Dropped %d edits that overlap changes made while formatting", changes.getDropped());
+        }
+
+        if (manager != null) {
+            manager.beginCompoundChange();
+        }
+        tracker.setTracking(false);
+
+        try {
+            DocumentEditApplier.apply(document, rebased);
+        }
+        catch (MalformedTreeException e) {
+            CppStyle.log("Failed to apply change", e);
+        }
+        catch (BadLocationException e) {
+            CppStyle.log("Failed to apply change", e);
+        }
+        finally {
+            tracker.setTracking(true);
+        }
+
+        if (manager != null) {
+            manager.endCompoundChange();
+        }
+    }
+
+    private synchronized boolean isLate() {
+        return late;
+    }
+
+    private void complete(TextEdit result) {
+        synchronized (this) {
+            edit = result;
+            done = true;
+            notifyAll();
+            if (!late) {
+                return;
+            }
+        }
+        formatter.applyLate(this::apply);
+    }
+}
@@ -0,0 +1,267 @@
+package org.wangzw.plugin.cppstyle;
+
+import static org.wangzw.plugin.cppstyle.replacement.Logger.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.wangzw.plugin.cppstyle.ProcessAdmission.Lane;
+import org.wangzw.plugin.cppstyle.replacement.ReplacementsParser;
+import org.wangzw.plugin.cppstyle.replacement.Utf8OffsetIndex;
+import org.xml.sax.SAXException;
+
+/**
+ * Sends formats to a formatting server on the loopback interface, which keeps
+ * clang-format warm for the whole session, over one persistent connection.
+ * The plug-in does not start such a server, an integration that runs one sets
+ * the backend with {@link CodeFormatterBase#setBackend(FormatterBackend)}.
+ * <p>
+ * All integers are 4 byte big-endian, all strings UTF-8. A request is the
+ * number of parameters, each parameter as length and bytes (the executable is
+ * left out, the server knows its clang-format), and then the source as a
+ * sequence of chunks of length and bytes, ended by a chunk of length 0. The
+ * response is the exit code, followed by the replacements XML and the error
+ * output, each as length and bytes.
+ */
+public final class ServerFormatterBackend implements FormatterBackend {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    private static final int READ_TIMEOUT_MILLIS = 15000;
+
+    // sanity limit, a larger length means the stream is out of sync
+    private static final int MAX_FRAME_LENGTH = 256 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final Map<Integer, ServerFormatterBackend> BACKENDS = new HashMap<>();
+
+    private final int port;
+
+    private final ReentrantLock turnLock = new ReentrantLock();
+
+    private final Condition interactiveTurn = turnLock.newCondition();
+
+    private final Condition backgroundTurn = turnLock.newCondition();
+
+    private boolean busy;
+
+    private int waitingInteractive;
+
+    private Socket socket;
+
+    private DataInputStream input;
+
+    private DataOutputStream output;
+
+    private ServerFormatterBackend(int port) {
+        this.port = port;
+    }
+
+    /**
+     * @return the backend for the server on the given loopback port, shared by
+     *         all formatters.
+     */
+    public static synchronized ServerFormatterBackend forPort(int port) {
+        return BACKENDS.computeIfAbsent(port, ServerFormatterBackend::new);
+    }
+
+    public static synchronized void closeAll() {
+        for (ServerFormatterBackend backend : BACKENDS.values()) {
+            backend.close();
+        }
+        BACKENDS.clear();
+    }
+
+    /**
+     * The connection carries one request at a time. Requests wait for it in
+     * the lane of their thread, see {@link ProcessAdmission#getLane()}, and an
+     * interactive format overtakes all waiting background ones. No process is
+     * started, so the {@link ProcessAdmission} is not involved.
+     */
+    @Override
+    public FormatResult format(List<String> commands, String source, boolean standardParameters)
+            throws IOException, InterruptedException {
+        awaitTurn(ProcessAdmission.getLane());
+        try {
+            return exchangeOrClose(commands, source);
+        }
+        finally {
+            endTurn();
+        }
+    }
+
+    public synchronized void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                logError("Could not close the connection to the formatting server", e);
+            }
+            socket = null;
+            input = null;
+            output = null;
+        }
+    }
+
+    private void awaitTurn(Lane lane) throws InterruptedException {
+        turnLock.lockInterruptibly();
+        try {
+            if (lane == Lane.INTERACTIVE) {
+                waitingInteractive++;
+                try {
+                    while (busy) {
+                        interactiveTurn.await();
+                    }
+                }
+                finally {
+                    waitingInteractive--;
+                }
+            }
+            else {
+                while (busy || waitingInteractive > 0) {
+                    backgroundTurn.await();
+                }
+            }
+            busy = true;
+        }
+        finally {
+            turnLock.unlock();
+        }
+    }
+
+    private void endTurn() {
+        turnLock.lock();
+        try {
+            busy = false;
+            if (waitingInteractive > 0) {
+                interactiveTurn.signalAll();
+            }
+            else {
+                backgroundTurn.signalAll();
+            }
+        }
+        finally {
+            turnLock.unlock();
+        }
+    }
+
+    /**
+     * A broken connection is dropped and opened again by the next request.
+     */
+    private synchronized FormatResult exchangeOrClose(List<String> commands, String source)
+            throws IOException {
+        try {
+            return exchange(commands, source);
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private FormatResult exchange(List<String> commands, String source) throws IOException {
+        connect();
+
+        List<String> parameters = commands.subList(1, commands.size());
+        output.writeInt(parameters.size());
+        for (String parameter : parameters) {
+            writeFrame(parameter.getBytes(StandardCharsets.UTF_8));
+        }
+        Utf8OffsetIndex offsetIndex = Utf8OffsetIndex.write(source, new ChunkOutputStream(output));
+        output.writeInt(0);
+        output.flush();
+
+        int code = input.readInt();
+        byte[] replacements = readFrame();
+        String error = new String(readFrame(), StandardCharsets.UTF_8);
+        if (code != 0 || !error.isEmpty()) {
+            return FormatResult.failure(code, error);
+        }
+
+        try {
+            return FormatResult.success(
+                    ReplacementsParser.parse(replacements, 0, replacements.length, offsetIndex, source));
+        }
+        catch (SAXException e) {
+            throw new IOException("Could not parse xml", e);
+        }
+    }
+
+    private void connect() throws IOException {
+        if (socket != null) {
+            return;
+        }
+        Socket newSocket = new Socket();
+        try {
+            newSocket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT_MILLIS);
+            newSocket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            newSocket.setTcpNoDelay(true);
+            input = new DataInputStream(new BufferedInputStream(newSocket.getInputStream(), BUFFER_SIZE));
+            output = new DataOutputStream(new BufferedOutputStream(newSocket.getOutputStream(), BUFFER_SIZE));
+        }
+        catch (IOException e) {
+            newSocket.close();
+            throw e;
+        }
+        socket = newSocket;
+    }
+
+    private void writeFrame(byte[] bytes) throws IOException {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private byte[] readFrame() throws IOException {
+        int length = input.readInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length " + length + " from the formatting server");
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Frames every block the encoder writes as one source chunk.
+     */
+    private static class ChunkOutputStream extends FilterOutputStream {
+
+        ChunkOutputStream(DataOutputStream output) {
+            super(output);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // a chunk of length 0 ends the source
+            if (len > 0) {
+                ((DataOutputStream)out).writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the connection stays open for the next request
+        }
+    }
+}
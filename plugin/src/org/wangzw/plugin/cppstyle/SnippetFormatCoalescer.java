@@ -0,0 +1,308 @@
+package org.wangzw.plugin.cppstyle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.eclipse.jdt.core.formatter.CodeFormatter;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.Region;
+import org.eclipse.text.edits.MultiTextEdit;
+import org.eclipse.text.edits.TextEdit;
+
+/**
+ * Formats bursts of small snippets, as refactorings, quick fixes and templates
+ * request them, with one clang-format call instead of one per snippet.
+ * <p>
+ * A request is formatted right away unless a format for the same file path is
+ * still running, so sequential requests never wait. Otherwise it opens a batch
+ * that the other requests for the path join until the running formats are
+ * done. The snippets of a batch are joined into one source, separated by a
+ * line comment, and formatted at once. The replacements are split back into edits per snippet,
+ * dropping what they change of the separators where that is whitespace
+ * clang-format only moved. A snippet whose replacements reach into a separator
+ * otherwise, or a batch that fails, is formatted on its own.
+ * <p>
+ * Only balanced statements and class body declarations are joined, as their
+ * formatting does not depend on what follows them.
+ */
+public final class SnippetFormatCoalescer {
+
+    // larger sources are whole files, which are not formatted in bursts
+    private static final int MAX_SNIPPET_LENGTH = 8192;
+
+    private static final int MAX_BATCH_SIZE = 64;
+
+    static final String SENTINEL = "// clangformat4j snippet boundary";
+
+    private static final String SEPARATOR = "\n" + SENTINEL + "\n";
+
+    private static final SnippetFormatCoalescer INSTANCE = new SnippetFormatCoalescer();
+
+    private final Map<String, Batch> openBatches = new HashMap<>();
+
+    // the formats running per path, alone or batched
+    private final Map<String, Integer> running = new HashMap<>();
+
+    private SnippetFormatCoalescer() {
+    }
+
+    public static SnippetFormatCoalescer getDefault() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return whether the snippet may be formatted together with others.
+     */
+    public static boolean isCoalescable(int kind, String source, IRegion[] regions) {
+        int snippetKind = kind & ~CodeFormatter.F_INCLUDE_COMMENTS;
+        if (snippetKind != CodeFormatter.K_STATEMENTS && snippetKind != CodeFormatter.K_CLASS_BODY_DECLARATIONS) {
+            return false;
+        }
+        if (regions == null || source.length() > MAX_SNIPPET_LENGTH || source.contains(SENTINEL)) {
+            return false;
+        }
+        return isBalanced(source);
+    }
+
+    /**
+     * Formats the snippet, together with others that arrive at the same time.
+     *
+     * @param path
+     *            the file path clang-format looks up the style for, only
+     *            snippets with the same path are joined.
+     * @param formatter
+     *            formats a source, alone or joined with others.
+     * @return the edits for the snippet, or null if it could not be formatted.
+     */
+    public TextEdit format(String path, String source, IRegion[] regions, SnippetFormatter formatter) {
+        Request request = new Request(source, regions);
+        Batch joined;
+        Batch opened = null;
+        synchronized (this) {
+            joined = openBatches.get(path);
+            if (joined != null) {
+                joined.requests.add(request);
+                if (joined.requests.size() == MAX_BATCH_SIZE) {
+                    openBatches.remove(path);
+                    notifyAll();
+                }
+            }
+            else if (running.containsKey(path)) {
+                opened = new Batch(request);
+                openBatches.put(path, opened);
+            }
+            else {
+                running.put(path, 1);
+            }
+        }
+
+        if (opened != null) {
+            close(path, opened);
+            try {
+                if (opened.requests.size() == 1) {
+                    return formatter.format(source, regions);
+                }
+                formatBatch(opened.requests, formatter);
+            }
+            finally {
+                for (Request member : opened.requests) {
+                    member.result.complete(null);
+                }
+                finished(path);
+            }
+        }
+        else if (joined == null) {
+            try {
+                return formatter.format(source, regions);
+            }
+            finally {
+                finished(path);
+            }
+        }
+
+        TextEdit edit = awaitResult(request);
+        return edit != null ? edit : formatter.format(source, regions);
+    }
+
+    /**
+     * Waits for others to join the batch until the formats running for the path
+     * are done or the batch is full, no request joins it afterwards.
+     */
+    private synchronized void close(String path, Batch batch) {
+        try {
+            while (running.containsKey(path) && openBatches.get(path) == batch) {
+                wait();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        openBatches.remove(path, batch);
+        running.merge(path, 1, Integer::sum);
+    }
+
+    private synchronized void finished(String path) {
+        running.computeIfPresent(path, (key, count) -> count > 1 ? count - 1 : null);
+        notifyAll();
+    }
+
+    private static TextEdit awaitResult(Request request) {
+        try {
+            return request.result.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private void formatBatch(List<Request> requests, SnippetFormatter formatter) {
+        StringBuilder combined = new StringBuilder();
+        List<IRegion> regions = new ArrayList<>();
+        int[] starts = new int[requests.size()];
+        for (int i = 0; i < requests.size(); i++) {
+            if (i > 0) {
+                combined.append(SEPARATOR);
+            }
+            starts[i] = combined.length();
+            Request request = requests.get(i);
+            combined.append(request.source);
+            for (IRegion region : request.regions) {
+                regions.add(new Region(starts[i] + region.getOffset(), region.getLength()));
+            }
+        }
+
+        TextEdit edit = formatter.format(combined.toString(), regions.toArray(new IRegion[regions.size()]));
+        if (edit == null) {
+            return;
+        }
+
+        MultiTextEdit[] edits = split(combined, starts, requests, edit.getChildren());
+        for (int i = 0; i < edits.length; i++) {
+            requests.get(i).result.complete(edits[i]);
+        }
+    }
+
+    /**
+     * @return the edits of every snippet, null for those whose edits reach into
+     *         a separator.
+     */
+    private static MultiTextEdit[] split(CharSequence combined, int[] starts, List<Request> requests,
+            TextEdit[] children) {
+        MultiTextEdit[] edits = new MultiTextEdit[requests.size()];
+        for (int i = 0; i < edits.length; i++) {
+            edits[i] = new MultiTextEdit();
+        }
+
+        for (TextEdit child : children) {
+            String text = DocumentEditApplier.getText(child);
+            if (text == null) {
+                Arrays.fill(edits, null);
+                break;
+            }
+            int offset = child.getOffset();
+            int end = child.getExclusiveEnd();
+            int snippet = findSnippet(starts, end);
+
+            int snippetStart = starts[snippet];
+            int snippetEnd = snippetStart + requests.get(snippet).source.length();
+            // the whitespace of the separator around the snippet may come back unchanged
+            if (offset < snippetStart) {
+                String prefix = combined.subSequence(offset, snippetStart).toString();
+                if (text.startsWith(prefix)) {
+                    text = text.substring(prefix.length());
+                    offset = snippetStart;
+                }
+            }
+            if (end > snippetEnd) {
+                String suffix = combined.subSequence(snippetEnd, end).toString();
+                if (text.endsWith(suffix)) {
+                    text = text.substring(0, text.length() - suffix.length());
+                    end = snippetEnd;
+                }
+            }
+
+            if (offset < snippetStart || end > snippetEnd) {
+                for (int i = findSnippet(starts, offset); i <= snippet; i++) {
+                    edits[i] = null;
+                }
+            }
+            else if (edits[snippet] != null && (offset < end || !text.isEmpty())) {
+                edits[snippet].addChild(DocumentEditApplier.createEdit(offset - snippetStart, end - offset, text));
+            }
+        }
+        return edits;
+    }
+
+    /**
+     * @return the index of the last snippet that starts at or before the
+     *         offset.
+     */
+    private static int findSnippet(int[] starts, int offset) {
+        int index = Arrays.binarySearch(starts, offset);
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    /**
+     * @return whether the brackets are balanced and the source ends a
+     *         statement or declaration, so the next snippet starts on the same
+     *         indentation as it would on its own.
+     */
+    private static boolean isBalanced(String source) {
+        int depth = 0;
+        char last = 0;
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (c == '{' || c == '(' || c == '[') {
+                depth++;
+            }
+            else if (c == '}' || c == ')' || c == ']') {
+                if (--depth < 0) {
+                    return false;
+                }
+            }
+            if (!WhitespaceAwareDiff.isWhitespace(c)) {
+                last = c;
+            }
+        }
+        return depth == 0 && (last == ';' || last == '}');
+    }
+
+    /**
+     * Formats a source, used for a single snippet as well as for joined ones.
+     */
+    public interface SnippetFormatter {
+        TextEdit format(String source, IRegion[] regions);
+    }
+
+    private static final class Request {
+
+        private final String source;
+
+        private final IRegion[] regions;
+
+        private final CompletableFuture<TextEdit> result = new CompletableFuture<>();
+
+        Request(String source, IRegion[] regions) {
+            this.source = source;
+            this.regions = regions;
+        }
+    }
+
+    private static final class Batch {
+
+        private final List<Request> requests = new ArrayList<>();
+
+        Batch(Request first) {
+            requests.add(first);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.wangzw.plugin.cppstyle;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Function;
+
+import org.wangzw.plugin.cppstyle.ProcessAdmission.Lane;
+
+/**
+ * Starts one clang-format process per format, or takes one from the
+ * {@link ProcessPool}, and pumps its streams with the {@link ProcessHandler}
+ * of the formatter. The {@link ProcessAdmission} decides when a format may
+ * run.
+ */
+class SpawnFormatterBackend implements FormatterBackend {
+
+    private final Function<String, ProcessHandler> processHandlerFactory;
+
+    SpawnFormatterBackend(Function<String, ProcessHandler> processHandlerFactory) {
+        this.processHandlerFactory = processHandlerFactory;
+    }
+
+    @Override
+    public FormatResult format(List<String> commands, String source, boolean standardParameters)
+            throws IOException, InterruptedException {
+        ProcessHandler processHandler = processHandlerFactory.apply(source);
+        for (String command : commands) {
+            processHandler.addParameter(command);
+        }
+        // pooled processes run with interactive priority
+        if (standardParameters && processHandler.getLane() == Lane.INTERACTIVE) {
+            processHandler.usePool(ProcessPool.getDefault());
+        }
+
+        ProcessAdmission.Permit permit = ProcessAdmission.getDefault().acquire(processHandler.getLane());
+        boolean success = false;
+        try {
+            processHandler.start();
+            processHandler.handleInputStream();
+            processHandler.handleErrorStream();
+            success = processHandler.success() && !processHandler.hasErrors();
+        }
+        finally {
+            permit.release(success ? source.length() : 0);
+        }
+
+        if (!success) {
+            return FormatResult.failure(processHandler.getCode(), processHandler.getError());
+        }
+        return FormatResult.success(processHandler.getReplacements());
+    }
+}
@@ -1,75 +1,138 @@
 package org.wangzw.plugin.cppstyle;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 
 public abstract class ThreadedProcessHandler extends ProcessHandler {
 
-    static final ExecutorService executorService = Executors.newCachedThreadPool();
-
     private static final String SUCCCESS = "succcess";
 
     private static final String HANDLE_ERROR_STREAM = "handleErrorStream";
 
     private static final String HANDLE_INPUT_STREAM = "handleInputStream";
 
+    private final ProcessIoExecutor executor = ProcessIoExecutor.getDefault();
+
     private Future<Boolean> inputStreamFuture;
 
     private Future<Boolean> errorStreamFuture;
 
+    private File errorFile;
+
+    // set by the input pump if the output could not be read or parsed
+    private volatile IOException inputError;
+
     public ThreadedProcessHandler(String source) {
         super(source);
     }
 
+    @Override
+    protected Process startProcess(List<String> commands) throws IOException {
+        if (!executor.redirectsErrorStream()) {
+            return super.startProcess(commands);
+        }
+        errorFile = File.createTempFile("clang-format", ".err");
+        try {
+            return createProcessBuilder(commands, getLane()).redirectError(errorFile).start();
+        }
+        catch (IOException e) {
+            deleteErrorFile();
+            throw e;
+        }
+    }
+
     @Override
     protected void handleInputStream() throws IOException {
-        inputStreamFuture = executorService.submit(() -> {
+        inputStreamFuture = executor.submit(() -> {
             try {
                 handleInputStreamInternal();
             }
             catch (IOException e) {
-                logException(HANDLE_INPUT_STREAM, e);
+                // reported by success(), errout may not exist yet
+                CppStyle.log(e.getMessage(), e);
+                inputError = e;
             }
-        }, Boolean.TRUE);
+        });
     }
 
     protected abstract void handleInputStreamInternal() throws IOException;
 
     @Override
     protected void handleErrorStream() throws IOException {
-        errorStreamFuture = executorService.submit(() -> {
+        if (errorFile != null) {
+            // stderr goes to errorFile, which is read once the process has ended
+            errout = new StringBuilder();
+            return;
+        }
+        errorStreamFuture = executor.submit(() -> {
             try {
                 super.handleErrorStream();
             }
             catch (IOException e) {
                 logException(HANDLE_ERROR_STREAM, e);
             }
-        }, Boolean.TRUE);
+        });
     }
 
     @Override
     public boolean success() throws InterruptedException {
         boolean success = false;
         try {
-            Boolean inputFutureReturnValue = inputStreamFuture.get(TIMEOUT, SECONDS);
+            Boolean inputFutureReturnValue = inputStreamFuture.get(getTimeout(), SECONDS);
             Boolean errorFutureReturnValue = Boolean.FALSE;
             if (inputFutureReturnValue) {
-                errorFutureReturnValue = errorStreamFuture.get(TIMEOUT, SECONDS);
+                errorFutureReturnValue =
+                        errorFile != null ? Boolean.TRUE : errorStreamFuture.get(getTimeout(), SECONDS);
             }
             success = inputFutureReturnValue && errorFutureReturnValue;
         }
-        catch (ExecutionException | TimeoutException e) {
+        catch (ExecutionException e) {
             logException(SUCCCESS, e);
         }
-        return super.success() && success;
+        catch (TimeoutException e) {
+            // ends the pumps, which block on the streams of the process
+            destroyOnTimeout();
+        }
+        boolean processSuccess = super.success();
+        if (errorFile != null) {
+            readErrorFile();
+        }
+        if (inputError != null) {
+            appendException(HANDLE_INPUT_STREAM, inputError);
+            success = false;
+        }
+        return processSuccess && success;
+    }
+
+    private void readErrorFile() {
+        try {
+            errout.append(new String(Files.readAllBytes(errorFile.toPath()), Charset.defaultCharset()));
+        }
+        catch (IOException e) {
+            logException(HANDLE_ERROR_STREAM, e);
+        }
+        deleteErrorFile();
+    }
+
+    private void deleteErrorFile() {
+        if (!errorFile.delete()) {
+            errorFile.deleteOnExit();
+        }
+        errorFile = null;
     }
 
     private void logException(String methodName, Throwable e) {
         CppStyle.log(e.getMessage(), e);
+        appendException(methodName, e);
+    }
+
+    private void appendException(String methodName, Throwable e) {
         errout.append(String.format("Exception occured during %s\n%s", methodName, e.getMessage()));
     }
 }
@@ -1,7 +1,6 @@
 package org.wangzw.plugin.cppstyle;
 
 import java.io.IOException;
-import java.util.concurrent.ThreadPoolExecutor;
 
 public class ThreadedReplacementFormatter extends ReplacementFormatter {
 
@@ -11,12 +10,12 @@ public class ThreadedReplacementFormatter extends ReplacementFormatter {
         return new ThreadedProcessHandler(source) {
             @Override
             protected void handleInputStreamInternal() throws IOException {
-                textEdit = createEdit(process);
+                replacements = createReplacements(process, offsetIndex, getSource());
             }
         };
     }
 
-    protected static ThreadPoolExecutor getThreadPoolExecuter() {
-        return (ThreadPoolExecutor)ThreadedProcessHandler.executorService;
+    protected static ProcessIoStatistics getProcessIoStatistics() {
+        return ProcessIoExecutor.getDefault().getStatistics();
     }
 }
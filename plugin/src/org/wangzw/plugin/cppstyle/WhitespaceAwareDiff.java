@@ -0,0 +1,310 @@
+package org.wangzw.plugin.cppstyle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.eclipse.text.edits.DeleteEdit;
+import org.eclipse.text.edits.InsertEdit;
+import org.eclipse.text.edits.MultiTextEdit;
+import org.eclipse.text.edits.ReplaceEdit;
+import org.eclipse.text.edits.TextEdit;
+import org.wangzw.plugin.cppstyle.diff_match_patch.Operation;
+
+/**
+ * Computes the edits that turn a source into its formatted version.
+ * <p>
+ * Formatting mostly changes whitespace, so the characters that are not
+ * whitespace are aligned in one pass over both texts, and the whitespace
+ * between two aligned characters is replaced where it differs. Only where the
+ * other characters differ too, e.g. because includes were sorted, a small
+ * region around the difference is diffed with {@link ArrayDiff}.
+ * <p>
+ * Large texts are split at lines that occur once in both texts and diffed
+ * segment by segment on a fork/join pool.
+ */
+public final class WhitespaceAwareDiff {
+
+    // how many characters a difference may insert or remove before it is left to the fallback
+    private static final int MAX_SKEW = 64;
+
+    // how many characters must match after a difference to trust the alignment
+    private static final int CONFIRM_LENGTH = 16;
+
+    // after this many differences the rest is diffed as a whole
+    private static final int MAX_RESYNCS = 256;
+
+    // the default of diff_match_patch, in seconds
+    private static final float DIFF_TIMEOUT = 1.0f;
+
+    // smaller texts are not worth splitting
+    private static final int PARALLEL_THRESHOLD_LINES = 4096;
+
+    // a segment should give a fork/join task enough to do
+    private static final int MIN_SEGMENT_LINES = 1024;
+
+    private final String source;
+
+    private final String target;
+
+    private final int sourceEnd;
+
+    private final int targetEnd;
+
+    private final int[] sourceChars;
+
+    private final int[] targetChars;
+
+    private final List<TextEdit> edits = new ArrayList<>();
+
+    private WhitespaceAwareDiff(String source, int sourceStart, int sourceEnd, String target, int targetStart,
+            int targetEnd) {
+        this.source = source;
+        this.target = target;
+        this.sourceEnd = sourceEnd;
+        this.targetEnd = targetEnd;
+        this.sourceChars = nonWhitespacePositions(source, sourceStart, sourceEnd);
+        this.targetChars = nonWhitespacePositions(target, targetStart, targetEnd);
+    }
+
+    /**
+     * @return the edits that turn the source into the target. Large texts are
+     *         diffed on the common fork/join pool.
+     */
+    public static MultiTextEdit diff(String source, String target) {
+        return diff(source, target, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param pool
+     *            the pool to diff the segments of large texts on, or null to
+     *            diff them in the calling thread.
+     * @return the edits that turn the source into the target.
+     */
+    public static MultiTextEdit diff(String source, String target, ForkJoinPool pool) {
+        List<TextEdit> edits;
+        int[] splits = pool != null && pool.getParallelism() > 1 ? split(source, target, pool.getParallelism()) : null;
+        if (splits == null) {
+            edits = diffSegment(source, 0, source.length(), target, 0, target.length());
+        }
+        else {
+            edits = pool.invoke(new SegmentTask(source, target, splits, 0, splits.length / 2 - 2));
+        }
+
+        MultiTextEdit edit = new MultiTextEdit();
+        if (!edits.isEmpty()) {
+            edit.addChildren(edits.toArray(new TextEdit[edits.size()]));
+        }
+        return edit;
+    }
+
+    private static List<TextEdit> diffSegment(String source, int sourceStart, int sourceEnd, String target,
+            int targetStart, int targetEnd) {
+        WhitespaceAwareDiff diff = new WhitespaceAwareDiff(source, sourceStart, sourceEnd, target, targetStart,
+                targetEnd);
+        diff.align(sourceStart, targetStart);
+        return diff.edits;
+    }
+
+    /**
+     * @return the offsets at which both texts are split into segments, source
+     *         and target offset one after the other and starting with 0 and
+     *         ending with the lengths, or null if they are not worth
+     *         splitting.
+     */
+    private static int[] split(String source, String target, int parallelism) {
+        int lines = DiffAnchors.countLines(source);
+        if (lines < PARALLEL_THRESHOLD_LINES) {
+            return null;
+        }
+        int segmentLines = Math.max(MIN_SEGMENT_LINES, lines / (4 * parallelism));
+        int[] splits = DiffAnchors.find(source, target, segmentLines);
+        return splits.length > 4 ? splits : null;
+    }
+
+    private void align(int sourceGap, int targetGap) {
+        int p = 0;
+        int q = 0;
+        int resyncs = 0;
+
+        for (;;) {
+            if (p == sourceChars.length && q == targetChars.length) {
+                addGapEdit(sourceGap, sourceEnd, targetGap, targetEnd);
+                return;
+            }
+
+            if (p < sourceChars.length && q < targetChars.length
+                    && source.charAt(sourceChars[p]) == target.charAt(targetChars[q])) {
+                addGapEdit(sourceGap, sourceChars[p], targetGap, targetChars[q]);
+                sourceGap = sourceChars[p] + 1;
+                targetGap = targetChars[q] + 1;
+                p++;
+                q++;
+                continue;
+            }
+
+            long next = ++resyncs <= MAX_RESYNCS ? resync(p, q) : -1;
+            int nextP;
+            int nextQ;
+            if (next >= 0) {
+                nextP = (int)(next >>> 32);
+                nextQ = (int)next;
+            }
+            else {
+                nextP = sourceChars.length;
+                nextQ = targetChars.length;
+                while (nextP > p && nextQ > q
+                        && source.charAt(sourceChars[nextP - 1]) == target.charAt(targetChars[nextQ - 1])) {
+                    nextP--;
+                    nextQ--;
+                }
+            }
+
+            int sourceResync = nextP < sourceChars.length ? sourceChars[nextP] : sourceEnd;
+            int targetResync = nextQ < targetChars.length ? targetChars[nextQ] : targetEnd;
+            addDiffEdits(sourceGap, sourceResync, targetGap, targetResync);
+            sourceGap = sourceResync;
+            targetGap = targetResync;
+            p = nextP;
+            q = nextQ;
+        }
+    }
+
+    /**
+     * Looks for the nearest positions after a difference at which the
+     * characters align again.
+     *
+     * @return the positions packed into a long, or -1 if there are none close
+     *         by.
+     */
+    private long resync(int p, int q) {
+        for (int distance = 1; distance <= MAX_SKEW; distance++) {
+            for (int skipped = 0; skipped <= distance; skipped++) {
+                int nextP = p + skipped;
+                int nextQ = q + distance - skipped;
+                if (nextP <= sourceChars.length && nextQ <= targetChars.length && matches(nextP, nextQ)) {
+                    return (long)nextP << 32 | nextQ;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(int p, int q) {
+        for (int i = 0; i < CONFIRM_LENGTH; i++, p++, q++) {
+            if (p == sourceChars.length || q == targetChars.length) {
+                return p == sourceChars.length && q == targetChars.length;
+            }
+            if (source.charAt(sourceChars[p]) != target.charAt(targetChars[q])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the whitespace between two aligned characters, leaving out
+     * what both gaps start and end with.
+     */
+    private void addGapEdit(int sourceStart, int sourceEnd, int targetStart, int targetEnd) {
+        while (sourceStart < sourceEnd && targetStart < targetEnd
+                && source.charAt(sourceStart) == target.charAt(targetStart)) {
+            sourceStart++;
+            targetStart++;
+        }
+        while (sourceStart < sourceEnd && targetStart < targetEnd
+                && source.charAt(sourceEnd - 1) == target.charAt(targetEnd - 1)) {
+            sourceEnd--;
+            targetEnd--;
+        }
+
+        if (sourceStart == sourceEnd) {
+            if (targetStart < targetEnd) {
+                edits.add(new InsertEdit(sourceStart, target.substring(targetStart, targetEnd)));
+            }
+        }
+        else if (targetStart == targetEnd) {
+            edits.add(new DeleteEdit(sourceStart, sourceEnd - sourceStart));
+        }
+        else {
+            String text = target.substring(targetStart, targetEnd);
+            edits.add(new ReplaceEdit(sourceStart, sourceEnd - sourceStart, text));
+        }
+    }
+
+    private void addDiffEdits(int sourceStart, int sourceEnd, int targetStart, int targetEnd) {
+        ArrayDiff.diff(source, sourceStart, sourceEnd, target, targetStart, targetEnd, DIFF_TIMEOUT,
+                (operation, start1, start2, length) -> {
+                    if (length == 0) {
+                        return;
+                    }
+                    if (operation == Operation.INSERT) {
+                        edits.add(new InsertEdit(start1, target.substring(start2, start2 + length)));
+                    }
+                    else if (operation == Operation.DELETE) {
+                        edits.add(new DeleteEdit(start1, length));
+                    }
+                });
+    }
+
+    private static int[] nonWhitespacePositions(String text, int start, int end) {
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (!isWhitespace(text.charAt(i))) {
+                count++;
+            }
+        }
+        int[] positions = new int[count];
+        for (int i = start, j = 0; j < count; i++) {
+            if (!isWhitespace(text.charAt(i))) {
+                positions[j++] = i;
+            }
+        }
+        return positions;
+    }
+
+    static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000B';
+    }
+
+    /**
+     * Diffs a range of segments, splitting it in halves until one is left.
+     */
+    private static final class SegmentTask extends RecursiveTask<List<TextEdit>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String source;
+
+        private final String target;
+
+        private final int[] splits;
+
+        private final int first;
+
+        private final int last;
+
+        SegmentTask(String source, String target, int[] splits, int first, int last) {
+            this.source = source;
+            this.target = target;
+            this.splits = splits;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected List<TextEdit> compute() {
+            if (first == last) {
+                return diffSegment(source, splits[2 * first], splits[2 * first + 2], target, splits[2 * first + 1],
+                        splits[2 * first + 3]);
+            }
+            int middle = (first + last) >>> 1;
+            SegmentTask tail = new SegmentTask(source, target, splits, middle + 1, last);
+            tail.fork();
+            List<TextEdit> edits = new SegmentTask(source, target, splits, first, middle).compute();
+            edits.addAll(tail.join());
+            return edits;
+        }
+    }
+}
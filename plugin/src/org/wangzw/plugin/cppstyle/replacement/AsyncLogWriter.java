@@ -0,0 +1,180 @@
+package org.wangzw.plugin.cppstyle.replacement;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.eclipse.core.runtime.IStatus;
+
+/**
+ * Hands log entries from any thread to one background writer, so logging never
+ * waits for the log file.
+ * <p>
+ * The entries go through a bounded lock-free ring buffer: each slot carries a
+ * sequence number telling producers whether it is free and the writer whether
+ * it is published. When the buffer is full, entries are dropped and counted;
+ * the writer reports the count with the next entries it writes.
+ */
+final class AsyncLogWriter {
+
+    // a power of two, so positions map to slots with a mask
+    private static final int CAPACITY = 1024;
+
+    private static final int MASK = CAPACITY - 1;
+
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final long STOP_TIMEOUT = 1000;
+
+    private final AtomicReferenceArray<IStatus> slots = new AtomicReferenceArray<>(CAPACITY);
+
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+
+    private final AtomicLong tail = new AtomicLong();
+
+    // only used by the writer thread
+    private long head;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicBoolean sleeping = new AtomicBoolean();
+
+    private final Consumer<IStatus> sink;
+
+    private final Consumer<Long> droppedSink;
+
+    private volatile Thread writer;
+
+    private volatile boolean stopped;
+
+    /**
+     * @param sink
+     *            writes an entry, called on the writer thread only.
+     * @param droppedSink
+     *            reports the number of dropped entries, called on the writer
+     *            thread only.
+     */
+    AsyncLogWriter(Consumer<IStatus> sink, Consumer<Long> droppedSink) {
+        this.sink = sink;
+        this.droppedSink = droppedSink;
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return false if the buffer was full and the entry dropped.
+     */
+    boolean offer(IStatus status) {
+        long position;
+        int index;
+        for (;;) {
+            position = tail.get();
+            index = (int)(position & MASK);
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            }
+            else if (sequence < position) {
+                // the writer has not taken the entry of the previous round yet
+                dropped.incrementAndGet();
+                return false;
+            }
+            // else another producer claimed the slot, try the next one
+        }
+        slots.set(index, status);
+        sequences.set(index, position + 1);
+        wakeWriter();
+        return true;
+    }
+
+    /**
+     * Writes everything offered so far and stops the writer.
+     */
+    void stop() {
+        stopped = true;
+        Thread thread = writer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(STOP_TIMEOUT);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void wakeWriter() {
+        Thread thread = writer;
+        if (thread == null) {
+            startWriter();
+        }
+        else if (sleeping.get() && sleeping.compareAndSet(true, false)) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private synchronized void startWriter() {
+        if (writer == null && !stopped) {
+            Thread thread = new Thread(this::run, "clang-format log writer");
+            thread.setDaemon(true);
+            writer = thread;
+            thread.start();
+        }
+    }
+
+    private void run() {
+        while (!stopped) {
+            drain();
+            // producers wake the writer once they see the flag, so set it before the last look
+            sleeping.set(true);
+            if (!hasEntry() && !stopped) {
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            }
+            sleeping.set(false);
+        }
+        drain();
+    }
+
+    private void drain() {
+        for (IStatus status = poll(); status != null; status = poll()) {
+            write(status);
+        }
+        long droppedEntries = dropped.getAndSet(0);
+        if (droppedEntries > 0) {
+            droppedSink.accept(droppedEntries);
+        }
+    }
+
+    private void write(IStatus status) {
+        try {
+            sink.accept(status);
+        }
+        catch (RuntimeException e) {
+            // the log is gone, e.g. while shutting down
+        }
+    }
+
+    private boolean hasEntry() {
+        return sequences.get((int)(head & MASK)) == head + 1;
+    }
+
+    private IStatus poll() {
+        if (!hasEntry()) {
+            return null;
+        }
+        int index = (int)(head & MASK);
+        IStatus status = slots.get(index);
+        slots.set(index, null);
+        sequences.set(index, head + CAPACITY);
+        head++;
+        return status;
+    }
+}
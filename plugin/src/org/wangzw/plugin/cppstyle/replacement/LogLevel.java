@@ -0,0 +1,41 @@
+package org.wangzw.plugin.cppstyle.replacement;
+
+import org.eclipse.core.runtime.IStatus;
+
+/**
+ * The least severe messages {@link Logger} still writes to the error log.
+ */
+public enum LogLevel {
+    OFF,
+    ERROR,
+    WARNING,
+    INFO;
+
+    /**
+     * @return whether messages of the given {@link IStatus} severity are
+     *         written at this level.
+     */
+    public boolean includes(int severity) {
+        return this != OFF && ordinal() >= of(severity).ordinal();
+    }
+
+    private static LogLevel of(int severity) {
+        switch (severity) {
+            case IStatus.ERROR:
+                return ERROR;
+            case IStatus.WARNING:
+                return WARNING;
+            default:
+                return INFO;
+        }
+    }
+
+    public static LogLevel fromPreference(String value) {
+        for (LogLevel level : values()) {
+            if (level.name().equals(value)) {
+                return level;
+            }
+        }
+        return ERROR;
+    }
+}
@@ -1,10 +1,52 @@
 package org.wangzw.plugin.cppstyle.replacement;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Status;
 import org.wangzw.plugin.cppstyle.CppStyle;
 
+/**
+ * Writes to the error log of the plug-in. Messages below the configured
+ * {@link LogLevel} cost one volatile read; the others are handed to a
+ * background writer, so logging never waits for the log file. The same error
+ * is written at most {@value #MAX_REPEATS} times a minute, the next message
+ * after that says how many were suppressed.
+ */
 public class Logger {
+
+    private static final int MAX_REPEATS = 3;
+
+    private static final long REPEAT_WINDOW = TimeUnit.MINUTES.toNanos(1);
+
+    // bounds the memory of distinct errors, forgotten errors are written again
+    private static final int MAX_TRACKED_ERRORS = 256;
+
+    private static final AsyncLogWriter WRITER = new AsyncLogWriter(Logger::write, Logger::writeDropped);
+
+    private static final Map<String, Repeats> REPEATS = new ConcurrentHashMap<>();
+
+    private static volatile LogLevel level = LogLevel.ERROR;
+
+    public static void setLevel(LogLevel newLevel) {
+        level = newLevel;
+    }
+
+    public static LogLevel getLevel() {
+        return level;
+    }
+
+    public static boolean isEnabled(int severity) {
+        return level.includes(severity);
+    }
+
+    public static boolean isInfoEnabled() {
+        return isEnabled(IStatus.INFO);
+    }
+
     /**
      * Log the specified information.
      *
@@ -14,6 +56,39 @@ public class Logger {
         log(IStatus.INFO, IStatus.OK, message, null);
     }
 
+    /**
+     * Log the information, building the message only if it is written.
+     *
+     * @param message, supplies a human-readable message.
+     */
+    public static void logInfo(Supplier<String> message) {
+        if (isInfoEnabled()) {
+            logInfo(message.get());
+        }
+    }
+
+    /**
+     * Log the information, formatting the message only if it is written.
+     *
+     * @param format, a {@link String#format(String, Object...)} format string.
+     */
+    public static void logInfo(String format, Object arg) {
+        if (isInfoEnabled()) {
+            logInfo(String.format(format, arg));
+        }
+    }
+
+    /**
+     * Log the information, formatting the message only if it is written.
+     *
+     * @param format, a {@link String#format(String, Object...)} format string.
+     */
+    public static void logInfo(String format, Object arg1, Object arg2) {
+        if (isInfoEnabled()) {
+            logInfo(String.format(format, arg1, arg2));
+        }
+    }
+
     /**
      * Log the specified error.
      *
@@ -56,8 +131,9 @@ public class Logger {
      *                   applicable.
      */
     public static void log(int severity, int code, String message, Throwable exception) {
-
-        log(createStatus(severity, code, message, exception));
+        if (isEnabled(severity)) {
+            log(createStatus(severity, code, message, exception));
+        }
     }
 
     /**
@@ -79,11 +155,85 @@ public class Logger {
     }
 
     /**
-     * Log the given status.
+     * Log the given status in the background.
      *
      * @param status, the status to log.
      */
     public static void log(IStatus status) {
-        CppStyle.getDefault().getLog().log(status);
+        if (!isEnabled(status.getSeverity())) {
+            return;
+        }
+        IStatus limited = status.getSeverity() == IStatus.INFO ? status : limitRepeats(status);
+        if (limited != null) {
+            WRITER.offer(limited);
+        }
+    }
+
+    /**
+     * Writes the messages logged so far and stops the background writer.
+     */
+    public static void flush() {
+        WRITER.stop();
+    }
+
+    /**
+     * @return the status, one saying how many were suppressed before it, or
+     *         null to suppress it.
+     */
+    private static IStatus limitRepeats(IStatus status) {
+        Throwable exception = status.getException();
+        String key = status.getMessage() + (exception != null ? '|' + exception.getClass().getName() : "");
+        if (REPEATS.size() >= MAX_TRACKED_ERRORS && !REPEATS.containsKey(key)) {
+            REPEATS.clear();
+        }
+        int suppressed = REPEATS.computeIfAbsent(key, k -> new Repeats()).count(System.nanoTime());
+        if (suppressed < 0) {
+            return null;
+        }
+        if (suppressed == 0) {
+            return status;
+        }
+        String message = status.getMessage() + " (" + suppressed + " repetitions suppressed)";
+        return createStatus(status.getSeverity(), status.getCode(), message, exception);
+    }
+
+    private static void write(IStatus status) {
+        CppStyle plugin = CppStyle.getDefault();
+        if (plugin != null) {
+            plugin.getLog().log(status);
+        }
+    }
+
+    private static void writeDropped(long count) {
+        write(createStatus(IStatus.WARNING, IStatus.OK, count + " log messages dropped", null));
+    }
+
+    /**
+     * Counts the occurrences of one error in the current window.
+     */
+    private static class Repeats {
+        private long windowStart = Long.MIN_VALUE;
+
+        private int count;
+
+        private int suppressed;
+
+        /**
+         * @return -1 to suppress this occurrence, otherwise the number
+         *         suppressed since the last one written.
+         */
+        synchronized int count(long now) {
+            if (windowStart == Long.MIN_VALUE || now - windowStart > REPEAT_WINDOW) {
+                windowStart = now;
+                count = 0;
+            }
+            if (++count > MAX_REPEATS) {
+                suppressed++;
+                return -1;
+            }
+            int reported = suppressed;
+            suppressed = 0;
+            return reported;
+        }
     }
 }
@@ -0,0 +1,243 @@
+package org.wangzw.plugin.cppstyle.replacement;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.eclipse.text.edits.MultiTextEdit;
+import org.eclipse.text.edits.ReplaceEdit;
+import org.eclipse.text.edits.TextEdit;
+
+/**
+ * The replacements of one format in plain arrays: char offsets, lengths and
+ * the texts one after the other in a single char buffer.
+ * <p>
+ * Lists are immutable and can be shared, e.g. by the caches. Text edits
+ * cannot, applying them changes their offsets, so {@link #toEdit()} builds new
+ * ones when they are needed. Their texts are mostly the same few whitespace
+ * strings, which all edits share.
+ */
+public final class ReplacementList {
+
+    public static final ReplacementList EMPTY = new ReplacementList(new int[0], new int[0], new int[0], new char[0]);
+
+    // rough object and array header sizes of a 64 bit VM
+    private static final int OBJECT_OVERHEAD = 96;
+
+    private final int[] offsets;
+
+    private final int[] lengths;
+
+    // the text of replacement i ends here and the one of i + 1 starts here
+    private final int[] textEnds;
+
+    private final char[] texts;
+
+    private ReplacementList(int[] offsets, int[] lengths, int[] textEnds, char[] texts) {
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.textEnds = textEnds;
+        this.texts = texts;
+    }
+
+    /**
+     * @return whether there is nothing to replace, the source is formatted.
+     */
+    public boolean isEmpty() {
+        return offsets.length == 0;
+    }
+
+    public int size() {
+        return offsets.length;
+    }
+
+    public int getOffset(int index) {
+        return offsets[index];
+    }
+
+    public int getLength(int index) {
+        return lengths[index];
+    }
+
+    public String getText(int index) {
+        int start = getTextStart(index);
+        String whitespace = WhitespaceStrings.of(texts, start, textEnds[index]);
+        return whitespace != null ? whitespace : new String(texts, start, textEnds[index] - start);
+    }
+
+    private int getTextStart(int index) {
+        return index == 0 ? 0 : textEnds[index - 1];
+    }
+
+    /**
+     * @return new edits for the replacements.
+     */
+    public MultiTextEdit toEdit() {
+        MultiTextEdit edit = new MultiTextEdit();
+        if (isEmpty()) {
+            return edit;
+        }
+        TextEdit[] children = new TextEdit[offsets.length];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = new ReplaceEdit(offsets[i], lengths[i], getText(i));
+        }
+        edit.addChildren(children);
+        return edit;
+    }
+
+    /**
+     * @return the list with its UTF-8 byte offsets translated into char
+     *         offsets. The texts are shared.
+     */
+    public ReplacementList toCharOffsets(Utf8OffsetIndex offsetIndex) {
+        if (offsetIndex.isIdentity()) {
+            return this;
+        }
+        int[] charOffsets = new int[offsets.length];
+        int[] charLengths = new int[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            charOffsets[i] = offsetIndex.toCharOffset(offsets[i]);
+            charLengths[i] = offsetIndex.toCharOffset(offsets[i] + lengths[i]) - charOffsets[i];
+        }
+        return new ReplacementList(charOffsets, charLengths, textEnds, texts);
+    }
+
+    /**
+     * @return the approximate number of heap bytes held.
+     */
+    public long weight() {
+        return OBJECT_OVERHEAD + 12L * offsets.length + 2L * texts.length;
+    }
+
+    /**
+     * Collects replacements in growing arrays. Replacements that would not
+     * change the source are left out: empty ones always, and if the source is
+     * known, those whose text equals the text they replace.
+     */
+    public static final class Builder {
+
+        private static final int INITIAL_CAPACITY = 64;
+
+        // larger arrays are dropped on reset rather than kept for the next source
+        private static final int MAX_RETAINED_CAPACITY = 1 << 16;
+
+        private CharSequence source;
+
+        private int size;
+
+        private int[] offsets = new int[INITIAL_CAPACITY];
+
+        private int[] lengths = new int[INITIAL_CAPACITY];
+
+        private int[] textEnds = new int[INITIAL_CAPACITY];
+
+        private char[] texts = new char[INITIAL_CAPACITY * 4];
+
+        private int textLength;
+
+        public Builder() {
+            this(null);
+        }
+
+        /**
+         * @param source
+         *            the text the replacements apply to, or null if it is not
+         *            at hand.
+         */
+        public Builder(CharSequence source) {
+            this.source = source;
+        }
+
+        /**
+         * Empties the builder to collect the replacements of another source.
+         * The arrays are kept unless they grew large.
+         */
+        public void reset(CharSequence newSource) {
+            source = newSource;
+            size = 0;
+            textLength = 0;
+            if (offsets.length > MAX_RETAINED_CAPACITY || texts.length > 4 * MAX_RETAINED_CAPACITY) {
+                offsets = new int[INITIAL_CAPACITY];
+                lengths = new int[INITIAL_CAPACITY];
+                textEnds = new int[INITIAL_CAPACITY];
+                texts = new char[INITIAL_CAPACITY * 4];
+            }
+        }
+
+        public Builder add(int offset, int length, CharSequence text) {
+            ensureTextCapacity(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                texts[textLength++] = text.charAt(i);
+            }
+            return commit(offset, length);
+        }
+
+        /**
+         * Adds a replacement with a UTF-8 encoded text.
+         */
+        public Builder add(int offset, int length, byte[] utf8, int start, int end) {
+            ensureTextCapacity(end - start);
+            int ascii = start;
+            while (ascii < end && utf8[ascii] >= 0) {
+                ascii++;
+            }
+            if (ascii < end) {
+                // rare in replacements, so decoding is left to the JDK
+                return add(offset, length, new String(utf8, start, end - start, StandardCharsets.UTF_8));
+            }
+            for (int i = start; i < end; i++) {
+                texts[textLength++] = (char)utf8[i];
+            }
+            return commit(offset, length);
+        }
+
+        public ReplacementList build() {
+            if (size == 0) {
+                return EMPTY;
+            }
+            return new ReplacementList(Arrays.copyOf(offsets, size), Arrays.copyOf(lengths, size),
+                    Arrays.copyOf(textEnds, size), Arrays.copyOf(texts, textLength));
+        }
+
+        private Builder commit(int offset, int length) {
+            int textStart = size == 0 ? 0 : textEnds[size - 1];
+            if (isNoOp(offset, length, textStart)) {
+                textLength = textStart;
+                return this;
+            }
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+                textEnds = Arrays.copyOf(textEnds, size * 2);
+            }
+            offsets[size] = offset;
+            lengths[size] = length;
+            textEnds[size] = textLength;
+            size++;
+            return this;
+        }
+
+        private boolean isNoOp(int offset, int length, int textStart) {
+            if (textLength - textStart != length) {
+                return false;
+            }
+            if (length == 0) {
+                return true;
+            }
+            if (source == null || offset < 0 || offset + length > source.length()) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (texts[textStart + i] != source.charAt(offset + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void ensureTextCapacity(int length) {
+            if (textLength + length > texts.length) {
+                texts = Arrays.copyOf(texts, Math.max(textLength + length, texts.length * 2));
+            }
+        }
+    }
+}
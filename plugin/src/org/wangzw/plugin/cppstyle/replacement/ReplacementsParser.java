@@ -0,0 +1,526 @@
+package org.wangzw.plugin.cppstyle.replacement;
+
+import static org.wangzw.plugin.cppstyle.replacement.Logger.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.eclipse.text.edits.ReplaceEdit;
+import org.xml.sax.SAXException;
+
+/**
+ * Reads the {@code <replacements>} document clang-format writes for
+ * {@code -output-replacements-xml}.
+ * <p>
+ * clang-format always writes the same small subset of XML, so the bytes are
+ * scanned directly into a {@link ReplacementList}: the offsets and lengths are
+ * parsed where they stand and texts with entities are decoded into a buffer
+ * the thread reuses. Anything outside that subset is parsed again with SAX and
+ * {@link XMLReplacementHandler}, which also reports malformed documents.
+ */
+public final class ReplacementsParser {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // larger buffers are dropped after use rather than kept by the thread
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1 << 20;
+
+    // a thread parses one document after the other, so it reuses its parser
+    private static final ThreadLocal<ReplacementsParser> PARSERS = ThreadLocal.withInitial(ReplacementsParser::new);
+
+    private static final SAXParserFactory PARSER_FACTORY = SAXParserFactory.newInstance();
+
+    private static final byte[] XML_DECLARATION_START = ascii("<?xml");
+    private static final byte[] XML_DECLARATION_END = ascii("?>");
+    private static final byte[] REPLACEMENTS_START = ascii("<replacements");
+    private static final byte[] REPLACEMENTS_END = ascii("</replacements>");
+    private static final byte[] REPLACEMENT_START = ascii("<replacement");
+    private static final byte[] REPLACEMENT_END = ascii("</replacement>");
+    private static final byte[] OFFSET_ATTRIBUTE = ascii("offset");
+    private static final byte[] LENGTH_ATTRIBUTE = ascii("length");
+
+    private static final int MAX_CODE_POINT = Character.MAX_CODE_POINT;
+
+    private byte[] input = new byte[BUFFER_SIZE];
+
+    private byte[] text = new byte[BUFFER_SIZE];
+
+    private final ReplacementList.Builder replacements = new ReplacementList.Builder();
+
+    // the document being scanned
+    private byte[] xml;
+    private int position;
+    private int end;
+
+    // the UTF-8 text of the replacement being scanned
+    private byte[] textBytes;
+    private int textStart;
+    private int textEnd;
+
+    private ReplacementsParser() {
+    }
+
+    /**
+     * Reads the document from the stream, which is not closed.
+     *
+     * @param source
+     *            the formatted source, to leave out replacements that do not
+     *            change it, or null if it is not at hand.
+     * @return the replacements in char offsets of the formatted source.
+     */
+    public static ReplacementList parse(InputStream inputStream, Utf8OffsetIndex offsetIndex, CharSequence source)
+            throws IOException, SAXException {
+        ReplacementsParser parser = PARSERS.get();
+        try {
+            int length = parser.read(inputStream);
+            return parser.parseDocument(parser.input, 0, length, offsetIndex, source);
+        }
+        finally {
+            parser.release();
+        }
+    }
+
+    /**
+     * @see #parse(InputStream, Utf8OffsetIndex, CharSequence)
+     */
+    public static ReplacementList parse(byte[] xml, int start, int end, Utf8OffsetIndex offsetIndex,
+            CharSequence source) throws IOException, SAXException {
+        ReplacementsParser parser = PARSERS.get();
+        try {
+            return parser.parseDocument(xml, start, end, offsetIndex, source);
+        }
+        finally {
+            parser.release();
+        }
+    }
+
+    private ReplacementList parseDocument(byte[] document, int start, int stop, Utf8OffsetIndex offsetIndex,
+            CharSequence source) throws IOException, SAXException {
+        xml = document;
+        position = start;
+        end = stop;
+        replacements.reset(source);
+        if (scanDocument(offsetIndex)) {
+            return replacements.build();
+        }
+
+        logInfo("Unexpected replacements xml, parsing it with SAX");
+        List<ReplaceEdit> edits = parseWithSax(document, start, stop, offsetIndex);
+        replacements.reset(source);
+        for (ReplaceEdit edit : edits) {
+            replacements.add(edit.getOffset(), edit.getLength(), edit.getText());
+        }
+        return replacements.build();
+    }
+
+    private void release() {
+        xml = null;
+        textBytes = null;
+        replacements.reset(null);
+        if (input.length > MAX_RETAINED_BUFFER_SIZE) {
+            input = new byte[BUFFER_SIZE];
+        }
+        if (text.length > MAX_RETAINED_BUFFER_SIZE) {
+            text = new byte[BUFFER_SIZE];
+        }
+    }
+
+    private int read(InputStream inputStream) throws IOException {
+        int length = 0;
+        for (;;) {
+            if (length == input.length) {
+                input = Arrays.copyOf(input, input.length * 2);
+            }
+            int rsz = inputStream.read(input, length, input.length - length);
+
+            if (rsz < 0) {
+                return length;
+            }
+
+            length += rsz;
+        }
+    }
+
+    private static List<ReplaceEdit> parseWithSax(byte[] xml, int start, int end, Utf8OffsetIndex offsetIndex)
+            throws IOException, SAXException {
+        XMLReplacementHandler replacementHandler = new XMLReplacementHandler(offsetIndex);
+        try {
+            newSaxParser().parse(new ByteArrayInputStream(xml, start, end - start), replacementHandler);
+        }
+        catch (ParserConfigurationException e) {
+            throw new SAXException(e);
+        }
+        return replacementHandler.getEdits();
+    }
+
+    private static SAXParser newSaxParser() throws ParserConfigurationException, SAXException {
+        // factories are not thread-safe
+        synchronized (PARSER_FACTORY) {
+            return PARSER_FACTORY.newSAXParser();
+        }
+    }
+
+    /**
+     * @return false if the document is not in the expected form.
+     */
+    private boolean scanDocument(Utf8OffsetIndex offsetIndex) {
+        if (skip(XML_DECLARATION_START)) {
+            int declarationEnd = indexOf(XML_DECLARATION_END);
+            if (declarationEnd < 0) {
+                return false;
+            }
+            position = declarationEnd + XML_DECLARATION_END.length;
+        }
+        skipWhitespace();
+
+        if (!skip(REPLACEMENTS_START) || !skipToTagEnd()) {
+            return false;
+        }
+
+        if (xml[position - 2] != '/') {
+            for (;;) {
+                skipWhitespace();
+                if (skip(REPLACEMENTS_END)) {
+                    break;
+                }
+                if (!skip(REPLACEMENT_START) || !scanReplacement(offsetIndex)) {
+                    return false;
+                }
+            }
+        }
+
+        skipWhitespace();
+        return position == end;
+    }
+
+    /**
+     * Skips the attributes of an element without looking at them.
+     */
+    private boolean skipToTagEnd() {
+        if (position == end || !(isWhitespace(xml[position]) || xml[position] == '>' || xml[position] == '/')) {
+            return false;
+        }
+        for (; position < end; position++) {
+            byte b = xml[position];
+            if (b == '>') {
+                position++;
+                return true;
+            }
+            if (b == '<' || b == '&') {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private boolean scanReplacement(Utf8OffsetIndex offsetIndex) {
+        int offset = -1;
+        int length = -1;
+        boolean empty = false;
+        for (;;) {
+            boolean separated = skipWhitespace();
+            if (position + 1 < end && xml[position] == '/' && xml[position + 1] == '>') {
+                position += 2;
+                empty = true;
+                break;
+            }
+            if (position < end && xml[position] == '>') {
+                position++;
+                break;
+            }
+            if (!separated) {
+                return false;
+            }
+            if (offset < 0 && skip(OFFSET_ATTRIBUTE)) {
+                offset = scanAttributeValue();
+                if (offset < 0) {
+                    return false;
+                }
+            }
+            else if (length < 0 && skip(LENGTH_ATTRIBUTE)) {
+                length = scanAttributeValue();
+                if (length < 0) {
+                    return false;
+                }
+            }
+            else {
+                return false;
+            }
+        }
+        if (offset < 0 || length < 0) {
+            return false;
+        }
+
+        if (empty) {
+            textBytes = xml;
+            textStart = position;
+            textEnd = position;
+        }
+        else if (!scanText() || !skip(REPLACEMENT_END)) {
+            return false;
+        }
+
+        int charOffset = offsetIndex.toCharOffset(offset);
+        int charLength = offsetIndex.toCharOffset(offset + length) - charOffset;
+        replacements.add(charOffset, charLength, textBytes, textStart, textEnd);
+        return true;
+    }
+
+    /**
+     * Scans {@code ='digits'} after an attribute name.
+     *
+     * @return the number, or -1 if it is not a quoted non-negative int.
+     */
+    private int scanAttributeValue() {
+        skipWhitespace();
+        if (position == end || xml[position] != '=') {
+            return -1;
+        }
+        position++;
+        skipWhitespace();
+        if (position == end || (xml[position] != '\'' && xml[position] != '"')) {
+            return -1;
+        }
+        byte quote = xml[position++];
+
+        int value = 0;
+        int start = position;
+        for (; position < end && xml[position] >= '0' && xml[position] <= '9'; position++) {
+            int digit = xml[position] - '0';
+            if (value > (Integer.MAX_VALUE - digit) / 10) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        if (position == start || position == end || xml[position] != quote) {
+            return -1;
+        }
+        position++;
+        return value;
+    }
+
+    /**
+     * Scans the text up to the next tag into {@link #textBytes}.
+     *
+     * @return false if it is not in the expected form.
+     */
+    private boolean scanText() {
+        int start = position;
+        boolean plain = true;
+        for (; position < end; position++) {
+            byte b = xml[position];
+            if (b == '<') {
+                break;
+            }
+            if (b == '&' || b == '\r') {
+                plain = false;
+            }
+            else if (b == '>') {
+                // "]]>" is not allowed in text
+                if (position - start >= 2 && xml[position - 1] == ']' && xml[position - 2] == ']') {
+                    return false;
+                }
+            }
+            else if (b >= 0 && b < ' ' && b != '\t' && b != '\n') {
+                return false;
+            }
+        }
+        if (position == end) {
+            return false;
+        }
+        if (plain) {
+            textBytes = xml;
+            textStart = start;
+            textEnd = position;
+            return true;
+        }
+        return decode(start, position);
+    }
+
+    /**
+     * Decodes entities and line breaks the way an XML parser does. The result
+     * is never longer than the encoded text, so it fits the text buffer.
+     */
+    private boolean decode(int start, int stop) {
+        if (text.length < stop - start) {
+            text = new byte[Math.max(stop - start, text.length * 2)];
+        }
+
+        int length = 0;
+        for (int i = start; i < stop;) {
+            byte b = xml[i];
+            if (b == '&') {
+                int semicolon = indexOf((byte)';', i + 1, stop);
+                int codePoint = semicolon < 0 ? -1 : decodeEntity(i + 1, semicolon);
+                if (codePoint < 0) {
+                    return false;
+                }
+                length = appendUtf8(codePoint, length);
+                i = semicolon + 1;
+            }
+            else if (b == '\r') {
+                // a line break in any form is read as '\n'
+                text[length++] = '\n';
+                i++;
+                if (i < stop && xml[i] == '\n') {
+                    i++;
+                }
+            }
+            else {
+                text[length++] = b;
+                i++;
+            }
+        }
+        textBytes = text;
+        textStart = 0;
+        textEnd = length;
+        return true;
+    }
+
+    /**
+     * @return the code point of the entity between '&amp;' and ';', or -1 if
+     *         it is unknown or not a valid XML character.
+     */
+    private int decodeEntity(int start, int stop) {
+        int length = stop - start;
+        if (length >= 2 && xml[start] == '#') {
+            boolean hex = xml[start + 1] == 'x';
+            int radix = hex ? 16 : 10;
+            int digitStart = hex ? start + 2 : start + 1;
+            if (digitStart == stop) {
+                return -1;
+            }
+            int codePoint = 0;
+            for (int i = digitStart; i < stop; i++) {
+                int digit = Character.digit(xml[i], radix);
+                if (digit < 0) {
+                    return -1;
+                }
+                codePoint = codePoint * radix + digit;
+                if (codePoint > MAX_CODE_POINT) {
+                    return -1;
+                }
+            }
+            return isXmlCharacter(codePoint) ? codePoint : -1;
+        }
+        if (matches(start, stop, "lt")) {
+            return '<';
+        }
+        if (matches(start, stop, "gt")) {
+            return '>';
+        }
+        if (matches(start, stop, "amp")) {
+            return '&';
+        }
+        if (matches(start, stop, "apos")) {
+            return '\'';
+        }
+        if (matches(start, stop, "quot")) {
+            return '"';
+        }
+        return -1;
+    }
+
+    private static boolean isXmlCharacter(int codePoint) {
+        return codePoint == '\t' || codePoint == '\n' || codePoint == '\r'
+                || (codePoint >= 0x20 && codePoint <= 0xD7FF)
+                || (codePoint >= 0xE000 && codePoint <= 0xFFFD)
+                || (codePoint >= 0x10000 && codePoint <= MAX_CODE_POINT);
+    }
+
+    private int appendUtf8(int codePoint, int length) {
+        if (codePoint < 0x80) {
+            text[length++] = (byte)codePoint;
+        }
+        else if (codePoint < 0x800) {
+            text[length++] = (byte)(0xC0 | (codePoint >> 6));
+            text[length++] = (byte)(0x80 | (codePoint & 0x3F));
+        }
+        else if (codePoint < 0x10000) {
+            text[length++] = (byte)(0xE0 | (codePoint >> 12));
+            text[length++] = (byte)(0x80 | ((codePoint >> 6) & 0x3F));
+            text[length++] = (byte)(0x80 | (codePoint & 0x3F));
+        }
+        else {
+            text[length++] = (byte)(0xF0 | (codePoint >> 18));
+            text[length++] = (byte)(0x80 | ((codePoint >> 12) & 0x3F));
+            text[length++] = (byte)(0x80 | ((codePoint >> 6) & 0x3F));
+            text[length++] = (byte)(0x80 | (codePoint & 0x3F));
+        }
+        return length;
+    }
+
+    /**
+     * @return whether any whitespace was skipped.
+     */
+    private boolean skipWhitespace() {
+        int start = position;
+        while (position < end && isWhitespace(xml[position])) {
+            position++;
+        }
+        return position > start;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+    }
+
+    private boolean skip(byte[] expected) {
+        if (end - position < expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (xml[position + i] != expected[i]) {
+                return false;
+            }
+        }
+        position += expected.length;
+        return true;
+    }
+
+    private boolean matches(int start, int stop, String name) {
+        if (stop - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (xml[start + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(byte[] expected) {
+        outer:
+        for (int i = position; i <= end - expected.length; i++) {
+            for (int j = 0; j < expected.length; j++) {
+                if (xml[i + j] != expected[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private int indexOf(byte b, int start, int stop) {
+        for (int i = start; i < stop; i++) {
+            if (xml[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
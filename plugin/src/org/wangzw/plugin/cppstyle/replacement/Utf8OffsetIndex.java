@@ -0,0 +1,274 @@
+package org.wangzw.plugin.cppstyle.replacement;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Translates between the UTF-8 byte offsets clang-format reports and the char
+ * offsets of the Java source.
+ * <p>
+ * Only non-ASCII characters are recorded; between two of them bytes and chars
+ * map one to one. An ASCII-only source therefore has an empty index and
+ * translation is the identity, otherwise every lookup is a binary search over
+ * the recorded characters.
+ */
+public final class Utf8OffsetIndex {
+
+    public static final Utf8OffsetIndex IDENTITY =
+            new Utf8OffsetIndex(new int[0], new int[0], new int[0], new int[0], 0);
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // the encoders of one thread run one after the other, so they share a buffer
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    // UTF-8 needs at most 4 bytes per code point
+    private static final int MAX_BYTES_PER_CODE_POINT = 4;
+
+    // char and byte offsets of the start and end of every non-ASCII character
+    private final int[] charStarts;
+    private final int[] charEnds;
+    private final int[] byteStarts;
+    private final int[] byteEnds;
+    private final int size;
+
+    private Utf8OffsetIndex(int[] charStarts, int[] charEnds, int[] byteStarts, int[] byteEnds, int size) {
+        this.charStarts = charStarts;
+        this.charEnds = charEnds;
+        this.byteStarts = byteStarts;
+        this.byteEnds = byteEnds;
+        this.size = size;
+    }
+
+    /**
+     * Encodes the source as UTF-8 into the output and builds the index in the
+     * same pass. The output is not closed.
+     */
+    public static Utf8OffsetIndex write(CharSequence source, OutputStream output) throws IOException {
+        Encoder encoder = new Encoder(output);
+        encoder.append(source, 0, source.length());
+        return encoder.finish();
+    }
+
+    /**
+     * Builds the index for UTF-8 encoded content, e.g. a file clang-format read
+     * directly.
+     */
+    public static Utf8OffsetIndex of(byte[] utf8) {
+        Builder builder = null;
+        int chars = 0;
+        int i = 0;
+        while (i < utf8.length) {
+            int lead = utf8[i] & 0xff;
+            int byteLength = lead >= 0xf0 ? 4 : lead >= 0xe0 ? 3 : lead >= 0xc0 ? 2 : 1;
+            if (byteLength == 1 || i + byteLength > utf8.length) {
+                // ASCII, or a malformed byte the decoder replaces by one char
+                i++;
+                chars++;
+                continue;
+            }
+
+            int charLength = byteLength == 4 ? 2 : 1;
+            if (builder == null) {
+                builder = new Builder();
+            }
+            builder.add(chars, chars + charLength, i, i + byteLength);
+            chars += charLength;
+            i += byteLength;
+        }
+        return builder != null ? builder.build() : IDENTITY;
+    }
+
+    /**
+     * @return the number of bytes UTF-8 needs for the given char range, as
+     *         needed to translate a region into -offset/-length before the
+     *         source is sent.
+     */
+    public static int utf8Length(CharSequence source, int start, int end) {
+        int bytes = 0;
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            }
+            else if (c < 0x800) {
+                bytes += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(source.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            }
+            else if (Character.isSurrogate(c)) {
+                bytes++;
+            }
+            else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    public boolean isIdentity() {
+        return size == 0;
+    }
+
+    /**
+     * @return the char offset of the given byte offset. Offsets inside a
+     *         multi-byte character map to the start of that character.
+     */
+    public int toCharOffset(int byteOffset) {
+        return translate(byteOffset, byteStarts, byteEnds, charStarts, charEnds);
+    }
+
+    public int toByteOffset(int charOffset) {
+        return translate(charOffset, charStarts, charEnds, byteStarts, byteEnds);
+    }
+
+    private int translate(int offset, int[] fromStarts, int[] fromEnds, int[] toStarts, int[] toEnds) {
+        if (size == 0) {
+            return offset;
+        }
+        int index = lastStartAtOrBefore(fromStarts, offset);
+        if (index < 0) {
+            return offset;
+        }
+        if (offset < fromEnds[index]) {
+            return toStarts[index];
+        }
+        return toEnds[index] + (offset - fromEnds[index]);
+    }
+
+    private int lastStartAtOrBefore(int[] starts, int offset) {
+        int index = Arrays.binarySearch(starts, 0, size, offset);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    /**
+     * Encodes chars handed over in chunks as UTF-8 and builds the index on the
+     * way, so the source never has to exist as a whole. A surrogate pair may be
+     * split between two chunks. Only one encoder per thread may be in use at a
+     * time, as they share a buffer.
+     */
+    public static final class Encoder {
+        private final OutputStream output;
+        private final byte[] buffer = BUFFERS.get();
+        private Builder builder;
+        private int pos;
+        private int flushed;
+        private int chars;
+        private char highSurrogate;
+
+        public Encoder(OutputStream output) {
+            this.output = output;
+        }
+
+        public void append(CharSequence chunk, int start, int end) throws IOException {
+            for (int i = start; i < end; i++) {
+                append(chunk.charAt(i));
+            }
+        }
+
+        /**
+         * Writes what is left in the buffer. The output is neither flushed nor
+         * closed.
+         *
+         * @return the index of everything appended.
+         */
+        public Utf8OffsetIndex finish() throws IOException {
+            if (highSurrogate != 0) {
+                highSurrogate = 0;
+                buffer[pos++] = '?';
+            }
+            output.write(buffer, 0, pos);
+            flushed += pos;
+            pos = 0;
+            return builder != null ? builder.build() : IDENTITY;
+        }
+
+        private void append(char c) throws IOException {
+            if (pos > BUFFER_SIZE - MAX_BYTES_PER_CODE_POINT) {
+                output.write(buffer, 0, pos);
+                flushed += pos;
+                pos = 0;
+            }
+
+            if (highSurrogate != 0) {
+                char high = highSurrogate;
+                highSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int byteStart = pos;
+                    int codePoint = Character.toCodePoint(high, c);
+                    buffer[pos++] = (byte)(0xf0 | (codePoint >> 18));
+                    buffer[pos++] = (byte)(0x80 | ((codePoint >> 12) & 0x3f));
+                    buffer[pos++] = (byte)(0x80 | ((codePoint >> 6) & 0x3f));
+                    buffer[pos++] = (byte)(0x80 | (codePoint & 0x3f));
+                    record(chars - 1, chars + 1, byteStart);
+                    chars++;
+                    return;
+                }
+                // unpaired surrogate, replaced like the JDK encoder does, still one byte per char
+                buffer[pos++] = '?';
+            }
+
+            if (c < 0x80) {
+                buffer[pos++] = (byte)c;
+            }
+            else if (c < 0x800) {
+                int byteStart = pos;
+                buffer[pos++] = (byte)(0xc0 | (c >> 6));
+                buffer[pos++] = (byte)(0x80 | (c & 0x3f));
+                record(chars, chars + 1, byteStart);
+            }
+            else if (Character.isHighSurrogate(c)) {
+                // encoded once the next char tells whether it is a pair
+                highSurrogate = c;
+            }
+            else if (Character.isSurrogate(c)) {
+                buffer[pos++] = '?';
+            }
+            else {
+                int byteStart = pos;
+                buffer[pos++] = (byte)(0xe0 | (c >> 12));
+                buffer[pos++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                buffer[pos++] = (byte)(0x80 | (c & 0x3f));
+                record(chars, chars + 1, byteStart);
+            }
+            chars++;
+        }
+
+        private void record(int charStart, int charEnd, int byteStart) {
+            if (builder == null) {
+                builder = new Builder();
+            }
+            builder.add(charStart, charEnd, flushed + byteStart, flushed + pos);
+        }
+    }
+
+    private static class Builder {
+        private int[] charStarts = new int[16];
+        private int[] charEnds = new int[16];
+        private int[] byteStarts = new int[16];
+        private int[] byteEnds = new int[16];
+        private int size;
+
+        void add(int charStart, int charEnd, int byteStart, int byteEnd) {
+            if (size == charStarts.length) {
+                int capacity = size * 2;
+                charStarts = Arrays.copyOf(charStarts, capacity);
+                charEnds = Arrays.copyOf(charEnds, capacity);
+                byteStarts = Arrays.copyOf(byteStarts, capacity);
+                byteEnds = Arrays.copyOf(byteEnds, capacity);
+            }
+            charStarts[size] = charStart;
+            charEnds[size] = charEnd;
+            byteStarts[size] = byteStart;
+            byteEnds[size] = byteEnd;
+            size++;
+        }
+
+        Utf8OffsetIndex build() {
+            return new Utf8OffsetIndex(charStarts, charEnds, byteStarts, byteEnds, size);
+        }
+    }
+}
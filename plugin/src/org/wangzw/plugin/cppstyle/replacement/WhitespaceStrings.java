@@ -0,0 +1,65 @@
+package org.wangzw.plugin.cppstyle.replacement;
+
+/**
+ * Shared strings for the whitespace most replacements insert: a few line
+ * breaks followed by an indentation of spaces or tabs. Each one is created on
+ * first use and handed out to every replacement with the same text.
+ */
+final class WhitespaceStrings {
+
+    private static final int MAX_LINE_BREAKS = 3;
+
+    private static final int MAX_INDENTATION = 64;
+
+    private static final String[] LINE_BREAKS = { "\n", "\r\n" };
+
+    private static final char[] INDENTATION = { ' ', '\t' };
+
+    // racing threads create equal strings, so the table needs no lock
+    private static final String[] STRINGS =
+            new String[LINE_BREAKS.length * (MAX_LINE_BREAKS + 1) * INDENTATION.length * (MAX_INDENTATION + 1)];
+
+    private WhitespaceStrings() {
+    }
+
+    /**
+     * @return the shared string for the chars, or null if they are not
+     *         whitespace of the common form.
+     */
+    static String of(char[] chars, int start, int end) {
+        int lineBreak = 0;
+        int lineBreaks = 0;
+        int i = start;
+        for (; i < end && lineBreaks <= MAX_LINE_BREAKS; lineBreaks++) {
+            if (chars[i] == '\n' && (lineBreaks == 0 || lineBreak == 0)) {
+                i++;
+            }
+            else if (chars[i] == '\r' && i + 1 < end && chars[i + 1] == '\n' && (lineBreaks == 0 || lineBreak == 1)) {
+                lineBreak = 1;
+                i += 2;
+            }
+            else {
+                break;
+            }
+        }
+        int indentationLength = end - i;
+        if (lineBreaks > MAX_LINE_BREAKS || indentationLength > MAX_INDENTATION) {
+            return null;
+        }
+        int indentation = indentationLength > 0 && chars[i] == '\t' ? 1 : 0;
+        for (; i < end; i++) {
+            if (chars[i] != INDENTATION[indentation]) {
+                return null;
+            }
+        }
+
+        int index = ((lineBreak * (MAX_LINE_BREAKS + 1) + lineBreaks) * INDENTATION.length + indentation)
+                * (MAX_INDENTATION + 1) + indentationLength;
+        String string = STRINGS[index];
+        if (string == null) {
+            string = new String(chars, start, end - start);
+            STRINGS[index] = string;
+        }
+        return string;
+    }
+}
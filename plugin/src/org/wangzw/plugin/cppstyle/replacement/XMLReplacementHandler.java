@@ -24,6 +24,17 @@ public class XMLReplacementHandler extends DefaultHandler2 {
 
     private StringBuilder charactersBuilder;
 
+    // clang-format reports UTF-8 byte offsets, edits need char offsets
+    private final Utf8OffsetIndex offsetIndex;
+
+    public XMLReplacementHandler() {
+        this(Utf8OffsetIndex.IDENTITY);
+    }
+
+    public XMLReplacementHandler(Utf8OffsetIndex offsetIndex) {
+        this.offsetIndex = offsetIndex;
+    }
+
     public List<ReplaceEdit> getEdits() {
         return edits;
     }
@@ -46,7 +57,9 @@ public class XMLReplacementHandler extends DefaultHandler2 {
     public void endElement(String uri, String localName, String qName) throws SAXException {
         if (charactersBuilder != null) {
             String replacedText = charactersBuilder.toString();
-            edits.add(new ReplaceEdit(currentOffset, currentLength, replacedText));
+            int offset = offsetIndex.toCharOffset(currentOffset);
+            int length = offsetIndex.toCharOffset(currentOffset + currentLength) - offset;
+            edits.add(new ReplaceEdit(offset, length, replacedText));
             charactersBuilder = null;
         }
     }
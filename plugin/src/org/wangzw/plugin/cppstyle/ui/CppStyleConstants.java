@@ -10,10 +10,48 @@ public class CppStyleConstants {
 
     public static final String CLANG_FORMAT_STYLE_PATH = "cppstyle.clangformat.style.path";
 
+    public static final String CLANG_FORMAT_PROCESS_POOL_SIZE = "cppstyle.clangformat.processpool.size";
+
+    public static final String CLANG_FORMAT_PROCESS_IO_MODE = "cppstyle.clangformat.processio.mode";
+
+    public static final String CLANG_FORMAT_RESULT_CACHE_SIZE = "cppstyle.clangformat.resultcache.size";
+
+    public static final String CLANG_FORMAT_DISK_CACHE_SIZE = "cppstyle.clangformat.diskcache.size";
+
+    public static final String CLANG_FORMAT_DISK_CACHE_DIRECTORY = "cppstyle.clangformat.diskcache.directory";
+
+    public static final String CLANG_FORMAT_LOG_LEVEL = "cppstyle.clangformat.log.level";
+
+    public static final String CLANG_FORMAT_SAVE_LATENCY_BUDGET = "cppstyle.clangformat.save.latencybudget";
+
+    public static final String CLANG_FORMAT_BACKGROUND_NICE = "cppstyle.clangformat.background.nice";
+
+    public static final String CLANG_FORMAT_BACKGROUND_CPUS = "cppstyle.clangformat.background.cpus";
+
     public static final String LABEL_CLANG_FORMAT_PATH = "Clang-format path:";
 
     public static final String LABEL_CLANG_FORMAT_STYLE_PATH = "Clang-format style path:";
 
+    public static final String LABEL_CLANG_FORMAT_PROCESS_POOL_SIZE = "Pre-spawned clang-format processes (0 = off):";
+
+    public static final String LABEL_CLANG_FORMAT_PROCESS_IO_MODE = "Clang-format process I/O:";
+
+    public static final String LABEL_CLANG_FORMAT_RESULT_CACHE_SIZE = "Format result cache in MiB (0 = off):";
+
+    public static final String LABEL_CLANG_FORMAT_DISK_CACHE_SIZE = "Format cache on disk in MiB (0 = off):";
+
+    public static final String LABEL_CLANG_FORMAT_DISK_CACHE_DIRECTORY = "Format cache directory (empty = workspace):";
+
+    public static final String LABEL_CLANG_FORMAT_LOG_LEVEL = "Log level:";
+
+    public static final String LABEL_CLANG_FORMAT_SAVE_LATENCY_BUDGET =
+            "Wait for format on save in ms (later edits are applied separately):";
+
+    public static final String LABEL_CLANG_FORMAT_BACKGROUND_NICE = "Nice level of background formats (0 = normal):";
+
+    public static final String LABEL_CLANG_FORMAT_BACKGROUND_CPUS =
+            "CPUs of background formats, e.g. 0-3 (empty = all):";
+
     public static final String PROJECTS_PECIFIC_PROPERTY = "cppstyle.ENABLE_PROJECTS_PECIFIC";
 
     public static final String ENABLE_CLANGFORMAT_PROPERTY = "cppstyle.ENABLE_CLANGFORMAT";
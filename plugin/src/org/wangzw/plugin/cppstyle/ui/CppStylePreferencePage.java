@@ -6,9 +6,12 @@ import java.io.File;
 import java.util.List;
 import java.util.Optional;
 
+import org.eclipse.jface.preference.ComboFieldEditor;
 import org.eclipse.jface.preference.FieldEditor;
 import org.eclipse.jface.preference.FieldEditorPreferencePage;
 import org.eclipse.jface.preference.FileFieldEditor;
+import org.eclipse.jface.preference.IntegerFieldEditor;
+import org.eclipse.jface.preference.StringFieldEditor;
 import org.eclipse.jface.util.PropertyChangeEvent;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.ui.IWorkbench;
@@ -16,6 +19,8 @@ import org.eclipse.ui.IWorkbenchPreferencePage;
 import org.wangzw.plugin.cppstyle.ClangPathHelper;
 import org.wangzw.plugin.cppstyle.CppStyle;
 import org.wangzw.plugin.cppstyle.FilePathUtil;
+import org.wangzw.plugin.cppstyle.ProcessIoMode;
+import org.wangzw.plugin.cppstyle.replacement.LogLevel;
 
 /**
  * This class represents a preference page that is contributed to the
@@ -30,10 +35,38 @@ import org.wangzw.plugin.cppstyle.FilePathUtil;
 
 public class CppStylePreferencePage extends FieldEditorPreferencePage implements IWorkbenchPreferencePage {
 
+    private static final int MAX_PROCESS_POOL_SIZE = 16;
+
+    private static final int MAX_RESULT_CACHE_SIZE = 1024;
+
+    private static final int MAX_DISK_CACHE_SIZE = 1024;
+
+    private static final int MAX_SAVE_LATENCY_BUDGET = 15000;
+
+    private static final int MAX_BACKGROUND_NICE = 19;
+
     private FileFieldEditor clangFormatPath = null;
 
     private FileFieldEditor clangFormatStylePath = null;
 
+    private IntegerFieldEditor processPoolSize = null;
+
+    private ComboFieldEditor processIoMode = null;
+
+    private IntegerFieldEditor resultCacheSize = null;
+
+    private IntegerFieldEditor diskCacheSize = null;
+
+    private StringFieldEditor diskCacheDirectory = null;
+
+    private ComboFieldEditor logLevel = null;
+
+    private IntegerFieldEditor saveLatencyBudget = null;
+
+    private IntegerFieldEditor backgroundNice = null;
+
+    private StringFieldEditor backgroundCpus = null;
+
     private ClangPathHelper clangPathHelper;
 
     public CppStylePreferencePage() {
@@ -53,6 +86,26 @@ public class CppStylePreferencePage extends FieldEditorPreferencePage implements
         addField(clangFormatPath);
         clangFormatStylePath = createClangFormatStylePathEditorField();
         addField(clangFormatStylePath);
+        processPoolSize = createProcessPoolSizeEditorField();
+        addField(processPoolSize);
+        processIoMode = createProcessIoModeEditorField();
+        addField(processIoMode);
+        resultCacheSize = createResultCacheSizeEditorField();
+        addField(resultCacheSize);
+        diskCacheSize = createDiskCacheSizeEditorField();
+        addField(diskCacheSize);
+        diskCacheDirectory = new StringFieldEditor(
+                CLANG_FORMAT_DISK_CACHE_DIRECTORY, LABEL_CLANG_FORMAT_DISK_CACHE_DIRECTORY, getFieldEditorParent());
+        addField(diskCacheDirectory);
+        logLevel = createLogLevelEditorField();
+        addField(logLevel);
+        saveLatencyBudget = createSaveLatencyBudgetEditorField();
+        addField(saveLatencyBudget);
+        backgroundNice = createBackgroundNiceEditorField();
+        addField(backgroundNice);
+        backgroundCpus = new StringFieldEditor(
+                CLANG_FORMAT_BACKGROUND_CPUS, LABEL_CLANG_FORMAT_BACKGROUND_CPUS, getFieldEditorParent());
+        addField(backgroundCpus);
     }
 
     @Override
@@ -104,6 +157,62 @@ public class CppStylePreferencePage extends FieldEditorPreferencePage implements
                 CLANG_FORMAT_STYLE_PATH, LABEL_CLANG_FORMAT_STYLE_PATH, getFieldEditorParent());
     }
 
+    private IntegerFieldEditor createProcessPoolSizeEditorField() {
+        IntegerFieldEditor editor = new IntegerFieldEditor(
+                CLANG_FORMAT_PROCESS_POOL_SIZE, LABEL_CLANG_FORMAT_PROCESS_POOL_SIZE, getFieldEditorParent());
+        editor.setValidRange(0, MAX_PROCESS_POOL_SIZE);
+        return editor;
+    }
+
+    private ComboFieldEditor createProcessIoModeEditorField() {
+        String[][] labelsAndValues = new String[][] {
+                { "Bounded thread pool", ProcessIoMode.BOUNDED.name() },
+                { "Virtual threads (Java 21+)", ProcessIoMode.VIRTUAL_THREADS.name() },
+                { "Single pump, stderr to temporary file", ProcessIoMode.SINGLE_PUMP.name() }
+        };
+        return new ComboFieldEditor(CLANG_FORMAT_PROCESS_IO_MODE, LABEL_CLANG_FORMAT_PROCESS_IO_MODE,
+                labelsAndValues, getFieldEditorParent());
+    }
+
+    private ComboFieldEditor createLogLevelEditorField() {
+        String[][] labelsAndValues = new String[][] {
+                { "Off", LogLevel.OFF.name() },
+                { "Errors", LogLevel.ERROR.name() },
+                { "Warnings", LogLevel.WARNING.name() },
+                { "Information", LogLevel.INFO.name() }
+        };
+        return new ComboFieldEditor(
+                CLANG_FORMAT_LOG_LEVEL, LABEL_CLANG_FORMAT_LOG_LEVEL, labelsAndValues, getFieldEditorParent());
+    }
+
+    private IntegerFieldEditor createResultCacheSizeEditorField() {
+        IntegerFieldEditor editor = new IntegerFieldEditor(
+                CLANG_FORMAT_RESULT_CACHE_SIZE, LABEL_CLANG_FORMAT_RESULT_CACHE_SIZE, getFieldEditorParent());
+        editor.setValidRange(0, MAX_RESULT_CACHE_SIZE);
+        return editor;
+    }
+
+    private IntegerFieldEditor createDiskCacheSizeEditorField() {
+        IntegerFieldEditor editor = new IntegerFieldEditor(
+                CLANG_FORMAT_DISK_CACHE_SIZE, LABEL_CLANG_FORMAT_DISK_CACHE_SIZE, getFieldEditorParent());
+        editor.setValidRange(0, MAX_DISK_CACHE_SIZE);
+        return editor;
+    }
+
+    private IntegerFieldEditor createSaveLatencyBudgetEditorField() {
+        IntegerFieldEditor editor = new IntegerFieldEditor(
+                CLANG_FORMAT_SAVE_LATENCY_BUDGET, LABEL_CLANG_FORMAT_SAVE_LATENCY_BUDGET, getFieldEditorParent());
+        editor.setValidRange(0, MAX_SAVE_LATENCY_BUDGET);
+        return editor;
+    }
+
+    private IntegerFieldEditor createBackgroundNiceEditorField() {
+        IntegerFieldEditor editor = new IntegerFieldEditor(
+                CLANG_FORMAT_BACKGROUND_NICE, LABEL_CLANG_FORMAT_BACKGROUND_NICE, getFieldEditorParent());
+        editor.setValidRange(0, MAX_BACKGROUND_NICE);
+        return editor;
+    }
+
     private FileFieldEditor createFileFieldEditorWithEnvironmentVariableSupport(
             String preferenceName, String label, Composite parentComposite) {
         return new FileFieldEditor(preferenceName, label, parentComposite) {
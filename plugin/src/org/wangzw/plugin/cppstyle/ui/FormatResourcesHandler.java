@@ -0,0 +1,72 @@
+package org.wangzw.plugin.cppstyle.ui;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.core.commands.AbstractHandler;
+import org.eclipse.core.commands.ExecutionEvent;
+import org.eclipse.core.commands.ExecutionException;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.IAdaptable;
+import org.eclipse.core.runtime.Platform;
+import org.eclipse.jdt.core.ICompilationUnit;
+import org.eclipse.jdt.core.IJavaElement;
+import org.eclipse.jdt.core.IPackageFragment;
+import org.eclipse.jdt.core.JavaModelException;
+import org.eclipse.jface.viewers.ISelection;
+import org.eclipse.jface.viewers.IStructuredSelection;
+import org.eclipse.ui.IWorkingSet;
+import org.eclipse.ui.handlers.HandlerUtil;
+import org.wangzw.plugin.cppstyle.CppStyle;
+import org.wangzw.plugin.cppstyle.FormatResourcesJob;
+
+/**
+ * Formats the selected projects, folders, packages and working sets with a
+ * {@link FormatResourcesJob}.
+ */
+public class FormatResourcesHandler extends AbstractHandler {
+
+    @Override
+    public Object execute(ExecutionEvent event) throws ExecutionException {
+        ISelection selection = HandlerUtil.getCurrentSelection(event);
+        if (!(selection instanceof IStructuredSelection)) {
+            return null;
+        }
+
+        List<IResource> resources = new ArrayList<>();
+        for (Object element : ((IStructuredSelection)selection).toList()) {
+            addResources(element, resources);
+        }
+        if (!resources.isEmpty()) {
+            new FormatResourcesJob(resources).schedule();
+        }
+        return null;
+    }
+
+    private static void addResources(Object element, List<IResource> resources) {
+        if (element instanceof IWorkingSet) {
+            for (IAdaptable member : ((IWorkingSet)element).getElements()) {
+                addResources(member, resources);
+            }
+            return;
+        }
+        if (element instanceof IPackageFragment) {
+            // the folder of a package also holds its subpackages
+            try {
+                for (ICompilationUnit unit : ((IPackageFragment)element).getCompilationUnits()) {
+                    addResources(unit, resources);
+                }
+            }
+            catch (JavaModelException e) {
+                CppStyle.log("Could not list the compilation units of a package", e);
+            }
+            return;
+        }
+
+        IResource resource = element instanceof IJavaElement ? ((IJavaElement)element).getResource()
+                : Platform.getAdapterManager().getAdapter(element, IResource.class);
+        if (resource != null) {
+            resources.add(resource);
+        }
+    }
+}
@@ -3,16 +3,35 @@ package org.wangzw.plugin.cppstyle.ui;
 import org.eclipse.core.runtime.preferences.AbstractPreferenceInitializer;
 import org.eclipse.jface.preference.IPreferenceStore;
 import org.wangzw.plugin.cppstyle.CppStyle;
+import org.wangzw.plugin.cppstyle.ProcessIoMode;
+import org.wangzw.plugin.cppstyle.replacement.LogLevel;
 
 /**
  * Class used to initialize default preference values.
  */
 public class PreferenceInitializer extends AbstractPreferenceInitializer {
 
+    private static final int DEFAULT_RESULT_CACHE_SIZE = 16;
+
+    private static final int DEFAULT_DISK_CACHE_SIZE = 64;
+
+    private static final int DEFAULT_SAVE_LATENCY_BUDGET = 1000;
+
+    private static final int DEFAULT_BACKGROUND_NICE = 10;
+
     @Override
     public void initializeDefaultPreferences() {
         IPreferenceStore store = CppStyle.getDefault().getPreferenceStore();
         store.setDefault(CppStyleConstants.CLANG_FORMAT_PATH, "");
         store.setDefault(CppStyleConstants.CLANG_FORMAT_STYLE_PATH, "");
+        store.setDefault(CppStyleConstants.CLANG_FORMAT_PROCESS_POOL_SIZE, 0);
+        store.setDefault(CppStyleConstants.CLANG_FORMAT_PROCESS_IO_MODE, ProcessIoMode.BOUNDED.name());
+        store.setDefault(CppStyleConstants.CLANG_FORMAT_RESULT_CACHE_SIZE, DEFAULT_RESULT_CACHE_SIZE);
+        store.setDefault(CppStyleConstants.CLANG_FORMAT_DISK_CACHE_SIZE, DEFAULT_DISK_CACHE_SIZE);
+        store.setDefault(CppStyleConstants.CLANG_FORMAT_DISK_CACHE_DIRECTORY, "");
+        store.setDefault(CppStyleConstants.CLANG_FORMAT_LOG_LEVEL, LogLevel.ERROR.name());
+        store.setDefault(CppStyleConstants.CLANG_FORMAT_SAVE_LATENCY_BUDGET, DEFAULT_SAVE_LATENCY_BUDGET);
+        store.setDefault(CppStyleConstants.CLANG_FORMAT_BACKGROUND_NICE, DEFAULT_BACKGROUND_NICE);
+        store.setDefault(CppStyleConstants.CLANG_FORMAT_BACKGROUND_CPUS, "");
     }
 }